@@ -28,6 +28,25 @@ public enum CacheReplacementStrategy {
      * The element which has been used the most infrequently is
      * ejected first.
      */
-    LFU
+    LFU,
+
+    /**
+     * Window TinyLFU
+     *
+     * New elements pass a small LRU window and are only admitted to
+     * the main cache if they are used more frequently than the element
+     * they would replace. Usage frequencies fade out over time.
+     */
+    TINY_LFU,
+
+    /**
+     * Off-Heap
+     *
+     * Values are kept in direct memory outside of the Java heap. Every
+     * value is stored in a slot of a fixed size class, the least recently
+     * used element of the same size class is ejected first. The capacity
+     * is always given in bytes.
+     */
+    OFF_HEAP
 
 }
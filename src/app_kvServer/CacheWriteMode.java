@@ -0,0 +1,28 @@
+package app_kvServer;
+
+/**
+ * A write mode determines when modifications which have been applied
+ * to the cache reach the storage engine.
+ */
+public enum CacheWriteMode {
+
+    /**
+     * Write-Through
+     *
+     * A modification is acknowledged only after it has been written to
+     * the storage engine.
+     */
+    WRITE_THROUGH,
+
+    /**
+     * Write-Back
+     *
+     * A modification is acknowledged once it is in memory and written to
+     * the storage engine by a background flush. Repeated modifications of
+     * a key between two flushes are written only once. Modifications which
+     * have not been flushed are lost if the server crashes, unless they
+     * are restored from replicas or the write-ahead log.
+     */
+    WRITE_BACK
+
+}
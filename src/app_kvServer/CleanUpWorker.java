@@ -13,9 +13,7 @@ import org.apache.logging.log4j.Logger;
 
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.function.Predicate;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 /**
  * Deletes data this node is not responsible for anymore if the cluster has been
@@ -102,31 +100,21 @@ public class CleanUpWorker extends ContextPreservingThread {
                     .collect(Collectors.toSet());
 
             HashRing ring = new HashRing(clusterNodes);
+            if (ring.getNodes().size() <= replicationFactor) {
+                LOG.info("Every node holds all data, nothing to clean up");
+                return;
+            }
 
-            Set<Range> ownedKeyRanges = IntStream
-                    .range(0, replicationFactor)
-                    .mapToObj(predecessorNr -> ring.getPredecessor(myself, predecessorNr))
-                    .map(ring::getAssignedRange)
-                    .collect(Collectors.toSet());
-
-            Predicate<String> keyInResponsibility = (String key) -> ownedKeyRanges.stream()
-                    .map(range -> range.contains(HashRing.hash(key)))
-                    .anyMatch(contained -> contained);
+            // we keep our primary range and the ranges of the predecessors we hold replicas for,
+            // which together form one range ending at our own position
+            Range primaryRange = ring.getAssignedRange(myself);
+            Range farthestReplicaRange = ring.getAssignedRange(ring.getPredecessor(myself, replicationFactor - 1));
+            Range lostRange = new Range(primaryRange.getEnd(), farthestReplicaRange.getStart());
 
             try {
-                Set<String> keysToBeDeleted = persistenceService.getKeys().stream()
-                        .filter(keyInResponsibility.negate())
-                        .collect(Collectors.toSet());
-
-                keysToBeDeleted.stream().forEach(key -> {
-                    try {
-                        persistenceService.delete(key);
-                    } catch (PersistenceException e) {
-                        LOG.error("Could not clean up key=" + key, e);
-                    }
-                });
-
-                LOG.info("{} keys have been cleaned up", keysToBeDeleted.size());
+                // whole partitions of the lost range are dropped at once
+                int cleanedUp = persistenceService.deleteRange(lostRange);
+                LOG.info("{} keys have been cleaned up", cleanedUp);
             } catch (PersistenceException e) {
                 LOG.error("Error cleaning up data.", e);
             }
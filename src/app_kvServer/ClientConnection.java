@@ -1,37 +1,34 @@
 package app_kvServer;
 
-import app_kvServer.admin.AdminTasks;
-import app_kvServer.admin.CleanUpDataTask;
-import app_kvServer.admin.DataStreamTask;
-import app_kvServer.admin.MoveDataTask;
-import app_kvServer.gossip.Gossiper;
-import app_kvServer.mapreduce.MapReduceRequestHandler;
-import app_kvServer.persistence.PersistenceService;
-import app_kvServer.sync.Synchronizer;
 import common.CorrelatedMessage;
 import common.Protocol;
 import common.exceptions.ProtocolException;
-import common.hash.Range;
 import common.messages.ExceptionMessage;
 import common.messages.Message;
-import common.messages.admin.*;
-import common.messages.gossip.ClusterDigest;
 import common.utils.ContextPreservingThread;
 import common.utils.RecordReader;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.ThreadContext;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A ClientConnection represents an active session with a client application.
+ *
+ * Replies are written by a writer thread of the connection, so the I/O threads
+ * which complete data requests never wait for a slow client. The connection stops
+ * reading requests while too many of its replies are outstanding.
  */
 public class ClientConnection extends ContextPreservingThread {
 
@@ -39,12 +36,18 @@ public class ClientConnection extends ContextPreservingThread {
 
     private static final byte RECORD_SEPARATOR = 0x1e;
 
+    private static final int MAX_OUTSTANDING_REQUESTS = 64;
+
+    // tells the writer thread to say goodbye to the client and stop
+    private static final byte[] SHUTDOWN = new byte[0];
+
     private final AtomicBoolean running;
-    private final PersistenceService persistenceService;
-    private final DataRequestHandler dataRequestHandler;
-    private final MapReduceRequestHandler mapReduceRequestHandler;
+    private final RequestDispatcher requestDispatcher;
     private final SessionRegistry sessionRegistry;
-    private final ServerState serverState;
+    private final ThreadFactory threadFactory;
+
+    private final BlockingQueue<byte[]> replies;
+    private final Semaphore outstandingRequests;
 
     private final Socket socket;
     private InputStream inputStream;
@@ -53,25 +56,22 @@ public class ClientConnection extends ContextPreservingThread {
     /**
      * Default constructor.
      * @param clientSocket Socket for the client connection
-     * @param persistenceService Instance of {@link PersistenceService} to use
      * @param sessionRegistry Instance of {@link SessionRegistry} to register with
-     * @param serverState Global server state
-     * @param dataRequestHandler Handler for data requests
-     * @param mapReduceRequestHandler Handler for map/reduce requests
+     * @param requestDispatcher Handles the requests of the client
+     * @param threadFactory Creates the threads of the connection
      */
     public ClientConnection(Socket clientSocket,
-                            PersistenceService persistenceService,
                             SessionRegistry sessionRegistry,
-                            ServerState serverState,
-                            DataRequestHandler dataRequestHandler,
-                            MapReduceRequestHandler mapReduceRequestHandler) {
+                            RequestDispatcher requestDispatcher,
+                            ThreadFactory threadFactory) {
+        super(threadFactory);
         this.socket = clientSocket;
         this.running = new AtomicBoolean(false);
-        this.persistenceService = persistenceService;
         this.sessionRegistry = sessionRegistry;
-        this.serverState = serverState;
-        this.dataRequestHandler = dataRequestHandler;
-        this.mapReduceRequestHandler = mapReduceRequestHandler;
+        this.requestDispatcher = requestDispatcher;
+        this.threadFactory = threadFactory;
+        this.replies = new LinkedBlockingQueue<>();
+        this.outstandingRequests = new Semaphore(MAX_OUTSTANDING_REQUESTS);
     }
 
     /**
@@ -80,6 +80,7 @@ public class ClientConnection extends ContextPreservingThread {
     @Override
     public void run() {
         this.setUpThreadContext();
+        WriterThread writerThread = null;
         try {
             // TODO handle errors more gracefully
             this.running.set(true);
@@ -92,6 +93,9 @@ public class ClientConnection extends ContextPreservingThread {
             ThreadContext.put("client", socket.getRemoteSocketAddress().toString());
             LOG.debug("Established connection with client.");
 
+            writerThread = new WriterThread(new BufferedOutputStream(outputStream));
+            writerThread.start();
+
             while (running.get()) {
                 byte[] incoming = recordReader.read();
 
@@ -104,37 +108,41 @@ public class ClientConnection extends ContextPreservingThread {
                     continue;
                 }
 
-                Message response;
-                long correlationNumber = 0;
+                // released by the writer thread once the reply is sent
+                outstandingRequests.acquire();
+
+                CorrelatedMessage request;
                 try {
-                    CorrelatedMessage request = Protocol.decode(incoming);
-                    correlationNumber = request.getCorrelationNumber();
-                    response = handleIncomingMessage(request);
-                } catch (Exception e) {
+                    request = Protocol.decode(incoming);
+                } catch (ProtocolException e) {
                     LOG.error("Protocol exception.", e);
-                    response = new ExceptionMessage(e);
+                    reply(new ExceptionMessage(e), 0);
+                    continue;
                 }
 
-                byte[] outgoing = Protocol.encode(response, correlationNumber);
-                outputStream.write(outgoing);
-                outputStream.write(RECORD_SEPARATOR);
-                outputStream.flush();
+                // replied to once the request is done, the client matches replies by correlation number
+                long correlationNumber = request.getCorrelationNumber();
+                requestDispatcher.dispatch(request).thenAccept(response -> reply(response, correlationNumber));
 
                 ThreadContext.remove("correlation");
             }
 
-            outputStream.write(Protocol.SHUTDOWN_CMD);
-            outputStream.write(RECORD_SEPARATOR);
-            outputStream.flush();
-
-            socket.close();
+            replies.add(SHUTDOWN);
+            writerThread.join();
         } catch (SocketException e) {
             // happens when the connection closes, we don't want to flood the log with errors because of that
             LOG.debug("Socket exception", e);
         } catch (IOException e) {
             LOG.error("Communication problem with client.", e);
+        } catch (InterruptedException e) {
+            LOG.debug("Interrupted while waiting for replies.", e);
+            Thread.currentThread().interrupt();
         } finally {
             cleanConnectionShutdown();
+            if (writerThread != null) {
+                // wakes it up if it still waits for replies
+                writerThread.interrupt();
+            }
             sessionRegistry.unregisterSession(this);
         }
     }
@@ -146,96 +154,9 @@ public class ClientConnection extends ContextPreservingThread {
         this.running.set(false);
     }
 
-    private Message handleIncomingMessage(CorrelatedMessage request) throws ProtocolException {
-        ThreadContext.put("correlation", Long.toUnsignedString(request.getCorrelationNumber()));
-
-        if (request.hasKVMessage()) {
-            return dataRequestHandler.handle(request.getKVMessage());
-        } else if (request.hasAdminMessage()) {
-            return handleAdminMessage(request.getAdminMessage());
-        } else if (request.hasGossipMessage()) {
-            ClusterDigest incomingDigest = (ClusterDigest) request.getGossipMessage();
-            return Optional.ofNullable(incomingDigest)
-                    .map(Gossiper.getInstance()::handleIncomingDigest)
-                    .orElse(Gossiper.getInstance().getClusterDigest());
-        } else if (request.hasMRMessage()) {
-            return mapReduceRequestHandler.handle(request.getMRMessage());
-        } else {
-            throw new ProtocolException("Unsupported request: " + request);
-        }
-    }
-
-    private AdminMessage handleAdminMessage(AdminMessage msg) {
-        if (msg instanceof StartServerRequest) {
-            StartServerRequest startServerRequest = (StartServerRequest) msg;
-            if (startServerRequest.isClusterInit()) {
-                Gossiper.getInstance().setOwnState(common.messages.gossip.ServerState.Status.OK);
-            } else {
-                Synchronizer.getInstance().initiateJoin();
-            }
-            serverState.setStopped(false);
-            LOG.info("Admin: Started the server.");
-            return GenericResponse.success();
-        } else if (msg instanceof StopServerRequest) {
-            serverState.setStopped(true);
-            LOG.info("Admin: Stopped the server.");
-            return GenericResponse.success();
-        } else if (msg instanceof ShutDownServerRequest) {
-            sessionRegistry.requestShutDown();
-            LOG.info("Admin: Shutdown requested.");
-            return GenericResponse.success();
-        } else if (msg instanceof EnableWriteLockRequest) {
-            serverState.setWriteLockActive(true);
-            LOG.info("Admin: Enabled write lock.");
-            return GenericResponse.success();
-        } else if (msg instanceof DisableWriteLockRequest) {
-            serverState.setWriteLockActive(false);
-            LOG.info("Admin: Disabled write lock.");
-            return GenericResponse.success();
-        } else if (msg instanceof UpdateMetadataRequest) {
-            UpdateMetadataRequest updateMetadataRequest = (UpdateMetadataRequest) msg;
-            serverState.setClusterNodes(updateMetadataRequest.getNodes());
-            LOG.info("Admin: Updated meta data.");
-
-            Range newKeyRange = serverState.getClusterNodes().getAssignedRange(serverState.getMyself());
-            CleanUpDataTask cleanUpDataTask = new CleanUpDataTask(persistenceService, newKeyRange);
-            AdminTasks.addTask(cleanUpDataTask);
-
-            return GenericResponse.success();
-        } else if (msg instanceof MoveDataRequest) {
-            MoveDataRequest moveDataRequest = (MoveDataRequest) msg;
-            LOG.info("Admin: Starting move data task: {}", moveDataRequest);
-            MoveDataTask moveDataTask = new MoveDataTask(
-                    persistenceService, moveDataRequest.getRange(), moveDataRequest.getDestination());
-            AdminTasks.addTask(moveDataTask);
-            return GenericResponse.success();
-        } else if (msg instanceof GetMaintenanceStatusRequest) {
-            return new MaintenanceStatusResponse(AdminTasks.hasActiveTask(),
-                    AdminTasks.getTaskType(),
-                    (int) (100 * AdminTasks.getProgress()));
-        } else if (msg instanceof InitiateStreamRequest) {
-            InitiateStreamRequest req = (InitiateStreamRequest) msg;
-            LOG.info("Admin: Initiate stream request for range {}", req.getKeyRange());
-            // TODO check cluster state
-            try {
-                DataStreamTask streamTask = DataStreamTask.create(serverState, persistenceService, req.getKeyRange(),
-                        req.getDestination());
-                AdminTasks.addTask(streamTask);
-                LOG.info("Admin: Initiated stream request: ", streamTask.getStreamId());
-                return new InitiateStreamResponse(true, streamTask.getStreamId(),
-                        streamTask.getNumberOfItemsToTransfer(), null);
-            } catch (Exception e) {
-                LOG.error("Could not instantiate data stream.", e);
-                return new InitiateStreamResponse(false, null,
-                        0, null);
-            }
-        } else if (msg instanceof StreamCompleteMessage) {
-            StreamCompleteMessage req = (StreamCompleteMessage) msg;
-            Synchronizer.getInstance().streamCompleted(req.getRange());
-            return GenericResponse.success();
-        } else {
-            throw new AssertionError("Admin message handler not implemented: " + msg.getClass());
-        }
+    // only queues the reply, so the thread which completed the request never waits for the client
+    private void reply(Message response, long correlationNumber) {
+        replies.add(Protocol.encode(response, correlationNumber));
     }
 
     private void cleanConnectionShutdown() {
@@ -264,4 +185,48 @@ public class ClientConnection extends ContextPreservingThread {
         running.set(false);
     }
 
+    // takes replies out of the queue and sends them
+    private class WriterThread extends ContextPreservingThread {
+
+        private final OutputStream outputStream;
+
+        WriterThread(OutputStream outputStream) {
+            super(threadFactory);
+            this.outputStream = outputStream;
+        }
+
+        @Override
+        public void run() {
+            this.setUpThreadContext();
+            try {
+                while (true) {
+                    byte[] reply = replies.take();
+                    if (reply == SHUTDOWN) {
+                        outputStream.write(Protocol.SHUTDOWN_CMD);
+                        outputStream.write(RECORD_SEPARATOR);
+                        outputStream.flush();
+                        break;
+                    }
+
+                    outputStream.write(reply);
+                    outputStream.write(RECORD_SEPARATOR);
+                    // a burst of replies goes out in one flush
+                    if (replies.isEmpty()) {
+                        outputStream.flush();
+                    }
+                    outstandingRequests.release();
+                }
+            } catch (IOException e) {
+                // the client is gone, it does not wait for the replies anymore
+                LOG.debug("Could not send reply.", e);
+                terminate();
+                // the connection thread may wait for room for another request
+                outstandingRequests.release(MAX_OUTSTANDING_REQUESTS);
+            } catch (InterruptedException e) {
+                LOG.debug("Closing writer thread.", e);
+            }
+        }
+
+    }
+
 }
@@ -2,8 +2,19 @@ package app_kvServer;
 
 import common.messages.KVMessage;
 
+import java.util.concurrent.CompletableFuture;
+
 public interface DataRequestHandler {
 
     KVMessage handle(KVMessage msg);
 
+    /**
+     * Handle a data request without waiting for the disk.
+     * @param msg request
+     * @return future which completes with the reply
+     */
+    default CompletableFuture<KVMessage> handleAsync(KVMessage msg) {
+        return CompletableFuture.completedFuture(handle(msg));
+    }
+
 }
@@ -0,0 +1,492 @@
+package app_kvServer;
+
+import common.CorrelatedMessage;
+import common.Protocol;
+import common.exceptions.ProtocolException;
+import common.messages.ExceptionMessage;
+import common.messages.Message;
+import common.utils.RecordReader;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves client connections with a few event loop threads instead of a
+ * thread per connection.
+ *
+ * Each event loop waits on a {@link Selector} for many non-blocking
+ * connections at once and only reads and writes bytes. Complete records are
+ * handed to a pool of worker threads which decode and dispatch them. The
+ * requests of one connection are dispatched in the order they arrived, but
+ * their replies are sent as they complete, which may be in a different
+ * order. Clients match replies by correlation number, like with
+ * {@link ClientConnection}, and the wire protocol is the same.
+ *
+ * A connection is not read from while too many of its requests are
+ * outstanding or too many of its replies have not been sent yet, so a client
+ * which floods the server or stops reading is slowed down like on a blocking
+ * socket.
+ */
+public class EventLoopServer implements Runnable {
+
+    private static final Logger LOG = LogManager.getLogger(EventLoopServer.class);
+
+    /** Default number of event loop threads. */
+    public static final int DEFAULT_EVENT_LOOPS = 2;
+
+    /** Default number of worker threads. */
+    public static final int DEFAULT_WORKERS = 16;
+
+    private static final int MAX_OUTSTANDING_REQUESTS = 64;
+    private static final int MAX_PENDING_BYTES = 1024 * 1024;
+
+    private final int port;
+    private final RequestHandler requestHandler;
+    private final EventLoop[] eventLoops;
+    private final ThreadPoolExecutor workers;
+    private final AtomicBoolean running;
+
+    private volatile ServerSocketChannel serverChannel;
+    private volatile Map<String, String> threadContext;
+
+    /**
+     * Handles a decoded request.
+     */
+    @FunctionalInterface
+    public interface RequestHandler {
+
+        /**
+         * Handle a request.
+         * @param request The request
+         * @return Future which completes with the reply
+         */
+        CompletableFuture<Message> handle(CorrelatedMessage request);
+
+    }
+
+    /**
+     * Constructor.
+     * @param port Port to listen on
+     * @param requestHandler Answers the requests
+     * @param eventLoops Number of event loop threads
+     * @param workers Number of worker threads
+     */
+    public EventLoopServer(int port, RequestHandler requestHandler, int eventLoops, int workers) {
+        this.port = port;
+        this.requestHandler = requestHandler;
+        this.running = new AtomicBoolean(false);
+        this.threadContext = Collections.emptyMap();
+        this.eventLoops = new EventLoop[eventLoops];
+        this.workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "request-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Accept connections until the server is stopped.
+     */
+    @Override
+    public void run() {
+        // log messages of the event loops and workers should tell which server they belong to
+        threadContext = ThreadContext.getImmutableContext();
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            LOG.info("Server listening on port {} with {} event loops and {} workers.",
+                    port, eventLoops.length, workers.getMaximumPoolSize());
+
+            running.set(true);
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new EventLoop(Selector.open());
+                Thread thread = new Thread(eventLoops[i], "event-loop");
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            int next = 0;
+            while (running.get()) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                eventLoops[next].register(channel);
+                next = (next + 1) % eventLoops.length;
+            }
+        } catch (IOException e) {
+            if (running.get()) {
+                LOG.error("Error while accepting connections.", e);
+            }
+            // else: orderly shutdown
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Stop the server and close all connections.
+     */
+    public void stop() {
+        running.set(false);
+
+        ServerSocketChannel serverChannel = this.serverChannel;
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                LOG.debug("Error closing connection.", e);
+            }
+        }
+
+        for (EventLoop eventLoop : eventLoops) {
+            if (eventLoop != null) {
+                eventLoop.selector.wakeup();
+            }
+        }
+        workers.shutdown();
+    }
+
+    /**
+     * Return whether the server accepts connections.
+     * @return True if the server is running
+     */
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    private final class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks;
+        private final ByteBuffer readBuffer;
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+            this.tasks = new ConcurrentLinkedQueue<>();
+            this.readBuffer = ByteBuffer.allocate(RecordReader.BUFFER_SIZE);
+        }
+
+        // selection keys may only be changed by the loop thread, everybody else hands it a task
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    Connection connection = new Connection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    LOG.debug("Established connection with client {}.", connection.client);
+                } catch (IOException e) {
+                    LOG.warn("Could not register connection.", e);
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            ThreadContext.putAll(threadContext);
+            try {
+                while (running.get()) {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write();
+                            }
+                        } catch (IOException e) {
+                            // happens when the connection closes, we don't want to flood the log with errors
+                            LOG.debug("Communication problem with client.", e);
+                            connection.close();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                LOG.error("Event loop failed.", e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).shutDown();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    LOG.debug("Error closing selector.", e);
+                }
+            }
+        }
+
+    }
+
+    private final class Connection {
+
+        private final EventLoop eventLoop;
+        private final SocketChannel channel;
+        private final String client;
+        private SelectionKey key;
+
+        // only touched by the loop thread
+        private final ByteArrayOutputStream partialRecord;
+
+        private final Queue<byte[]> requests;
+        private final AtomicBoolean processing;
+        private final AtomicInteger outstanding;
+
+        // guarded by itself, filled by the workers and drained by the loop thread
+        private final Queue<ByteBuffer> replies;
+        private int pendingBytes;
+        private final AtomicBoolean flushScheduled;
+
+        Connection(EventLoop eventLoop, SocketChannel channel) throws IOException {
+            this.eventLoop = eventLoop;
+            this.channel = channel;
+            this.client = channel.getRemoteAddress().toString();
+            this.partialRecord = new ByteArrayOutputStream();
+            this.requests = new ConcurrentLinkedQueue<>();
+            this.processing = new AtomicBoolean(false);
+            this.outstanding = new AtomicInteger();
+            this.replies = new ArrayDeque<>();
+            this.flushScheduled = new AtomicBoolean(false);
+        }
+
+        void read() throws IOException {
+            ByteBuffer buffer = eventLoop.readBuffer;
+            buffer.clear();
+            int read = channel.read(buffer);
+            if (read < 0) {
+                LOG.debug("Client {} terminated the connection.", client);
+                close();
+                return;
+            }
+
+            byte[] data = buffer.array();
+            int start = 0;
+            for (int i = 0; i < read; i++) {
+                if (data[i] != Protocol.RECORD_SEPARATOR) {
+                    continue;
+                }
+                byte[] record;
+                if (partialRecord.size() == 0) {
+                    record = Arrays.copyOfRange(data, start, i);
+                } else {
+                    partialRecord.write(data, start, i - start);
+                    record = partialRecord.toByteArray();
+                    partialRecord.reset();
+                }
+                start = i + 1;
+
+                // empty records are the keep alive of the client
+                if (record.length > 0) {
+                    outstanding.incrementAndGet();
+                    requests.add(record);
+                }
+            }
+            partialRecord.write(data, start, read - start);
+
+            schedule();
+            updateInterest();
+        }
+
+        void write() throws IOException {
+            // replies added from now on need another flush
+            flushScheduled.set(false);
+            synchronized (replies) {
+                ByteBuffer reply;
+                while ((reply = replies.peek()) != null) {
+                    pendingBytes -= channel.write(reply);
+                    if (reply.hasRemaining()) {
+                        // the socket buffer is full, continue once it is writable again
+                        break;
+                    }
+                    replies.remove();
+                }
+            }
+            updateInterest();
+        }
+
+        void close() {
+            key.cancel();
+            closeQuietly(channel);
+        }
+
+        // tells the client that the server goes away, like a connection thread does
+        void shutDown() {
+            try {
+                channel.write(ByteBuffer.wrap(new byte[] {
+                        Protocol.SHUTDOWN_CMD[0], Protocol.SHUTDOWN_CMD[1], Protocol.SHUTDOWN_CMD[2],
+                        Protocol.RECORD_SEPARATOR}));
+            } catch (IOException e) {
+                LOG.debug("Could not send shutdown to client {}.", client, e);
+            }
+            close();
+        }
+
+        private void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            int interest = 0;
+            synchronized (replies) {
+                if (outstanding.get() < MAX_OUTSTANDING_REQUESTS && pendingBytes < MAX_PENDING_BYTES) {
+                    interest |= SelectionKey.OP_READ;
+                }
+                if (!replies.isEmpty()) {
+                    interest |= SelectionKey.OP_WRITE;
+                }
+            }
+            key.interestOps(interest);
+        }
+
+        // at most one worker handles the requests of a connection at a time, so they stay in order
+        private void schedule() {
+            if (requests.isEmpty() || !processing.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                workers.execute(this::process);
+            } catch (RejectedExecutionException e) {
+                // the server is shutting down
+                processing.set(false);
+            }
+        }
+
+        private void process() {
+            ThreadContext.putAll(threadContext);
+            ThreadContext.put("client", client);
+            try {
+                byte[] record;
+                while ((record = requests.poll()) != null) {
+                    handle(record);
+                }
+            } finally {
+                ThreadContext.clearMap();
+                processing.set(false);
+            }
+            // a request may have arrived after the queue was found empty
+            schedule();
+        }
+
+        private void handle(byte[] record) {
+            CorrelatedMessage request;
+            try {
+                request = Protocol.decode(record);
+            } catch (ProtocolException | RuntimeException e) {
+                LOG.error("Protocol exception.", e);
+                reply(new ExceptionMessage(e), 0);
+                return;
+            }
+
+            // replied to once the request is done, the client matches replies by correlation number
+            long correlationNumber = request.getCorrelationNumber();
+            CompletableFuture<Message> response;
+            try {
+                response = requestHandler.handle(request);
+            } catch (RuntimeException e) {
+                response = new CompletableFuture<>();
+                response.completeExceptionally(e);
+            }
+            // every request is answered, otherwise it would count as outstanding forever
+            response.whenComplete((message, error) -> {
+                if (error != null || message == null) {
+                    LOG.error("Could not handle request.", error);
+                    reply(toExceptionMessage(error), correlationNumber);
+                } else {
+                    reply(message, correlationNumber);
+                }
+            });
+
+            ThreadContext.remove("correlation");
+        }
+
+        private void reply(Message response, long correlationNumber) {
+            byte[] outgoing;
+            try {
+                outgoing = Protocol.encode(response, correlationNumber);
+            } catch (RuntimeException e) {
+                LOG.error("Could not encode reply.", e);
+                outgoing = Protocol.encode(new ExceptionMessage(e), correlationNumber);
+            }
+            synchronized (replies) {
+                // both buffers at once, so concurrent replies do not interleave
+                replies.add(ByteBuffer.wrap(outgoing));
+                replies.add(ByteBuffer.wrap(new byte[] {Protocol.RECORD_SEPARATOR}));
+                pendingBytes += outgoing.length + 1;
+            }
+            outstanding.decrementAndGet();
+
+            if (flushScheduled.compareAndSet(false, true)) {
+                eventLoop.execute(() -> {
+                    if (!key.isValid()) {
+                        return;
+                    }
+                    try {
+                        write();
+                    } catch (IOException e) {
+                        // the client is gone, it does not wait for the reply anymore
+                        LOG.debug("Could not send reply.", e);
+                        close();
+                    }
+                });
+            }
+        }
+
+    }
+
+    private static ExceptionMessage toExceptionMessage(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        if (error == null) {
+            return new ExceptionMessage(IllegalStateException.class.getName(), "Request was not answered.");
+        }
+        if (error instanceof Exception) {
+            return new ExceptionMessage((Exception) error);
+        }
+        return new ExceptionMessage(error.getClass().getName(), error.getMessage());
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.warn("Error closing connection.", e);
+        }
+    }
+
+}
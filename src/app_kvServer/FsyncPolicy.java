@@ -0,0 +1,33 @@
+package app_kvServer;
+
+/**
+ * An fsync policy determines when writes to the write-ahead log are
+ * forced to stable storage.
+ */
+public enum FsyncPolicy {
+
+    /**
+     * Always
+     *
+     * A write is acknowledged only after it has been synced. Concurrent
+     * writes are synced together.
+     */
+    ALWAYS,
+
+    /**
+     * Interval
+     *
+     * The log is synced periodically, writes since the last sync can be
+     * lost if the machine crashes.
+     */
+    INTERVAL,
+
+    /**
+     * OS
+     *
+     * The log is never synced explicitly, the operating system decides
+     * when data reaches the disk.
+     */
+    OS
+
+}
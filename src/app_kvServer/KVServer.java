@@ -4,10 +4,22 @@ package app_kvServer;
 import app_kvServer.gossip.GossipEventListener;
 import app_kvServer.gossip.Gossiper;
 import app_kvServer.mapreduce.MapReduceRequestHandler;
+import app_kvServer.persistence.AsyncPersistenceService;
 import app_kvServer.persistence.CachedDiskStorage;
+import app_kvServer.persistence.ExpiringStorage;
+import app_kvServer.persistence.DiskStorage;
+import app_kvServer.persistence.LSMTreeStorage;
+import app_kvServer.persistence.LogStructuredStorage;
+import app_kvServer.persistence.PartitionedStorage;
+import app_kvServer.persistence.PersistenceException;
 import app_kvServer.persistence.PersistenceService;
+import app_kvServer.persistence.SnapshotFiles;
+import app_kvServer.persistence.ValueCodec;
+import app_kvServer.persistence.ValueLogStorage;
+import app_kvServer.persistence.WriteAheadLogStorage;
 import app_kvServer.sync.Synchronizer;
 import common.messages.gossip.ClusterDigest;
+import common.utils.ContextPreservingThread;
 import common.utils.HostAndPort;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -20,8 +32,11 @@ import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Files;
 import java.util.HashSet;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
@@ -31,14 +46,17 @@ public class KVServer implements Runnable, SessionRegistry, GossipEventListener
 
     private final int port;
     private final int cacheSize;
+    private final long cacheMaxBytes;
     private final File dataDirectory;
     private final CacheReplacementStrategy cacheStrategy;
+    private final StorageEngine storageEngine;
     private final int replicationFactor;
 
     private final Set<ClientConnection> activeSessions;
     private final ServerState serverState;
 
     private ServerSocket serverSocket;
+    private volatile EventLoopServer eventLoopServer;
     private AtomicBoolean running;
 
     private CleanUpWorker cleanUpWorker;
@@ -48,12 +66,23 @@ public class KVServer implements Runnable, SessionRegistry, GossipEventListener
      * @param args Configuration for the server. In order:
      *             port - defaults to 12345
      *             cache size - defaults to 10000
-     *             cache strategy - can be one of FIFO, LRU, LFU
+     *             cache strategy - can be one of FIFO, LRU, LFU, TINY_LFU, OFF_HEAP
+     *             storage engine - can be one of FILE_PER_KEY, LOG_STRUCTURED, LSM_TREE
+     *             The system property cacheMaxBytes limits the cache by estimated memory
+     *             usage instead of the number of entries, it is required for OFF_HEAP.
+     *             The system property cacheWriteMode can be WRITE_THROUGH or WRITE_BACK.
+     *             The system property compressionThreshold sets the size from which on
+     *             values are stored compressed.
+     *             The system property serverMode can be THREAD_PER_CONNECTION,
+     *             VIRTUAL_THREAD_PER_CONNECTION or EVENT_LOOP, the latter uses eventLoops
+     *             threads for the sockets and requestWorkers threads for the requests.
      */
     public static void main(String[] args) {
         int port = 50000;
         int cacheSize = 10000;
+        long cacheMaxBytes = 0;
         CacheReplacementStrategy strategy = CacheReplacementStrategy.FIFO;
+        StorageEngine storageEngine = StorageEngine.FILE_PER_KEY;
 
         // make log4j inherit thread contexts from parent thread because we use a lot of workers
         System.setProperty("isThreadContextMapInheritable", "true");
@@ -79,13 +108,28 @@ public class KVServer implements Runnable, SessionRegistry, GossipEventListener
             try {
                 strategy = CacheReplacementStrategy.valueOf(args[2]);
             } catch (IllegalArgumentException e) {
-                System.err.println("Third argument (cache strategy) must be FIFO, LRU or LFU.");
+                System.err.println("Third argument (cache strategy) must be FIFO, LRU, LFU, TINY_LFU or OFF_HEAP.");
                 System.exit(1);
             }
         }
+        if (args.length >= 4) {
+            try {
+                storageEngine = StorageEngine.valueOf(args[3]);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Fourth argument (storage engine) must be FILE_PER_KEY, LOG_STRUCTURED or LSM_TREE.");
+                System.exit(1);
+            }
+        }
+
+        try {
+            cacheMaxBytes = Long.parseUnsignedLong(System.getProperty("cacheMaxBytes", "0"));
+        } catch (NumberFormatException e) {
+            System.err.println("Property cacheMaxBytes must be a positive integer.");
+            System.exit(1);
+        }
 
         File dataDirectory = new File("./data_" + port);
-        KVServer server = new KVServer(port, dataDirectory, cacheSize, strategy);
+        KVServer server = new KVServer(port, dataDirectory, cacheSize, cacheMaxBytes, strategy, storageEngine);
         // not doing this in a thread by choice
         server.run();
     }
@@ -102,9 +146,47 @@ public class KVServer implements Runnable, SessionRegistry, GossipEventListener
      *                  currently not contained in the cache.
      */
     public KVServer(int port, File dataDirectory, int cacheSize, CacheReplacementStrategy cacheStrategy) {
+        this(port, dataDirectory, cacheSize, cacheStrategy, StorageEngine.FILE_PER_KEY);
+    }
+
+    /**
+     * Start KV Server at given port
+     *
+     * @param port      given port for persistence server to operate
+     * @param dataDirectory directory to store data in
+     * @param cacheSize specifies how many key-value pairs the server is allowed
+     *                  to keep in-memory
+     * @param cacheStrategy  specifies the cache replacement strategy in case the cache
+     *                  is full and there is a GET- or PUT-request on a key that is
+     *                  currently not contained in the cache.
+     * @param storageEngine specifies how data is laid out on disk
+     */
+    public KVServer(int port, File dataDirectory, int cacheSize, CacheReplacementStrategy cacheStrategy,
+                    StorageEngine storageEngine) {
+        this(port, dataDirectory, cacheSize, 0, cacheStrategy, storageEngine);
+    }
+
+    /**
+     * Start KV Server at given port
+     *
+     * @param port      given port for persistence server to operate
+     * @param dataDirectory directory to store data in
+     * @param cacheSize specifies how many key-value pairs the server is allowed
+     *                  to keep in-memory
+     * @param cacheMaxBytes specifies how many bytes the cached key-value pairs may
+     *                  occupy in memory, overrides the cache size if positive
+     * @param cacheStrategy  specifies the cache replacement strategy in case the cache
+     *                  is full and there is a GET- or PUT-request on a key that is
+     *                  currently not contained in the cache.
+     * @param storageEngine specifies how data is laid out on disk
+     */
+    public KVServer(int port, File dataDirectory, int cacheSize, long cacheMaxBytes,
+                    CacheReplacementStrategy cacheStrategy, StorageEngine storageEngine) {
         this.port = port;
         this.cacheSize = cacheSize;
+        this.cacheMaxBytes = cacheMaxBytes;
         this.cacheStrategy = cacheStrategy;
+        this.storageEngine = storageEngine;
         this.replicationFactor = 3;
 
         this.activeSessions = new HashSet<>();
@@ -137,20 +219,34 @@ public class KVServer implements Runnable, SessionRegistry, GossipEventListener
         }
 
         // TODO handle errors more gracefully
+        AsyncPersistenceService persistenceService = null;
         try {
-            PersistenceService persistenceService =
-                    new CachedDiskStorage(dataDirectory, cacheSize, cacheStrategy);
+            persistenceService = createPersistenceService();
 
             this.cleanUpWorker = new CleanUpWorker(serverState.getMyself(), persistenceService,
                     10, 60, replicationFactor);
             this.cleanUpWorker.start();
 
+            ServerMode serverMode = ServerMode.valueOf(System.getProperty("serverMode", "THREAD_PER_CONNECTION"));
+            ThreadFactory threadFactory = createThreadFactory(serverMode);
+
             ReplicatingDataRequestHandler dataRequestHandler =
-                    new ReplicatingDataRequestHandler(serverState, persistenceService, 3);
+                    new ReplicatingDataRequestHandler(serverState, persistenceService, 3, threadFactory);
             MapReduceRequestHandler mapReduceRequestHandler =
-                    new MapReduceRequestHandler(serverState.getMyself(), persistenceService);
+                    new MapReduceRequestHandler(serverState.getMyself(), persistenceService, threadFactory);
             Gossiper.getInstance().addListener(dataRequestHandler);
 
+            RequestDispatcher requestDispatcher = new RequestDispatcher(persistenceService, this, serverState,
+                    dataRequestHandler, mapReduceRequestHandler, threadFactory);
+
+            if (serverMode == ServerMode.EVENT_LOOP) {
+                eventLoopServer = createEventLoopServer(requestDispatcher);
+                running.set(true);
+                // returns once the server is stopped
+                eventLoopServer.run();
+                return;
+            }
+
             serverSocket = new ServerSocket(port);
             LOG.info("Server listening on port {}.", port);
 
@@ -159,16 +255,15 @@ public class KVServer implements Runnable, SessionRegistry, GossipEventListener
             while (running.get()) {
                 Socket clientSocket = serverSocket.accept();
 
-                ClientConnection clientConnection = new ClientConnection(
-                        clientSocket,
-                        persistenceService,
-                        this,
-                        serverState,
-                        dataRequestHandler,
-                        mapReduceRequestHandler);
+                ClientConnection clientConnection = new ClientConnection(clientSocket, this, requestDispatcher,
+                        threadFactory);
 
                 clientConnection.start();
             }
+        } catch (PersistenceException e) {
+            LOG.error("Could not open persistence service.", e);
+        } catch (IllegalArgumentException e) {
+            LOG.error("Invalid server configuration.", e);
         } catch (IOException e) {
             if (running.get()) {
                 LOG.error("Error while accepting connections.", e);
@@ -176,6 +271,7 @@ public class KVServer implements Runnable, SessionRegistry, GossipEventListener
             // else: orderly shutdown
         } finally {
             cleanSocketShutdown();
+            cleanPersistenceShutdown(persistenceService);
         }
     }
 
@@ -195,6 +291,11 @@ public class KVServer implements Runnable, SessionRegistry, GossipEventListener
 
         Gossiper.getInstance().stop();
 
+        EventLoopServer eventLoopServer = this.eventLoopServer;
+        if (eventLoopServer != null) {
+            eventLoopServer.stop();
+        }
+
         cleanSocketShutdown();
     }
 
@@ -222,6 +323,302 @@ public class KVServer implements Runnable, SessionRegistry, GossipEventListener
         stop();
     }
 
+    private AsyncPersistenceService createPersistenceService() throws PersistenceException {
+        LOG.info("Using storage engine {} in {}", storageEngine, dataDirectory);
+        restoreSnapshot();
+        ValueCodec codec;
+        try {
+            codec = new ValueCodec(Integer.parseUnsignedInt(System.getProperty("compressionThreshold",
+                    Integer.toString(ValueCodec.DEFAULT_THRESHOLD))));
+        } catch (NumberFormatException e) {
+            throw new PersistenceException("compressionThreshold must be a positive number of bytes.", e);
+        }
+
+        int maxMappedFiles;
+        long tombstoneGracePeriod;
+        try {
+            maxMappedFiles = Integer.parseUnsignedInt(System.getProperty("maxMappedFiles",
+                    Integer.toString(DiskStorage.DEFAULT_MAX_MAPPED_FILES)));
+            tombstoneGracePeriod = Long.parseUnsignedLong(System.getProperty("tombstoneGracePeriod",
+                    Long.toString(DiskStorage.DEFAULT_TOMBSTONE_GRACE_PERIOD)));
+        } catch (NumberFormatException e) {
+            throw new PersistenceException("maxMappedFiles must be a positive number "
+                    + "and tombstoneGracePeriod a positive number of milliseconds.", e);
+        }
+
+        PartitionedStorage.EngineFactory engineFactory;
+        switch (storageEngine) {
+            case LOG_STRUCTURED:
+                engineFactory = directory -> new LogStructuredStorage(directory,
+                        LogStructuredStorage.DEFAULT_MAX_SEGMENT_SIZE, codec, ExpiringStorage.EXPIRED_VALUES,
+                        tombstoneGracePeriod);
+                break;
+            case LSM_TREE:
+                engineFactory = directory -> new LSMTreeStorage(directory, LSMTreeStorage.DEFAULT_MEMTABLE_SIZE, codec,
+                        ExpiringStorage.EXPIRED_VALUES, tombstoneGracePeriod);
+                break;
+            case FILE_PER_KEY:
+            default:
+                engineFactory = directory -> new DiskStorage(directory, codec, maxMappedFiles, tombstoneGracePeriod);
+        }
+
+        int partitions;
+        try {
+            partitions = Integer.parseUnsignedInt(System.getProperty("partitions", "0"));
+            if (partitions > 0 && Integer.bitCount(partitions) != 1) {
+                throw new IllegalArgumentException("Number of partitions must be a power of two.");
+            }
+        } catch (IllegalArgumentException e) {
+            throw new PersistenceException("partitions must be a power of two "
+                    + "or 0 to store all data in one engine.", e);
+        }
+
+        PersistenceService engine;
+        if (partitions > 0) {
+            // changes the layout of the data directory, so it is only used when asked for
+            LOG.info("Splitting data into {} partitions", partitions);
+            engine = new PartitionedStorage(dataDirectory, partitions, engineFactory);
+        } else {
+            engine = engineFactory.open(dataDirectory);
+        }
+
+        // only engines which rewrite their data on compaction profit from keeping large values apart
+        if (storageEngine == StorageEngine.LOG_STRUCTURED || storageEngine == StorageEngine.LSM_TREE) {
+            engine = separateLargeValues(engine, codec);
+        }
+
+        if (cacheStrategy == CacheReplacementStrategy.OFF_HEAP && cacheMaxBytes <= 0) {
+            engine.close();
+            throw new PersistenceException("The OFF_HEAP cache requires cacheMaxBytes to be set.");
+        }
+        CacheWriteMode writeMode;
+        long flushInterval;
+        try {
+            writeMode = CacheWriteMode.valueOf(System.getProperty("cacheWriteMode", "WRITE_THROUGH"));
+            flushInterval = Long.parseUnsignedLong(System.getProperty("cacheFlushInterval",
+                    Long.toString(CachedDiskStorage.DEFAULT_FLUSH_INTERVAL)));
+            if (flushInterval == 0) {
+                throw new IllegalArgumentException("Flush interval must not be zero.");
+            }
+        } catch (IllegalArgumentException e) {
+            engine.close();
+            throw new PersistenceException("cacheWriteMode must be WRITE_THROUGH or WRITE_BACK "
+                    + "and cacheFlushInterval a positive number of milliseconds.", e);
+        }
+
+        CachedDiskStorage storage;
+        if (cacheMaxBytes > 0) {
+            LOG.info("Using {} {} cache of {} bytes", writeMode, cacheStrategy, cacheMaxBytes);
+            storage = new CachedDiskStorage(engine, cacheMaxBytes, CachedDiskStorage.BYTE_WEIGHER, cacheStrategy,
+                    writeMode, flushInterval, CachedDiskStorage.DEFAULT_MAX_DIRTY_ENTRIES);
+        } else {
+            LOG.info("Using {} {} cache of {} entries", writeMode, cacheStrategy, cacheSize);
+            storage = new CachedDiskStorage(engine, cacheSize, CachedDiskStorage.ENTRY_WEIGHER, cacheStrategy,
+                    writeMode, flushInterval, CachedDiskStorage.DEFAULT_MAX_DIRTY_ENTRIES);
+        }
+        registerStorageStatistics(storage, codec);
+
+        int maxHotKeys;
+        int warmUpRate;
+        try {
+            maxHotKeys = Integer.parseUnsignedInt(System.getProperty("maxHotKeys",
+                    Integer.toString(CachedDiskStorage.DEFAULT_MAX_HOT_KEYS)));
+            warmUpRate = Integer.parseUnsignedInt(System.getProperty("warmUpRate",
+                    Integer.toString(CachedDiskStorage.DEFAULT_WARM_UP_RATE)));
+            if (warmUpRate == 0) {
+                throw new IllegalArgumentException("Warm-up rate must not be zero.");
+            }
+        } catch (IllegalArgumentException e) {
+            storage.close();
+            throw new PersistenceException("maxHotKeys must be a positive number or 0 to disable the hot key list "
+                    + "and warmUpRate a positive number of keys per second.", e);
+        }
+        if (maxHotKeys > 0) {
+            File hotKeysFile = new File(dataDirectory.getAbsoluteFile().getParentFile(),
+                    dataDirectory.getName() + "_hotkeys");
+            storage.keepHotKeys(hotKeysFile, maxHotKeys, CachedDiskStorage.DEFAULT_HOT_KEYS_INTERVAL, warmUpRate);
+        }
+
+        // the log lives next to the data directory because every file in there could be a key
+        File logDirectory = getLogDirectory();
+        FsyncPolicy fsyncPolicy;
+        long fsyncInterval;
+        try {
+            fsyncPolicy = FsyncPolicy.valueOf(System.getProperty("walFsyncPolicy", "INTERVAL"));
+            fsyncInterval = Long.parseUnsignedLong(System.getProperty("walFsyncInterval", "100"));
+            if (fsyncInterval == 0) {
+                throw new IllegalArgumentException("Fsync interval must not be zero.");
+            }
+        } catch (IllegalArgumentException e) {
+            storage.close();
+            throw new PersistenceException("walFsyncPolicy must be ALWAYS, INTERVAL or OS "
+                    + "and walFsyncInterval a positive number of milliseconds.", e);
+        }
+        LOG.info("Using write-ahead log in {} with fsync policy {}", logDirectory, fsyncPolicy);
+
+        WriteAheadLogStorage loggedStorage;
+        try {
+            loggedStorage = new WriteAheadLogStorage(storage, logDirectory, fsyncPolicy, fsyncInterval);
+        } catch (PersistenceException e) {
+            storage.close();
+            throw e;
+        }
+
+        // outermost, so expiry headers are logged and cached along with the values
+        ExpiringStorage expiringStorage;
+        try {
+            expiringStorage = new ExpiringStorage(loggedStorage, getExpiryLogFile());
+        } catch (PersistenceException e) {
+            loggedStorage.close();
+            throw e;
+        }
+
+        int ioThreads;
+        int ioQueueSize;
+        try {
+            ioThreads = Integer.parseInt(System.getProperty("ioThreads",
+                    Integer.toString(AsyncPersistenceService.DEFAULT_THREADS)));
+            ioQueueSize = Integer.parseInt(System.getProperty("ioQueueSize",
+                    Integer.toString(AsyncPersistenceService.DEFAULT_QUEUE_SIZE)));
+            if (ioThreads <= 0 || ioQueueSize <= 0) {
+                throw new IllegalArgumentException("I/O threads and queue size must be positive.");
+            }
+        } catch (IllegalArgumentException e) {
+            expiringStorage.close();
+            throw new PersistenceException("ioThreads and ioQueueSize must be positive numbers.", e);
+        }
+        LOG.info("Using {} I/O threads with queues of {} operations", ioThreads, ioQueueSize);
+
+        return new AsyncPersistenceService(expiringStorage, ioThreads, ioQueueSize);
+    }
+
+    // connections and the threads they start run on the threads of this factory
+    private ThreadFactory createThreadFactory(ServerMode serverMode) {
+        if (serverMode != ServerMode.VIRTUAL_THREAD_PER_CONNECTION) {
+            return ContextPreservingThread.PLATFORM_THREADS;
+        }
+        Optional<ThreadFactory> virtualThreads = ContextPreservingThread.virtualThreadFactory();
+        if (virtualThreads.isPresent()) {
+            LOG.info("Running connections on virtual threads.");
+            return virtualThreads.get();
+        }
+        LOG.warn("Virtual threads need Java 21, running connections on platform threads.");
+        return ContextPreservingThread.PLATFORM_THREADS;
+    }
+
+    private EventLoopServer createEventLoopServer(RequestDispatcher requestDispatcher) {
+        int eventLoops;
+        int requestWorkers;
+        try {
+            eventLoops = Integer.parseInt(System.getProperty("eventLoops",
+                    Integer.toString(EventLoopServer.DEFAULT_EVENT_LOOPS)));
+            requestWorkers = Integer.parseInt(System.getProperty("requestWorkers",
+                    Integer.toString(EventLoopServer.DEFAULT_WORKERS)));
+            if (eventLoops <= 0 || requestWorkers <= 0) {
+                throw new IllegalArgumentException("Event loops and request workers must be positive.");
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("eventLoops and requestWorkers must be positive numbers.", e);
+        }
+        return new EventLoopServer(port, requestDispatcher::dispatch, eventLoops, requestWorkers);
+    }
+
+    private PersistenceService separateLargeValues(PersistenceService engine, ValueCodec codec)
+            throws PersistenceException {
+        int valueLogThreshold;
+        try {
+            valueLogThreshold = Integer.parseUnsignedInt(System.getProperty("valueLogThreshold",
+                    Integer.toString(ValueLogStorage.DEFAULT_THRESHOLD)));
+        } catch (NumberFormatException e) {
+            engine.close();
+            throw new PersistenceException("valueLogThreshold must be a positive number of bytes "
+                    + "or 0 to disable the value log.", e);
+        }
+        if (valueLogThreshold == 0) {
+            return engine;
+        }
+
+        File valueLogDirectory = new File(dataDirectory.getAbsoluteFile().getParentFile(),
+                dataDirectory.getName() + "_vlog");
+        LOG.info("Storing values from {} bytes in value log {}", valueLogThreshold, valueLogDirectory);
+        try {
+            return new ValueLogStorage(engine, valueLogDirectory, valueLogThreshold,
+                    ValueLogStorage.DEFAULT_MAX_FILE_SIZE, ValueLogStorage.DEFAULT_GC_INTERVAL, codec);
+        } catch (PersistenceException e) {
+            engine.close();
+            throw e;
+        }
+    }
+
+    // a new node can be seeded with the snapshot of another one instead of receiving every key
+    private void restoreSnapshot() throws PersistenceException {
+        String snapshot = System.getProperty("restoreSnapshot");
+        if (snapshot == null) {
+            return;
+        }
+
+        String[] existing = dataDirectory.list();
+        if (existing != null && existing.length > 0) {
+            LOG.info("Data directory {} is not empty, not restoring snapshot {}", dataDirectory, snapshot);
+            return;
+        }
+        int files = SnapshotFiles.restore(new File(snapshot), dataDirectory);
+        File valueLogSnapshot = ValueLogStorage.getSnapshotDirectory(new File(snapshot));
+        if (valueLogSnapshot.isDirectory()) {
+            files += SnapshotFiles.restore(valueLogSnapshot, new File(dataDirectory.getAbsoluteFile().getParentFile(),
+                    dataDirectory.getName() + "_vlog"));
+        }
+        File logSnapshot = WriteAheadLogStorage.getSnapshotDirectory(new File(snapshot));
+        if (logSnapshot.isDirectory()) {
+            // replayed into the restored data when the storage is opened
+            files += SnapshotFiles.restore(logSnapshot, getLogDirectory());
+        }
+        File expiryLogSnapshot = ExpiringStorage.getSnapshotFile(new File(snapshot));
+        if (expiryLogSnapshot.isFile()) {
+            try {
+                // copied, the server appends to its expiry log
+                Files.copy(expiryLogSnapshot.toPath(), getExpiryLogFile().toPath());
+                files++;
+            } catch (IOException e) {
+                throw new PersistenceException("Could not restore expiry log.", e);
+            }
+        }
+        LOG.info("Restored {} files from snapshot {}", files, snapshot);
+    }
+
+    private File getLogDirectory() {
+        return new File(dataDirectory.getAbsoluteFile().getParentFile(), dataDirectory.getName() + "_wal");
+    }
+
+    private File getExpiryLogFile() {
+        return new File(dataDirectory.getAbsoluteFile().getParentFile(), dataDirectory.getName() + "_expiry");
+    }
+
+    private void registerStorageStatistics(CachedDiskStorage storage, ValueCodec codec) {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("server:name=Storage");
+            if (mBeanServer.isRegistered(name)) {
+                // left behind by an earlier server in the same JVM
+                mBeanServer.unregisterMBean(name);
+            }
+            mBeanServer.registerMBean(new StorageStatistics(storage, codec), name);
+            LOG.info("Registered storage statistics MBean: " + name);
+        } catch (Exception e) {
+            LOG.error("Could not register storage statistics MBean.", e);
+        }
+    }
+
+    private void cleanPersistenceShutdown(PersistenceService persistenceService) {
+        if (persistenceService != null) {
+            try {
+                persistenceService.close();
+            } catch (PersistenceException e) {
+                LOG.warn("Error closing persistence service.", e);
+            }
+        }
+    }
+
     private void cleanSocketShutdown() {
         LOG.info("Closing connection.");
         if (serverSocket != null) {
@@ -1,8 +1,7 @@
 package app_kvServer;
 
 import app_kvServer.gossip.GossipEventListener;
-import app_kvServer.persistence.PersistenceException;
-import app_kvServer.persistence.PersistenceService;
+import app_kvServer.persistence.AsyncPersistenceService;
 import client.CommunicationModule;
 import client.exceptions.ClientException;
 import common.hash.HashRing;
@@ -17,10 +16,18 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.stream.Collectors;
 
 /**
  * Handles data requests and replicates them according to the configured replication factor.
+ *
+ * Replication requests are sent by a replication thread in the order the local
+ * writes completed, so the persistence I/O threads never wait for a replica.
  */
 public class ReplicatingDataRequestHandler implements DataRequestHandler, GossipEventListener {
 
@@ -29,25 +36,35 @@ public class ReplicatingDataRequestHandler implements DataRequestHandler, Gossip
 
     private final app_kvServer.ServerState serverState;
     private final HostAndPort myself;
-    private final PersistenceService persistenceService;
+    private final AsyncPersistenceService persistenceService;
     private int replicationFactor;
     private HashRing hashRing;
     private final CommunicationModule[] replicationConnections;
+    private final ThreadFactory threadFactory;
+    private final ExecutorService replicationExecutor;
 
     /**
      * Constructor.
      * @param serverState Singleton server state holder
      * @param persistenceService Persistence service
      * @param replicationFactor How often each data item is replicated
+     * @param threadFactory Creates the threads of the replica connections
      */
     public ReplicatingDataRequestHandler(app_kvServer.ServerState serverState,
-                                         PersistenceService persistenceService,
-                                         int replicationFactor) {
+                                         AsyncPersistenceService persistenceService,
+                                         int replicationFactor,
+                                         ThreadFactory threadFactory) {
         this.serverState = serverState;
         this.myself = serverState.getMyself();
         this.persistenceService = persistenceService;
         this.replicationFactor = replicationFactor;
         this.replicationConnections = new CommunicationModule[replicationFactor - 1];
+        this.threadFactory = threadFactory;
+        this.replicationExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replication");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     /**
@@ -57,7 +74,17 @@ public class ReplicatingDataRequestHandler implements DataRequestHandler, Gossip
      */
     @Override
     public KVMessage handle(KVMessage msg) {
-        KVMessage reply = null;
+        return handleAsync(msg).join();
+    }
+
+    /**
+     * Handle incoming data request without waiting for the disk.
+     * @param msg request
+     * @return future which completes with the reply
+     */
+    @Override
+    public CompletableFuture<KVMessage> handleAsync(KVMessage msg) {
+        CompletableFuture<KVMessage> reply;
         switch (msg.getStatus()) {
             case PUT:
                 reply = handlePutRequest(msg, false);
@@ -75,7 +102,8 @@ public class ReplicatingDataRequestHandler implements DataRequestHandler, Gossip
                 reply = handleDeleteRequest(msg, true);
                 break;
             default:
-                reply = new DefaultKVMessage("$SYS", "Invalid request", KVMessage.StatusType.PUT_ERROR);
+                reply = CompletableFuture.completedFuture(
+                        new DefaultKVMessage("$SYS", "Invalid request", KVMessage.StatusType.PUT_ERROR));
         }
 
         return reply;
@@ -124,7 +152,7 @@ public class ReplicatingDataRequestHandler implements DataRequestHandler, Gossip
                 }
 
                 try {
-                    CommunicationModule newReplicaConnection = new CommunicationModule(targetAddress);
+                    CommunicationModule newReplicaConnection = new CommunicationModule(targetAddress, threadFactory);
                     newReplicaConnection.start();
                     replicationConnections[replicaNo - 1] = newReplicaConnection;
                 } catch (ClientException e) {
@@ -134,7 +162,7 @@ public class ReplicatingDataRequestHandler implements DataRequestHandler, Gossip
         }
     }
 
-    private KVMessage handlePutRequest(KVMessage msg, boolean replicationRequest) {
+    private CompletableFuture<KVMessage> handlePutRequest(KVMessage msg, boolean replicationRequest) {
         assert (msg.getStatus() == KVMessage.StatusType.PUT) || (msg.getStatus() == KVMessage.StatusType.PUT_REPLICA);
 
         // ensure state
@@ -148,48 +176,38 @@ public class ReplicatingDataRequestHandler implements DataRequestHandler, Gossip
                     msg.getStatus(),
                     msg.getKey(),
                     invalidStateReply.get().getStatus());
-            return invalidStateReply.get();
-        }
-
-        KVMessage reply;
-
-        try {
-            boolean insert = persistenceService.put(
-                    msg.getKey(),
-                    msg.getValue());
-
-            KVMessage.StatusType status =
-                    insert ? KVMessage.StatusType.PUT_SUCCESS : KVMessage.StatusType.PUT_UPDATE;
-
-            reply = new DefaultKVMessage(
-                    msg.getKey(),
-                    null,
-                    status);
-
-            if (!replicationRequest) {
-                //replicatePut(msg.getKey(), msg.getValue());
-            }
-
-            LOG.debug("Handled request={} for key={} with reply={}",
-                    msg.getStatus(),
-                    msg.getKey(),
-                    reply.getStatus());
-        } catch (PersistenceException e) {
-            reply = new DefaultKVMessage(
-                    msg.getKey(),
-                    e.getMessage(),
-                    KVMessage.StatusType.PUT_ERROR);
-
-            LOG.warn(String.format("Handled request=%s for key=%s with error reply=%s",
-                    msg.getStatus(),
-                    msg.getKey(),
-                    reply.getStatus()), e);
+            return CompletableFuture.completedFuture(invalidStateReply.get());
         }
 
-        return reply;
+        return persistenceService
+                .putBytesAsync(msg.getKey(), msg.getValueBytes(), msg.getTimeToLive())
+                .handle((insert, error) -> {
+                    KVMessage reply;
+                    if (error == null) {
+                        KVMessage.StatusType status =
+                                insert ? KVMessage.StatusType.PUT_SUCCESS : KVMessage.StatusType.PUT_UPDATE;
+
+                        reply = new DefaultKVMessage(
+                                msg.getKey(),
+                                null,
+                                status);
+
+                        if (!replicationRequest) {
+                            //replicatePut(msg.getKey(), msg.getValue());
+                        }
+
+                        LOG.debug("Handled request={} for key={} with reply={}",
+                                msg.getStatus(),
+                                msg.getKey(),
+                                reply.getStatus());
+                    } else {
+                        reply = errorReply(msg, error, KVMessage.StatusType.PUT_ERROR);
+                    }
+                    return reply;
+                });
     }
 
-    private KVMessage handleGetRequest(KVMessage msg) {
+    private CompletableFuture<KVMessage> handleGetRequest(KVMessage msg) {
         assert msg.getStatus() == KVMessage.StatusType.GET;
 
         // ensure state
@@ -203,46 +221,39 @@ public class ReplicatingDataRequestHandler implements DataRequestHandler, Gossip
                     msg.getStatus(),
                     msg.getKey(),
                     invalidStateReply.get().getStatus());
-            return invalidStateReply.get();
-        }
-
-        KVMessage reply;
-
-        try {
-            reply = persistenceService
-                    .get(msg.getKey())
-                    .map(value -> new DefaultKVMessage(msg.getKey(), value, KVMessage.StatusType.GET_SUCCESS))
-                    .orElseThrow(() -> new IllegalArgumentException(KEY_NOT_FOUND));
-
-            LOG.debug("Handled request={} for key={} with reply={}",
-                    msg.getStatus(),
-                    msg.getKey(),
-                    reply.getStatus());
-        } catch (IllegalArgumentException e) {
-            reply = new DefaultKVMessage(
-                    msg.getKey(),
-                    e.getMessage(),
-                    KVMessage.StatusType.GET_ERROR);
-
-            LOG.info("Handled request={} for key={} with " + KEY_NOT_FOUND,
-                    msg.getStatus(),
-                    msg.getKey());
-        } catch (PersistenceException e) {
-            reply = new DefaultKVMessage(
-                    msg.getKey(),
-                    e.getMessage(),
-                    KVMessage.StatusType.GET_ERROR);
-
-            LOG.warn(String.format("Handled request=%s for key=%s with error reply=%s",
-                    msg.getStatus(),
-                    msg.getKey(),
-                    reply.getStatus()), e);
+            return CompletableFuture.completedFuture(invalidStateReply.get());
         }
 
-        return reply;
+        return persistenceService
+                .getBytesAsync(msg.getKey())
+                .handle((value, error) -> {
+                    KVMessage reply;
+                    if (error != null) {
+                        reply = errorReply(msg, error, KVMessage.StatusType.GET_ERROR);
+                    } else if (value.isPresent()) {
+                        // the value is sent as it was stored, without converting it to a string
+                        reply = DefaultKVMessage.ofBytes(
+                                msg.getKey(), value.get(), KVMessage.StatusType.GET_SUCCESS, 0);
+
+                        LOG.debug("Handled request={} for key={} with reply={}",
+                                msg.getStatus(),
+                                msg.getKey(),
+                                reply.getStatus());
+                    } else {
+                        reply = new DefaultKVMessage(
+                                msg.getKey(),
+                                KEY_NOT_FOUND,
+                                KVMessage.StatusType.GET_ERROR);
+
+                        LOG.info("Handled request={} for key={} with " + KEY_NOT_FOUND,
+                                msg.getStatus(),
+                                msg.getKey());
+                    }
+                    return reply;
+                });
     }
 
-    private KVMessage handleDeleteRequest(KVMessage msg, boolean replicationRequest) {
+    private CompletableFuture<KVMessage> handleDeleteRequest(KVMessage msg, boolean replicationRequest) {
         assert (msg.getStatus() == KVMessage.StatusType.DELETE)
                 || (msg.getStatus() == KVMessage.StatusType.DELETE_REPLICA);
 
@@ -257,49 +268,60 @@ public class ReplicatingDataRequestHandler implements DataRequestHandler, Gossip
                     msg.getStatus(),
                     msg.getKey(),
                     invalidStateReply.get().getStatus());
-            return invalidStateReply.get();
+            return CompletableFuture.completedFuture(invalidStateReply.get());
         }
 
-        KVMessage reply;
-
-        try {
-            boolean deleted = persistenceService.delete(msg.getKey());
-
-            if (deleted) {
-                reply = new DefaultKVMessage(msg.getKey(),
-                        msg.getValue(),
-                        KVMessage.StatusType.DELETE_SUCCESS);
-
-                LOG.debug("Handled request={} for key={} with reply={}",
-                        msg.getStatus(),
-                        msg.getKey(),
-                        reply.getStatus());
-            } else {
-                reply = new DefaultKVMessage(msg.getKey(),
-                        KEY_NOT_FOUND,
-                        KVMessage.StatusType.DELETE_ERROR);
-
-                LOG.info("Handled request={} for key={} with " + KEY_NOT_FOUND,
-                        msg.getStatus(),
-                        msg.getKey());
-            }
-
-            if (!replicationRequest) {
-                replicateDelete(msg.getKey());
-            }
-
-        } catch (PersistenceException e) {
-            reply = new DefaultKVMessage(
-                    msg.getKey(),
-                    e.getMessage(),
-                    KVMessage.StatusType.DELETE_ERROR);
-
-            LOG.warn(String.format("Handled request=%s for key=%s with error reply=%s",
-                    msg.getStatus(),
-                    msg.getKey(),
-                    reply.getStatus()), e);
+        CompletableFuture<Boolean> deletion = persistenceService.deleteAsync(msg.getKey());
+        if (!replicationRequest) {
+            deletion.whenCompleteAsync((deleted, error) -> {
+                if (error == null) {
+                    replicateDelete(msg.getKey());
+                }
+            }, replicationExecutor);
         }
 
+        return deletion
+                .handle((deleted, error) -> {
+                    if (error != null) {
+                        return errorReply(msg, error, KVMessage.StatusType.DELETE_ERROR);
+                    }
+
+                    KVMessage reply;
+                    if (deleted) {
+                        reply = new DefaultKVMessage(msg.getKey(),
+                                msg.getValue(),
+                                KVMessage.StatusType.DELETE_SUCCESS);
+
+                        LOG.debug("Handled request={} for key={} with reply={}",
+                                msg.getStatus(),
+                                msg.getKey(),
+                                reply.getStatus());
+                    } else {
+                        reply = new DefaultKVMessage(msg.getKey(),
+                                KEY_NOT_FOUND,
+                                KVMessage.StatusType.DELETE_ERROR);
+
+                        LOG.info("Handled request={} for key={} with " + KEY_NOT_FOUND,
+                                msg.getStatus(),
+                                msg.getKey());
+                    }
+                    return reply;
+                });
+    }
+
+    private KVMessage errorReply(KVMessage msg, Throwable error, KVMessage.StatusType status) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null
+                ? error.getCause()
+                : error;
+        KVMessage reply = new DefaultKVMessage(
+                msg.getKey(),
+                cause.getMessage(),
+                status);
+
+        LOG.warn(String.format("Handled request=%s for key=%s with error reply=%s",
+                msg.getStatus(),
+                msg.getKey(),
+                reply.getStatus()), cause);
         return reply;
     }
 
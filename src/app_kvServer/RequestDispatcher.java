@@ -0,0 +1,194 @@
+package app_kvServer;
+
+import app_kvServer.admin.AdminTasks;
+import app_kvServer.admin.CleanUpDataTask;
+import app_kvServer.admin.DataStreamTask;
+import app_kvServer.admin.MoveDataTask;
+import app_kvServer.admin.SnapshotTask;
+import app_kvServer.gossip.Gossiper;
+import app_kvServer.mapreduce.MapReduceRequestHandler;
+import app_kvServer.persistence.AsyncPersistenceService;
+import app_kvServer.sync.Synchronizer;
+import common.CorrelatedMessage;
+import common.exceptions.ProtocolException;
+import common.hash.Range;
+import common.messages.ExceptionMessage;
+import common.messages.Message;
+import common.messages.admin.*;
+import common.messages.gossip.ClusterDigest;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+
+import java.io.File;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Answers the requests which arrive on client connections, regardless of
+ * how the connections themselves are served.
+ */
+public class RequestDispatcher {
+
+    private static final Logger LOG = LogManager.getLogger(RequestDispatcher.class);
+
+    private final AsyncPersistenceService persistenceService;
+    private final DataRequestHandler dataRequestHandler;
+    private final MapReduceRequestHandler mapReduceRequestHandler;
+    private final SessionRegistry sessionRegistry;
+    private final ServerState serverState;
+    private final ThreadFactory threadFactory;
+
+    /**
+     * Default constructor.
+     * @param persistenceService Instance of {@link AsyncPersistenceService} to use
+     * @param sessionRegistry Instance of {@link SessionRegistry} to request a shutdown from
+     * @param serverState Global server state
+     * @param dataRequestHandler Handler for data requests
+     * @param mapReduceRequestHandler Handler for map/reduce requests
+     * @param threadFactory Creates the threads of admin tasks
+     */
+    public RequestDispatcher(AsyncPersistenceService persistenceService,
+                             SessionRegistry sessionRegistry,
+                             ServerState serverState,
+                             DataRequestHandler dataRequestHandler,
+                             MapReduceRequestHandler mapReduceRequestHandler,
+                             ThreadFactory threadFactory) {
+        this.persistenceService = persistenceService;
+        this.sessionRegistry = sessionRegistry;
+        this.serverState = serverState;
+        this.dataRequestHandler = dataRequestHandler;
+        this.mapReduceRequestHandler = mapReduceRequestHandler;
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Handle a request.
+     *
+     * Data requests complete once the disk is done with them, all other
+     * requests are handled right away on the calling thread.
+     *
+     * @param request The request
+     * @return Future reply, an {@link ExceptionMessage} if the request failed
+     */
+    public CompletableFuture<Message> dispatch(CorrelatedMessage request) {
+        ThreadContext.put("correlation", Long.toUnsignedString(request.getCorrelationNumber()));
+
+        if (request.hasKVMessage()) {
+            return dataRequestHandler.handleAsync(request.getKVMessage()).handle((reply, error) -> {
+                if (error != null) {
+                    LOG.error("Could not handle data request.", error);
+                    return new ExceptionMessage(error instanceof Exception ? (Exception) error : new Exception(error));
+                }
+                return reply;
+            });
+        }
+
+        Message response;
+        try {
+            response = handleIncomingMessage(request);
+        } catch (Exception e) {
+            LOG.error("Protocol exception.", e);
+            response = new ExceptionMessage(e);
+        }
+        return CompletableFuture.completedFuture(response);
+    }
+
+    private Message handleIncomingMessage(CorrelatedMessage request) throws ProtocolException {
+        if (request.hasAdminMessage()) {
+            return handleAdminMessage(request.getAdminMessage());
+        } else if (request.hasGossipMessage()) {
+            ClusterDigest incomingDigest = (ClusterDigest) request.getGossipMessage();
+            return Optional.ofNullable(incomingDigest)
+                    .map(Gossiper.getInstance()::handleIncomingDigest)
+                    .orElse(Gossiper.getInstance().getClusterDigest());
+        } else if (request.hasMRMessage()) {
+            return mapReduceRequestHandler.handle(request.getMRMessage());
+        } else {
+            throw new ProtocolException("Unsupported request: " + request);
+        }
+    }
+
+    private AdminMessage handleAdminMessage(AdminMessage msg) {
+        if (msg instanceof StartServerRequest) {
+            StartServerRequest startServerRequest = (StartServerRequest) msg;
+            if (startServerRequest.isClusterInit()) {
+                Gossiper.getInstance().setOwnState(common.messages.gossip.ServerState.Status.OK);
+            } else {
+                Synchronizer.getInstance().initiateJoin();
+            }
+            serverState.setStopped(false);
+            LOG.info("Admin: Started the server.");
+            return GenericResponse.success();
+        } else if (msg instanceof StopServerRequest) {
+            serverState.setStopped(true);
+            LOG.info("Admin: Stopped the server.");
+            return GenericResponse.success();
+        } else if (msg instanceof ShutDownServerRequest) {
+            sessionRegistry.requestShutDown();
+            LOG.info("Admin: Shutdown requested.");
+            return GenericResponse.success();
+        } else if (msg instanceof EnableWriteLockRequest) {
+            serverState.setWriteLockActive(true);
+            LOG.info("Admin: Enabled write lock.");
+            return GenericResponse.success();
+        } else if (msg instanceof DisableWriteLockRequest) {
+            serverState.setWriteLockActive(false);
+            LOG.info("Admin: Disabled write lock.");
+            return GenericResponse.success();
+        } else if (msg instanceof UpdateMetadataRequest) {
+            UpdateMetadataRequest updateMetadataRequest = (UpdateMetadataRequest) msg;
+            serverState.setClusterNodes(updateMetadataRequest.getNodes());
+            LOG.info("Admin: Updated meta data.");
+
+            Range newKeyRange = serverState.getClusterNodes().getAssignedRange(serverState.getMyself());
+            CleanUpDataTask cleanUpDataTask = new CleanUpDataTask(persistenceService, newKeyRange);
+            AdminTasks.addTask(cleanUpDataTask, threadFactory);
+
+            return GenericResponse.success();
+        } else if (msg instanceof MoveDataRequest) {
+            MoveDataRequest moveDataRequest = (MoveDataRequest) msg;
+            LOG.info("Admin: Starting move data task: {}", moveDataRequest);
+            MoveDataTask moveDataTask = new MoveDataTask(
+                    persistenceService, moveDataRequest.getRange(), moveDataRequest.getDestination(), threadFactory);
+            AdminTasks.addTask(moveDataTask, threadFactory);
+            return GenericResponse.success();
+        } else if (msg instanceof GetMaintenanceStatusRequest) {
+            return new MaintenanceStatusResponse(AdminTasks.hasActiveTask(),
+                    AdminTasks.getTaskType(),
+                    (int) (100 * AdminTasks.getProgress()));
+        } else if (msg instanceof InitiateStreamRequest) {
+            InitiateStreamRequest req = (InitiateStreamRequest) msg;
+            LOG.info("Admin: Initiate stream request for range {}", req.getKeyRange());
+            // TODO check cluster state
+            try {
+                DataStreamTask streamTask = DataStreamTask.create(serverState, persistenceService, req.getKeyRange(),
+                        req.getDestination(), threadFactory);
+                AdminTasks.addTask(streamTask, threadFactory);
+                LOG.info("Admin: Initiated stream request: ", streamTask.getStreamId());
+                return new InitiateStreamResponse(true, streamTask.getStreamId(),
+                        streamTask.getNumberOfItemsToTransfer(), null);
+            } catch (Exception e) {
+                LOG.error("Could not instantiate data stream.", e);
+                return new InitiateStreamResponse(false, null,
+                        0, null);
+            }
+        } else if (msg instanceof StreamCompleteMessage) {
+            StreamCompleteMessage req = (StreamCompleteMessage) msg;
+            Synchronizer.getInstance().streamCompleted(req.getRange());
+            return GenericResponse.success();
+        } else if (msg instanceof CreateSnapshotRequest) {
+            File directory = new File(((CreateSnapshotRequest) msg).getDirectory());
+            if (directory.exists()) {
+                return GenericResponse.error("Snapshot directory " + directory + " already exists.");
+            }
+            LOG.info("Admin: Starting snapshot task in {}", directory);
+            AdminTasks.addTask(new SnapshotTask(persistenceService, directory), threadFactory);
+            return GenericResponse.success(directory.getAbsolutePath());
+        } else {
+            throw new AssertionError("Admin message handler not implemented: " + msg.getClass());
+        }
+    }
+
+}
@@ -0,0 +1,36 @@
+package app_kvServer;
+
+/**
+ * A server mode determines how client connections are served.
+ */
+public enum ServerMode {
+
+    /**
+     * Thread per Connection
+     *
+     * Every client connection gets its own thread, which blocks while it
+     * waits for the next request. Simple, but each thread reserves a stack,
+     * which limits the server to a few thousand connections.
+     */
+    THREAD_PER_CONNECTION,
+
+    /**
+     * Virtual Thread per Connection
+     *
+     * Like THREAD_PER_CONNECTION, but connections, replication clients,
+     * admin tasks and map/reduce workers run on virtual threads, which only
+     * hold the stack they actually use while they wait. Needs Java 21,
+     * otherwise the server falls back to platform threads.
+     */
+    VIRTUAL_THREAD_PER_CONNECTION,
+
+    /**
+     * Event Loop
+     *
+     * A few event loop threads wait on all connections at once with
+     * non-blocking sockets and hand complete requests to a pool of worker
+     * threads. Idle connections cost only their buffers.
+     */
+    EVENT_LOOP
+
+}
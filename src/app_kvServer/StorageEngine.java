@@ -0,0 +1,32 @@
+package app_kvServer;
+
+/**
+ * A storage engine determines how values are laid out on disk.
+ */
+public enum StorageEngine {
+
+    /**
+     * File per Key
+     *
+     * Every value is stored in its own file, namespaces are mapped
+     * to directories.
+     */
+    FILE_PER_KEY,
+
+    /**
+     * Log-Structured
+     *
+     * Values are appended to rolling segment files and located via
+     * an in-memory key directory.
+     */
+    LOG_STRUCTURED,
+
+    /**
+     * LSM-Tree
+     *
+     * Values are buffered in a sorted in-memory table and flushed to
+     * sorted table files which are merged in the background.
+     */
+    LSM_TREE
+
+}
@@ -0,0 +1,69 @@
+package app_kvServer;
+
+import app_kvServer.persistence.CachedDiskStorage;
+import app_kvServer.persistence.ValueCodec;
+
+/**
+ * Exposes statistics of the storage layer.
+ */
+public class StorageStatistics implements StorageStatisticsMBean {
+
+    private final CachedDiskStorage storage;
+    private final ValueCodec codec;
+
+    /**
+     * Constructor.
+     * @param storage The cached storage to report on
+     * @param codec The codec used by the storage engine
+     */
+    public StorageStatistics(CachedDiskStorage storage, ValueCodec codec) {
+        this.storage = storage;
+        this.codec = codec;
+    }
+
+    /**
+     * Return the number of cached entries.
+     * @return Number of entries
+     */
+    @Override
+    public int getCacheSize() {
+        return storage.getCacheSize();
+    }
+
+    /**
+     * Return the total weight of the cached entries.
+     * @return Weight, in bytes if the cache is limited by bytes
+     */
+    @Override
+    public long getCacheWeight() {
+        return storage.getCacheWeight();
+    }
+
+    /**
+     * Return the maximum total weight of the cached entries.
+     * @return Capacity of the cache
+     */
+    @Override
+    public long getCacheMaxWeight() {
+        return storage.getCacheMaxWeight();
+    }
+
+    /**
+     * Return the number of cached modifications which have not been flushed.
+     * @return Number of dirty entries
+     */
+    @Override
+    public int getDirtyEntries() {
+        return storage.getDirtyEntries();
+    }
+
+    /**
+     * Return how much smaller the persisted values are than the plain values.
+     * @return Compression ratio
+     */
+    @Override
+    public double getCompressionRatio() {
+        return codec.getCompressionRatio();
+    }
+
+}
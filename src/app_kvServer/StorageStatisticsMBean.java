@@ -0,0 +1,14 @@
+package app_kvServer;
+
+/**
+ * JMX-based monitoring interface for the storage layer.
+ */
+public interface StorageStatisticsMBean {
+
+    int getCacheSize();
+    long getCacheWeight();
+    long getCacheMaxWeight();
+    int getDirtyEntries();
+    double getCompressionRatio();
+
+}
@@ -1,5 +1,9 @@
 package app_kvServer.admin;
 
+import common.utils.ContextPreservingThread;
+
+import java.util.concurrent.ThreadFactory;
+
 /**
  * Execution engine for maintenance tasks.
  */
@@ -10,15 +14,16 @@ public class AdminTasks {
     /**
      * Schedule a maintenance task for synchronization.
      * @param task The task
+     * @param threadFactory Creates the thread to run the task on
      */
-    public static synchronized void addTask(AdminTask task) {
+    public static synchronized void addTask(AdminTask task, ThreadFactory threadFactory) {
 //        if (currentTask != null && currentTask.getProgress() < 1) {
 //            // TODO at some point we might want to queue them
 //            throw new IllegalStateException("Can only have one active admin task at a time.");
 //        }
 
         currentTask = task;
-        new Thread(currentTask).start();
+        new ContextPreservingThread(threadFactory, currentTask).start();
     }
 
     /**
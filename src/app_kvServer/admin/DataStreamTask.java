@@ -1,8 +1,9 @@
 package app_kvServer.admin;
 
 import app_kvServer.ServerState;
+import app_kvServer.persistence.AsyncPersistenceService;
+import app_kvServer.persistence.Cursor;
 import app_kvServer.persistence.PersistenceException;
-import app_kvServer.persistence.PersistenceService;
 import client.CommunicationModule;
 import client.exceptions.ClientException;
 import common.CorrelatedMessage;
@@ -18,12 +19,15 @@ import org.apache.logging.log4j.ThreadContext;
 
 import java.time.Duration;
 import java.time.Instant;
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -31,31 +35,44 @@ import java.util.stream.Collectors;
 
 /**
  * Task that moves data within a certain key range to another server.
+ *
+ * The destination caches the values it receives, so the keys which are hot
+ * on this server are sent last. A node taking over the range then starts
+ * with the hot keys in its cache instead of a cold one.
+ *
+ * The keys are sent in batches. The disk reads of a batch are all submitted
+ * to the per-key lanes of the persistence service at once, so they overlap
+ * instead of being waited for one by one.
  */
 public class DataStreamTask implements AdminTask {
 
     private static final Logger LOG = LogManager.getLogger(DataStreamTask.class);
 
+    private static final int MAX_HOT_KEYS = 10000;
+
     private final String streamId;
     private final ServerState serverState;
-    private final PersistenceService persistenceService;
+    private final AsyncPersistenceService persistenceService;
     private final Range keyRange;
     private final HostAndPort destination;
-    private Collection<String> keysToTransfer;
+    private final ThreadFactory threadFactory;
+    private final int itemsToTransfer;
     private final AtomicInteger counter;
 
     private DataStreamTask(String streamId,
                           ServerState serverState,
-                          PersistenceService persistenceService,
-                          Collection<String> keysToTransfer,
+                          AsyncPersistenceService persistenceService,
+                          int itemsToTransfer,
                           Range keyRange,
-                          HostAndPort destination) {
+                          HostAndPort destination,
+                          ThreadFactory threadFactory) {
         this.streamId = streamId;
         this.serverState = serverState;
         this.persistenceService = persistenceService;
         this.keyRange = keyRange;
         this.destination = destination;
-        this.keysToTransfer = keysToTransfer;
+        this.threadFactory = threadFactory;
+        this.itemsToTransfer = itemsToTransfer;
         this.counter = new AtomicInteger(0);
     }
 
@@ -65,32 +82,32 @@ public class DataStreamTask implements AdminTask {
      * @param persistenceService Persistence service
      * @param keyRange Range of keys to be transferred
      * @param destination Address of the server to which the data gets transferred
+     * @param threadFactory Creates the threads of the connection to the destination
      * @return Stream task
      * @throws PersistenceException if keys can not be retrieved
      */
     public static DataStreamTask create(ServerState serverState,
-                                        PersistenceService persistenceService,
+                                        AsyncPersistenceService persistenceService,
                                         Range keyRange,
-                                        HostAndPort destination) throws PersistenceException {
+                                        HostAndPort destination,
+                                        ThreadFactory threadFactory) throws PersistenceException {
         String streamId = String.format("stream_%s_%d_%d_%d", serverState.getMyself().getHost(),
                 serverState.getMyself().getPort(), keyRange.getStart(), keyRange.getEnd());
 
-        // assemble a list of keys we want to transfer
-        Collection<String> keysToTransfer = persistenceService.getKeys().stream()
-                .filter(key -> keyRange.contains(HashRing.hash(key)))
-                .collect(Collectors.toSet());
+        // count the keys we want to transfer, the entries themselves are loaded while streaming
+        int itemsToTransfer = persistenceService.getKeys(keyRange).size();
 
-        return new DataStreamTask(streamId, serverState, persistenceService, keysToTransfer, keyRange, destination);
+        return new DataStreamTask(streamId, serverState, persistenceService, itemsToTransfer, keyRange, destination,
+                threadFactory);
     }
 
     @Override
     public float getProgress() {
-        if (keysToTransfer != null && keysToTransfer.size() == 0) {
+        if (itemsToTransfer == 0) {
             // no work
             return 1;
         } else {
-            int divider = keysToTransfer != null ? keysToTransfer.size() : 1;
-            return (float) counter.get() / divider;
+            return Math.min(1, (float) counter.get() / itemsToTransfer);
         }
     }
 
@@ -107,13 +124,13 @@ public class DataStreamTask implements AdminTask {
      * @return
      */
     public int getNumberOfItemsToTransfer() {
-        return keysToTransfer.size();
+        return itemsToTransfer;
     }
 
     @Override
     public void run() {
         ThreadContext.put("serverPort", Integer.toString(serverState.getMyself().getPort()));
-        CommunicationModule communicationModule = new CommunicationModule(destination);
+        CommunicationModule communicationModule = new CommunicationModule(destination, threadFactory);
 
         LOG.info("Enabling write lock because of data stream task: {}", streamId);
         serverState.setWriteLockActive(true);
@@ -122,49 +139,37 @@ public class DataStreamTask implements AdminTask {
         try {
             communicationModule.start();
 
-            // assemble a list of keys we want to transfer
-            List<String> keysToTransfer = persistenceService.getKeys().stream()
+            LOG.info("Starting transfer of {} entries to {}", itemsToTransfer, destination);
+
+            // the hottest key goes last, so it is the most recent write on the destination
+            List<String> hotKeys = persistenceService.getHotKeys(MAX_HOT_KEYS).stream()
                     .filter(key -> keyRange.contains(HashRing.hash(key)))
                     .collect(Collectors.toList());
-            this.keysToTransfer = Collections.unmodifiableList(keysToTransfer);
-            LOG.info("Starting transfer of {} entries to {}", keysToTransfer.size(), destination);
-
-            List<CompletableFuture<KVMessage>> transfers = keysToTransfer.stream()
-                    // create a PUT request for the entry
-                    .map(key -> {
-                        Optional<KVMessage> result = Optional.empty();
-                        try {
-                            result = persistenceService
-                                    .get(key)
-                                    .map(value -> new DefaultKVMessage(key, value, KVMessage.StatusType.PUT_REPLICA));
-                        } catch (PersistenceException e) {
-                            LOG.error("Error retrieving value.", e);
-                        }
-                        return result;
-                    })
-                    .filter(Optional::isPresent)
-                    .map(Optional::get)
-                    // send the PUT request to the destination server
-                    .map(communicationModule::send)
-                    // update the state of this task
-                    .map(future -> future
-                            .thenApply(CorrelatedMessage::getKVMessage)
-                            .thenApply(reply -> {
-                                int currentCount = counter.incrementAndGet();
-                                if (currentCount % 100 == 0) {
-                                    LOG.info("Stream {} progress: {}", streamId, getProgress());
-                                }
-                                if (KVMessage.StatusType.PUT_SUCCESS != reply.getStatus()
-                                        && KVMessage.StatusType.PUT_UPDATE != reply.getStatus()) {
-                                    LOG.warn("Could not transfer an item: {}", reply);
-                                }
-                                return reply;
-                            }))
+            Collections.reverse(hotKeys);
+            Set<String> sentLast = new HashSet<>(hotKeys);
+
+            // stream the entries batch by batch so only one batch of values is held in memory
+            List<String> keys = persistenceService.getKeys(keyRange).stream()
+                    .filter(key -> !sentLast.contains(key))
                     .collect(Collectors.toList());
+            int transferred = 0;
+            for (int i = 0; i < keys.size(); i += Cursor.DEFAULT_BATCH_SIZE) {
+                transferred += transfer(communicationModule,
+                        read(keys.subList(i, Math.min(keys.size(), i + Cursor.DEFAULT_BATCH_SIZE))));
+            }
+            for (int i = 0; i < hotKeys.size(); i += Cursor.DEFAULT_BATCH_SIZE) {
+                transferred += transfer(communicationModule,
+                        read(hotKeys.subList(i, Math.min(hotKeys.size(), i + Cursor.DEFAULT_BATCH_SIZE))));
+            }
+            LOG.info("Sent {} hot keys last to {}", hotKeys.size(), destination);
 
-            // wait until the whole transfer completed
-            CompletableFuture<Void> overallTransfer = CompletableFuture.allOf(transfers.toArray(new CompletableFuture[] {}));
-            overallTransfer.get();
+            // pass on recent deletions, otherwise a destination which missed them would keep the old values
+            List<CompletableFuture<CorrelatedMessage>> deletions = persistenceService.getDeletedKeys(keyRange).stream()
+                    .map(key -> communicationModule.send(
+                            new DefaultKVMessage(key, null, KVMessage.StatusType.DELETE_REPLICA)))
+                    .collect(Collectors.toList());
+            CompletableFuture.allOf(deletions.toArray(new CompletableFuture<?>[] {})).get();
+            LOG.info("Passed on {} deletions to {}", deletions.size(), destination);
 
             Instant end = Instant.now();
             try {
@@ -175,7 +180,7 @@ public class DataStreamTask implements AdminTask {
                 LOG.error("Could not send completion message for stream " + streamId, e);
             }
             LOG.info("Finished transfer of {} entries to {} in {}s",
-                    keysToTransfer.size(), destination, Duration.between(start, end).getSeconds());
+                    transferred, destination, Duration.between(start, end).getSeconds());
         } catch (PersistenceException | InterruptedException | ExecutionException | ClientException e) {
             LOG.error("Could not transfer values.", e);
         } finally {
@@ -185,4 +190,60 @@ public class DataStreamTask implements AdminTask {
         }
     }
 
+    // reads the whole batch at once through the per-key lanes instead of one key after the other
+    private List<Cursor.Entry> read(List<String> keys) throws PersistenceException, InterruptedException {
+        List<CompletableFuture<Optional<Cursor.Entry>>> reads = keys.stream()
+                .map(persistenceService::getEntryAsync)
+                .collect(Collectors.toList());
+
+        List<Cursor.Entry> batch = new ArrayList<>(keys.size());
+        for (CompletableFuture<Optional<Cursor.Entry>> read : reads) {
+            // deleted in the meantime
+            await(read).ifPresent(batch::add);
+        }
+        return batch;
+    }
+
+    // sends a batch of entries and waits until it completed, returns the number of entries
+    private int transfer(CommunicationModule communicationModule, List<Cursor.Entry> batch)
+            throws InterruptedException, ExecutionException {
+        List<CompletableFuture<KVMessage>> transfers = batch.stream()
+                // create a PUT request for each entry, expiring values keep their remaining time to live
+                .map(entry -> DefaultKVMessage.ofBytes(entry.getKey(), entry.getValue(),
+                        KVMessage.StatusType.PUT_REPLICA, entry.getTimeToLive()))
+                // send the PUT request to the destination server
+                .map(communicationModule::send)
+                // update the state of this task
+                .map(future -> future
+                        .thenApply(CorrelatedMessage::getKVMessage)
+                        .thenApply(reply -> {
+                            int currentCount = counter.incrementAndGet();
+                            if (currentCount % 100 == 0) {
+                                LOG.info("Stream {} progress: {}", streamId, getProgress());
+                            }
+                            if (KVMessage.StatusType.PUT_SUCCESS != reply.getStatus()
+                                    && KVMessage.StatusType.PUT_UPDATE != reply.getStatus()) {
+                                LOG.warn("Could not transfer an item: {}", reply);
+                            }
+                            return reply;
+                        }))
+                .collect(Collectors.toList());
+
+        // wait until the batch completed before loading the next one
+        CompletableFuture.allOf(transfers.toArray(new CompletableFuture[] {})).get();
+        return batch.size();
+    }
+
+    // waits for an asynchronous disk operation and passes on its error
+    private static <T> T await(CompletableFuture<T> operation) throws PersistenceException, InterruptedException {
+        try {
+            return operation.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof PersistenceException) {
+                throw (PersistenceException) e.getCause();
+            }
+            throw new PersistenceException("Disk operation failed.", e.getCause());
+        }
+    }
+
 }
@@ -5,7 +5,6 @@ import app_kvServer.persistence.PersistenceService;
 import client.CommunicationModule;
 import client.exceptions.ClientException;
 import common.CorrelatedMessage;
-import common.hash.HashRing;
 import common.hash.Range;
 import common.messages.DefaultKVMessage;
 import common.messages.KVMessage;
@@ -18,6 +17,7 @@ import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
@@ -31,6 +31,7 @@ public class MoveDataTask implements AdminTask {
     private final PersistenceService persistenceService;
     private final Range keyRange;
     private final HostAndPort destination;
+    private final ThreadFactory threadFactory;
     private List<String> keysToTransfer;
     private final AtomicInteger counter;
 
@@ -39,11 +40,14 @@ public class MoveDataTask implements AdminTask {
      * @param persistenceService Persistence service to get entries from
      * @param keyRange Range of keys to transfer
      * @param destination Destination server
+     * @param threadFactory Creates the threads of the connection to the destination
      */
-    public MoveDataTask(PersistenceService persistenceService, Range keyRange, HostAndPort destination) {
+    public MoveDataTask(PersistenceService persistenceService, Range keyRange, HostAndPort destination,
+                        ThreadFactory threadFactory) {
         this.persistenceService = persistenceService;
         this.keyRange = keyRange;
         this.destination = destination;
+        this.threadFactory = threadFactory;
         this.counter = new AtomicInteger(0);
     }
 
@@ -60,15 +64,13 @@ public class MoveDataTask implements AdminTask {
 
     @Override
     public void run() {
-        CommunicationModule communicationModule = new CommunicationModule(destination);
+        CommunicationModule communicationModule = new CommunicationModule(destination, threadFactory);
 
         try {
             communicationModule.start();
 
             // assemble a list of keys we want to transfer
-            List<String> keysToTransfer = persistenceService.getKeys().stream()
-                    .filter(key -> keyRange.contains(HashRing.hash(key)))
-                    .collect(Collectors.toList());
+            List<String> keysToTransfer = persistenceService.getKeys(keyRange);
             this.keysToTransfer = Collections.unmodifiableList(keysToTransfer);
             LOG.info("Starting transfer of {} entries to {}", keysToTransfer.size(), destination);
 
@@ -77,9 +79,12 @@ public class MoveDataTask implements AdminTask {
                     .map(key -> {
                         Optional<KVMessage> result = Optional.empty();
                         try {
-                            result = persistenceService
-                                    .get(key)
-                                    .map(value -> new DefaultKVMessage(key, value, KVMessage.StatusType.PUT));
+                            Optional<byte[]> value = persistenceService.getBytes(key);
+                            if (value.isPresent()) {
+                                // expiring values keep their remaining time to live
+                                result = Optional.of(DefaultKVMessage.ofBytes(key, value.get(),
+                                        KVMessage.StatusType.PUT, persistenceService.getTimeToLive(key)));
+                            }
                         } catch (PersistenceException e) {
                             LOG.error("Error retrieving value.", e);
                         }
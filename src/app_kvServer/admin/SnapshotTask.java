@@ -0,0 +1,51 @@
+package app_kvServer.admin;
+
+import app_kvServer.persistence.PersistenceException;
+import app_kvServer.persistence.PersistenceService;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+
+/**
+ * Task that takes a consistent snapshot of the persisted data, e.g. for a backup.
+ */
+public class SnapshotTask implements AdminTask {
+
+    private static final Logger LOG = LogManager.getLogger(SnapshotTask.class);
+
+    private final PersistenceService persistenceService;
+    private final File directory;
+    private volatile boolean finished;
+
+    /**
+     * Constructor.
+     * @param persistenceService Persistence service to take the snapshot of
+     * @param directory Directory for the snapshot, must not exist yet
+     */
+    public SnapshotTask(PersistenceService persistenceService, File directory) {
+        this.persistenceService = persistenceService;
+        this.directory = directory;
+        this.finished = false;
+    }
+
+    @Override
+    public float getProgress() {
+        // the snapshot is taken in one operation
+        return finished ? 1 : 0;
+    }
+
+    @Override
+    public void run() {
+        long start = System.currentTimeMillis();
+        try {
+            persistenceService.snapshot(directory);
+            LOG.info("Took snapshot in {} in {} ms.", directory, System.currentTimeMillis() - start);
+        } catch (PersistenceException e) {
+            LOG.error("Could not take snapshot in " + directory, e);
+        } finally {
+            finished = true;
+        }
+    }
+
+}
@@ -40,6 +40,7 @@ public class MapReduceMaster extends ContextPreservingThread {
     private final HostAndPort myself;
     private final InitiateMRRequest request;
     private final int replicationFactor;
+    private final ThreadFactory threadFactory;
 
     private HashRing ring;
     private final Map<Range, WorkerSentinel> pendingResults;
@@ -54,12 +55,16 @@ public class MapReduceMaster extends ContextPreservingThread {
      *
      * @param myself Address of the current node.
      * @param request Request that triggered the map/reduce process.
+     * @param threadFactory Creates the threads of the master and its worker sentinels.
      * @throws ScriptException If map/reduce script contains errors.
      */
-    public MapReduceMaster(HostAndPort myself, InitiateMRRequest request) throws ScriptException {
+    public MapReduceMaster(HostAndPort myself, InitiateMRRequest request, ThreadFactory threadFactory)
+            throws ScriptException {
+        super(threadFactory);
         this.myself = myself;
         this.request = request;
         this.replicationFactor = 3;
+        this.threadFactory = threadFactory;
 
         this.ring = new HashRing(Gossiper.getInstance().getClusterDigest().getCluster().keySet());
 
@@ -85,7 +90,8 @@ public class MapReduceMaster extends ContextPreservingThread {
                         new WorkerSentinel(ring.getAssignedRange(node), node)));
 
         List<CompletableFuture<Void>> responses = pendingResults.entrySet().stream()
-                .map(e -> CompletableFuture.runAsync(e.getValue()))
+                .map(e -> CompletableFuture.runAsync(e.getValue(),
+                        sentinel -> threadFactory.newThread(sentinel).start()))
                 .collect(Collectors.toList());
 
         CompletableFuture<Void> totalFederationFuture = FutureUtils.allOf(responses);
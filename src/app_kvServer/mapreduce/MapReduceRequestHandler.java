@@ -9,6 +9,7 @@ import org.apache.logging.log4j.Logger;
 import javax.script.ScriptException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Handler for map/reduce requests.
@@ -19,6 +20,7 @@ public class MapReduceRequestHandler {
 
     private final HostAndPort myself;
     private final PersistenceService persistenceService;
+    private final ThreadFactory threadFactory;
 
     private final Map<String, MapReduceMaster> masters;
     private final Map<String, MapReduceWorker> workers;
@@ -28,10 +30,13 @@ public class MapReduceRequestHandler {
      *
      * @param myself Address of the local node.
      * @param persistenceService Persistence service.
+     * @param threadFactory Creates the threads of masters and workers.
      */
-    public MapReduceRequestHandler(HostAndPort myself, PersistenceService persistenceService) {
+    public MapReduceRequestHandler(HostAndPort myself, PersistenceService persistenceService,
+                                   ThreadFactory threadFactory) {
         this.myself = myself;
         this.persistenceService = persistenceService;
+        this.threadFactory = threadFactory;
 
         this.masters = new ConcurrentHashMap<>();
         this.workers = new ConcurrentHashMap<>();
@@ -60,7 +65,7 @@ public class MapReduceRequestHandler {
 
         if (startMaster) {
             try {
-                MapReduceMaster master = new MapReduceMaster(myself, request);
+                MapReduceMaster master = new MapReduceMaster(myself, request, threadFactory);
                 // FIXME this is a memory leak, must be get cleaned up when jobs finish
                 masters.put(request.getId(), master);
                 master.start();
@@ -68,7 +73,7 @@ public class MapReduceRequestHandler {
                 LOG.error("Could not start m/r master for job=" + request.getId(), e);
             }
         } else {
-            MapReduceWorker worker = new MapReduceWorker(request, persistenceService);
+            MapReduceWorker worker = new MapReduceWorker(request, persistenceService, threadFactory);
             // FIXME this is a memory leak, must be get cleaned up when jobs finish
             workers.put(request.getId(), worker);
             worker.start();
@@ -1,10 +1,10 @@
 package app_kvServer.mapreduce;
 
+import app_kvServer.persistence.Cursor;
 import app_kvServer.persistence.PersistenceException;
 import app_kvServer.persistence.PersistenceService;
 import client.CommunicationModule;
 import client.exceptions.ClientException;
-import common.hash.HashRing;
 import common.messages.mapreduce.InitiateMRRequest;
 import common.messages.mapreduce.ProcessingMRCompleteMessage;
 import common.utils.ContextPreservingThread;
@@ -14,12 +14,13 @@ import org.apache.logging.log4j.ThreadContext;
 
 import javax.script.ScriptException;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.Collectors;
 
 /**
  * Map/reduce worker process.
@@ -32,6 +33,7 @@ public class MapReduceWorker extends ContextPreservingThread {
 
     private final InitiateMRRequest request;
     private final PersistenceService persistenceService;
+    private final ThreadFactory threadFactory;
     private final AtomicBoolean running;
     private volatile Throwable error;
 
@@ -40,10 +42,14 @@ public class MapReduceWorker extends ContextPreservingThread {
      *
      * @param request Request that triggered the map/reduce process.
      * @param persistenceService Persistence service.
+     * @param threadFactory Creates the threads of the worker.
      */
-    public MapReduceWorker(InitiateMRRequest request, PersistenceService persistenceService) {
+    public MapReduceWorker(InitiateMRRequest request, PersistenceService persistenceService,
+                           ThreadFactory threadFactory) {
+        super(threadFactory);
         this.request = request;
         this.persistenceService = persistenceService;
+        this.threadFactory = threadFactory;
         this.running = new AtomicBoolean(false);
         this.error = null;
     }
@@ -65,30 +71,27 @@ public class MapReduceWorker extends ContextPreservingThread {
 
             // FIXME default NS "." should only be known to PersistenceService
             String sourceNamespace = Optional.ofNullable(request.getSourceNamespace()).orElse(".");
-            List<String> keys = persistenceService.getKeys(sourceNamespace).stream()
-                    .filter(key -> request.getSourceKeyRange().contains(HashRing.hash(key)))
-                    .collect(Collectors.toList());
-            LOG.info("Map/reduce on src_ns={} for range={} processing n_keys={}",
-                    request.getSourceNamespace(), request.getSourceKeyRange(), keys.size());
-
-            for (String key : keys) {
-                try {
-                    String value = persistenceService
-                            .get(key)
-                            .orElseThrow(() -> new PersistenceException("Key does not exist anymore: " + key));
-
-                    processor.process(key, value);
-                } catch (PersistenceException e) {
-                    LOG.warn("Could not map/reduce key=" + key, e);
+            LOG.info("Map/reduce on src_ns={} for range={}",
+                    request.getSourceNamespace(), request.getSourceKeyRange());
+
+            Cursor cursor = persistenceService.iterate(sourceNamespace, request.getSourceKeyRange(),
+                    Cursor.DEFAULT_BATCH_SIZE);
+            int processed = 0;
+            List<Map.Entry<String, String>> batch;
+            while (!(batch = cursor.nextBatch()).isEmpty()) {
+                for (Map.Entry<String, String> entry : batch) {
+                    processor.process(entry.getKey(), entry.getValue());
                 }
+                processed += batch.size();
             }
+            LOG.info("Map/reduce processed n_keys={}", processed);
 
             // send results back to the master
             LOG.info("Sending map/reduce results back to master={}", request.getMaster());
             ProcessingMRCompleteMessage completeMessage = new ProcessingMRCompleteMessage(
                     request.getId(), request.getSourceKeyRange(), processor.getResults());
 
-            CommunicationModule communicationModule = new CommunicationModule(request.getMaster());
+            CommunicationModule communicationModule = new CommunicationModule(request.getMaster(), threadFactory);
             communicationModule.start();
 
             communicationModule
@@ -0,0 +1,373 @@
+package app_kvServer.persistence;
+
+import common.hash.Range;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the operations of a persistence service on dedicated I/O threads.
+ *
+ * The asynchronous operations return a future right away, so a caller can
+ * have many disk operations outstanding at once instead of waiting for each
+ * one in turn. All other operations are passed on synchronously.
+ *
+ * Keys are spread over a fixed number of lanes, each with one thread and a
+ * bounded queue. Operations on the same key run in the order they were
+ * submitted. A caller which submits to a full lane blocks until there is room
+ * again, so a burst of requests can not pile up in memory.
+ */
+public class AsyncPersistenceService implements PersistenceService {
+
+    private static final Logger LOG = LogManager.getLogger(AsyncPersistenceService.class);
+
+    /** Default number of I/O threads. */
+    public static final int DEFAULT_THREADS = 8;
+
+    /** Default number of operations each I/O thread queues before callers block. */
+    public static final int DEFAULT_QUEUE_SIZE = 256;
+
+    private final PersistenceService storage;
+    private final ThreadPoolExecutor[] lanes;
+
+    /**
+     * Default constructor.
+     * @param storage The persistence service to run the operations on
+     */
+    public AsyncPersistenceService(PersistenceService storage) {
+        this(storage, DEFAULT_THREADS, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * @param storage The persistence service to run the operations on
+     * @param threads Number of I/O threads
+     * @param queueSize Number of operations each I/O thread queues before callers block
+     */
+    public AsyncPersistenceService(PersistenceService storage, int threads, int queueSize) {
+        this.storage = storage;
+        this.lanes = new ThreadPoolExecutor[threads];
+        for (int i = 0; i < threads; i++) {
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueSize),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "persistence-io");
+                        thread.setDaemon(true);
+                        return thread;
+                    },
+                    AsyncPersistenceService::waitForRoom);
+        }
+    }
+
+    /**
+     * Asynchronously put a key,value-pair.
+     * @param key the key
+     * @param value the value
+     * @param timeToLive time in milliseconds after which the value expires, 0 if it does not expire
+     * @return future which completes with true if the key was inserted, false if it was updated,
+     * or exceptionally with a {@link PersistenceException}
+     */
+    public CompletableFuture<Boolean> putAsync(String key, String value, long timeToLive) {
+        return submit(key, () -> storage.put(key, value, timeToLive));
+    }
+
+    /**
+     * Asynchronously put a key,value-pair whose value is given as bytes.
+     * @param key the key
+     * @param value the value, must not be changed afterwards
+     * @param timeToLive time in milliseconds after which the value expires, 0 if it does not expire
+     * @return future which completes with true if the key was inserted, false if it was updated,
+     * or exceptionally with a {@link PersistenceException}
+     */
+    public CompletableFuture<Boolean> putBytesAsync(String key, byte[] value, long timeToLive) {
+        return submit(key, () -> storage.putBytes(key, value, timeToLive));
+    }
+
+    /**
+     * Asynchronously retrieve the value associated with key.
+     * @param key the key to retrieve the value for
+     * @return future which completes with an optional containing the value or being empty if the
+     * value does not exist, or exceptionally with a {@link PersistenceException}
+     */
+    public CompletableFuture<Optional<String>> getAsync(String key) {
+        return submit(key, () -> storage.get(key));
+    }
+
+    /**
+     * Asynchronously retrieve the value associated with key as bytes.
+     * @param key the key to retrieve the value for
+     * @return future which completes with an optional containing the value or being empty if the
+     * value does not exist, or exceptionally with a {@link PersistenceException}
+     */
+    public CompletableFuture<Optional<byte[]>> getBytesAsync(String key) {
+        return submit(key, () -> storage.getBytes(key));
+    }
+
+    /**
+     * Asynchronously return the value of a key together with its remaining time to live.
+     * @param key the key
+     * @return future which completes with the entry or empty if the key does not exist,
+     * or exceptionally with a {@link PersistenceException}
+     */
+    public CompletableFuture<Optional<Cursor.Entry>> getEntryAsync(String key) {
+        return submit(key, () -> storage.getEntry(key));
+    }
+
+    /**
+     * Asynchronously return the remaining time to live of a value.
+     * @param key the key
+     * @return future which completes with the time in milliseconds until the value expires,
+     * or exceptionally with a {@link PersistenceException}
+     */
+    public CompletableFuture<Long> getTimeToLiveAsync(String key) {
+        return submit(key, () -> storage.getTimeToLive(key));
+    }
+
+    /**
+     * Asynchronously delete a key.
+     * @param key the key to delete
+     * @return future which completes with true if a value was deleted,
+     * or exceptionally with a {@link PersistenceException}
+     */
+    public CompletableFuture<Boolean> deleteAsync(String key) {
+        return submit(key, () -> storage.delete(key));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean putBytes(String key, byte[] value) throws PersistenceException {
+        return storage.putBytes(key, value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean putBytes(String key, byte[] value, long timeToLive) throws PersistenceException {
+        return storage.putBytes(key, value, timeToLive);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTimeToLive(String key) throws PersistenceException {
+        return storage.getTimeToLive(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Optional<byte[]> getBytes(String key) throws PersistenceException {
+        return storage.getBytes(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Optional<Cursor.Entry> getEntry(String key) throws PersistenceException {
+        return storage.getEntry(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean delete(String key) throws PersistenceException {
+        return storage.delete(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean contains(String key) throws PersistenceException {
+        return storage.contains(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys() throws PersistenceException {
+        return storage.getKeys();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys(String namespace) throws PersistenceException {
+        return storage.getKeys(namespace);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getAllKeys() throws PersistenceException {
+        return storage.getAllKeys();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys(Range range) throws PersistenceException {
+        return storage.getKeys(range);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys(String namespace, Range range) throws PersistenceException {
+        return storage.getKeys(namespace, range);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getDeletedKeys(Range range) throws PersistenceException {
+        return storage.getDeletedKeys(range);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int deleteRange(Range range) throws PersistenceException {
+        return storage.deleteRange(range);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getHotKeys(int limit) {
+        return storage.getHotKeys(limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Cursor iterate(Range range) throws PersistenceException {
+        return storage.iterate(range);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Cursor iterate(String namespace, Range range, int batchSize) throws PersistenceException {
+        return storage.iterate(namespace, range, batchSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void snapshot(File directory) throws PersistenceException {
+        storage.snapshot(directory);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void sync() throws PersistenceException {
+        storage.sync();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws PersistenceException {
+        // let queued operations finish, they may be writes which have not been acknowledged yet
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+        try {
+            for (ThreadPoolExecutor lane : lanes) {
+                if (!lane.awaitTermination(10, TimeUnit.SECONDS)) {
+                    LOG.warn("Queued operations did not finish in time.");
+                    lane.shutdownNow();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        storage.close();
+    }
+
+    /**
+     * Return the number of operations which have been submitted but not started yet.
+     * @return Number of queued operations
+     */
+    public int getQueuedOperations() {
+        int queued = 0;
+        for (ThreadPoolExecutor lane : lanes) {
+            queued += lane.getQueue().size();
+        }
+        return queued;
+    }
+
+    private <T> CompletableFuture<T> submit(String key, Operation<T> operation) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        // log messages of the operation should still tell which request they belong to
+        Map<String, String> context = ThreadContext.getImmutableContext();
+        Runnable task = () -> {
+            ThreadContext.putAll(context);
+            try {
+                future.complete(operation.run());
+            } catch (PersistenceException | RuntimeException e) {
+                future.completeExceptionally(e);
+            } finally {
+                ThreadContext.clearMap();
+            }
+        };
+
+        try {
+            lanes[Math.floorMod(key.hashCode(), lanes.length)].execute(task);
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new PersistenceException("Persistence service is closed.", e));
+        }
+        return future;
+    }
+
+    // blocks the submitting thread instead of running the operation on it, which could overtake queued ones
+    private static void waitForRoom(Runnable task, ThreadPoolExecutor lane) {
+        if (lane.isShutdown()) {
+            throw new RejectedExecutionException("I/O thread has been shut down.");
+        }
+        try {
+            lane.getQueue().put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for the I/O queue.", e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Operation<T> {
+        T run() throws PersistenceException;
+    }
+
+}
@@ -1,7 +1,18 @@
 package app_kvServer.persistence;
 
+import java.util.List;
 import java.util.Optional;
 
+/**
+ * In-memory cache of persisted values.
+ *
+ * The capacity of a cache is given as maximum total weight of its elements.
+ * If every element weighs one, this is the maximum number of elements.
+ * Implementations must be safe for use by multiple threads.
+ *
+ * @param <K> Type of the keys
+ * @param <V> Type of the values
+ */
 public interface Cache<K, V> {
 
     Optional<V> get(K key) throws PersistenceException;
@@ -12,4 +23,35 @@ public interface Cache<K, V> {
 
     boolean delete(K key) throws PersistenceException;
 
+    /**
+     * Return the number of cached elements.
+     * @return Number of elements
+     */
+    int size();
+
+    /**
+     * Return the total weight of the cached elements.
+     * @return Weight
+     */
+    long getWeight();
+
+    /**
+     * Return the maximum total weight of the cached elements.
+     * @return Capacity
+     */
+    long getMaxWeight();
+
+    /**
+     * Return all cached keys.
+     * @return Keys, in no particular order
+     */
+    List<K> keys();
+
+    /**
+     * Return the cached keys which are most likely to be used again.
+     * @param limit Maximum number of keys
+     * @return Keys, ranked by the replacement strategy with the most valuable key first
+     */
+    List<K> getHotKeys(int limit);
+
 }
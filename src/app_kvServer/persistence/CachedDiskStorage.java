@@ -1,21 +1,108 @@
 package app_kvServer.persistence;
 
 import app_kvServer.CacheReplacementStrategy;
+import app_kvServer.CacheWriteMode;
+import common.hash.HashRing;
+import common.hash.Range;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Persists values directly to disk and maintains a configurable
  * cache for faster retrievals.
+ *
+ * Values are cached as bytes, so a cached value is served as it was stored,
+ * without converting it to a string and back.
+ *
+ * A bloom filter over all persisted keys answers most lookups of keys
+ * which do not exist without asking the storage engine. Deleted keys stay
+ * in the filter until it is rebuilt, which happens once it has seen more
+ * insertions than it was sized for.
+ *
+ * In {@link CacheWriteMode#WRITE_BACK} mode modifications are kept in a
+ * table of dirty entries and flushed to the storage engine periodically.
+ * The dirty entries live outside of the cache, so ejecting a value from
+ * the cache never loses a modification. Once the table is full, writes go
+ * to the storage engine directly until the next flush made room again.
+ * Listing keys flushes first, because listings come from the storage engine.
+ *
+ * The keys the cache ranks highest can be written to a file periodically.
+ * After a restart the cache is warmed up from that list in the background,
+ * at a limited rate so the storage engine stays available for requests.
  */
 public class CachedDiskStorage implements PersistenceService {
 
-    private final Cache<String, String> cache;
-    private final PersistenceService diskStorage;
+    /** Estimated heap usage of a cache entry apart from the characters of the key and the value bytes. */
+    public static final int ENTRY_OVERHEAD = 96;
+
+    /** Weighs every entry by one, which limits the number of cached entries. */
+    public static final Weigher<String, byte[]> ENTRY_WEIGHER = (key, value) -> 1;
+
+    /** Weighs entries by their estimated heap usage in bytes. */
+    public static final Weigher<String, byte[]> BYTE_WEIGHER =
+            (key, value) -> ENTRY_OVERHEAD + 2 * key.length() + value.length;
+
+    private static final Logger LOG = LogManager.getLogger(CachedDiskStorage.class);
+
+    private static final double KEY_FILTER_FALSE_POSITIVE_PROBABILITY = 0.01;
+    private static final int MIN_KEY_FILTER_CAPACITY = 1024;
 
-    // TODO: show if synchronization can be done in a smarter way
+    /** Default time between two flushes of dirty entries in milliseconds. */
+    public static final long DEFAULT_FLUSH_INTERVAL = 100;
+
+    /** Default maximum number of dirty entries. */
+    public static final int DEFAULT_MAX_DIRTY_ENTRIES = 10000;
+
+    /** Default maximum number of keys in the hot key list. */
+    public static final int DEFAULT_MAX_HOT_KEYS = 10000;
+
+    /** Default time between two updates of the hot key list in milliseconds. */
+    public static final long DEFAULT_HOT_KEYS_INTERVAL = 60000;
+
+    /** Default number of values loaded per second while warming up the cache. */
+    public static final int DEFAULT_WARM_UP_RATE = 1000;
+
+    private static final long WARM_UP_STEP_MILLIS = 100;
+
+    private final Cache<String, byte[]> cache;
+    private final PersistenceService diskStorage;
+    // modifications of the same key must reach cache and disk in the same order
+    private final KeyLocks keyLocks;
+    private final AtomicLong keyFilterInsertions;
+    private final AtomicBoolean keyFilterRebuilding;
+    private volatile BloomFilter keyFilter;
+    private volatile long keyFilterCapacity;
+    // receives insertions while the next filter is populated
+    private volatile BloomFilter nextKeyFilter;
+    // modifications which have not been flushed yet, empty for deletions
+    private final ConcurrentHashMap<String, Optional<byte[]>> dirtyEntries;
+    private final boolean writeBack;
+    private final int maxDirtyEntries;
+    private final ScheduledThreadPoolExecutor flusher;
+    private volatile File hotKeysFile;
+    private volatile int maxHotKeys;
 
     /**
      * Default constructor.
@@ -23,18 +110,201 @@ public class CachedDiskStorage implements PersistenceService {
      * @param cacheSize Number of elements the cache can hold
      * @param replacementStrategy Displacement strategy for the cache
      */
-    public CachedDiskStorage(File dataDirectory, int cacheSize, CacheReplacementStrategy replacementStrategy) {
-        this.diskStorage = new DiskStorage(dataDirectory);
+    public CachedDiskStorage(File dataDirectory, int cacheSize, CacheReplacementStrategy replacementStrategy)
+            throws PersistenceException {
+        this(new DiskStorage(dataDirectory), cacheSize, replacementStrategy);
+    }
+
+    /**
+     * Constructor.
+     * @param diskStorage The underlying storage engine
+     * @param cacheSize Number of elements the cache can hold
+     * @param replacementStrategy Displacement strategy for the cache
+     * @throws PersistenceException if the persisted keys can not be listed
+     */
+    public CachedDiskStorage(PersistenceService diskStorage, int cacheSize,
+                             CacheReplacementStrategy replacementStrategy) throws PersistenceException {
+        this(diskStorage, cacheSize, ENTRY_WEIGHER, replacementStrategy);
+    }
+
+    /**
+     * Constructor.
+     *
+     * The off-heap cache always counts the bytes of the encoded values, it
+     * ignores the weigher and takes the maximum weight as number of bytes.
+     * @param diskStorage The underlying storage engine
+     * @param maxWeight Maximum total weight of the cached entries
+     * @param weigher Calculates the weight of an entry, e.g. {@link #BYTE_WEIGHER}
+     * @param replacementStrategy Displacement strategy for the cache
+     * @throws PersistenceException if the persisted keys can not be listed
+     */
+    public CachedDiskStorage(PersistenceService diskStorage, long maxWeight, Weigher<String, byte[]> weigher,
+                             CacheReplacementStrategy replacementStrategy) throws PersistenceException {
+        this(diskStorage, maxWeight, weigher, replacementStrategy, CacheWriteMode.WRITE_THROUGH,
+                DEFAULT_FLUSH_INTERVAL, DEFAULT_MAX_DIRTY_ENTRIES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * The off-heap cache always counts the bytes of the encoded values, it
+     * ignores the weigher and takes the maximum weight as number of bytes.
+     * @param diskStorage The underlying storage engine
+     * @param maxWeight Maximum total weight of the cached entries
+     * @param weigher Calculates the weight of an entry, e.g. {@link #BYTE_WEIGHER}
+     * @param replacementStrategy Displacement strategy for the cache
+     * @param writeMode When modifications are written to the storage engine
+     * @param flushIntervalMillis Time between flushes if the write mode is {@link CacheWriteMode#WRITE_BACK}
+     * @param maxDirtyEntries Maximum number of modifications which have not been flushed
+     * @throws PersistenceException if the persisted keys can not be listed
+     */
+    public CachedDiskStorage(PersistenceService diskStorage, long maxWeight, Weigher<String, byte[]> weigher,
+                             CacheReplacementStrategy replacementStrategy, CacheWriteMode writeMode,
+                             long flushIntervalMillis, int maxDirtyEntries) throws PersistenceException {
+        this.diskStorage = diskStorage;
+        this.dirtyEntries = new ConcurrentHashMap<>();
+        this.writeBack = writeMode == CacheWriteMode.WRITE_BACK;
+        this.maxDirtyEntries = maxDirtyEntries;
+        this.keyLocks = new KeyLocks(KeyLocks.DEFAULT_STRIPES);
+        this.keyFilterRebuilding = new AtomicBoolean(false);
+
+        List<String> keys = diskStorage.getAllKeys();
+        this.keyFilterCapacity = Math.max(MIN_KEY_FILTER_CAPACITY, 2L * keys.size());
+        this.keyFilter = new BloomFilter(keyFilterCapacity, KEY_FILTER_FALSE_POSITIVE_PROBABILITY);
+        keys.forEach(keyFilter::add);
+        this.keyFilterInsertions = new AtomicLong(keys.size());
         switch (replacementStrategy) {
             case LFU:
-                cache = new LFUCache<>(cacheSize);
+                cache = new LFUCache<>(maxWeight, weigher);
                 break;
             case LRU:
-                cache = new LRUCache<>(cacheSize);
+                cache = new LRUCache<>(maxWeight, weigher);
+                break;
+            case TINY_LFU:
+                cache = new TinyLFUCache<>(maxWeight, weigher);
+                break;
+            case OFF_HEAP:
+                cache = new OffHeapCache<>(maxWeight);
                 break;
             case FIFO:
             default:
-                cache = new FIFOCache<>(cacheSize);
+                cache = new FIFOCache<>(maxWeight, weigher);
+        }
+
+        this.flusher = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "cache-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (writeBack) {
+            flusher.scheduleWithFixedDelay(this::flushQuietly,
+                    flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Return the number of cached entries.
+     * @return Number of entries
+     */
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    /**
+     * Return the total weight of the cached entries.
+     * @return Weight, in bytes if the cache is weighed by {@link #BYTE_WEIGHER}
+     */
+    public long getCacheWeight() {
+        return cache.getWeight();
+    }
+
+    /**
+     * Return the maximum total weight of the cached entries.
+     * @return Capacity of the cache
+     */
+    public long getCacheMaxWeight() {
+        return cache.getMaxWeight();
+    }
+
+    /**
+     * Return the number of modifications which have not been flushed.
+     * @return Number of dirty entries
+     */
+    public int getDirtyEntries() {
+        return dirtyEntries.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getHotKeys(int limit) {
+        return cache.getHotKeys(limit);
+    }
+
+    /**
+     * Keep a list of the hottest cached keys in a file and warm the cache up from it.
+     *
+     * A list written before is loaded right away in the background.
+     * Afterwards the list is rewritten periodically and when the storage is closed.
+     *
+     * @param file The file holding the list
+     * @param maxKeys Maximum number of keys in the list
+     * @param intervalMillis Time between two updates of the list
+     * @param warmUpRate Number of values loaded per second while warming up
+     */
+    public void keepHotKeys(File file, int maxKeys, long intervalMillis, int warmUpRate) {
+        this.hotKeysFile = file;
+        this.maxHotKeys = maxKeys;
+
+        try {
+            warmUp(readHotKeys(file), warmUpRate);
+        } catch (IOException e) {
+            LOG.warn("Could not read hot key list " + file + ", starting with a cold cache.", e);
+        }
+        flusher.scheduleWithFixedDelay(this::writeHotKeysQuietly, intervalMillis, intervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Load the values of keys into the cache in the background.
+     *
+     * Keys are loaded in the given order until the cache is full. Keys which
+     * are cached already, have been deleted or modified in the meantime are
+     * skipped.
+     *
+     * @param keys The keys, the most valuable first
+     * @param keysPerSecond Maximum number of values loaded per second
+     */
+    public void warmUp(List<String> keys, int keysPerSecond) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        LOG.info("Warming up cache with up to {} keys at {} keys per second.", keys.size(), keysPerSecond);
+        flusher.execute(new WarmUp(keys, Math.max(1, (int) (keysPerSecond * WARM_UP_STEP_MILLIS / 1000))));
+    }
+
+    /**
+     * Write all dirty entries to the storage engine.
+     * @throws PersistenceException if an entry can not be written
+     */
+    public void flush() throws PersistenceException {
+        for (String key : dirtyEntries.keySet()) {
+            synchronized (keyLocks.forKey(key)) {
+                Optional<byte[]> value = dirtyEntries.get(key);
+                if (value == null) {
+                    // flushed concurrently
+                    continue;
+                }
+
+                if (value.isPresent()) {
+                    diskStorage.putBytes(key, value.get());
+                    addToKeyFilter(key);
+                } else {
+                    diskStorage.delete(key);
+                }
+                dirtyEntries.remove(key);
+            }
         }
     }
 
@@ -42,12 +312,35 @@ public class CachedDiskStorage implements PersistenceService {
      * {@inheritDoc}
      */
     @Override
-    public synchronized boolean put(String key, String value) throws PersistenceException {
-        boolean insert = !cache.contains(key) && !diskStorage.contains(key);
+    public boolean putBytes(String key, byte[] value) throws PersistenceException {
+        boolean insert;
+        synchronized (keyLocks.forKey(key)) {
+            Optional<byte[]> dirty = dirtyEntries.get(key);
+            if (dirty != null) {
+                insert = !dirty.isPresent();
+            } else {
+                insert = !cache.contains(key) && !persisted(key);
+            }
 
-        diskStorage.put(key, value);
-        cache.put(key, value);
+            if (writeBack && (dirty != null || dirtyEntries.size() < maxDirtyEntries)) {
+                // overwrites an unflushed modification of the same key
+                dirtyEntries.put(key, Optional.of(value));
+            } else {
+                diskStorage.putBytes(key, value);
+                addToKeyFilter(key);
+            }
+            cache.put(key, value);
+        }
 
+        if (keyFilterInsertions.get() > keyFilterCapacity && keyFilterRebuilding.compareAndSet(false, true)) {
+            try {
+                rebuildKeyFilter();
+            } catch (PersistenceException e) {
+                LOG.warn("Could not rebuild key filter.", e);
+            } finally {
+                keyFilterRebuilding.set(false);
+            }
+        }
         return insert;
     }
 
@@ -55,12 +348,20 @@ public class CachedDiskStorage implements PersistenceService {
      * {@inheritDoc}
      */
     @Override
-    public synchronized Optional<String> get(String key) throws PersistenceException {
-        Optional<String> cacheResult = cache.get(key);
+    public Optional<byte[]> getBytes(String key) throws PersistenceException {
+        // no lock needed, the cache is thread-safe and only populated by writers
+        Optional<byte[]> dirty = dirtyEntries.get(key);
+        if (dirty != null) {
+            return dirty;
+        }
+
+        Optional<byte[]> cacheResult = cache.get(key);
         if (cacheResult.isPresent()) {
             return cacheResult;
+        } else if (!keyFilter.mightContain(key)) {
+            return Optional.empty();
         } else {
-            return diskStorage.get(key);
+            return diskStorage.getBytes(key);
         }
     }
 
@@ -68,20 +369,55 @@ public class CachedDiskStorage implements PersistenceService {
      * {@inheritDoc}
      */
     @Override
-    public synchronized boolean delete(String key) throws PersistenceException {
-        boolean deleted = diskStorage.delete(key);
-        if (cache.contains(key)) {
+    public boolean delete(String key) throws PersistenceException {
+        synchronized (keyLocks.forKey(key)) {
+            boolean deleted;
+            Optional<byte[]> dirty = dirtyEntries.get(key);
+            if (dirty != null) {
+                // the storage engine may still hold an older value
+                deleted = dirty.isPresent();
+                dirtyEntries.put(key, Optional.empty());
+            } else if (writeBack && dirtyEntries.size() < maxDirtyEntries) {
+                deleted = cache.contains(key) || persisted(key);
+                if (deleted) {
+                    dirtyEntries.put(key, Optional.empty());
+                }
+            } else {
+                deleted = diskStorage.delete(key);
+            }
             cache.delete(key);
+            return deleted;
         }
-        return deleted;
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public synchronized boolean contains(String key) throws PersistenceException {
-        return cache.contains(key) || diskStorage.contains(key);
+    public boolean contains(String key) throws PersistenceException {
+        Optional<byte[]> dirty = dirtyEntries.get(key);
+        if (dirty != null) {
+            return dirty.isPresent();
+        }
+        return cache.contains(key) || persisted(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int deleteRange(Range range) throws PersistenceException {
+        // dirty entries in the range must not be written after it has been dropped
+        flush();
+        int deleted = diskStorage.deleteRange(range);
+        for (String key : cache.keys()) {
+            if (range.contains(HashRing.hash(key))) {
+                synchronized (keyLocks.forKey(key)) {
+                    cache.delete(key);
+                }
+            }
+        }
+        return deleted;
     }
 
     /**
@@ -89,6 +425,7 @@ public class CachedDiskStorage implements PersistenceService {
      */
     @Override
     public List<String> getKeys() throws PersistenceException {
+        flush();
         return diskStorage.getKeys();
     }
 
@@ -97,7 +434,239 @@ public class CachedDiskStorage implements PersistenceService {
      */
     @Override
     public List<String> getKeys(String namespace) throws PersistenceException {
+        flush();
         return diskStorage.getKeys(namespace);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getAllKeys() throws PersistenceException {
+        flush();
+        return diskStorage.getAllKeys();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys(Range range) throws PersistenceException {
+        flush();
+        return diskStorage.getKeys(range);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys(String namespace, Range range) throws PersistenceException {
+        flush();
+        return diskStorage.getKeys(namespace, range);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getDeletedKeys(Range range) throws PersistenceException {
+        flush();
+        return diskStorage.getDeletedKeys(range);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Cursor iterate(Range range) throws PersistenceException {
+        flush();
+        return diskStorage.iterate(range);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Cursor iterate(String namespace, Range range, int batchSize) throws PersistenceException {
+        flush();
+        return diskStorage.iterate(namespace, range, batchSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void snapshot(File directory) throws PersistenceException {
+        flush();
+        diskStorage.snapshot(directory);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void sync() throws PersistenceException {
+        flush();
+        diskStorage.sync();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws PersistenceException {
+        flusher.shutdownNow();
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            flush();
+            writeHotKeysQuietly();
+        } finally {
+            diskStorage.close();
+        }
+    }
+
+    // true if the value has been loaded
+    private boolean load(String key) throws PersistenceException {
+        synchronized (keyLocks.forKey(key)) {
+            if (dirtyEntries.containsKey(key) || cache.contains(key)) {
+                return false;
+            }
+            Optional<byte[]> value = diskStorage.getBytes(key);
+            if (value.isPresent()) {
+                cache.put(key, value.get());
+            }
+            return value.isPresent();
+        }
+    }
+
+    private void writeHotKeysQuietly() {
+        File file = hotKeysFile;
+        if (file == null) {
+            return;
+        }
+        try {
+            writeHotKeys(file, cache.getHotKeys(maxHotKeys));
+        } catch (IOException e) {
+            LOG.warn("Could not write hot key list " + file, e);
+        }
+    }
+
+    // the list is replaced atomically, so a crash leaves the previous one behind
+    private static void writeHotKeys(File file, List<String> keys) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            output.writeInt(keys.size());
+            for (String key : keys) {
+                output.writeUTF(key);
+            }
+        }
+        Files.move(temporary.toPath(), file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static List<String> readHotKeys(File file) throws IOException {
+        if (!file.isFile()) {
+            return Collections.emptyList();
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int count = input.readInt();
+            List<String> keys = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                keys.add(input.readUTF());
+            }
+            return keys;
+        }
+    }
+
+    // loads a step of keys and schedules the next step until the keys are used up or the cache is full
+    private final class WarmUp implements Runnable {
+
+        private final Iterator<String> keys;
+        private final int keysPerStep;
+        private final long start;
+        private int loaded;
+
+        WarmUp(List<String> keys, int keysPerStep) {
+            this.keys = new ArrayList<>(keys).iterator();
+            this.keysPerStep = keysPerStep;
+            this.start = System.currentTimeMillis();
+            this.loaded = 0;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < keysPerStep && keys.hasNext(); i++) {
+                    if (cache.getWeight() >= cache.getMaxWeight()) {
+                        // further keys would only displace hotter ones
+                        break;
+                    }
+                    if (load(keys.next())) {
+                        loaded++;
+                    }
+                }
+            } catch (PersistenceException e) {
+                LOG.error("Could not warm up cache, stopping.", e);
+                return;
+            }
+
+            if (keys.hasNext() && cache.getWeight() < cache.getMaxWeight() && !flusher.isShutdown()) {
+                flusher.schedule(this, WARM_UP_STEP_MILLIS, TimeUnit.MILLISECONDS);
+            } else {
+                LOG.info("Warmed up cache with {} values in {} ms.", loaded, System.currentTimeMillis() - start);
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (PersistenceException e) {
+            // entries stay dirty and are retried with the next flush
+            LOG.error("Could not flush dirty entries.", e);
+        }
+    }
+
+    private boolean persisted(String key) throws PersistenceException {
+        return keyFilter.mightContain(key) && diskStorage.contains(key);
+    }
+
+    // must be called after the key has been persisted
+    private void addToKeyFilter(String key) {
+        // read in this order, a rebuild which finishes in between has already switched the filter
+        BloomFilter next = nextKeyFilter;
+        keyFilter.add(key);
+        if (next != null) {
+            next.add(key);
+        }
+        keyFilterInsertions.incrementAndGet();
+    }
+
+    private void rebuildKeyFilter() throws PersistenceException {
+        // deletions are not counted, so this is an upper bound for the number of keys
+        long insertions = keyFilterInsertions.get();
+        long capacity = Math.max(MIN_KEY_FILTER_CAPACITY, 2 * insertions);
+        BloomFilter next = new BloomFilter(capacity, KEY_FILTER_FALSE_POSITIVE_PROBABILITY);
+
+        // keys written from now on are added by the writers, keys written before are listed by the engine
+        nextKeyFilter = next;
+        try {
+            List<String> keys = diskStorage.getAllKeys();
+            keys.forEach(next::add);
+
+            keyFilterInsertions.addAndGet(keys.size() - insertions);
+            keyFilterCapacity = capacity;
+            keyFilter = next;
+            LOG.debug("Rebuilt key filter with {} keys.", keys.size());
+        } finally {
+            nextKeyFilter = null;
+        }
+    }
+
 }
@@ -0,0 +1,26 @@
+package app_kvServer.persistence;
+
+/**
+ * Tells a storage engine which values it may drop when it rewrites its data,
+ * e.g. values which have expired.
+ *
+ * A filter only gets to see the beginning of a value, so an engine does not
+ * have to decode large values completely.
+ */
+@FunctionalInterface
+public interface CompactionFilter {
+
+    /** Number of bytes at the beginning of a value which a filter gets to see. */
+    int PREFIX_LENGTH = 32;
+
+    /** Keeps all values. */
+    CompactionFilter KEEP_ALL = valuePrefix -> false;
+
+    /**
+     * Decide whether a value is obsolete.
+     * @param valuePrefix The first {@link #PREFIX_LENGTH} bytes of the value, or the whole value if it is shorter
+     * @return True if the value may be dropped
+     */
+    boolean isObsolete(byte[] valuePrefix);
+
+}
@@ -0,0 +1,200 @@
+package app_kvServer.persistence;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Lazily iterates over persisted key/value pairs in batches.
+ *
+ * Values are only loaded when the batch containing them is requested, so
+ * at most one batch of values is held in memory. The cursor reflects the
+ * state of the storage at the time each batch is loaded, entries which
+ * have been deleted in the meantime are skipped.
+ *
+ * A storage which wraps another one passes the batches of the inner cursor
+ * through a transformation instead of listing the keys itself.
+ */
+public final class Cursor {
+
+    /** Default number of entries per batch. */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    private final BatchSource source;
+
+    /**
+     * Constructor.
+     * @param keys Candidate keys
+     * @param namespace Namespace entries must belong to
+     * @param loader Function to load the value of a key
+     * @param batchSize Maximum number of entries per batch
+     */
+    Cursor(Iterator<String> keys, String namespace, ValueLoader loader, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive.");
+        }
+        this.source = () -> loadBatch(keys, namespace, loader, batchSize);
+    }
+
+    /**
+     * Constructor for a cursor which gets its batches from elsewhere, e.g. from other cursors.
+     * @param source Supplies the batches
+     */
+    Cursor(BatchSource source) {
+        this.source = source;
+    }
+
+    /**
+     * Return the next batch of entries.
+     * @return Up to batch size entries, an empty list if the cursor is exhausted
+     * @throws PersistenceException if values can not be loaded
+     */
+    public List<Map.Entry<String, String>> nextBatch() throws PersistenceException {
+        List<Entry> batch = nextBinaryBatch();
+        List<Map.Entry<String, String>> decoded = new ArrayList<>(batch.size());
+        for (Entry entry : batch) {
+            decoded.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(),
+                    new String(entry.getValue(), StandardCharsets.UTF_8)));
+        }
+        return decoded;
+    }
+
+    /**
+     * Return the next batch of entries with the values as they are stored, without converting them to strings.
+     * @return Up to batch size entries with their time to live, an empty list if the cursor is exhausted
+     * @throws PersistenceException if values can not be loaded
+     */
+    public List<Entry> nextBinaryBatch() throws PersistenceException {
+        return source.next();
+    }
+
+    /**
+     * Return a cursor which passes each batch of this cursor through a transformation.
+     *
+     * Batches which the transformation empties are skipped, so an empty batch
+     * still means that the cursor is exhausted.
+     *
+     * @param transformation Transformation of a batch, may drop entries
+     * @return Cursor over the transformed batches
+     */
+    Cursor transform(BatchTransformation transformation) {
+        return new Cursor(() -> {
+            List<Entry> batch;
+            while (!(batch = nextBinaryBatch()).isEmpty()) {
+                List<Entry> transformed = transformation.apply(batch);
+                if (!transformed.isEmpty()) {
+                    return transformed;
+                }
+            }
+            return Collections.emptyList();
+        });
+    }
+
+    private static List<Entry> loadBatch(Iterator<String> keys, String namespace, ValueLoader loader,
+                                         int batchSize) throws PersistenceException {
+        if (!keys.hasNext()) {
+            return Collections.emptyList();
+        }
+
+        List<Entry> batch = new ArrayList<>(batchSize);
+        while (batch.size() < batchSize && keys.hasNext()) {
+            String key = keys.next();
+            if (!Namespaces.contains(namespace, key)) {
+                continue;
+            }
+
+            Optional<byte[]> value = loader.load(key);
+            if (value.isPresent()) {
+                batch.add(new Entry(key, value.get()));
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * An entry of a batch, the value together with its remaining time to live.
+     */
+    public static final class Entry extends AbstractMap.SimpleImmutableEntry<String, byte[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long timeToLive;
+
+        /**
+         * Constructor for an entry which does not expire.
+         * @param key The key
+         * @param value The value
+         */
+        public Entry(String key, byte[] value) {
+            this(key, value, 0);
+        }
+
+        /**
+         * Constructor.
+         * @param key The key
+         * @param value The value
+         * @param timeToLive Time in milliseconds until the value expires, 0 if it does not expire
+         */
+        public Entry(String key, byte[] value, long timeToLive) {
+            super(key, value);
+            this.timeToLive = timeToLive;
+        }
+
+        /**
+         * Return the remaining time to live of the value, as it was when the entry was loaded.
+         * @return Time in milliseconds until the value expires, 0 if it does not expire
+         */
+        public long getTimeToLive() {
+            return timeToLive;
+        }
+    }
+
+    /**
+     * Transforms a batch of entries.
+     */
+    @FunctionalInterface
+    interface BatchTransformation {
+
+        /**
+         * Transform the batch.
+         * @param batch The entries, not empty
+         * @return The transformed entries, empty if all have been dropped
+         * @throws PersistenceException if the entries can not be transformed
+         */
+        List<Entry> apply(List<Entry> batch) throws PersistenceException;
+    }
+
+    /**
+     * Supplies the batches of a cursor.
+     */
+    @FunctionalInterface
+    interface BatchSource {
+
+        /**
+         * Return the next batch.
+         * @return The entries, an empty list once there are no more
+         * @throws PersistenceException if the entries can not be loaded
+         */
+        List<Entry> next() throws PersistenceException;
+    }
+
+    /**
+     * Loads the current value of a key.
+     */
+    interface ValueLoader {
+
+        /**
+         * Load the value.
+         * @param key The key
+         * @return The value or empty if the key does not exist anymore
+         * @throws PersistenceException if the value can not be loaded
+         */
+        Optional<byte[]> load(String key) throws PersistenceException;
+    }
+
+}
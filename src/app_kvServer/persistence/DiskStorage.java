@@ -1,70 +1,212 @@
 package app_kvServer.persistence;
 
-import common.utils.RecordReader;
+import common.hash.HashRing;
+import common.hash.Range;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+/**
+ * Stores every key in a file of its own.
+ *
+ * A file holds a record consisting of a marker byte, the length and CRC32
+ * checksum of the encoded value, and the value itself. Files are written
+ * to a temporary directory first and renamed into place, so a crash never
+ * leaves a torn value behind. Files written before records were introduced
+ * contain the plain value followed by a newline and are still readable.
+ *
+ * On startup all files are verified in parallel. Corrupt files are moved to
+ * a quarantine directory next to the data directory.
+ *
+ * A delete does not remove the file of a key but records a timestamped
+ * tombstone in a log next to the data directory. Tombstones are kept for a
+ * grace period so that data streams can pass deletions on to other nodes, a
+ * background compaction removes the files of deleted keys and drops
+ * tombstones once their grace period is over.
+ *
+ * Reads are served from memory-mapped files. A bounded number of mappings is
+ * kept, each verified once and reduced to the slice holding the value, so a
+ * repeated read neither opens the file nor copies it into a buffer first.
+ */
 public class DiskStorage implements PersistenceService {
 
     private static final Logger LOG = LogManager.getLogger(DiskStorage.class);
 
     private static final String NAMESPACE_SEPARATOR = "/";
     private static final byte END_MARKER = (byte) '\n';
+    // never occurs in UTF-8 nor starts an encoded value
+    private static final byte RECORD_MARKER = (byte) 0xFE;
+    private static final int RECORD_HEADER_SIZE = 9;
+
+    /** Default number of files which are kept mapped into memory. */
+    public static final int DEFAULT_MAX_MAPPED_FILES = 4096;
+
+    /** Default time in milliseconds for which tombstones are kept. */
+    public static final long DEFAULT_TOMBSTONE_GRACE_PERIOD = 60L * 60 * 1000;
+
+    private static final int COMPACTION_INTERVAL_SECONDS = 60;
 
     private final File dataDirectory;
+    // siblings of the data directory, every file inside of it is a key
+    private final File temporaryDirectory;
+    private final File quarantineDirectory;
+    private final AtomicLong temporaryFileCounter;
+    // files written since the last sync
+    private final Set<File> unsyncedFiles;
+    private final TokenIndex tokenIndex;
+    private final ValueCodec codec;
+    // verified values of recently read files
+    private final ConcurrentMap<File, ByteBuffer> mappedValues;
+    private final int maxMappedFiles;
+    // time of deletion by deleted key
+    private final ConcurrentMap<String, Long> tombstones;
+    private final TombstoneLog tombstoneLog;
+    private final long tombstoneGracePeriod;
+    // deletes, revivals and compaction of the same key are serialized
+    private final KeyLocks keyLocks;
+    private final ScheduledThreadPoolExecutor compactionExecutor;
+
+    public DiskStorage(File storageDirectory) throws PersistenceException {
+        this(storageDirectory, new ValueCodec());
+    }
+
+    public DiskStorage(File storageDirectory, ValueCodec codec) throws PersistenceException {
+        this(storageDirectory, codec, DEFAULT_MAX_MAPPED_FILES, DEFAULT_TOMBSTONE_GRACE_PERIOD);
+    }
 
-    public DiskStorage(File storageDirectory) {
+    public DiskStorage(File storageDirectory, ValueCodec codec, int maxMappedFiles, long tombstoneGracePeriod)
+            throws PersistenceException {
         this.dataDirectory = storageDirectory;
+        File parent = storageDirectory.getAbsoluteFile().getParentFile();
+        this.temporaryDirectory = new File(parent, storageDirectory.getName() + "_tmp");
+        this.quarantineDirectory = new File(parent, storageDirectory.getName() + "_quarantine");
+        this.temporaryFileCounter = new AtomicLong(0);
+        this.codec = codec;
+        this.unsyncedFiles = ConcurrentHashMap.newKeySet();
+        this.tokenIndex = new TokenIndex();
+        this.mappedValues = new ConcurrentHashMap<>();
+        this.maxMappedFiles = maxMappedFiles;
+        this.tombstones = new ConcurrentHashMap<>();
+        this.tombstoneGracePeriod = tombstoneGracePeriod;
+        this.keyLocks = new KeyLocks(KeyLocks.DEFAULT_STRIPES);
         ensureDataDirectoryExists();
+
+        try {
+            this.tombstoneLog = new TombstoneLog(new File(parent, storageDirectory.getName() + "_tombstones"));
+            tombstones.putAll(tombstoneLog.load());
+        } catch (IOException e) {
+            throw new PersistenceException("Could not open tombstone log.", e);
+        }
+        recover();
+
+        this.compactionExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "tombstone-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactionExecutor.scheduleWithFixedDelay(this::compactQuietly,
+                COMPACTION_INTERVAL_SECONDS, COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
     }
 
     @Override
-    public boolean put(String key, String value) throws PersistenceException {
+    public boolean putBytes(String key, byte[] value) throws PersistenceException {
         File outputFile = escapedFile(key);
-        boolean inserted = outputFile.isFile();
-        try (FileOutputStream fileOutputStream = new FileOutputStream(outputFile)) {
-            byte[] strToBytes = value.getBytes(StandardCharsets.UTF_8);
-            fileOutputStream.write(strToBytes);
-            fileOutputStream.write(END_MARKER);
+        boolean inserted = outputFile.isFile() && !tombstones.containsKey(key);
+        File temporaryFile = new File(temporaryDirectory, Long.toString(temporaryFileCounter.incrementAndGet()));
+        try {
+            try (FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile)) {
+                fileOutputStream.write(encodeRecord(codec.encode(value)));
+            }
+            synchronized (keyLocks.forKey(key)) {
+                Files.move(temporaryFile.toPath(), outputFile.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                // waits for a concurrent mapping of the replaced file
+                mappedValues.remove(outputFile);
+                if (tombstones.remove(key) != null) {
+                    tombstoneLog.revive(key, System.currentTimeMillis());
+                }
+            }
+            unsyncedFiles.add(outputFile);
         } catch (IOException e) {
+            temporaryFile.delete();
             throw new PersistenceException("Could not put key", e);
         }
+        tokenIndex.add(key, HashRing.hash(key));
 
         return inserted;
     }
 
     @Override
-    public Optional<String> get(String key) throws PersistenceException {
-        File inputFile = escapedFile(key);
-        if (!inputFile.exists()) {
+    public Optional<byte[]> getBytes(String key) throws PersistenceException {
+        if (tombstones.containsKey(key)) {
             return Optional.empty();
         }
+        File inputFile = escapedFile(key);
 
-        try (FileInputStream fileInputStream = new FileInputStream(inputFile)) {
-            RecordReader reader = new RecordReader(fileInputStream, END_MARKER);
-            byte[] read = reader.read();
-            return Optional.of(new String(read, StandardCharsets.UTF_8));
-        } catch (IOException e) {
-            throw new PersistenceException("Could not read entry for key.", e);
+        ByteBuffer mapped;
+        try {
+            // mapping happens under the lock of the entry, so writers invalidating it wait for us
+            mapped = mappedValues.computeIfAbsent(inputFile, DiskStorage::mapValue);
+        } catch (UncheckedIOException e) {
+            throw new PersistenceException("Could not read entry for key " + key, e.getCause());
         }
+        if (mapped == null) {
+            return Optional.empty();
+        }
+        if (mappedValues.size() > maxMappedFiles) {
+            evictMapping(inputFile);
+        }
+
+        byte[] value = new byte[mapped.remaining()];
+        mapped.duplicate().get(value);
+        return Optional.of(codec.decodeBytes(value));
     }
 
     @Override
-    public boolean delete(String key) {
+    public boolean delete(String key) throws PersistenceException {
         File inputFile = escapedFile(key);
-        if (!inputFile.exists()) {
-            return false;
+        synchronized (keyLocks.forKey(key)) {
+            if (!inputFile.exists() || tombstones.containsKey(key)) {
+                return false;
+            }
+
+            // the file is left to the compaction
+            long deletedAt = System.currentTimeMillis();
+            tombstones.put(key, deletedAt);
+            try {
+                tombstoneLog.delete(key, deletedAt);
+            } catch (IOException e) {
+                tombstones.remove(key);
+                throw new PersistenceException("Could not log deletion of key.", e);
+            }
         }
 
-        boolean deleted = inputFile.delete();
-        return deleted;
+        mappedValues.remove(inputFile);
+        tokenIndex.remove(key, HashRing.hash(key));
+        return true;
     }
 
     @Override
@@ -90,12 +232,173 @@ public class DiskStorage implements PersistenceService {
                         return String.format("%s/%s", namespace, key);
                     }
                 })
+                .filter(key -> !tombstones.containsKey(key))
                 .collect(Collectors.toList());
     }
 
+    @Override
+    public List<String> getAllKeys() {
+        return tokenIndex.getKeys();
+    }
+
+    @Override
+    public List<String> getKeys(Range range) {
+        return getKeys(".", range);
+    }
+
+    @Override
+    public List<String> getKeys(String namespace, Range range) {
+        return tokenIndex.getKeys(range).stream()
+                .filter(key -> Namespaces.contains(namespace, key))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public Cursor iterate(Range range) {
+        return iterate(".", range, Cursor.DEFAULT_BATCH_SIZE);
+    }
+
+    @Override
+    public Cursor iterate(String namespace, Range range, int batchSize) {
+        return new Cursor(tokenIndex.iterate(range), namespace, this::getBytes, batchSize);
+    }
+
     public boolean contains(String key) {
         File inputFile = escapedFile(key);
-        return inputFile.exists();
+        return inputFile.exists() && !tombstones.containsKey(key);
+    }
+
+    @Override
+    public List<String> getDeletedKeys(Range range) {
+        return tombstones.keySet().stream()
+                .filter(key -> Namespaces.contains(Namespaces.DEFAULT, key) && range.contains(HashRing.hash(key)))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Remove the files of deleted keys and drop tombstones whose grace period is over.
+     * @throws PersistenceException if the tombstone log can not be rewritten
+     */
+    public void compact() throws PersistenceException {
+        long start = System.currentTimeMillis();
+        int removed = 0;
+        int dropped = 0;
+        for (String key : tombstones.keySet()) {
+            synchronized (keyLocks.forKey(key)) {
+                Long deletedAt = tombstones.get(key);
+                if (deletedAt == null) {
+                    // written again in the meantime
+                    continue;
+                }
+
+                File file = escapedFile(key);
+                if (file.delete()) {
+                    mappedValues.remove(file);
+                    removed++;
+                }
+                if (deletedAt + tombstoneGracePeriod <= start) {
+                    tombstones.remove(key);
+                    dropped++;
+                }
+            }
+        }
+
+        if (dropped > 0) {
+            try {
+                tombstoneLog.rewrite(tombstones);
+            } catch (IOException e) {
+                throw new PersistenceException("Could not rewrite tombstone log.", e);
+            }
+        }
+        if (removed > 0 || dropped > 0) {
+            LOG.info("Compaction removed {} files and dropped {} tombstones in {} ms.",
+                    removed, dropped, System.currentTimeMillis() - start);
+        }
+    }
+
+    @Override
+    public void sync() throws PersistenceException {
+        try {
+            tombstoneLog.sync();
+        } catch (IOException e) {
+            throw new PersistenceException("Could not sync tombstone log.", e);
+        }
+
+        Set<File> directories = new HashSet<>();
+        for (File file : unsyncedFiles) {
+            unsyncedFiles.remove(file);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.force(true);
+                directories.add(file.getParentFile());
+            } catch (NoSuchFileException e) {
+                // deleted in the meantime
+            } catch (IOException e) {
+                unsyncedFiles.add(file);
+                throw new PersistenceException("Could not sync file.", e);
+            }
+        }
+
+        // the renames are only durable once the directories are synced
+        for (File directory : directories) {
+            try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (IOException e) {
+                // not supported on every platform
+                LOG.debug("Could not sync directory {}", directory, e);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Every file is replaced rather than modified when its key is written,
+     * so the snapshot links the current files. Deleted keys are left out, the
+     * snapshot does not need any tombstones.
+     */
+    @Override
+    public void snapshot(File directory) throws PersistenceException {
+        long start = System.currentTimeMillis();
+        sync();
+        SnapshotFiles.createDirectory(directory);
+
+        Map<String, File> files = new HashMap<>();
+        listFiles(dataDirectory, null, files);
+        int linked = 0;
+        for (Map.Entry<String, File> entry : files.entrySet()) {
+            if (tombstones.containsKey(entry.getKey())) {
+                continue;
+            }
+            try {
+                SnapshotFiles.link(entry.getValue(), new File(directory, entry.getKey()));
+                linked++;
+            } catch (NoSuchFileException e) {
+                // removed by the compaction in the meantime
+            } catch (IOException e) {
+                throw new PersistenceException("Could not add file of key " + entry.getKey() + " to snapshot.", e);
+            }
+        }
+        LOG.info("Took snapshot of {} keys in {} in {} ms.", linked, directory, System.currentTimeMillis() - start);
+    }
+
+    @Override
+    public void close() throws PersistenceException {
+        compactionExecutor.shutdownNow();
+        // writes open and close their own file, mappings are released by the garbage collector
+        mappedValues.clear();
+        try {
+            tombstoneLog.close();
+        } catch (IOException e) {
+            throw new PersistenceException("Could not close tombstone log.", e);
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (PersistenceException e) {
+            LOG.error("Could not compact tombstones.", e);
+        }
     }
 
     private File escapedFile(String key) {
@@ -111,10 +414,154 @@ public class DiskStorage implements PersistenceService {
         return new File(namespaceDir, parts[parts.length - 1]);
     }
 
+    // returns the value slice of a verified record or null if the file does not exist
+    private static ByteBuffer mapValue(File file) {
+        MappedByteBuffer record;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            record = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        ByteBuffer value = decodeRecord(record);
+        if (value == null) {
+            throw new UncheckedIOException(new IOException("Corrupt record in " + file));
+        }
+        return value;
+    }
+
+    // any mapping but the one just used, hot files are cheap to map again
+    private void evictMapping(File keep) {
+        for (File file : mappedValues.keySet()) {
+            if (!file.equals(keep) && mappedValues.remove(file) != null) {
+                return;
+            }
+        }
+    }
+
+    // record layout: marker, length of the value, checksum of the value, value
+    private static byte[] encodeRecord(byte[] value) {
+        CRC32 crc = new CRC32();
+        crc.update(value);
+        return ByteBuffer.allocate(RECORD_HEADER_SIZE + value.length)
+                .put(RECORD_MARKER)
+                .putInt(value.length)
+                .putInt((int) crc.getValue())
+                .put(value)
+                .array();
+    }
+
+    // returns the value as a slice of the record, null if the record is incomplete or does not match its checksum
+    private static ByteBuffer decodeRecord(ByteBuffer record) {
+        int size = record.remaining();
+        if (size == 0 || record.get(0) != RECORD_MARKER) {
+            // written before records had a header, only the end marker tells if it is complete
+            if (size == 0 || record.get(size - 1) != END_MARKER) {
+                return null;
+            }
+            ByteBuffer value = record.duplicate();
+            value.limit(size - 1);
+            return value.slice();
+        }
+
+        if (size < RECORD_HEADER_SIZE) {
+            return null;
+        }
+        int length = record.getInt(1);
+        int checksum = record.getInt(5);
+        if (length != size - RECORD_HEADER_SIZE) {
+            return null;
+        }
+
+        ByteBuffer value = record.duplicate();
+        value.position(RECORD_HEADER_SIZE);
+        value = value.slice();
+        CRC32 crc = new CRC32();
+        crc.update(value.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+        return value;
+    }
+
+    // verifies every file and hashes every existing key once, afterwards the index is maintained on writes
+    private void recover() {
+        long start = System.nanoTime();
+
+        // left behind by writes which did not finish
+        File[] leftovers = temporaryDirectory.listFiles();
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                leftover.delete();
+            }
+        }
+
+        Map<String, File> files = new HashMap<>();
+        listFiles(dataDirectory, null, files);
+
+        LongAdder bytes = new LongAdder();
+        LongAdder quarantined = new LongAdder();
+        files.entrySet().parallelStream().forEach(entry -> {
+            String key = entry.getKey();
+            File file = entry.getValue();
+            try {
+                byte[] record = Files.readAllBytes(file.toPath());
+                bytes.add(record.length);
+                if (decodeRecord(ByteBuffer.wrap(record)) != null) {
+                    if (!tombstones.containsKey(key)) {
+                        tokenIndex.add(key, HashRing.hash(key));
+                    }
+                    return;
+                }
+            } catch (IOException e) {
+                LOG.warn("Could not read file of key {}", key, e);
+            }
+            quarantine(key, file);
+            quarantined.increment();
+        });
+
+        long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        LOG.info("Recovered {} keys ({} bytes) in {} ms, {} KB/s, quarantined {} corrupt files.",
+                files.size() - quarantined.sum(), bytes.sum(), millis,
+                bytes.sum() * 1000 / 1024 / millis, quarantined.sum());
+    }
+
+    private void listFiles(File directory, String namespace, Map<String, File> files) {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+
+        for (File file : children) {
+            String key = namespace == null ? file.getName() : namespace + NAMESPACE_SEPARATOR + file.getName();
+            if (file.isDirectory()) {
+                listFiles(file, key, files);
+            } else {
+                files.put(key, file);
+            }
+        }
+    }
+
+    private void quarantine(String key, File file) {
+        File target = new File(quarantineDirectory, key);
+        target.getParentFile().mkdirs();
+        try {
+            Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            LOG.warn("Moved corrupt file of key {} to {}", key, target);
+        } catch (IOException e) {
+            LOG.error("Could not quarantine corrupt file of key {}", key, e);
+        }
+    }
+
     private void ensureDataDirectoryExists() {
         if (!dataDirectory.isDirectory()) {
             dataDirectory.mkdirs();
         }
+        if (!temporaryDirectory.isDirectory()) {
+            temporaryDirectory.mkdirs();
+        }
     }
 
 }
@@ -0,0 +1,445 @@
+package app_kvServer.persistence;
+
+import common.hash.Range;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes values once their time to live has passed.
+ *
+ * The expiry time of a value is stored in a header in front of it, so it is
+ * logged, replicated and cached like the value itself. A read never returns
+ * an expired value, it deletes the value instead. In addition, a timer wheel
+ * deletes values in the background as soon as they expire, without scanning
+ * the store.
+ *
+ * Timers only live in memory, so expiry times are appended to a small expiry
+ * log as well, from which the timers are set again after a restart. Engines
+ * which rewrite their data drop expired values with {@link #EXPIRED_VALUES},
+ * which catches values whose timer got lost, e.g. with the tail of the expiry
+ * log in a crash.
+ */
+public class ExpiringStorage implements PersistenceService {
+
+    private static final Logger LOG = LogManager.getLogger(ExpiringStorage.class);
+
+    /** Default resolution of the expiry timers in milliseconds. */
+    public static final long DEFAULT_TICK = 100;
+
+    /** Lets engines drop expired values when they rewrite their data. */
+    public static final CompactionFilter EXPIRED_VALUES =
+            valuePrefix -> isExpired(expiresAt(valuePrefix), System.currentTimeMillis());
+
+    // surrounds the expiry time, a value which starts with it always gets a header
+    private static final byte HEADER_MARKER = 0;
+
+    // the log is rewritten once it has this many records more than twice the pending expiry times
+    private static final int MIN_OBSOLETE_LOG_RECORDS = 10000;
+
+    private final PersistenceService storage;
+    private final TimerWheel<String> timers;
+    private final KeyLocks keyLocks;
+    private final ExpiryLog expiryLog;
+    // latest expiry time by key, updated before the log so a rewrite never loses one
+    private final ConcurrentMap<String, Long> expiryTimes;
+    private final ScheduledThreadPoolExecutor executor;
+
+    /**
+     * Default constructor.
+     * @param storage The persistence service to store values in
+     * @param expiryLogFile The file of the expiry log, created if it does not exist
+     * @throws PersistenceException if the expiry log can not be loaded
+     */
+    public ExpiringStorage(PersistenceService storage, File expiryLogFile) throws PersistenceException {
+        this(storage, expiryLogFile, DEFAULT_TICK);
+    }
+
+    /**
+     * Constructor.
+     * @param storage The persistence service to store values in
+     * @param expiryLogFile The file of the expiry log, created if it does not exist
+     * @param tickMillis Resolution of the expiry timers in milliseconds
+     * @throws PersistenceException if the expiry log can not be loaded
+     */
+    public ExpiringStorage(PersistenceService storage, File expiryLogFile, long tickMillis)
+            throws PersistenceException {
+        this.storage = storage;
+        this.timers = new TimerWheel<>(tickMillis, System.currentTimeMillis());
+        this.keyLocks = new KeyLocks(KeyLocks.DEFAULT_STRIPES);
+        try {
+            this.expiryLog = new ExpiryLog(expiryLogFile);
+            this.expiryTimes = new ConcurrentHashMap<>(expiryLog.load());
+        } catch (IOException e) {
+            throw new PersistenceException("Could not load expiry log.", e);
+        }
+
+        // values which expired while the server was down are deleted on the first tick
+        expiryTimes.forEach(timers::schedule);
+        LOG.info("Set {} timers from expiry log {}", expiryTimes.size(), expiryLogFile);
+
+        this.executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "key-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::expireDue, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Return the file in which the expiry log of a snapshot is placed.
+     * @param snapshotDirectory The snapshot directory
+     * @return Sibling file of the snapshot directory with an {@code _expiry} suffix
+     */
+    public static File getSnapshotFile(File snapshotDirectory) {
+        return new File(snapshotDirectory.getAbsoluteFile().getParentFile(), snapshotDirectory.getName() + "_expiry");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean putBytes(String key, byte[] value) throws PersistenceException {
+        return putBytes(key, value, 0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean putBytes(String key, byte[] value, long timeToLive) throws PersistenceException {
+        long expiresAt = timeToLive > 0 ? System.currentTimeMillis() + timeToLive : 0;
+        boolean inserted;
+        synchronized (keyLocks.forKey(key)) {
+            if (expiresAt > 0) {
+                // logged first, a crash can only leave an expiry time without its value behind
+                expiryTimes.put(key, expiresAt);
+                try {
+                    expiryLog.expire(key, expiresAt);
+                } catch (IOException e) {
+                    throw new PersistenceException("Could not log expiry time.", e);
+                }
+            } else {
+                expiryTimes.remove(key);
+            }
+            inserted = storage.putBytes(key, encode(value, expiresAt));
+        }
+        if (expiresAt > 0) {
+            timers.schedule(key, expiresAt);
+        }
+        return inserted;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Optional<byte[]> getBytes(String key) throws PersistenceException {
+        return getEntry(key).map(Cursor.Entry::getValue);
+    }
+
+    /**
+     * Return the value of a key together with its remaining time to live, from a single read.
+     * @param key the key
+     * @return the entry, empty if the key does not exist or its value has expired
+     * @throws PersistenceException if something goes wrong
+     */
+    @Override
+    public Optional<Cursor.Entry> getEntry(String key) throws PersistenceException {
+        Optional<byte[]> stored = storage.getBytes(key);
+        if (!stored.isPresent()) {
+            return Optional.empty();
+        }
+
+        Cursor.Entry entry = toEntry(key, stored.get(), System.currentTimeMillis());
+        if (entry == null) {
+            expire(key);
+        }
+        return Optional.ofNullable(entry);
+    }
+
+    /**
+     * Return the remaining time to live of a value.
+     * @param key the key
+     * @return time in milliseconds until the value expires, at least 1 for an expiring value,
+     * 0 if it does not expire or does not exist
+     * @throws PersistenceException if something goes wrong
+     */
+    @Override
+    public long getTimeToLive(String key) throws PersistenceException {
+        Optional<byte[]> stored = storage.getBytes(key);
+        long expiresAt = stored.isPresent() ? expiresAt(stored.get()) : 0;
+        if (expiresAt == 0) {
+            return 0;
+        }
+        // an expired value must not look like one which never expires
+        return Math.max(1, expiresAt - System.currentTimeMillis());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean delete(String key) throws PersistenceException {
+        synchronized (keyLocks.forKey(key)) {
+            expiryTimes.remove(key);
+            return storage.delete(key);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean contains(String key) throws PersistenceException {
+        return getBytes(key).isPresent();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys() throws PersistenceException {
+        return storage.getKeys();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys(String namespace) throws PersistenceException {
+        return storage.getKeys(namespace);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getAllKeys() throws PersistenceException {
+        return storage.getAllKeys();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys(Range range) throws PersistenceException {
+        return storage.getKeys(range);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys(String namespace, Range range) throws PersistenceException {
+        return storage.getKeys(namespace, range);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getDeletedKeys(Range range) throws PersistenceException {
+        return storage.getDeletedKeys(range);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int deleteRange(Range range) throws PersistenceException {
+        return storage.deleteRange(range);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getHotKeys(int limit) {
+        return storage.getHotKeys(limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Cursor iterate(Range range) throws PersistenceException {
+        return iterate(".", range, Cursor.DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Cursor iterate(String namespace, Range range, int batchSize) throws PersistenceException {
+        // headers are stripped and expired values skipped batch by batch, the timers delete them
+        return storage.iterate(namespace, range, batchSize).transform(this::stripHeaders);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void snapshot(File directory) throws PersistenceException {
+        // expiry headers are part of the values, so the snapshot keeps them, the log only carries the timers
+        Map<String, Long> snapshotExpiryTimes = new HashMap<>(expiryTimes);
+        storage.snapshot(directory);
+        // values written during the snapshot have their expiry time in the map by now
+        snapshotExpiryTimes.putAll(expiryTimes);
+        try {
+            ExpiryLog.copy(getSnapshotFile(directory), snapshotExpiryTimes);
+        } catch (IOException e) {
+            throw new PersistenceException("Could not add expiry log to snapshot.", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void sync() throws PersistenceException {
+        try {
+            expiryLog.sync();
+        } catch (IOException e) {
+            throw new PersistenceException("Could not sync expiry log.", e);
+        }
+        storage.sync();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws PersistenceException {
+        executor.shutdownNow();
+        try {
+            expiryLog.close();
+        } catch (IOException e) {
+            LOG.warn("Could not close expiry log.", e);
+        }
+        storage.close();
+    }
+
+    /**
+     * Return the number of timers which have not fired yet.
+     * @return Number of timers
+     */
+    public int getPendingTimers() {
+        return timers.size();
+    }
+
+    private void expireDue() {
+        for (String key : timers.advance(System.currentTimeMillis())) {
+            try {
+                expire(key);
+            } catch (PersistenceException e) {
+                LOG.error("Could not expire key=" + key, e);
+            }
+        }
+
+        // the records of replaced and expired values stay in the log until it is rewritten
+        if (expiryLog.size() > 2 * expiryTimes.size() + MIN_OBSOLETE_LOG_RECORDS) {
+            try {
+                expiryLog.rewrite(expiryTimes);
+                LOG.debug("Rewrote expiry log with {} expiry times.", expiryTimes.size());
+            } catch (IOException e) {
+                LOG.error("Could not rewrite expiry log.", e);
+            }
+        }
+    }
+
+    // the value may have been replaced since the timer was set, so the expiry time is checked again
+    private boolean expire(String key) throws PersistenceException {
+        synchronized (keyLocks.forKey(key)) {
+            Optional<byte[]> stored = storage.getBytes(key);
+            long expiresAt = stored.isPresent() ? expiresAt(stored.get()) : 0;
+            if (!isExpired(expiresAt, System.currentTimeMillis())) {
+                if (expiresAt == 0) {
+                    // gone or replaced by a value which does not expire
+                    expiryTimes.remove(key);
+                }
+                return false;
+            }
+
+            storage.delete(key);
+            expiryTimes.remove(key);
+            LOG.debug("Expired key={}", key);
+            return true;
+        }
+    }
+
+    private List<Cursor.Entry> stripHeaders(List<Cursor.Entry> batch) {
+        long now = System.currentTimeMillis();
+        List<Cursor.Entry> visible = new ArrayList<>(batch.size());
+        for (Cursor.Entry stored : batch) {
+            Cursor.Entry entry = toEntry(stored.getKey(), stored.getValue(), now);
+            if (entry != null) {
+                visible.add(entry);
+            }
+        }
+        return visible;
+    }
+
+    // the value without its header and its remaining time to live, null if it has expired
+    private static Cursor.Entry toEntry(String key, byte[] stored, long now) {
+        long expiresAt = expiresAt(stored);
+        if (isExpired(expiresAt, now)) {
+            return null;
+        }
+        int headerLength = headerLength(stored);
+        byte[] value = headerLength == 0 ? stored : Arrays.copyOfRange(stored, headerLength, stored.length);
+        return new Cursor.Entry(key, value, expiresAt == 0 ? 0 : expiresAt - now);
+    }
+
+    private static boolean isExpired(long expiresAt, long now) {
+        return expiresAt > 0 && expiresAt <= now;
+    }
+
+    // header layout: marker, expiry time in milliseconds since the epoch or 0, marker
+    private static byte[] encode(byte[] value, long expiresAt) {
+        if (expiresAt == 0 && (value.length == 0 || value[0] != HEADER_MARKER)) {
+            return value;
+        }
+        byte[] expiry = Long.toString(expiresAt).getBytes(StandardCharsets.US_ASCII);
+        byte[] stored = new byte[expiry.length + 2 + value.length];
+        stored[0] = HEADER_MARKER;
+        System.arraycopy(expiry, 0, stored, 1, expiry.length);
+        stored[expiry.length + 1] = HEADER_MARKER;
+        System.arraycopy(value, 0, stored, expiry.length + 2, value.length);
+        return stored;
+    }
+
+    private static long expiresAt(byte[] stored) {
+        int length = headerLength(stored);
+        return length == 0 ? 0 : Long.parseLong(new String(stored, 1, length - 2, StandardCharsets.US_ASCII));
+    }
+
+    // 0 for values without a header
+    private static int headerLength(byte[] stored) {
+        if (stored.length == 0 || stored[0] != HEADER_MARKER) {
+            return 0;
+        }
+        int end = 1;
+        while (end < stored.length && stored[end] >= '0' && stored[end] <= '9') {
+            end++;
+        }
+        if (end < 2 || end >= stored.length || stored[end] != HEADER_MARKER) {
+            return 0;
+        }
+        return end + 1;
+    }
+
+}
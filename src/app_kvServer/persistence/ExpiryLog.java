@@ -0,0 +1,155 @@
+package app_kvServer.persistence;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only log of expiry times.
+ *
+ * Each record carries a key and the time at which its value expires. The
+ * records of values which have been replaced or deleted are not removed,
+ * the owner checks the value itself once its time has come. The log is
+ * rewritten with the pending expiry times once it has grown well beyond them.
+ */
+final class ExpiryLog implements Closeable {
+
+    private static final Logger LOG = LogManager.getLogger(ExpiryLog.class);
+
+    private static final byte[] NO_VALUE = new byte[0];
+
+    private final File file;
+    private FileChannel channel;
+    private int records;
+
+    /**
+     * Constructor.
+     * @param file The log file, created if it does not exist
+     * @throws IOException if the log can not be opened
+     */
+    ExpiryLog(File file) throws IOException {
+        this.file = file;
+        this.channel = open();
+    }
+
+    /**
+     * Read the expiry times from the log and cut off an invalid tail.
+     * @return Latest expiry time in milliseconds since the epoch by key
+     * @throws IOException if the log can not be read
+     */
+    synchronized Map<String, Long> load() throws IOException {
+        Map<String, Long> expiryTimes = new HashMap<>();
+        records = 0;
+        try (LogRecord.Reader reader = new LogRecord.Reader(file)) {
+            LogRecord record;
+            while ((record = reader.next()) != null) {
+                expiryTimes.put(record.key, record.timestamp);
+                records++;
+            }
+
+            if (reader.isCorrupt()) {
+                LOG.warn("Expiry log {} has an invalid tail after offset {}, truncating.",
+                        file, reader.getPosition());
+                channel.truncate(reader.getPosition());
+            }
+        }
+        return expiryTimes;
+    }
+
+    /**
+     * Log the expiry time of a value.
+     * @param key The key
+     * @param expiresAt Time in milliseconds since the epoch at which the value expires
+     * @throws IOException if the record can not be written
+     */
+    synchronized void expire(String key, long expiresAt) throws IOException {
+        write(channel, LogRecord.put(key, NO_VALUE, expiresAt).encode());
+        records++;
+    }
+
+    /**
+     * Return the number of records in the log.
+     * @return Number of records
+     */
+    synchronized int size() {
+        return records;
+    }
+
+    /**
+     * Replace the log by one containing only the given expiry times.
+     *
+     * Callers must update the expiry times before logging a change, so a
+     * change which is logged while the log is rewritten is not lost.
+     *
+     * @param expiryTimes Expiry time in milliseconds since the epoch by key
+     * @throws IOException if the log can not be rewritten
+     */
+    synchronized void rewrite(Map<String, Long> expiryTimes) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        int written = writeTo(temporary, expiryTimes);
+
+        channel.close();
+        Files.move(temporary.toPath(), file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        channel = open();
+        records = written;
+    }
+
+    /**
+     * Write a log containing only the given expiry times to another file, e.g. for a snapshot.
+     * @param target The file, replaced if it exists
+     * @param expiryTimes Expiry time in milliseconds since the epoch by key
+     * @throws IOException if the log can not be written
+     */
+    static void copy(File target, Map<String, Long> expiryTimes) throws IOException {
+        writeTo(target, expiryTimes);
+    }
+
+    /**
+     * Force the log to stable storage.
+     * @throws IOException if the log can not be synced
+     */
+    synchronized void sync() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private FileChannel open() throws IOException {
+        return FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static int writeTo(File target, Map<String, Long> expiryTimes) throws IOException {
+        int written = 0;
+        try (FileChannel output = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<String, Long> expiryTime : expiryTimes.entrySet()) {
+                write(output, LogRecord.put(expiryTime.getKey(), NO_VALUE, expiryTime.getValue()).encode());
+                written++;
+            }
+            output.force(false);
+        }
+        return written;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+}
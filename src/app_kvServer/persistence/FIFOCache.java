@@ -3,7 +3,11 @@ package app_kvServer.persistence;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
@@ -16,6 +20,9 @@ import java.util.Optional;
 public class FIFOCache<K, V> implements Cache<K, V> {
     private static final Logger LOG = LogManager.getLogger(FIFOCache.class);
     private final Map<K, V> cacheMap;
+    private final long maxWeight;
+    private final Weigher<K, V> weigher;
+    private long weight;
 
     /**
      * Default constructor
@@ -23,13 +30,20 @@ public class FIFOCache<K, V> implements Cache<K, V> {
      * @param cacheSize Number of elements to hold
      */
     public FIFOCache(int cacheSize) {
-        this.cacheMap = new LinkedHashMap<K, V>(cacheSize, 0.75f, false) {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
-                LOG.debug("Ejected element: {}", eldest);
-                return size() > cacheSize;
-            }
-        };
+        this(cacheSize, (key, value) -> 1);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxWeight Maximum total weight of the elements to hold
+     * @param weigher Calculates the weight of an element
+     */
+    public FIFOCache(long maxWeight, Weigher<K, V> weigher) {
+        this.cacheMap = new LinkedHashMap<K, V>(16, 0.75f, false);
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.weight = 0;
     }
 
     /**
@@ -39,7 +53,7 @@ public class FIFOCache<K, V> implements Cache<K, V> {
      * @return value of the key
      */
     @Override
-    public Optional<V> get(K key) {
+    public synchronized Optional<V> get(K key) {
         return Optional.ofNullable(cacheMap.get(key));
     }
 
@@ -50,8 +64,24 @@ public class FIFOCache<K, V> implements Cache<K, V> {
      * @param value
      */
     @Override
-    public void put(K key, V value) {
-        cacheMap.put(key, value);
+    public synchronized void put(K key, V value) {
+        int elementWeight = weigher.weigh(key, value);
+        if (elementWeight > maxWeight) {
+            // would eject everything else and still not fit
+            delete(key);
+            return;
+        }
+
+        V previous = cacheMap.put(key, value);
+        weight += elementWeight - (previous != null ? weigher.weigh(key, previous) : 0);
+
+        Iterator<Map.Entry<K, V>> eldest = cacheMap.entrySet().iterator();
+        while (weight > maxWeight) {
+            Map.Entry<K, V> entry = eldest.next();
+            LOG.debug("Ejected element: {}", entry);
+            weight -= weigher.weigh(entry.getKey(), entry.getValue());
+            eldest.remove();
+        }
     }
 
     /**
@@ -61,7 +91,7 @@ public class FIFOCache<K, V> implements Cache<K, V> {
      * @return boolean if the key is contained
      */
     @Override
-    public boolean contains(K key) {
+    public synchronized boolean contains(K key) {
         return cacheMap.containsKey(key);
     }
 
@@ -71,11 +101,55 @@ public class FIFOCache<K, V> implements Cache<K, V> {
      * @param key
      */
     @Override
-    public boolean delete(K key) {
-        if (cacheMap.get(key) == null) {
+    public synchronized boolean delete(K key) {
+        V previous = cacheMap.remove(key);
+        if (previous == null) {
             return false;
         }
-        cacheMap.remove(key);
+        weight -= weigher.weigh(key, previous);
         return true;
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int size() {
+        return cacheMap.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized List<K> keys() {
+        return new ArrayList<>(cacheMap.keySet());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized List<K> getHotKeys(int limit) {
+        // the most recently inserted keys stay longest
+        List<K> keys = new ArrayList<>(cacheMap.keySet());
+        Collections.reverse(keys);
+        return new ArrayList<>(keys.subList(0, Math.min(limit, keys.size())));
+    }
 }
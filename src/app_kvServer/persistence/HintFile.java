@@ -0,0 +1,151 @@
+package app_kvServer.persistence;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact description of the records of a segment.
+ *
+ * A hint file lists key, position and metadata of every record but none of
+ * the values, so loading it at startup takes time proportional to the
+ * number of keys instead of the size of the data. It also records how long
+ * the segment was when the hint was written and ends with a checksum; a
+ * hint which does not match its segment is ignored.
+ */
+final class HintFile {
+
+    private static final int MAGIC = 0x47344849;
+
+    private HintFile() {
+    }
+
+    /**
+     * Write a hint file atomically.
+     * @param file The hint file
+     * @param segmentSize Size of the segment the entries have been read from
+     * @param entries The records of the segment in their order
+     * @throws IOException if the file can not be written
+     */
+    static void write(File file, long segmentSize, List<Entry> entries) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (FileOutputStream fileOutput = new FileOutputStream(temporary);
+             DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                     new BufferedOutputStream(fileOutput, 64 * 1024), crc))) {
+            out.writeInt(MAGIC);
+            out.writeLong(segmentSize);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                byte[] key = entry.key.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeLong(entry.position);
+                out.writeInt(entry.size);
+                out.writeInt(entry.valueOffset);
+                out.writeInt(entry.valueLength);
+                out.writeInt(entry.token);
+                out.writeLong(entry.timestamp);
+                out.writeBoolean(entry.tombstone);
+            }
+            out.flush();
+
+            // the checksum itself is not covered
+            fileOutput.write(ByteBuffer.allocate(4).putInt((int) crc.getValue()).array());
+            fileOutput.getChannel().force(false);
+        }
+        Files.move(temporary.toPath(), file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Read a hint file.
+     * @param file The hint file
+     * @param segmentSize Current size of the segment
+     * @return The records of the segment or null if there is no usable hint
+     * @throws IOException if the file exists but can not be read
+     */
+    static List<Entry> read(File file, long segmentSize) throws IOException {
+        if (!file.isFile() || file.length() < 20) {
+            return null;
+        }
+
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        int contentLength = buffer.limit() - 4;
+        CRC32 crc = new CRC32();
+        ByteBuffer content = buffer.duplicate();
+        content.limit(contentLength);
+        crc.update(content);
+        if ((int) crc.getValue() != buffer.getInt(contentLength)) {
+            return null;
+        }
+
+        if (buffer.getInt() != MAGIC || buffer.getLong() != segmentSize) {
+            return null;
+        }
+
+        int count = buffer.getInt();
+        List<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] key = new byte[buffer.getInt()];
+            buffer.get(key);
+            entries.add(new Entry(new String(key, StandardCharsets.UTF_8), buffer.getLong(), buffer.getInt(),
+                    buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getLong(), buffer.get() != 0));
+        }
+        return entries;
+    }
+
+    /**
+     * Everything about a record except for its value.
+     */
+    static final class Entry {
+
+        final String key;
+        final long position;
+        final int size;
+        final int valueOffset;
+        final int valueLength;
+        final int token;
+        final long timestamp;
+        final boolean tombstone;
+
+        Entry(LogRecord record) {
+            this(record, record.position);
+        }
+
+        Entry(LogRecord record, long position) {
+            this(record.key, position, record.size(), record.valueOffset(), record.value.length,
+                    record.token, record.timestamp, record.isTombstone());
+        }
+
+        Entry(String key, long position, int size, int valueOffset, int valueLength,
+              int token, long timestamp, boolean tombstone) {
+            this.key = key;
+            this.position = position;
+            this.size = size;
+            this.valueOffset = valueOffset;
+            this.valueLength = valueLength;
+            this.token = token;
+            this.timestamp = timestamp;
+            this.tombstone = tombstone;
+        }
+    }
+
+}
@@ -0,0 +1,39 @@
+package app_kvServer.persistence;
+
+/**
+ * Fixed set of monitors keys are mapped to.
+ *
+ * Operations on the same key always use the same monitor, operations on
+ * different keys only contend if their keys happen to share a stripe.
+ */
+final class KeyLocks {
+
+    /** Default number of stripes. */
+    static final int DEFAULT_STRIPES = 64;
+
+    private final Object[] stripes;
+
+    /**
+     * Constructor.
+     * @param stripes Number of monitors
+     */
+    KeyLocks(int stripes) {
+        this.stripes = new Object[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Object();
+        }
+    }
+
+    /**
+     * Return the monitor for a key.
+     * @param key The key
+     * @return Monitor to synchronize on
+     */
+    Object forKey(Object key) {
+        int hash = key.hashCode();
+        // spread the bits because string hashes of similar keys differ mostly in the low bits
+        hash ^= (hash >>> 16);
+        return stripes[(hash & Integer.MAX_VALUE) % stripes.length];
+    }
+
+}
@@ -53,26 +53,41 @@ public class LFUCache<K,V>  implements Cache<K, V> {
     private class ValueNode {
 
         public V data;
+        public int weight;
         public FrequencyNode parent;
 
-        ValueNode(V data, FrequencyNode parent) {
+        ValueNode(V data, int weight, FrequencyNode parent) {
             this.data = data;
+            this.weight = weight;
             this.parent = parent;
         }
     }
 
-    private final int cacheSize;
+    private final long maxWeight;
+    private final Weigher<K, V> weigher;
     private final Map<K, ValueNode> byKey;
     private final FrequencyNode frequencyHead;
+    private long weight;
 
     /**
      * Default constructor.
      * @param cacheSize Number of elements to hold
      */
     public LFUCache(int cacheSize) {
-        this.cacheSize = cacheSize;
+        this(cacheSize, (key, value) -> 1);
+    }
+
+    /**
+     * Constructor.
+     * @param maxWeight Maximum total weight of the elements to hold
+     * @param weigher Calculates the weight of an element
+     */
+    public LFUCache(long maxWeight, Weigher<K, V> weigher) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
         this.byKey = new HashMap<>();
         this.frequencyHead = new FrequencyNode(0);
+        this.weight = 0;
     }
 
     /**
@@ -90,16 +105,25 @@ public class LFUCache<K,V>  implements Cache<K, V> {
      */
     @Override
     public synchronized void put(K key, V value) {
+        int elementWeight = weigher.weigh(key, value);
+        if (elementWeight > maxWeight) {
+            // would eject everything else and still not fit
+            delete(key);
+            return;
+        }
+
         ValueNode valueNode = byKey.get(key);
 
         if (valueNode != null) {
             // update
+            weight += elementWeight - valueNode.weight;
             valueNode.data = value;
+            valueNode.weight = elementWeight;
             updateUsage(valueNode, key);
         } else {
             // insert
-            if (byKey.size() >= cacheSize) {
-                ejectOne();
+            while (weight + elementWeight > maxWeight && ejectOne(key)) {
+                // keep ejecting
             }
 
             FrequencyNode freq = frequencyHead.next;
@@ -108,9 +132,14 @@ public class LFUCache<K,V>  implements Cache<K, V> {
                 freq = new FrequencyNode(1, frequencyHead);
             }
 
-            valueNode = new ValueNode(value, freq);
+            valueNode = new ValueNode(value, elementWeight, freq);
             freq.items.add(key);
             byKey.put(key, valueNode);
+            weight += elementWeight;
+        }
+
+        while (weight > maxWeight && ejectOne(key)) {
+            // keep ejecting
         }
     }
 
@@ -133,6 +162,7 @@ public class LFUCache<K,V>  implements Cache<K, V> {
         }
 
         byKey.remove(key);
+        weight -= valueNode.weight;
         return true;
     }
 
@@ -144,6 +174,56 @@ public class LFUCache<K,V>  implements Cache<K, V> {
         return byKey.containsKey(key);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int size() {
+        return byKey.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized List<K> keys() {
+        return new ArrayList<>(byKey.keySet());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized List<K> getHotKeys(int limit) {
+        // frequency classes are ordered ascending, so walk them backwards
+        List<K> keys = new ArrayList<>(Math.min(limit, byKey.size()));
+        for (FrequencyNode freq = frequencyHead.previous; freq != frequencyHead; freq = freq.previous) {
+            for (K key : freq.items) {
+                if (keys.size() >= limit) {
+                    return keys;
+                }
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
     private void updateUsage(ValueNode valueNode, K key) {
         FrequencyNode freq = valueNode.parent;
         assert freq != frequencyHead;
@@ -161,15 +241,18 @@ public class LFUCache<K,V>  implements Cache<K, V> {
         }
     }
 
-    private void ejectOne() {
-        if (byKey.isEmpty()) {
-            return;
+    // ejects one of the least frequently used elements other than the one being written
+    private boolean ejectOne(K keep) {
+        for (FrequencyNode freq = frequencyHead.next; freq != frequencyHead; freq = freq.next) {
+            for (K target : freq.items) {
+                if (!target.equals(keep)) {
+                    delete(target);
+                    LOG.debug("Ejected element: {}", target);
+                    return true;
+                }
+            }
         }
-
-        K target = frequencyHead.next.items.iterator().next();
-        delete(target);
-
-        LOG.debug("Ejected element: {}", target);
+        return false;
     }
 
 }
@@ -16,19 +16,28 @@ public class LRUCache<K,V> implements Cache<K,V>  {
     private static final Logger LOG = LogManager.getLogger(LRUCache.class);
 
     private final Map<K, V> cacheMap;
+    private final long maxWeight;
+    private final Weigher<K, V> weigher;
+    private long weight;
 
     /**
      * Default constructor
      * @param cacheSize Number of elements to hold
      */
     public LRUCache(int cacheSize) {
-        this.cacheMap = new LinkedHashMap<K, V>(cacheSize, 0.75f, true) {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
-                LOG.debug("Ejected element: {}", eldest);
-                return size() > cacheSize;
-            }
-        };
+        this(cacheSize, (key, value) -> 1);
+    }
+
+    /**
+     * Constructor
+     * @param maxWeight Maximum total weight of the elements to hold
+     * @param weigher Calculates the weight of an element
+     */
+    public LRUCache(long maxWeight, Weigher<K, V> weigher) {
+        this.cacheMap = new LinkedHashMap<K, V>(16, 0.75f, true);
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.weight = 0;
     }
 
     /**
@@ -37,7 +46,7 @@ public class LRUCache<K,V> implements Cache<K,V>  {
      * @return key with its value
      */
     @Override
-    public Optional<V> get(K key) {
+    public synchronized Optional<V> get(K key) {
         return Optional.ofNullable(cacheMap.get(key));
     }
 
@@ -47,8 +56,25 @@ public class LRUCache<K,V> implements Cache<K,V>  {
      * @param value
      */
     @Override
-    public  void put(K key, V value) {
-        cacheMap.put(key, value);
+    public synchronized void put(K key, V value) {
+        int elementWeight = weigher.weigh(key, value);
+        if (elementWeight > maxWeight) {
+            // would eject everything else and still not fit
+            delete(key);
+            return;
+        }
+
+        V previous = cacheMap.put(key, value);
+        weight += elementWeight - (previous != null ? weigher.weigh(key, previous) : 0);
+
+        // iteration order is least recently used first
+        Iterator<Map.Entry<K, V>> eldest = cacheMap.entrySet().iterator();
+        while (weight > maxWeight) {
+            Map.Entry<K, V> entry = eldest.next();
+            LOG.debug("Ejected element: {}", entry);
+            weight -= weigher.weigh(entry.getKey(), entry.getValue());
+            eldest.remove();
+        }
     }
 
     /**
@@ -57,7 +83,7 @@ public class LRUCache<K,V> implements Cache<K,V>  {
      * @return boolean if the key is contained
      */
     @Override
-    public boolean contains(K key) {
+    public synchronized boolean contains(K key) {
         return cacheMap.containsKey(key);
     }
 
@@ -66,12 +92,56 @@ public class LRUCache<K,V> implements Cache<K,V>  {
      * @param key
      */
     @Override
-    public boolean delete(K key) {
-        if (cacheMap.get(key) == null) {
+    public synchronized boolean delete(K key) {
+        V previous = cacheMap.remove(key);
+        if (previous == null) {
             return false;
         }
-        cacheMap.remove(key);
+        weight -= weigher.weigh(key, previous);
         return true;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int size() {
+        return cacheMap.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized List<K> keys() {
+        return new ArrayList<>(cacheMap.keySet());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized List<K> getHotKeys(int limit) {
+        // the most recently used keys come last
+        List<K> keys = new ArrayList<>(cacheMap.keySet());
+        Collections.reverse(keys);
+        return new ArrayList<>(keys.subList(0, Math.min(limit, keys.size())));
+    }
+
 }
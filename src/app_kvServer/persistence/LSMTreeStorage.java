@@ -0,0 +1,926 @@
+package app_kvServer.persistence;
+
+import common.hash.HashRing;
+import common.hash.Range;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Storage based on a log-structured merge-tree.
+ *
+ * Writes go into a sorted in-memory table which is flushed to an immutable
+ * sorted table on disk once it exceeds a size threshold. Tables of similar
+ * size are merged by a background compaction (size-tiered), which drops
+ * obsolete values, and deletes whose grace period is over, once it includes
+ * the oldest table. Until then data streams can pass the deletes on. Reads
+ * check the memory tables first and then the disk tables from newest to
+ * oldest, where a per-table bloom filter skips tables that can not contain
+ * the key.
+ *
+ * See:
+ * O'Neil, P., Cheng, E., Gawlick, D., & O'Neil, E. (1996). The log-structured merge-tree (LSM-tree).
+ */
+public class LSMTreeStorage implements PersistenceService {
+
+    private static final Logger LOG = LogManager.getLogger(LSMTreeStorage.class);
+
+    /** Default size of the in-memory table before it gets flushed to disk. */
+    public static final long DEFAULT_MEMTABLE_SIZE = 4L * 1024 * 1024;
+
+    private static final Pattern TABLE_NAME = Pattern.compile("table-(\\d+)-(\\d+)\\.sst");
+    private static final int MAX_IMMUTABLE_MEMTABLES = 2;
+    private static final int COMPACTION_THRESHOLD = 4;
+    private static final int COMPACTION_SIZE_RATIO = 4;
+    private static final int COMPACTION_INTERVAL_SECONDS = 10;
+
+    private final File dataDirectory;
+    private final long memtableSize;
+    private final ReadWriteLock memtableLock;
+    private final ScheduledThreadPoolExecutor backgroundExecutor;
+    private final AtomicLong clock;
+    private final TokenIndex tokenIndex;
+    private final ValueCodec codec;
+    private final CompactionFilter compactionFilter;
+    // time of deletion by deleted key, in the microseconds of the records
+    private final ConcurrentMap<String, Long> tombstones;
+    private final long tombstoneGracePeriod;
+
+    private volatile Memtable activeMemtable;
+    // newest first
+    private volatile List<Memtable> immutableMemtables;
+    private volatile List<SSTable> tables;
+    // guarded by this
+    private long nextSequence;
+
+    /**
+     * Default constructor.
+     * @param dataDirectory The directory where tables are stored
+     * @throws PersistenceException if existing tables can not be opened
+     */
+    public LSMTreeStorage(File dataDirectory) throws PersistenceException {
+        this(dataDirectory, DEFAULT_MEMTABLE_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * @param dataDirectory The directory where tables are stored
+     * @param memtableSize Size in bytes after which the in-memory table is flushed
+     * @throws PersistenceException if existing tables can not be opened
+     */
+    public LSMTreeStorage(File dataDirectory, long memtableSize) throws PersistenceException {
+        this(dataDirectory, memtableSize, new ValueCodec());
+    }
+
+    /**
+     * Constructor.
+     * @param dataDirectory The directory where tables are stored
+     * @param memtableSize Size in bytes after which the in-memory table is flushed
+     * @param codec Encodes values for persistence
+     * @throws PersistenceException if existing tables can not be opened
+     */
+    public LSMTreeStorage(File dataDirectory, long memtableSize, ValueCodec codec) throws PersistenceException {
+        this(dataDirectory, memtableSize, codec, CompactionFilter.KEEP_ALL);
+    }
+
+    /**
+     * Constructor.
+     * @param dataDirectory The directory where tables are stored
+     * @param memtableSize Size in bytes after which the in-memory table is flushed
+     * @param codec Encodes values for persistence
+     * @param compactionFilter Decides which values a compaction may drop
+     * @throws PersistenceException if existing tables can not be opened
+     */
+    public LSMTreeStorage(File dataDirectory, long memtableSize, ValueCodec codec,
+                          CompactionFilter compactionFilter) throws PersistenceException {
+        this(dataDirectory, memtableSize, codec, compactionFilter, DiskStorage.DEFAULT_TOMBSTONE_GRACE_PERIOD);
+    }
+
+    /**
+     * Constructor.
+     * @param dataDirectory The directory where tables are stored
+     * @param memtableSize Size in bytes after which the in-memory table is flushed
+     * @param codec Encodes values for persistence
+     * @param compactionFilter Decides which values a compaction may drop
+     * @param tombstoneGracePeriod Time in milliseconds for which deletes are kept
+     * @throws PersistenceException if existing tables can not be opened
+     */
+    public LSMTreeStorage(File dataDirectory, long memtableSize, ValueCodec codec,
+                          CompactionFilter compactionFilter, long tombstoneGracePeriod) throws PersistenceException {
+        this.dataDirectory = dataDirectory;
+        this.codec = codec;
+        this.compactionFilter = compactionFilter;
+        this.memtableSize = memtableSize;
+        this.memtableLock = new ReentrantReadWriteLock();
+        this.clock = new AtomicLong(0);
+        this.tokenIndex = new TokenIndex();
+        this.tombstones = new ConcurrentHashMap<>();
+        this.tombstoneGracePeriod = tombstoneGracePeriod;
+        this.activeMemtable = new Memtable();
+        this.immutableMemtables = Collections.emptyList();
+        this.nextSequence = 0;
+
+        if (!dataDirectory.isDirectory()) {
+            dataDirectory.mkdirs();
+        }
+
+        try {
+            this.tables = openTables();
+            long now = System.currentTimeMillis();
+            try (MergingIterator records = mergedRecords(true)) {
+                records.forEachRemaining(record -> {
+                    if (!record.isTombstone()) {
+                        tokenIndex.add(record.key, record.token);
+                    } else if (!isExpired(record.timestamp, now)) {
+                        tombstones.put(record.key, record.timestamp);
+                    }
+                });
+            }
+        } catch (IOException | UncheckedIOException e) {
+            throw new PersistenceException("Could not open tables.", e);
+        }
+
+        this.backgroundExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "lsm-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        backgroundExecutor.scheduleWithFixedDelay(this::compactIfNecessary,
+                COMPACTION_INTERVAL_SECONDS, COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean putBytes(String key, byte[] value) throws PersistenceException {
+        boolean insert = !contains(key);
+        write(LogRecord.put(key, codec.encode(value), nextTimestamp()));
+        return insert;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Optional<byte[]> getBytes(String key) throws PersistenceException {
+        LogRecord record = lookup(key);
+        if (record == null || record.isTombstone()) {
+            return Optional.empty();
+        }
+        return Optional.of(codec.decodeBytes(record.value));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean delete(String key) throws PersistenceException {
+        if (!contains(key)) {
+            return false;
+        }
+
+        write(LogRecord.tombstone(key, nextTimestamp()));
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean contains(String key) throws PersistenceException {
+        LogRecord record = lookup(key);
+        return record != null && !record.isTombstone();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys() throws PersistenceException {
+        return getKeys(Namespaces.DEFAULT);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys(String namespace) throws PersistenceException {
+        List<String> keys = new ArrayList<>();
+        try (MergingIterator records = mergedRecords(false)) {
+            while (records.hasNext()) {
+                LogRecord record = records.next();
+                if (Namespaces.contains(namespace, record.key)) {
+                    keys.add(record.key);
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            throw new PersistenceException("Could not list keys.", e);
+        }
+        return keys;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getAllKeys() {
+        return tokenIndex.getKeys();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys(Range range) {
+        return getKeys(Namespaces.DEFAULT, range);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys(String namespace, Range range) {
+        return tokenIndex.getKeys(range).stream()
+                .filter(key -> Namespaces.contains(namespace, key))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getDeletedKeys(Range range) {
+        long now = System.currentTimeMillis();
+        return tombstones.entrySet().stream()
+                .filter(tombstone -> !isExpired(tombstone.getValue(), now))
+                .map(Map.Entry::getKey)
+                .filter(key -> Namespaces.contains(Namespaces.DEFAULT, key) && range.contains(HashRing.hash(key)))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Cursor iterate(Range range) {
+        return iterate(Namespaces.DEFAULT, range, Cursor.DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Cursor iterate(String namespace, Range range, int batchSize) {
+        return new Cursor(tokenIndex.iterate(range), namespace, this::getBytes, batchSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void sync() throws PersistenceException {
+        // tables are synced when they are written
+        flush();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws PersistenceException {
+        backgroundExecutor.shutdownNow();
+        try {
+            backgroundExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // flush everything so nothing is lost on an orderly shutdown
+        memtableLock.writeLock().lock();
+        try {
+            freezeActiveMemtable();
+        } finally {
+            memtableLock.writeLock().unlock();
+        }
+
+        try {
+            while (flushOldestMemtable()) {
+                // continue until all memtables are on disk
+            }
+        } catch (IOException e) {
+            throw new PersistenceException("Could not flush memtable.", e);
+        } finally {
+            tables.forEach(SSTable::close);
+        }
+    }
+
+    /**
+     * Flush the in-memory table to disk.
+     * @throws PersistenceException if writing the table fails
+     */
+    public void flush() throws PersistenceException {
+        memtableLock.writeLock().lock();
+        try {
+            freezeActiveMemtable();
+        } finally {
+            memtableLock.writeLock().unlock();
+        }
+
+        try {
+            backgroundExecutor.submit(() -> {
+                while (flushOldestMemtable()) {
+                    // continue until all memtables are on disk
+                }
+                return null;
+            }).get();
+        } catch (Exception e) {
+            throw new PersistenceException("Could not flush memtable.", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * All memtables are flushed first, so the snapshot consists of tables
+     * only. Tables are never modified once written and get linked.
+     */
+    @Override
+    public void snapshot(File directory) throws PersistenceException {
+        long start = System.currentTimeMillis();
+        SnapshotFiles.createDirectory(directory);
+
+        memtableLock.writeLock().lock();
+        try {
+            freezeActiveMemtable();
+        } finally {
+            memtableLock.writeLock().unlock();
+        }
+
+        int linked;
+        try {
+            // on the background thread, so no compaction removes a table before it is linked
+            linked = backgroundExecutor.submit(() -> {
+                while (flushOldestMemtable()) {
+                    // continue until all memtables are on disk
+                }
+                List<SSTable> current = tables;
+                for (SSTable table : current) {
+                    SnapshotFiles.link(table.file, new File(directory, table.file.getName()));
+                }
+                return current.size();
+            }).get();
+        } catch (Exception e) {
+            throw new PersistenceException("Could not take snapshot.", e);
+        }
+        LOG.info("Took snapshot of {} tables in {} in {} ms.", linked, directory, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Merge all tables into a single one.
+     * @throws PersistenceException if compaction fails
+     */
+    public void compact() throws PersistenceException {
+        try {
+            backgroundExecutor.submit(() -> {
+                List<SSTable> current = tables;
+                if (current.size() > 1) {
+                    compact(current);
+                }
+                return null;
+            }).get();
+        } catch (Exception e) {
+            throw new PersistenceException("Could not compact tables.", e);
+        }
+    }
+
+    private void write(LogRecord record) throws PersistenceException {
+        boolean flushNeeded;
+        memtableLock.readLock().lock();
+        try {
+            activeMemtable.put(record);
+            if (record.isTombstone()) {
+                tokenIndex.remove(record.key, record.token);
+                tombstones.put(record.key, record.timestamp);
+            } else {
+                tokenIndex.add(record.key, record.token);
+                tombstones.remove(record.key);
+            }
+            flushNeeded = activeMemtable.size.get() >= memtableSize;
+        } finally {
+            memtableLock.readLock().unlock();
+        }
+
+        if (flushNeeded) {
+            scheduleFlush();
+        }
+    }
+
+    private void scheduleFlush() throws PersistenceException {
+        memtableLock.writeLock().lock();
+        try {
+            if (activeMemtable.size.get() < memtableSize) {
+                // somebody else was faster
+                return;
+            }
+
+            // back pressure if flushing can not keep up with the writes
+            synchronized (this) {
+                while (immutableMemtables.size() >= MAX_IMMUTABLE_MEMTABLES) {
+                    try {
+                        wait(100);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new PersistenceException("Interrupted while waiting for flush.", e);
+                    }
+                }
+            }
+
+            freezeActiveMemtable();
+        } finally {
+            memtableLock.writeLock().unlock();
+        }
+
+        backgroundExecutor.execute(this::flushImmutableMemtables);
+    }
+
+    // caller must hold the write lock of the memtable lock
+    private void freezeActiveMemtable() {
+        if (activeMemtable.entries.isEmpty()) {
+            return;
+        }
+
+        synchronized (this) {
+            List<Memtable> immutables = new ArrayList<>();
+            immutables.add(activeMemtable);
+            immutables.addAll(immutableMemtables);
+            immutableMemtables = immutables;
+        }
+        activeMemtable = new Memtable();
+    }
+
+    // runs on the background thread only
+    private void flushImmutableMemtables() {
+        try {
+            while (flushOldestMemtable()) {
+                // continue until all memtables are on disk
+            }
+            compactIfNecessary();
+        } catch (IOException e) {
+            LOG.error("Could not flush memtable, retrying later.", e);
+            backgroundExecutor.schedule(this::flushImmutableMemtables, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    // writes the oldest immutable memtable to a new table, returns false if there was nothing to flush
+    private boolean flushOldestMemtable() throws IOException {
+        List<Memtable> immutables = immutableMemtables;
+        if (immutables.isEmpty()) {
+            return false;
+        }
+        Memtable oldest = immutables.get(immutables.size() - 1);
+
+        long sequence;
+        synchronized (this) {
+            sequence = nextSequence++;
+        }
+        SSTable table = SSTable.write(tableFile(sequence, sequence), sequence, sequence,
+                oldest.entries.values().iterator(), oldest.entries.size());
+
+        // make the table visible before the memtable disappears so readers always find the data
+        synchronized (this) {
+            List<SSTable> updatedTables = new ArrayList<>();
+            updatedTables.add(table);
+            updatedTables.addAll(tables);
+            tables = updatedTables;
+
+            List<Memtable> remaining = new ArrayList<>(immutableMemtables);
+            remaining.remove(oldest);
+            immutableMemtables = remaining;
+            notifyAll();
+        }
+
+        LOG.debug("Flushed memtable with {} entries to {}", oldest.entries.size(), table.file);
+        return true;
+    }
+
+    // runs on the background thread only
+    private void compactIfNecessary() {
+        // the records stay until a compaction includes the oldest table, streams no longer need them
+        long now = System.currentTimeMillis();
+        tombstones.values().removeIf(deletedAt -> isExpired(deletedAt, now));
+
+        List<SSTable> current = tables;
+        for (int start = 0; start + COMPACTION_THRESHOLD <= current.size(); start++) {
+            List<SSTable> window = current.subList(start, start + COMPACTION_THRESHOLD);
+            long min = window.stream().mapToLong(SSTable::getSize).min().getAsLong();
+            long max = window.stream().mapToLong(SSTable::getSize).max().getAsLong();
+            if (max <= Math.max(min, 1) * COMPACTION_SIZE_RATIO) {
+                try {
+                    compact(new ArrayList<>(window));
+                } catch (IOException | UncheckedIOException e) {
+                    LOG.error("Could not compact tables.", e);
+                }
+                return;
+            }
+        }
+    }
+
+    // merges a run of tables that are adjacent in age, runs on the background thread only
+    private void compact(List<SSTable> inputs) throws IOException {
+        List<SSTable> current = tables;
+        boolean includesOldest = inputs.contains(current.get(current.size() - 1));
+        long minSequence = inputs.stream().mapToLong(table -> table.minSequence).min().getAsLong();
+        long maxSequence = inputs.stream().mapToLong(table -> table.maxSequence).max().getAsLong();
+        long expectedRecords = inputs.stream().mapToLong(SSTable::getRecordCount).sum();
+
+        LOG.info("Compacting {} tables covering sequences {} to {}", inputs.size(), minSequence, maxSequence);
+
+        SSTable output;
+        // token by key of the obsolete values which were dropped
+        Map<String, Integer> dropped = new HashMap<>();
+        long now = System.currentTimeMillis();
+        try (MergingIterator merged = new MergingIterator(Collections.emptyList(), inputs)) {
+            // deletes and obsolete values can only be forgotten if there is no older table they shadow
+            Iterator<LogRecord> records = includesOldest
+                    ? new LiveIterator(merged, this::isObsolete, record -> isExpired(record.timestamp, now), dropped)
+                    : merged;
+            output = SSTable.write(tableFile(minSequence, maxSequence), minSequence, maxSequence,
+                    records, expectedRecords);
+        }
+
+        synchronized (this) {
+            List<SSTable> updatedTables = new ArrayList<>();
+            boolean inserted = false;
+            for (SSTable table : tables) {
+                if (inputs.contains(table)) {
+                    if (!inserted) {
+                        updatedTables.add(output);
+                        inserted = true;
+                    }
+                } else {
+                    updatedTables.add(table);
+                }
+            }
+            tables = updatedTables;
+        }
+
+        inputs.forEach(SSTable::markObsolete);
+        forgetDropped(dropped);
+        LOG.info("Compacted {} tables into {} with {} records, dropped {} obsolete values",
+                inputs.size(), output.file, output.getRecordCount(), dropped.size());
+    }
+
+    // record timestamps are in microseconds
+    private boolean isExpired(long deletedAt, long now) {
+        return deletedAt / 1000 + tombstoneGracePeriod <= now;
+    }
+
+    private boolean isObsolete(LogRecord record) {
+        try {
+            return compactionFilter.isObsolete(codec.decodePrefix(record.value, CompactionFilter.PREFIX_LENGTH));
+        } catch (PersistenceException e) {
+            // keep what we can not read, reads report the problem
+            return false;
+        }
+    }
+
+    // a dropped key may have been written again in a newer table or memtable, it then stays listed
+    private void forgetDropped(Map<String, Integer> dropped) throws IOException {
+        if (dropped.isEmpty()) {
+            return;
+        }
+        // writes update the token index under the read lock
+        memtableLock.writeLock().lock();
+        try {
+            for (Map.Entry<String, Integer> key : dropped.entrySet()) {
+                if (lookup(key.getKey()) == null) {
+                    tokenIndex.remove(key.getKey(), key.getValue());
+                }
+            }
+        } catch (PersistenceException e) {
+            throw new IOException("Could not look up dropped keys.", e);
+        } finally {
+            memtableLock.writeLock().unlock();
+        }
+    }
+
+    private LogRecord lookup(String key) throws PersistenceException {
+        LogRecord record = activeMemtable.entries.get(key);
+        if (record != null) {
+            return record;
+        }
+
+        for (Memtable memtable : immutableMemtables) {
+            record = memtable.entries.get(key);
+            if (record != null) {
+                return record;
+            }
+        }
+
+        while (true) {
+            List<SSTable> snapshot = tables;
+            List<SSTable> acquired = new ArrayList<>(snapshot.size());
+            try {
+                boolean complete = true;
+                for (SSTable table : snapshot) {
+                    if (!table.acquire()) {
+                        // replaced by a compaction in the meantime, retry on the new set of tables
+                        complete = false;
+                        break;
+                    }
+                    acquired.add(table);
+                }
+
+                if (complete) {
+                    for (SSTable table : acquired) {
+                        record = table.get(key);
+                        if (record != null) {
+                            return record;
+                        }
+                    }
+                    return null;
+                }
+            } catch (IOException e) {
+                throw new PersistenceException("Could not read entry for key.", e);
+            } finally {
+                acquired.forEach(SSTable::release);
+            }
+        }
+    }
+
+    // iterates over the latest record of every key, optionally including tombstones
+    private MergingIterator mergedRecords(boolean includeTombstones) throws IOException {
+        List<Memtable> memtables = new ArrayList<>();
+        memtables.add(activeMemtable);
+        memtables.addAll(immutableMemtables);
+
+        List<SSTable> acquired = new ArrayList<>();
+        while (true) {
+            boolean complete = true;
+            for (SSTable table : tables) {
+                if (!table.acquire()) {
+                    complete = false;
+                    break;
+                }
+                acquired.add(table);
+            }
+            if (complete) {
+                break;
+            }
+            acquired.forEach(SSTable::release);
+            acquired.clear();
+        }
+
+        try {
+            return new MergingIterator(memtables, acquired, true, !includeTombstones);
+        } catch (IOException | RuntimeException e) {
+            acquired.forEach(SSTable::release);
+            throw e;
+        }
+    }
+
+    private long nextTimestamp() {
+        return clock.updateAndGet(last -> Math.max(System.currentTimeMillis() * 1000, last + 1));
+    }
+
+    private File tableFile(long minSequence, long maxSequence) {
+        return new File(dataDirectory, String.format("table-%010d-%010d.sst", minSequence, maxSequence));
+    }
+
+    private List<SSTable> openTables() throws IOException {
+        File[] files = dataDirectory.listFiles();
+        List<SSTable> opened = new ArrayList<>();
+        if (files == null) {
+            return opened;
+        }
+
+        List<long[]> ranges = new ArrayList<>();
+        Map<long[], File> filesByRange = new HashMap<>();
+        for (File file : files) {
+            if (file.getName().endsWith(".sst.tmp")) {
+                // incomplete flush or compaction
+                LOG.warn("Deleting incomplete table {}", file);
+                file.delete();
+                continue;
+            }
+
+            Matcher matcher = TABLE_NAME.matcher(file.getName());
+            if (matcher.matches()) {
+                long[] range = new long[] {Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2))};
+                ranges.add(range);
+                filesByRange.put(range, file);
+            }
+        }
+
+        for (long[] range : ranges) {
+            boolean superseded = ranges.stream().anyMatch(other -> other != range
+                    && other[0] <= range[0] && range[1] <= other[1]);
+            if (superseded) {
+                // input of a compaction that completed right before a crash
+                LOG.warn("Deleting compacted table {}", filesByRange.get(range));
+                filesByRange.get(range).delete();
+                continue;
+            }
+
+            opened.add(SSTable.open(filesByRange.get(range), range[0], range[1]));
+            nextSequence = Math.max(nextSequence, range[1] + 1);
+        }
+
+        opened.sort((a, b) -> Long.compare(b.maxSequence, a.maxSequence));
+        LOG.info("Opened {} tables.", opened.size());
+        return opened;
+    }
+
+    // sorted in-memory table
+    private static final class Memtable {
+
+        final ConcurrentSkipListMap<String, LogRecord> entries = new ConcurrentSkipListMap<>();
+        final AtomicLong size = new AtomicLong(0);
+
+        void put(LogRecord record) {
+            LogRecord previous = entries.put(record.key, record);
+            size.addAndGet(record.size() - (previous != null ? previous.size() : 0));
+        }
+    }
+
+    // drops expired tombstones and obsolete values from a merged stream of records
+    private static final class LiveIterator implements Iterator<LogRecord> {
+
+        private final Iterator<LogRecord> delegate;
+        private final Predicate<LogRecord> obsolete;
+        private final Predicate<LogRecord> expired;
+        private final Map<String, Integer> dropped;
+        private LogRecord next;
+
+        LiveIterator(Iterator<LogRecord> delegate, Predicate<LogRecord> obsolete, Predicate<LogRecord> expired,
+                     Map<String, Integer> dropped) {
+            this.delegate = delegate;
+            this.obsolete = obsolete;
+            this.expired = expired;
+            this.dropped = dropped;
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public LogRecord next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            LogRecord current = next;
+            advance();
+            return current;
+        }
+
+        private void advance() {
+            next = null;
+            while (delegate.hasNext()) {
+                LogRecord candidate = delegate.next();
+                if (candidate.isTombstone()) {
+                    if (expired.test(candidate)) {
+                        continue;
+                    }
+                    next = candidate;
+                    return;
+                }
+                if (obsolete.test(candidate)) {
+                    dropped.put(candidate.key, candidate.token);
+                    continue;
+                }
+                next = candidate;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Merges several sorted sources into one sorted stream that contains only
+     * the newest record per key.
+     */
+    private static final class MergingIterator implements Iterator<LogRecord>, Closeable {
+
+        private final PriorityQueue<Source> queue;
+        private final List<Closeable> resources;
+        private final List<SSTable> acquiredTables;
+        private final boolean skipTombstones;
+        private LogRecord next;
+
+        MergingIterator(List<Memtable> memtables, List<SSTable> tables) throws IOException {
+            this(memtables, tables, false, false);
+        }
+
+        // memtables and tables newest first
+        MergingIterator(List<Memtable> memtables, List<SSTable> tables,
+                        boolean releaseTables, boolean skipTombstones) throws IOException {
+            this.queue = new PriorityQueue<>((a, b) -> {
+                int comparison = a.current.key.compareTo(b.current.key);
+                return comparison != 0 ? comparison : Integer.compare(a.rank, b.rank);
+            });
+            this.resources = new ArrayList<>();
+            this.acquiredTables = releaseTables ? tables : Collections.emptyList();
+            this.skipTombstones = skipTombstones;
+
+            int rank = 0;
+            for (Memtable memtable : memtables) {
+                addSource(memtable.entries.values().iterator(), rank++);
+            }
+            for (SSTable table : tables) {
+                SSTable.CloseableIterator scan = table.scan();
+                resources.add(scan);
+                addSource(scan, rank++);
+            }
+
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public LogRecord next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            LogRecord current = next;
+            advance();
+            return current;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Closeable resource : resources) {
+                resource.close();
+            }
+            acquiredTables.forEach(SSTable::release);
+        }
+
+        private void addSource(Iterator<LogRecord> iterator, int rank) {
+            if (iterator.hasNext()) {
+                queue.add(new Source(iterator, rank));
+            }
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && !queue.isEmpty()) {
+                Source newest = queue.poll();
+                LogRecord candidate = newest.current;
+                requeue(newest);
+
+                // skip shadowed versions of the same key in older sources
+                while (!queue.isEmpty() && queue.peek().current.key.equals(candidate.key)) {
+                    requeue(queue.poll());
+                }
+
+                if (!skipTombstones || !candidate.isTombstone()) {
+                    next = candidate;
+                }
+            }
+        }
+
+        private void requeue(Source source) {
+            if (source.iterator.hasNext()) {
+                source.current = source.iterator.next();
+                queue.add(source);
+            }
+        }
+
+        private static final class Source {
+
+            final Iterator<LogRecord> iterator;
+            final int rank;
+            LogRecord current;
+
+            Source(Iterator<LogRecord> iterator, int rank) {
+                this.iterator = iterator;
+                this.rank = rank;
+                this.current = iterator.next();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,283 @@
+package app_kvServer.persistence;
+
+import common.hash.HashRing;
+import common.hash.Range;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A single entry of an append-only log file.
+ *
+ * Layout (big endian):
+ * <pre>
+ * crc:int | timestamp:long | token:int | flags:byte | keyLength:int | valueLength:int | key | value
+ * </pre>
+ * The checksum covers all bytes following the checksum field.
+ */
+final class LogRecord {
+
+    static final int HEADER_SIZE = 25;
+    static final byte FLAG_TOMBSTONE = 0x1;
+    static final byte FLAG_RANGE_TOMBSTONE = 0x2;
+
+    private static final int KEY_LENGTH_OFFSET = 17;
+    private static final int MAX_KEY_LENGTH = 64 * 1024;
+    private static final byte[] NO_VALUE = new byte[0];
+
+    final long position;
+    final long timestamp;
+    final int token;
+    final byte flags;
+    final String key;
+    final byte[] keyBytes;
+    final byte[] value;
+
+    private LogRecord(long position, long timestamp, int token, byte flags, byte[] keyBytes, byte[] value) {
+        this.position = position;
+        this.timestamp = timestamp;
+        this.token = token;
+        this.flags = flags;
+        this.keyBytes = keyBytes;
+        this.key = new String(keyBytes, StandardCharsets.UTF_8);
+        this.value = value;
+    }
+
+    /**
+     * Create a record that stores a value.
+     * @param key The key
+     * @param value The value
+     * @param timestamp Write timestamp
+     * @return The record
+     */
+    static LogRecord put(String key, byte[] value, long timestamp) {
+        return new LogRecord(-1, timestamp, HashRing.hash(key), (byte) 0,
+                key.getBytes(StandardCharsets.UTF_8), value);
+    }
+
+    /**
+     * Create a record that marks a key as deleted.
+     * @param key The key
+     * @param timestamp Delete timestamp
+     * @return The record
+     */
+    static LogRecord tombstone(String key, long timestamp) {
+        return new LogRecord(-1, timestamp, HashRing.hash(key), FLAG_TOMBSTONE,
+                key.getBytes(StandardCharsets.UTF_8), NO_VALUE);
+    }
+
+    /**
+     * Create a record that marks all keys whose hash lies within a range as deleted.
+     *
+     * The record has no key, the value holds the start and the end of the range.
+     *
+     * @param range Range of the hash ring
+     * @param timestamp Delete timestamp
+     * @return The record
+     */
+    static LogRecord rangeTombstone(Range range, long timestamp) {
+        byte[] bounds = ByteBuffer.allocate(8).putInt(range.getStart()).putInt(range.getEnd()).array();
+        return new LogRecord(-1, timestamp, range.getEnd(), FLAG_RANGE_TOMBSTONE, new byte[0], bounds);
+    }
+
+    boolean isTombstone() {
+        return (flags & FLAG_TOMBSTONE) != 0;
+    }
+
+    boolean isRangeTombstone() {
+        return (flags & FLAG_RANGE_TOMBSTONE) != 0;
+    }
+
+    /**
+     * Return the range deleted by a range tombstone.
+     * @return The range
+     */
+    Range range() {
+        ByteBuffer bounds = ByteBuffer.wrap(value);
+        return new Range(bounds.getInt(), bounds.getInt());
+    }
+
+    /**
+     * Return the encoded size of this record.
+     * @return Size in bytes
+     */
+    int size() {
+        return HEADER_SIZE + keyBytes.length + value.length;
+    }
+
+    /**
+     * Return the offset of the value relative to the start of the record.
+     * @return Offset in bytes
+     */
+    int valueOffset() {
+        return HEADER_SIZE + keyBytes.length;
+    }
+
+    /**
+     * Encode the record into its binary format.
+     * @return Buffer ready for writing
+     */
+    ByteBuffer encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(size());
+        buffer.putInt(0);
+        buffer.putLong(timestamp);
+        buffer.putInt(token);
+        buffer.put(flags);
+        buffer.putInt(keyBytes.length);
+        buffer.putInt(value.length);
+        buffer.put(keyBytes);
+        buffer.put(value);
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 4, buffer.position() - 4);
+        buffer.putInt(0, (int) crc.getValue());
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decode a record from a buffer holding encoded records.
+     * @param buffer Buffer positioned at the start of a record, advanced behind it on success
+     * @param position Offset of the record within its file
+     * @return The record or null if the buffer does not start with a complete and valid record
+     */
+    static LogRecord decode(ByteBuffer buffer, long position) {
+        if (buffer.remaining() < HEADER_SIZE) {
+            return null;
+        }
+
+        int start = buffer.position();
+        int bodyLength = bodyLength(buffer, start);
+        if (bodyLength < 0 || bodyLength > buffer.remaining() - HEADER_SIZE) {
+            return null;
+        }
+
+        ByteBuffer record = buffer.duplicate();
+        record.limit(start + HEADER_SIZE + bodyLength);
+        int checksum = record.getInt();
+        CRC32 crc = new CRC32();
+        crc.update(record.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+
+        long timestamp = record.getLong();
+        int token = record.getInt();
+        byte flags = record.get();
+        byte[] keyBytes = new byte[record.getInt()];
+        byte[] value = new byte[record.getInt()];
+        record.get(keyBytes);
+        record.get(value);
+
+        buffer.position(record.position());
+        return new LogRecord(position, timestamp, token, flags, keyBytes, value);
+    }
+
+    // length of key and value behind the header starting at an offset, -1 if the lengths are invalid
+    private static int bodyLength(ByteBuffer buffer, int start) {
+        int keyLength = buffer.getInt(start + KEY_LENGTH_OFFSET);
+        int valueLength = buffer.getInt(start + KEY_LENGTH_OFFSET + 4);
+        if (keyLength < 0 || keyLength > MAX_KEY_LENGTH || valueLength < 0
+                || valueLength > Integer.MAX_VALUE - HEADER_SIZE - keyLength) {
+            return -1;
+        }
+        return keyLength + valueLength;
+    }
+
+    /**
+     * Sequentially reads records from a log file.
+     *
+     * Reading stops at the end of the file or at the first record that is
+     * incomplete or does not match its checksum.
+     */
+    static final class Reader implements Closeable {
+
+        private final DataInputStream input;
+        private final long length;
+        private long position;
+        private boolean corrupt;
+
+        /**
+         * Constructor.
+         * @param file The log file
+         * @throws IOException if the file can not be opened
+         */
+        Reader(File file) throws IOException {
+            this(file, file.length());
+        }
+
+        /**
+         * Constructor.
+         * @param file The log file
+         * @param length Number of bytes at the start of the file that contain records
+         * @throws IOException if the file can not be opened
+         */
+        Reader(File file, long length) throws IOException {
+            this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            this.length = length;
+            this.position = 0;
+            this.corrupt = false;
+        }
+
+        /**
+         * Read the next record.
+         * @return The record or null if there are no more valid records
+         * @throws IOException if the file can not be read
+         */
+        LogRecord next() throws IOException {
+            if (corrupt || position >= length) {
+                return null;
+            }
+
+            if (length - position < HEADER_SIZE) {
+                corrupt = true;
+                return null;
+            }
+
+            byte[] header = new byte[HEADER_SIZE];
+            input.readFully(header);
+            int bodyLength = bodyLength(ByteBuffer.wrap(header), 0);
+            if (bodyLength < 0 || bodyLength > length - position - HEADER_SIZE) {
+                corrupt = true;
+                return null;
+            }
+
+            byte[] bytes = Arrays.copyOf(header, HEADER_SIZE + bodyLength);
+            input.readFully(bytes, HEADER_SIZE, bodyLength);
+            LogRecord record = decode(ByteBuffer.wrap(bytes), position);
+            if (record == null) {
+                corrupt = true;
+                return null;
+            }
+
+            position += record.size();
+            return record;
+        }
+
+        /**
+         * Return the offset directly behind the last valid record.
+         * @return Offset in bytes
+         */
+        long getPosition() {
+            return position;
+        }
+
+        /**
+         * Return if reading stopped because of an invalid record.
+         * @return True if the file has a corrupt tail
+         */
+        boolean isCorrupt() {
+            return corrupt;
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+}
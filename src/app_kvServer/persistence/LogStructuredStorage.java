@@ -0,0 +1,906 @@
+package app_kvServer.persistence;
+
+import common.hash.HashRing;
+import common.hash.Range;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Log-structured storage in the spirit of Bitcask.
+ *
+ * Values are appended to rolling segment files and an in-memory key directory
+ * maps each key to the position of its latest value. A put is therefore one
+ * sequential append and a get is one positioned read. Closed segments are
+ * merged in the background to reclaim the space of overwritten and deleted
+ * values. Tombstones survive merges for a grace period, so that data streams
+ * can pass deletions on to other nodes.
+ *
+ * Every closed segment gets a hint file listing its records without their
+ * values. The entries of a hint are collected in memory while the segment
+ * is written and the file is written once the segment is sealed. On startup
+ * the key directory is rebuilt from the hints, only segments without a
+ * matching hint have to be read in full.
+ *
+ * See:
+ * Sheehy, J., & Smith, D. (2010). Bitcask - A Log-Structured Hash Table for Fast Key/Value Data.
+ */
+public class LogStructuredStorage implements PersistenceService {
+
+    private static final Logger LOG = LogManager.getLogger(LogStructuredStorage.class);
+
+    /** Default size at which the active segment is closed and a new one started. */
+    public static final long DEFAULT_MAX_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String HINT_SUFFIX = ".hint";
+    private static final double MERGE_GARBAGE_RATIO = 0.5;
+    private static final int MERGE_INTERVAL_SECONDS = 60;
+    private static final int MAX_READ_ATTEMPTS = 3;
+
+    private final File dataDirectory;
+    private final long maxSegmentSize;
+    private final ConcurrentMap<String, KeyDirEntry> keyDir;
+    private final TokenIndex tokenIndex;
+    private final ValueCodec codec;
+    private final CompactionFilter compactionFilter;
+    // time of deletion by deleted key, in the microseconds of the records
+    private final ConcurrentMap<String, Long> tombstones;
+    private final long tombstoneGracePeriod;
+    private final ConcurrentNavigableMap<Long, Segment> segments;
+    private final ScheduledThreadPoolExecutor mergeExecutor;
+    private final Object mergeLock;
+
+    // guarded by this
+    private Segment activeSegment;
+    private long nextSegmentId;
+    private long lastTimestamp;
+
+    /**
+     * Default constructor.
+     * @param dataDirectory The directory where segment files are stored
+     * @throws PersistenceException if existing segments can not be loaded
+     */
+    public LogStructuredStorage(File dataDirectory) throws PersistenceException {
+        this(dataDirectory, DEFAULT_MAX_SEGMENT_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * @param dataDirectory The directory where segment files are stored
+     * @param maxSegmentSize Size in bytes after which a new segment is started
+     * @throws PersistenceException if existing segments can not be loaded
+     */
+    public LogStructuredStorage(File dataDirectory, long maxSegmentSize) throws PersistenceException {
+        this(dataDirectory, maxSegmentSize, new ValueCodec());
+    }
+
+    /**
+     * Constructor.
+     * @param dataDirectory The directory where segment files are stored
+     * @param maxSegmentSize Size in bytes after which a new segment is started
+     * @param codec Encodes values for persistence
+     * @throws PersistenceException if existing segments can not be loaded
+     */
+    public LogStructuredStorage(File dataDirectory, long maxSegmentSize, ValueCodec codec)
+            throws PersistenceException {
+        this(dataDirectory, maxSegmentSize, codec, CompactionFilter.KEEP_ALL);
+    }
+
+    /**
+     * Constructor.
+     * @param dataDirectory The directory where segment files are stored
+     * @param maxSegmentSize Size in bytes after which a new segment is started
+     * @param codec Encodes values for persistence
+     * @param compactionFilter Decides which values a merge may drop
+     * @throws PersistenceException if existing segments can not be loaded
+     */
+    public LogStructuredStorage(File dataDirectory, long maxSegmentSize, ValueCodec codec,
+                                CompactionFilter compactionFilter) throws PersistenceException {
+        this(dataDirectory, maxSegmentSize, codec, compactionFilter, DiskStorage.DEFAULT_TOMBSTONE_GRACE_PERIOD);
+    }
+
+    /**
+     * Constructor.
+     * @param dataDirectory The directory where segment files are stored
+     * @param maxSegmentSize Size in bytes after which a new segment is started
+     * @param codec Encodes values for persistence
+     * @param compactionFilter Decides which values a merge may drop
+     * @param tombstoneGracePeriod Time in milliseconds for which deletions are kept
+     * @throws PersistenceException if existing segments can not be loaded
+     */
+    public LogStructuredStorage(File dataDirectory, long maxSegmentSize, ValueCodec codec,
+                                CompactionFilter compactionFilter, long tombstoneGracePeriod)
+            throws PersistenceException {
+        this.dataDirectory = dataDirectory;
+        this.codec = codec;
+        this.compactionFilter = compactionFilter;
+        this.maxSegmentSize = maxSegmentSize;
+        this.keyDir = new ConcurrentHashMap<>();
+        this.tokenIndex = new TokenIndex();
+        this.tombstones = new ConcurrentHashMap<>();
+        this.tombstoneGracePeriod = tombstoneGracePeriod;
+        this.segments = new ConcurrentSkipListMap<>();
+        this.mergeLock = new Object();
+        this.nextSegmentId = 0;
+        this.lastTimestamp = 0;
+
+        if (!dataDirectory.isDirectory()) {
+            dataDirectory.mkdirs();
+        }
+
+        try {
+            recover();
+            synchronized (this) {
+                activeSegment = openSegment(nextSegmentId++);
+            }
+        } catch (IOException e) {
+            throw new PersistenceException("Could not open log-structured storage.", e);
+        }
+
+        this.mergeExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "segment-merger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mergeExecutor.scheduleWithFixedDelay(this::mergeIfWorthwhile,
+                MERGE_INTERVAL_SECONDS, MERGE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        // segments which had to be read in full during recovery
+        for (Segment segment : segments.values()) {
+            if (segment != activeSegment && segment.hasPendingHints()) {
+                writeHintLater(segment);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean putBytes(String key, byte[] value) throws PersistenceException {
+        KeyDirEntry previous = append(key, codec.encode(value));
+        return previous == null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Optional<byte[]> getBytes(String key) throws PersistenceException {
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            KeyDirEntry entry = keyDir.get(key);
+            if (entry == null) {
+                return Optional.empty();
+            }
+
+            Segment segment = segments.get(entry.segmentId);
+            if (segment == null) {
+                // segment has been merged away concurrently, the key directory already points elsewhere
+                continue;
+            }
+
+            try {
+                byte[] value = segment.read(entry.valueOffset, entry.valueLength);
+                return Optional.of(codec.decodeBytes(value));
+            } catch (ClosedChannelException e) {
+                LOG.debug("Segment closed while reading, retrying.", e);
+            } catch (IOException e) {
+                throw new PersistenceException("Could not read entry for key.", e);
+            }
+        }
+
+        throw new PersistenceException("Could not read entry for key because of concurrent merges: " + key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean delete(String key) throws PersistenceException {
+        if (!keyDir.containsKey(key)) {
+            return false;
+        }
+
+        KeyDirEntry previous = append(key, null);
+        return previous != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean contains(String key) {
+        return keyDir.containsKey(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys() {
+        return getKeys(Namespaces.DEFAULT);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys(String namespace) {
+        return keyDir.keySet().stream()
+                .filter(key -> Namespaces.contains(namespace, key))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getAllKeys() {
+        return tokenIndex.getKeys();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys(Range range) {
+        return getKeys(Namespaces.DEFAULT, range);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys(String namespace, Range range) {
+        return tokenIndex.getKeys(range).stream()
+                .filter(key -> Namespaces.contains(namespace, key))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getDeletedKeys(Range range) {
+        long now = System.currentTimeMillis();
+        return tombstones.entrySet().stream()
+                .filter(tombstone -> !isExpired(tombstone.getValue(), now))
+                .map(Map.Entry::getKey)
+                .filter(key -> Namespaces.contains(Namespaces.DEFAULT, key) && range.contains(HashRing.hash(key)))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Cursor iterate(Range range) {
+        return iterate(Namespaces.DEFAULT, range, Cursor.DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Cursor iterate(String namespace, Range range, int batchSize) {
+        return new Cursor(tokenIndex.iterate(range), namespace, this::getBytes, batchSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void sync() throws PersistenceException {
+        // closed segments have been synced when they were rolled
+        try {
+            activeSegment.force();
+        } catch (IOException e) {
+            throw new PersistenceException("Could not sync active segment.", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws PersistenceException {
+        mergeExecutor.shutdownNow();
+        synchronized (mergeLock) {
+            synchronized (this) {
+                try {
+                    activeSegment.force();
+                    // with hints for every segment the next start does not need to read any values
+                    for (Segment segment : segments.values()) {
+                        writeHint(segment);
+                    }
+                } catch (IOException e) {
+                    throw new PersistenceException("Could not sync active segment.", e);
+                } finally {
+                    segments.values().forEach(Segment::close);
+                }
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The active segment is closed first, so the snapshot consists of closed
+     * segments only. These are never modified again and get linked together
+     * with the hint files written so far.
+     */
+    @Override
+    public void snapshot(File directory) throws PersistenceException {
+        long start = System.currentTimeMillis();
+        SnapshotFiles.createDirectory(directory);
+
+        // merges would delete the segments before they are linked
+        synchronized (mergeLock) {
+            List<Segment> sealed;
+            synchronized (this) {
+                try {
+                    if (activeSegment.size > 0) {
+                        roll();
+                    }
+                } catch (IOException e) {
+                    throw new PersistenceException("Could not close active segment.", e);
+                }
+                sealed = segments.values().stream()
+                        .filter(segment -> segment != activeSegment)
+                        .collect(Collectors.toList());
+            }
+
+            try {
+                for (Segment segment : sealed) {
+                    SnapshotFiles.link(segment.file, new File(directory, segment.file.getName()));
+                    if (segment.hintFile.isFile()) {
+                        SnapshotFiles.link(segment.hintFile, new File(directory, segment.hintFile.getName()));
+                    }
+                }
+            } catch (IOException e) {
+                throw new PersistenceException("Could not add segment to snapshot.", e);
+            }
+            LOG.info("Took snapshot of {} segments in {} in {} ms.",
+                    sealed.size(), directory, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Rewrite the live values of all closed segments into new segments and
+     * delete the old ones. Values which the compaction filter declares
+     * obsolete are dropped instead, tombstones once their grace period is over.
+     * @throws PersistenceException if the merge fails
+     */
+    public void merge() throws PersistenceException {
+        synchronized (mergeLock) {
+            List<Segment> sources;
+            synchronized (this) {
+                sources = segments.values().stream()
+                        .filter(segment -> segment != activeSegment)
+                        .collect(Collectors.toList());
+            }
+
+            if (sources.isEmpty()) {
+                return;
+            }
+
+            LOG.info("Merging {} segments.", sources.size());
+
+            List<Segment> outputs = new ArrayList<>();
+            Segment output = null;
+            long copied = 0;
+            long dropped = 0;
+            long now = System.currentTimeMillis();
+            try {
+                for (Segment source : sources) {
+                    try (LogRecord.Reader reader = new LogRecord.Reader(source.file)) {
+                        LogRecord record;
+                        while ((record = reader.next()) != null) {
+                            if (record.isTombstone()) {
+                                if (isRetained(record, now)) {
+                                    output = copyTombstone(record, output, outputs);
+                                }
+                                continue;
+                            }
+
+                            KeyDirEntry entry = keyDir.get(record.key);
+                            if (entry == null || entry.segmentId != source.id || entry.recordOffset != record.position) {
+                                // overwritten or deleted
+                                continue;
+                            }
+
+                            if (isObsolete(record) && drop(record.key, entry)) {
+                                // all older records of the key are in the merged segments and go with them
+                                dropped++;
+                                continue;
+                            }
+
+                            output = outputFor(output, outputs);
+                            long position = output.append(record);
+                            KeyDirEntry relocated = new KeyDirEntry(output.id, position, record);
+                            if (!keyDir.replace(record.key, entry, relocated)) {
+                                // key got updated while we were copying it
+                                output.deadBytes.addAndGet(record.size());
+                            }
+                            copied++;
+                        }
+                    }
+                }
+
+                if (output != null) {
+                    output.force();
+                }
+            } catch (IOException e) {
+                throw new PersistenceException("Could not merge segments.", e);
+            }
+
+            for (Segment source : sources) {
+                segments.remove(source.id);
+                source.retire();
+            }
+
+            for (Segment merged : outputs) {
+                writeHint(merged);
+            }
+
+            LOG.info("Merged {} segments, relocated {} values, dropped {} obsolete values.",
+                    sources.size(), copied, dropped);
+        }
+    }
+
+    // the latest deletion of a key which has not been written since
+    private boolean isRetained(LogRecord tombstone, long now) {
+        Long deletedAt = tombstones.get(tombstone.key);
+        if (deletedAt == null || deletedAt != tombstone.timestamp) {
+            return false;
+        }
+        if (isExpired(deletedAt, now)) {
+            tombstones.remove(tombstone.key, deletedAt);
+            return false;
+        }
+        return true;
+    }
+
+    private Segment copyTombstone(LogRecord tombstone, Segment output, List<Segment> outputs) throws IOException {
+        Segment target = outputFor(output, outputs);
+        target.append(tombstone);
+        target.deadBytes.addAndGet(tombstone.size());
+        return target;
+    }
+
+    // the segment a merge writes to, a new one once the current one is full
+    private Segment outputFor(Segment output, List<Segment> outputs) throws IOException {
+        if (output != null && output.size < maxSegmentSize) {
+            return output;
+        }
+        if (output != null) {
+            output.force();
+        }
+        Segment next = newSegment();
+        outputs.add(next);
+        return next;
+    }
+
+    // record timestamps are in microseconds
+    private boolean isExpired(long deletedAt, long now) {
+        return deletedAt / 1000 + tombstoneGracePeriod <= now;
+    }
+
+    private boolean isObsolete(LogRecord record) {
+        try {
+            return compactionFilter.isObsolete(codec.decodePrefix(record.value, CompactionFilter.PREFIX_LENGTH));
+        } catch (PersistenceException e) {
+            // keep what we can not read, reads report the problem
+            return false;
+        }
+    }
+
+    // removes a key unless it has been written since, the caller skips its record
+    private synchronized boolean drop(String key, KeyDirEntry entry) {
+        if (!keyDir.remove(key, entry)) {
+            return false;
+        }
+        tokenIndex.remove(key, entry.token);
+        return true;
+    }
+
+    private void mergeIfWorthwhile() {
+        // the records stay until the next merge, streams no longer need them
+        long now = System.currentTimeMillis();
+        tombstones.values().removeIf(deletedAt -> isExpired(deletedAt, now));
+
+        long total = 0;
+        long garbage = 0;
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                if (segment != activeSegment) {
+                    total += segment.size;
+                    garbage += segment.deadBytes.get();
+                }
+            }
+        }
+
+        if (total > 0 && (double) garbage / total >= MERGE_GARBAGE_RATIO) {
+            try {
+                merge();
+            } catch (PersistenceException e) {
+                LOG.error("Could not merge segments.", e);
+            }
+        }
+    }
+
+    // a null value appends a tombstone
+    private synchronized KeyDirEntry append(String key, byte[] value) throws PersistenceException {
+        LogRecord record = value == null
+                ? LogRecord.tombstone(key, nextTimestamp())
+                : LogRecord.put(key, value, nextTimestamp());
+
+        try {
+            if (activeSegment.size >= maxSegmentSize) {
+                roll();
+            }
+
+            long position = activeSegment.append(record);
+
+            KeyDirEntry previous;
+            if (record.isTombstone()) {
+                previous = keyDir.remove(record.key);
+                tokenIndex.remove(record.key, record.token);
+                tombstones.put(record.key, record.timestamp);
+                // tombstones only hold on to space for their grace period
+                activeSegment.deadBytes.addAndGet(record.size());
+            } else {
+                previous = keyDir.put(record.key, new KeyDirEntry(activeSegment.id, position, record));
+                tokenIndex.add(record.key, record.token);
+                tombstones.remove(record.key);
+            }
+
+            if (previous != null) {
+                markDead(previous);
+            }
+
+            return previous;
+        } catch (IOException e) {
+            throw new PersistenceException("Could not append to segment.", e);
+        }
+    }
+
+    // called with lock held
+    private void roll() throws IOException {
+        Segment sealed = activeSegment;
+        sealed.force();
+        activeSegment = openSegment(nextSegmentId++);
+        LOG.debug("Rolled over to segment {}.", activeSegment.file);
+        writeHintLater(sealed);
+    }
+
+    private void writeHintLater(Segment sealed) {
+        mergeExecutor.execute(() -> {
+            synchronized (mergeLock) {
+                // the segment may have been merged away in the meantime
+                if (segments.get(sealed.id) == sealed) {
+                    writeHint(sealed);
+                }
+            }
+        });
+    }
+
+    // writes the entries collected for a segment, hints are an optimization only, failing to write one is not an error
+    private void writeHint(Segment segment) {
+        List<HintFile.Entry> entries = segment.takePendingHints();
+        if (entries == null) {
+            return;
+        }
+        try {
+            HintFile.write(segment.hintFile, segment.size, entries);
+        } catch (IOException e) {
+            // e.g. interrupted by a shutdown, which tries again
+            segment.setPendingHints(entries);
+            LOG.warn("Could not write hint file for segment " + segment.file, e);
+        }
+    }
+
+    private synchronized Segment newSegment() throws IOException {
+        return openSegment(nextSegmentId++);
+    }
+
+    // timestamps are strictly increasing so that recovery can order records across segments
+    private long nextTimestamp() {
+        lastTimestamp = Math.max(System.currentTimeMillis() * 1000, lastTimestamp + 1);
+        return lastTimestamp;
+    }
+
+    private void markDead(KeyDirEntry entry) {
+        Segment segment = segments.get(entry.segmentId);
+        if (segment != null) {
+            segment.deadBytes.addAndGet(entry.recordSize);
+        }
+    }
+
+    private Segment openSegment(long id) throws IOException {
+        String name = String.format("%s%010d", SEGMENT_PREFIX, id);
+        Segment segment = new Segment(id, new File(dataDirectory, name + SEGMENT_SUFFIX),
+                new File(dataDirectory, name + HINT_SUFFIX));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private void recover() throws IOException {
+        long start = System.nanoTime();
+        File[] files = dataDirectory.listFiles(
+                (dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, Comparator.comparing(File::getName));
+        List<Segment> recovered = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            recovered.add(openSegment(id));
+            nextSegmentId = Math.max(nextSegmentId, id + 1);
+        }
+
+        // reading and verifying dominates, segments are scanned in parallel and applied in order afterwards
+        List<List<HintFile.Entry>> scanned;
+        try {
+            scanned = recovered.parallelStream()
+                    .map(LogStructuredStorage::loadSegment)
+                    .collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        // deletion timestamps, a merged segment may contain older values than a tombstone in an earlier segment
+        Map<String, Long> deletions = new HashMap<>();
+        long bytes = 0;
+        for (int i = 0; i < recovered.size(); i++) {
+            Segment segment = recovered.get(i);
+            bytes += segment.size;
+            for (HintFile.Entry record : scanned.get(i)) {
+                lastTimestamp = Math.max(lastTimestamp, record.timestamp);
+                recoverRecord(segment, record, deletions);
+            }
+        }
+
+        keyDir.forEach((key, entry) -> tokenIndex.add(key, entry.token));
+        long now = System.currentTimeMillis();
+        deletions.forEach((key, deletedAt) -> {
+            if (!keyDir.containsKey(key) && !isExpired(deletedAt, now)) {
+                tombstones.put(key, deletedAt);
+            }
+        });
+        long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        LOG.info("Recovered {} keys from {} segments ({} bytes) in {} ms, {} KB/s.",
+                keyDir.size(), segments.size(), bytes, millis, bytes * 1000 / 1024 / millis);
+    }
+
+    // a hint which matches the segment spares reading the values, otherwise the entries are kept for a new hint
+    private static List<HintFile.Entry> loadSegment(Segment segment) {
+        try {
+            List<HintFile.Entry> hinted = HintFile.read(segment.hintFile, segment.size);
+            if (hinted != null) {
+                return hinted;
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not read hint file for segment " + segment.file, e);
+        }
+        List<HintFile.Entry> scanned = scanSegment(segment);
+        segment.setPendingHints(scanned);
+        return scanned;
+    }
+
+    // reads the valid records of a segment and cuts off an invalid tail, only while recovering
+    private static List<HintFile.Entry> scanSegment(Segment segment) {
+        List<HintFile.Entry> records = new ArrayList<>();
+        try (LogRecord.Reader reader = new LogRecord.Reader(segment.file)) {
+            LogRecord record;
+            while ((record = reader.next()) != null) {
+                records.add(new HintFile.Entry(record));
+            }
+
+            if (reader.isCorrupt()) {
+                LOG.warn("Segment {} has an invalid tail after offset {}, truncating.",
+                        segment.file, reader.getPosition());
+                segment.truncate(reader.getPosition());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return records;
+    }
+
+    private void recoverRecord(Segment segment, HintFile.Entry record, Map<String, Long> deletions) {
+        KeyDirEntry existing = keyDir.get(record.key);
+        boolean newer = existing == null || existing.timestamp <= record.timestamp;
+
+        if (record.tombstone) {
+            segment.deadBytes.addAndGet(record.size);
+            if (newer) {
+                if (existing != null) {
+                    keyDir.remove(record.key);
+                    markDead(existing);
+                }
+                deletions.merge(record.key, record.timestamp, Math::max);
+            }
+            return;
+        }
+
+        Long deletedAt = deletions.get(record.key);
+        if (!newer || (deletedAt != null && deletedAt > record.timestamp)) {
+            segment.deadBytes.addAndGet(record.size);
+            return;
+        }
+
+        keyDir.put(record.key, new KeyDirEntry(segment.id, record));
+        if (existing != null) {
+            markDead(existing);
+        }
+    }
+
+    // location of the latest value of a key
+    private static final class KeyDirEntry {
+
+        final long segmentId;
+        final long recordOffset;
+        final int recordSize;
+        final long valueOffset;
+        final int valueLength;
+        final int token;
+        final long timestamp;
+
+        KeyDirEntry(long segmentId, long recordOffset, LogRecord record) {
+            this.segmentId = segmentId;
+            this.recordOffset = recordOffset;
+            this.recordSize = record.size();
+            this.valueOffset = recordOffset + record.valueOffset();
+            this.valueLength = record.value.length;
+            this.token = record.token;
+            this.timestamp = record.timestamp;
+        }
+
+        KeyDirEntry(long segmentId, HintFile.Entry record) {
+            this.segmentId = segmentId;
+            this.recordOffset = record.position;
+            this.recordSize = record.size;
+            this.valueOffset = record.position + record.valueOffset;
+            this.valueLength = record.valueLength;
+            this.token = record.token;
+            this.timestamp = record.timestamp;
+        }
+    }
+
+    // a single segment file, only the active segment and merge outputs are appended to
+    private static final class Segment {
+
+        final long id;
+        final File file;
+        final File hintFile;
+        final AtomicLong deadBytes;
+        volatile long size;
+        private volatile FileChannel channel;
+        private volatile boolean released;
+        // entries of the hint which has not been written yet, handed over with the sealed segment
+        private volatile List<HintFile.Entry> pendingHints;
+
+        Segment(long id, File file, File hintFile) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.hintFile = hintFile;
+            this.deadBytes = new AtomicLong(0);
+            this.channel = open();
+            this.size = channel.size();
+            this.released = false;
+            // the records of an existing segment are only known once it has been loaded
+            this.pendingHints = size == 0 ? new ArrayList<>() : null;
+        }
+
+        long append(LogRecord record) throws IOException {
+            ByteBuffer buffer = record.encode();
+            long position = size;
+            long offset = position;
+            while (buffer.hasRemaining()) {
+                offset += channel().write(buffer, offset);
+            }
+            size = offset;
+
+            List<HintFile.Entry> hints = pendingHints;
+            if (hints != null) {
+                hints.add(new HintFile.Entry(record, position));
+            }
+            return position;
+        }
+
+        boolean hasPendingHints() {
+            return pendingHints != null;
+        }
+
+        void setPendingHints(List<HintFile.Entry> entries) {
+            pendingHints = entries;
+        }
+
+        List<HintFile.Entry> takePendingHints() {
+            List<HintFile.Entry> hints = pendingHints;
+            pendingHints = null;
+            return hints;
+        }
+
+        byte[] read(long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                int read = channel().read(buffer, position + buffer.position());
+                if (read < 0) {
+                    throw new IOException("Unexpected end of segment " + file);
+                }
+            }
+            return buffer.array();
+        }
+
+        void truncate(long length) throws IOException {
+            channel().truncate(length);
+            size = length;
+        }
+
+        void force() throws IOException {
+            channel().force(false);
+        }
+
+        void close() {
+            released = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.warn("Could not close segment " + file, e);
+            }
+        }
+
+        void retire() {
+            close();
+            if (!file.delete()) {
+                LOG.warn("Could not delete merged segment {}", file);
+            }
+            if (hintFile.exists() && !hintFile.delete()) {
+                LOG.warn("Could not delete hint file {}", hintFile);
+            }
+        }
+
+        // an interrupted reader closes the channel for everyone, so reopen it on demand
+        private FileChannel channel() throws IOException {
+            FileChannel current = channel;
+            if (current.isOpen() || released) {
+                return current;
+            }
+
+            synchronized (this) {
+                if (!channel.isOpen() && !released) {
+                    channel = open();
+                }
+                return channel;
+            }
+        }
+
+        private FileChannel open() throws IOException {
+            return FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+    }
+
+}
@@ -0,0 +1,32 @@
+package app_kvServer.persistence;
+
+/**
+ * Helper for the namespace convention of keys.
+ *
+ * A key like "results/foo" lives in namespace "results", a key without
+ * separator lives in the default namespace ".".
+ */
+final class Namespaces {
+
+    static final String DEFAULT = ".";
+    static final String SEPARATOR = "/";
+
+    private Namespaces() {
+    }
+
+    /**
+     * Check if a key directly belongs to a namespace.
+     * @param namespace The namespace
+     * @param key The key
+     * @return True if the key is part of the namespace
+     */
+    static boolean contains(String namespace, String key) {
+        if (DEFAULT.equals(namespace)) {
+            return !key.contains(SEPARATOR);
+        }
+
+        String prefix = namespace + SEPARATOR;
+        return key.startsWith(prefix) && key.indexOf(SEPARATOR, prefix.length()) < 0;
+    }
+
+}
@@ -0,0 +1,315 @@
+package app_kvServer.persistence;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A cache which keeps values outside of the Java heap.
+ *
+ * Memory is allocated as direct buffers of a fixed size (slabs). Every slab
+ * is dedicated to one size class and cut into chunks of that size, a value
+ * is stored in a chunk of the smallest class it fits into. Slabs are handed
+ * to size classes on demand until the memory budget is used up, from then on
+ * a slab which has become entirely free can move to another size class,
+ * otherwise a new value replaces the least recently used value of its size
+ * class.
+ *
+ * Only the keys and the chunk locations are held on the heap, so large
+ * caches barely add to the work of the garbage collector. Values larger than
+ * a slab are not cached.
+ *
+ * @param <K> Type of the keys
+ */
+public class OffHeapCache<K> implements Cache<K, byte[]> {
+
+    private static final Logger LOG = LogManager.getLogger(OffHeapCache.class);
+
+    /** Default size of a slab in bytes. */
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+    private static final int MIN_CHUNK_SIZE = 64;
+
+    private final long maxBytes;
+    private final int slabSize;
+    private final int maxSlabs;
+    private final List<Slab> slabs;
+    private final List<SizeClass> sizeClasses;
+    private final Map<K, Location> index;
+    private long usedBytes;
+
+    /**
+     * Default constructor.
+     * @param maxBytes Maximum number of bytes to allocate for values
+     */
+    public OffHeapCache(long maxBytes) {
+        this(maxBytes, (int) Math.min(DEFAULT_SLAB_SIZE, maxBytes));
+    }
+
+    /**
+     * Constructor.
+     * @param maxBytes Maximum number of bytes to allocate for values
+     * @param slabSize Size of a slab in bytes, also the maximum size of a value
+     */
+    public OffHeapCache(long maxBytes, int slabSize) {
+        if (slabSize <= 0 || slabSize > maxBytes) {
+            throw new IllegalArgumentException("Slab size must be positive and not exceed the cache size.");
+        }
+        this.maxBytes = maxBytes;
+        this.slabSize = slabSize;
+        this.maxSlabs = (int) Math.min(Integer.MAX_VALUE, maxBytes / slabSize);
+        this.slabs = new ArrayList<>();
+        this.index = new HashMap<>();
+        this.usedBytes = 0;
+
+        // chunk sizes double from the minimum up to the slab size
+        this.sizeClasses = new ArrayList<>();
+        for (long chunkSize = Math.min(MIN_CHUNK_SIZE, slabSize); chunkSize < slabSize; chunkSize <<= 1) {
+            sizeClasses.add(new SizeClass(sizeClasses.size(), (int) chunkSize));
+        }
+        sizeClasses.add(new SizeClass(sizeClasses.size(), slabSize));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized Optional<byte[]> get(K key) {
+        Location location = index.get(key);
+        if (location == null) {
+            return Optional.empty();
+        }
+
+        // touch to keep the value from being replaced
+        sizeClasses.get(location.sizeClass).entries.get(key);
+
+        byte[] value = new byte[location.length];
+        ByteBuffer chunk = slabs.get(location.slab).buffer.duplicate();
+        chunk.position(location.offset);
+        chunk.get(value);
+        return Optional.of(value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void put(K key, byte[] value) {
+        // the old value is freed first, so it can be replaced in place
+        delete(key);
+
+        SizeClass sizeClass = sizeClassFor(value.length);
+        if (sizeClass == null) {
+            LOG.debug("Value of {} is too large for the cache: {} bytes", key, value.length);
+            return;
+        }
+
+        Location location = allocate(sizeClass);
+        if (location == null) {
+            LOG.debug("No memory left for size class of {} bytes", sizeClass.chunkSize);
+            return;
+        }
+        location.length = value.length;
+        slabs.get(location.slab).usedChunks++;
+
+        ByteBuffer chunk = slabs.get(location.slab).buffer.duplicate();
+        chunk.position(location.offset);
+        chunk.put(value);
+
+        index.put(key, location);
+        sizeClass.entries.put(key, location);
+        usedBytes += sizeClass.chunkSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean contains(K key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean delete(K key) {
+        Location location = index.remove(key);
+        if (location == null) {
+            return false;
+        }
+
+        SizeClass sizeClass = sizeClasses.get(location.sizeClass);
+        sizeClass.entries.remove(key);
+        sizeClass.freeChunks.push(location);
+        slabs.get(location.slab).usedChunks--;
+        usedBytes -= sizeClass.chunkSize;
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Return the number of bytes occupied by the chunks holding values.
+     * @return Weight in bytes
+     */
+    @Override
+    public synchronized long getWeight() {
+        return usedBytes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getMaxWeight() {
+        return maxBytes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized List<K> keys() {
+        return new ArrayList<>(index.keySet());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Size classes are replaced independently, so their most recently used
+     * keys take turns.
+     */
+    @Override
+    public synchronized List<K> getHotKeys(int limit) {
+        List<Iterator<K>> byRecency = new ArrayList<>();
+        for (SizeClass sizeClass : sizeClasses) {
+            List<K> classKeys = new ArrayList<>(sizeClass.entries.keySet());
+            Collections.reverse(classKeys);
+            byRecency.add(classKeys.iterator());
+        }
+
+        List<K> keys = new ArrayList<>(Math.min(limit, index.size()));
+        boolean remaining = true;
+        while (remaining && keys.size() < limit) {
+            remaining = false;
+            for (Iterator<K> classKeys : byRecency) {
+                if (classKeys.hasNext() && keys.size() < limit) {
+                    keys.add(classKeys.next());
+                    remaining = true;
+                }
+            }
+        }
+        return keys;
+    }
+
+    private SizeClass sizeClassFor(int length) {
+        for (SizeClass sizeClass : sizeClasses) {
+            if (length <= sizeClass.chunkSize) {
+                return sizeClass;
+            }
+        }
+        return null;
+    }
+
+    private Location allocate(SizeClass sizeClass) {
+        if (sizeClass.freeChunks.isEmpty()) {
+            if (slabs.size() < maxSlabs) {
+                slabs.add(new Slab(ByteBuffer.allocateDirect(slabSize)));
+                assignSlab(slabs.size() - 1, sizeClass);
+            } else {
+                reassignFreeSlab(sizeClass);
+            }
+        }
+
+        if (sizeClass.freeChunks.isEmpty() && !sizeClass.entries.isEmpty()) {
+            // least recently used first
+            Iterator<Map.Entry<K, Location>> eldest = sizeClass.entries.entrySet().iterator();
+            K ejected = eldest.next().getKey();
+            delete(ejected);
+            LOG.debug("Ejected element: {}", ejected);
+        }
+
+        return sizeClass.freeChunks.poll();
+    }
+
+    private void assignSlab(int slab, SizeClass sizeClass) {
+        slabs.get(slab).sizeClass = sizeClass.index;
+        for (int offset = 0; offset + sizeClass.chunkSize <= slabSize; offset += sizeClass.chunkSize) {
+            sizeClass.freeChunks.add(new Location(sizeClass.index, slab, offset));
+        }
+    }
+
+    // keeps size classes which have run dry from starving while others hoard unused memory
+    private void reassignFreeSlab(SizeClass sizeClass) {
+        for (int slab = 0; slab < slabs.size(); slab++) {
+            Slab candidate = slabs.get(slab);
+            if (candidate.usedChunks == 0 && candidate.sizeClass != sizeClass.index) {
+                int reassigned = slab;
+                sizeClasses.get(candidate.sizeClass).freeChunks.removeIf(location -> location.slab == reassigned);
+                assignSlab(slab, sizeClass);
+                return;
+            }
+        }
+    }
+
+    // a direct buffer dedicated to one size class
+    private static final class Slab {
+
+        final ByteBuffer buffer;
+        int sizeClass;
+        int usedChunks;
+
+        Slab(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    // a chunk within a slab
+    private static final class Location {
+
+        final int sizeClass;
+        final int slab;
+        final int offset;
+        int length;
+
+        Location(int sizeClass, int slab, int offset) {
+            this.sizeClass = sizeClass;
+            this.slab = slab;
+            this.offset = offset;
+        }
+    }
+
+    // chunks of one size, the entries are access ordered
+    private final class SizeClass {
+
+        final int index;
+        final int chunkSize;
+        final LinkedHashMap<K, Location> entries;
+        final ArrayDeque<Location> freeChunks;
+
+        SizeClass(int index, int chunkSize) {
+            this.index = index;
+            this.chunkSize = chunkSize;
+            this.entries = new LinkedHashMap<>(16, 0.75f, true);
+            this.freeChunks = new ArrayDeque<>();
+        }
+    }
+
+}
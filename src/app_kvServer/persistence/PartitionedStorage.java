@@ -0,0 +1,524 @@
+package app_kvServer.persistence;
+
+import common.hash.HashRing;
+import common.hash.Range;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Splits the hash ring into a fixed number of equally sized partitions and
+ * stores each of them in its own storage engine and directory.
+ *
+ * Nodes gain and lose data in whole ranges of the ring. A partition which
+ * lies completely within a range which is dropped is deleted at once by
+ * removing its directory, only partitions at the edges of the range are
+ * cleaned up key by key. Iterating over a range reads one partition after the
+ * other, so each engine is read on its own instead of interleaved with the
+ * rest of the data.
+ */
+public class PartitionedStorage implements PersistenceService {
+
+    private static final Logger LOG = LogManager.getLogger(PartitionedStorage.class);
+
+    /** Default number of partitions. */
+    public static final int DEFAULT_PARTITIONS = 64;
+
+    private static final String PARTITION_PREFIX = "partition-";
+    private static final long RING_SIZE = 1L << 32;
+
+    private final File dataDirectory;
+    private final EngineFactory engineFactory;
+    private final Partition[] partitions;
+
+    /**
+     * Opens the storage engine of a single partition.
+     */
+    @FunctionalInterface
+    public interface EngineFactory {
+
+        /**
+         * Open the engine.
+         * @param directory The directory of the partition
+         * @return The engine
+         * @throws PersistenceException if the engine can not be opened
+         */
+        PersistenceService open(File directory) throws PersistenceException;
+    }
+
+    /**
+     * Constructor.
+     * @param dataDirectory The directory in which the partition directories are placed
+     * @param partitions Number of partitions, must be a power of two
+     * @param engineFactory Opens the storage engine of a partition
+     * @throws PersistenceException if a partition can not be opened
+     */
+    public PartitionedStorage(File dataDirectory, int partitions, EngineFactory engineFactory)
+            throws PersistenceException {
+        if (partitions <= 0 || Integer.bitCount(partitions) != 1) {
+            throw new IllegalArgumentException("Number of partitions must be a power of two.");
+        }
+        this.dataDirectory = dataDirectory;
+        this.engineFactory = engineFactory;
+        this.partitions = new Partition[partitions];
+
+        try {
+            for (int i = 0; i < partitions; i++) {
+                File directory = new File(dataDirectory, String.format("%s%04d", PARTITION_PREFIX, i));
+                this.partitions[i] = new Partition(directory, getPartitionRange(i, partitions),
+                        engineFactory.open(directory));
+            }
+        } catch (PersistenceException e) {
+            for (Partition partition : this.partitions) {
+                if (partition != null) {
+                    partition.engine.close();
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean putBytes(String key, byte[] value) throws PersistenceException {
+        Partition partition = partitionOf(key);
+        partition.lock.readLock().lock();
+        try {
+            return partition.engine.putBytes(key, value);
+        } finally {
+            partition.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Optional<byte[]> getBytes(String key) throws PersistenceException {
+        Partition partition = partitionOf(key);
+        partition.lock.readLock().lock();
+        try {
+            return partition.engine.getBytes(key);
+        } finally {
+            partition.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean delete(String key) throws PersistenceException {
+        Partition partition = partitionOf(key);
+        partition.lock.readLock().lock();
+        try {
+            return partition.engine.delete(key);
+        } finally {
+            partition.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean contains(String key) throws PersistenceException {
+        Partition partition = partitionOf(key);
+        partition.lock.readLock().lock();
+        try {
+            return partition.engine.contains(key);
+        } finally {
+            partition.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys() throws PersistenceException {
+        List<String> keys = new ArrayList<>();
+        for (Partition partition : partitions) {
+            keys.addAll(partition.getKeys(PersistenceService::getKeys));
+        }
+        return keys;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys(String namespace) throws PersistenceException {
+        List<String> keys = new ArrayList<>();
+        for (Partition partition : partitions) {
+            keys.addAll(partition.getKeys(engine -> engine.getKeys(namespace)));
+        }
+        return keys;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getAllKeys() throws PersistenceException {
+        List<String> keys = new ArrayList<>();
+        for (Partition partition : partitions) {
+            keys.addAll(partition.getKeys(PersistenceService::getAllKeys));
+        }
+        return keys;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys(Range range) throws PersistenceException {
+        return getKeys(Namespaces.DEFAULT, range);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys(String namespace, Range range) throws PersistenceException {
+        List<String> keys = new ArrayList<>();
+        for (Partition partition : partitions) {
+            if (intersect(partition.range, range)) {
+                keys.addAll(partition.getKeys(engine -> engine.getKeys(namespace, range)));
+            }
+        }
+        keys.sort(ringOrder(range));
+        return keys;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getDeletedKeys(Range range) throws PersistenceException {
+        List<String> keys = new ArrayList<>();
+        for (Partition partition : partitions) {
+            if (intersect(partition.range, range)) {
+                keys.addAll(partition.getKeys(engine -> engine.getDeletedKeys(range)));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Partitions which lie completely within the range are replaced by empty
+     * ones, only the partitions at its edges are cleaned up key by key.
+     */
+    @Override
+    public int deleteRange(Range range) throws PersistenceException {
+        int deleted = 0;
+        int dropped = 0;
+        for (Partition partition : partitions) {
+            if (contains(range, partition.range)) {
+                deleted += partition.drop();
+                dropped++;
+            } else if (intersect(partition.range, range)) {
+                partition.lock.readLock().lock();
+                try {
+                    deleted += partition.engine.deleteRange(range);
+                } finally {
+                    partition.lock.readLock().unlock();
+                }
+            }
+        }
+        LOG.info("Deleted {} entries in range {}, dropped {} whole partitions.", deleted, range, dropped);
+        return deleted;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Cursor iterate(Range range) throws PersistenceException {
+        return iterate(Namespaces.DEFAULT, range, Cursor.DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Cursor iterate(String namespace, Range range, int batchSize) throws PersistenceException {
+        // one partition after the other, in ring order from the start of the range
+        return new Cursor(new PartitionBatches(namespace, split(range), batchSize));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Each partition takes its snapshot in a subdirectory of the same name.
+     */
+    @Override
+    public void snapshot(File directory) throws PersistenceException {
+        SnapshotFiles.createDirectory(directory);
+        for (Partition partition : partitions) {
+            partition.lock.readLock().lock();
+            try {
+                partition.engine.snapshot(new File(directory, partition.directory.getName()));
+            } finally {
+                partition.lock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void sync() throws PersistenceException {
+        for (Partition partition : partitions) {
+            partition.lock.readLock().lock();
+            try {
+                partition.engine.sync();
+            } finally {
+                partition.lock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws PersistenceException {
+        PersistenceException failure = null;
+        for (Partition partition : partitions) {
+            partition.lock.writeLock().lock();
+            try {
+                partition.engine.close();
+            } catch (PersistenceException e) {
+                failure = e;
+            } finally {
+                partition.lock.writeLock().unlock();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Return the number of partitions.
+     * @return Number of partitions
+     */
+    public int getPartitions() {
+        return partitions.length;
+    }
+
+    /**
+     * Return the range of the ring covered by a partition.
+     * @param index Number of the partition
+     * @param partitions Total number of partitions
+     * @return Range of the partition
+     */
+    public static Range getPartitionRange(int index, int partitions) {
+        long width = RING_SIZE / partitions;
+        int start = (int) (Integer.MIN_VALUE + index * width);
+        int end = (int) (Integer.MIN_VALUE + (index + 1) * width);
+        return new Range(start, end);
+    }
+
+    private Partition partitionOf(String key) {
+        return partitionOf(HashRing.hash(key));
+    }
+
+    private Partition partitionOf(int token) {
+        // ranges exclude their start, so the lowest token belongs to the last partition
+        long offset = Integer.toUnsignedLong(token - Integer.MIN_VALUE - 1);
+        return partitions[(int) (offset * partitions.length / RING_SIZE)];
+    }
+
+    // the parts of a range which lie in each partition, in ring order from the start of the range
+    private List<Map.Entry<Partition, Range>> split(Range range) {
+        List<Map.Entry<Partition, Range>> parts = new ArrayList<>();
+        long remaining = isWholeRing(range) ? RING_SIZE : Integer.toUnsignedLong(range.getEnd() - range.getStart());
+        int start = range.getStart();
+        Partition partition = partitionOf(start + 1);
+        int index = Arrays.asList(partitions).indexOf(partition);
+        while (remaining > 0) {
+            partition = partitions[index];
+            long length = Math.min(remaining, Integer.toUnsignedLong(partition.range.getEnd() - start));
+            int end = (int) (start + length);
+            parts.add(new AbstractMap.SimpleImmutableEntry<>(partition, new Range(start, end)));
+            remaining -= length;
+            start = end;
+            index = (index + 1) % partitions.length;
+        }
+        return parts;
+    }
+
+    // two arcs overlap if one of them contains the end of the other
+    private static boolean intersect(Range a, Range b) {
+        return isWholeRing(a) || isWholeRing(b) || a.contains(b.getEnd()) || b.contains(a.getEnd());
+    }
+
+    private static boolean contains(Range outer, Range inner) {
+        if (isWholeRing(outer)) {
+            return true;
+        }
+        return !intersect(new Range(outer.getEnd(), outer.getStart()), inner);
+    }
+
+    private static boolean isWholeRing(Range range) {
+        return range.getStart() == range.getEnd();
+    }
+
+    private static Comparator<String> ringOrder(Range range) {
+        return Comparator.comparingLong(key -> Integer.toUnsignedLong(HashRing.hash(key) - range.getStart() - 1));
+    }
+
+    private static void deleteRecursively(File directory) throws IOException {
+        if (!directory.exists()) {
+            return;
+        }
+        Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @FunctionalInterface
+    private interface KeyLister {
+        List<String> list(PersistenceService engine) throws PersistenceException;
+    }
+
+    // reads the cursors of the partitions one after the other, each batch under the read lock of its partition
+    private final class PartitionBatches implements Cursor.BatchSource {
+
+        private final String namespace;
+        private final Iterator<Map.Entry<Partition, Range>> parts;
+        private final int batchSize;
+        private Partition partition;
+        private PersistenceService engine;
+        private Cursor cursor;
+
+        PartitionBatches(String namespace, List<Map.Entry<Partition, Range>> parts, int batchSize) {
+            if (batchSize <= 0) {
+                throw new IllegalArgumentException("Batch size must be positive.");
+            }
+            this.namespace = namespace;
+            this.parts = parts.iterator();
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        public List<Cursor.Entry> next() throws PersistenceException {
+            while (true) {
+                if (cursor == null) {
+                    if (!parts.hasNext()) {
+                        return Collections.emptyList();
+                    }
+                    Map.Entry<Partition, Range> part = parts.next();
+                    partition = part.getKey();
+                    partition.lock.readLock().lock();
+                    try {
+                        engine = partition.engine;
+                        cursor = engine.iterate(namespace, part.getValue(), batchSize);
+                    } finally {
+                        partition.lock.readLock().unlock();
+                    }
+                }
+
+                List<Cursor.Entry> batch;
+                partition.lock.readLock().lock();
+                try {
+                    // a partition which has been dropped in the meantime has no entries left
+                    batch = partition.engine == engine ? cursor.nextBinaryBatch() : Collections.emptyList();
+                } finally {
+                    partition.lock.readLock().unlock();
+                }
+                if (!batch.isEmpty()) {
+                    return batch;
+                }
+                cursor = null;
+            }
+        }
+    }
+
+    // a single partition, the engine is only replaced while the write lock is held
+    private final class Partition {
+
+        final File directory;
+        final Range range;
+        final ReadWriteLock lock;
+        volatile PersistenceService engine;
+
+        Partition(File directory, Range range, PersistenceService engine) {
+            this.directory = directory;
+            this.range = range;
+            this.lock = new ReentrantReadWriteLock();
+            this.engine = engine;
+        }
+
+        List<String> getKeys(KeyLister lister) throws PersistenceException {
+            lock.readLock().lock();
+            try {
+                return lister.list(engine);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        // replaces the engine by an empty one, returns the number of dropped entries
+        int drop() throws PersistenceException {
+            lock.writeLock().lock();
+            try {
+                int entries = engine.getAllKeys().size();
+                try {
+                    engine.close();
+                    // engines may keep files next to their directory as well
+                    File[] files = dataDirectory.listFiles((dir, name) -> name.equals(directory.getName())
+                            || name.startsWith(directory.getName() + "_"));
+                    for (File file : files != null ? files : new File[0]) {
+                        deleteRecursively(file);
+                    }
+                } catch (IOException e) {
+                    throw new PersistenceException("Could not delete partition " + directory, e);
+                } finally {
+                    // the partition must stay usable even if the engine could not be closed or not all files deleted
+                    engine = engineFactory.open(directory);
+                }
+                LOG.debug("Dropped partition {} with {} entries.", directory, entries);
+                return entries;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+}
@@ -1,11 +1,20 @@
 package app_kvServer.persistence;
 
+import common.hash.HashRing;
+import common.hash.Range;
+
 import javax.swing.text.html.Option;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 
 /**
  * Base interface for the persistence service.
+ *
+ * Values are stored and served as bytes. The operations on strings are
+ * conveniences which convert from and to UTF-8.
  */
 public interface PersistenceService {
 
@@ -16,7 +25,56 @@ public interface PersistenceService {
      * @return true if the key was inserted, false if it was updated
      * @throws PersistenceException if something goes wrong while persisting
      */
-    boolean put(String key, String value) throws PersistenceException;
+    default boolean put(String key, String value) throws PersistenceException {
+        return putBytes(key, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Take a key,value-pair whose value is given as bytes and put it to disk.
+     * @param key the key
+     * @param value the value, must not be changed afterwards
+     * @return true if the key was inserted, false if it was updated
+     * @throws PersistenceException if something goes wrong while persisting
+     */
+    boolean putBytes(String key, byte[] value) throws PersistenceException;
+
+    /**
+     * Take a key,value-pair which expires after a given time and put it to disk.
+     * @param key the key
+     * @param value the value
+     * @param timeToLive time in milliseconds after which the value expires, 0 if it does not expire
+     * @return true if the key was inserted, false if it was updated
+     * @throws PersistenceException if something goes wrong or expiring values are not supported
+     */
+    default boolean put(String key, String value, long timeToLive) throws PersistenceException {
+        return putBytes(key, value.getBytes(StandardCharsets.UTF_8), timeToLive);
+    }
+
+    /**
+     * Take a key,value-pair whose value is given as bytes and which expires after a given time
+     * and put it to disk.
+     * @param key the key
+     * @param value the value, must not be changed afterwards
+     * @param timeToLive time in milliseconds after which the value expires, 0 if it does not expire
+     * @return true if the key was inserted, false if it was updated
+     * @throws PersistenceException if something goes wrong or expiring values are not supported
+     */
+    default boolean putBytes(String key, byte[] value, long timeToLive) throws PersistenceException {
+        if (timeToLive > 0) {
+            throw new PersistenceException("Expiring values are not supported.");
+        }
+        return putBytes(key, value);
+    }
+
+    /**
+     * Return the remaining time to live of a value.
+     * @param key the key
+     * @return time in milliseconds until the value expires, 0 if it does not expire or does not exist
+     * @throws PersistenceException if something goes wrong
+     */
+    default long getTimeToLive(String key) throws PersistenceException {
+        return 0;
+    }
 
     /**
      * Retrieve the value associated with key.
@@ -24,7 +82,27 @@ public interface PersistenceService {
      * @return an optional containing the value or being empty if the value does not exist
      * @throws PersistenceException if something goes wrong while getting the value
      */
-    Optional<String> get(String key) throws PersistenceException;
+    default Optional<String> get(String key) throws PersistenceException {
+        return getBytes(key).map(value -> new String(value, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Retrieve the value associated with key as bytes, without converting it to a string.
+     * @param key the key to retrieve the value for
+     * @return an optional containing the value or being empty if the value does not exist
+     * @throws PersistenceException if something goes wrong while getting the value
+     */
+    Optional<byte[]> getBytes(String key) throws PersistenceException;
+
+    /**
+     * Get the value of a key from persistent storage together with its remaining time to live.
+     * @param key The key
+     * @return The entry or empty if the key does not exist
+     * @throws PersistenceException if something goes wrong
+     */
+    default Optional<Cursor.Entry> getEntry(String key) throws PersistenceException {
+        return getBytes(key).map(value -> new Cursor.Entry(key, value, 0));
+    }
 
     /**
      * Delete a key from persistent storage.
@@ -57,4 +135,108 @@ public interface PersistenceService {
      */
     List<String> getKeys(String namespace) throws PersistenceException;
 
+    /**
+     * Get a list of all persisted keys across all namespaces.
+     * @return List of persisted keys
+     * @throws PersistenceException if something goes wrong
+     */
+    List<String> getAllKeys() throws PersistenceException;
+
+    /**
+     * Get a list of all persisted keys whose hash lies within a range of the ring.
+     * @param range Range of the hash ring
+     * @return List of persisted keys, ordered by their position on the ring
+     * @throws PersistenceException if something goes wrong
+     */
+    List<String> getKeys(Range range) throws PersistenceException;
+
+    /**
+     * Get a list of all persisted keys in a given namespace whose hash lies within a range of the ring.
+     * @param namespace Namespace to list keys for
+     * @param range Range of the hash ring
+     * @return List of persisted keys, ordered by their position on the ring
+     * @throws PersistenceException if something goes wrong
+     */
+    List<String> getKeys(String namespace, Range range) throws PersistenceException;
+
+    /**
+     * Get a list of the keys of the default namespace whose hash lies within a range of the ring and
+     * which have recently been deleted, so the deletion can be passed on to other nodes.
+     * @param range Range of the hash ring
+     * @return List of deleted keys, empty if the persistence service does not keep tombstones
+     * @throws PersistenceException if something goes wrong
+     */
+    default List<String> getDeletedKeys(Range range) throws PersistenceException {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Delete all entries whose key hash lies within a range of the ring, across all namespaces,
+     * e.g. because the range has been handed over to another node.
+     * @param range Range of the hash ring
+     * @return Number of deleted entries
+     * @throws PersistenceException if something goes wrong
+     */
+    default int deleteRange(Range range) throws PersistenceException {
+        int deleted = 0;
+        for (String key : getAllKeys()) {
+            if (range.contains(HashRing.hash(key)) && delete(key)) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Get the keys which are most likely to be read again soon, e.g. because they are cached.
+     * @param limit Maximum number of keys
+     * @return List of keys, the hottest first, empty if the persistence service does not know
+     */
+    default List<String> getHotKeys(int limit) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Lazily iterate over the entries of the default namespace whose key hash lies within a range of the ring.
+     * @param range Range of the hash ring
+     * @return Cursor over the entries, ordered by the position of their key on the ring
+     * @throws PersistenceException if something goes wrong
+     */
+    Cursor iterate(Range range) throws PersistenceException;
+
+    /**
+     * Lazily iterate over the entries of a namespace whose key hash lies within a range of the ring.
+     * @param namespace Namespace to iterate over
+     * @param range Range of the hash ring
+     * @param batchSize Maximum number of entries loaded at once
+     * @return Cursor over the entries, ordered by the position of their key on the ring
+     * @throws PersistenceException if something goes wrong
+     */
+    Cursor iterate(String namespace, Range range, int batchSize) throws PersistenceException;
+
+    /**
+     * Write a consistent copy of all persisted data to a directory.
+     *
+     * The snapshot can be opened like a data directory by the same kind of
+     * persistence service, e.g. after restoring it with {@link SnapshotFiles#restore(File, File)}.
+     *
+     * @param directory Directory for the snapshot, must not exist yet
+     * @throws PersistenceException if something goes wrong or snapshots are not supported
+     */
+    default void snapshot(File directory) throws PersistenceException {
+        throw new PersistenceException("Snapshots are not supported.");
+    }
+
+    /**
+     * Force all completed writes to stable storage.
+     * @throws PersistenceException if something goes wrong
+     */
+    void sync() throws PersistenceException;
+
+    /**
+     * Release all resources held by the persistence service.
+     * @throws PersistenceException if something goes wrong
+     */
+    void close() throws PersistenceException;
+
 }
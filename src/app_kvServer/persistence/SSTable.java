@@ -0,0 +1,335 @@
+package app_kvServer.persistence;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An immutable file of records sorted by key.
+ *
+ * Layout:
+ * <pre>
+ * records | sparse index | bloom filter | footer
+ * </pre>
+ * The sparse index holds the first key of every block of roughly
+ * {@link #BLOCK_SIZE} bytes, so a point lookup reads a single block.
+ */
+final class SSTable {
+
+    private static final Logger LOG = LogManager.getLogger(SSTable.class);
+
+    static final int BLOCK_SIZE = 4096;
+    static final double BLOOM_FALSE_POSITIVE_PROBABILITY = 0.01;
+
+    private static final int FOOTER_SIZE = 24;
+    private static final int MAGIC = 0x47345354;
+
+    final File file;
+    final long minSequence;
+    final long maxSequence;
+    private final FileChannel channel;
+    private final String[] indexKeys;
+    private final long[] indexOffsets;
+    private final long dataEnd;
+    private final int recordCount;
+    private final BloomFilter bloomFilter;
+    private final AtomicInteger references;
+    private volatile boolean obsolete;
+
+    private SSTable(File file, long minSequence, long maxSequence, FileChannel channel,
+                    String[] indexKeys, long[] indexOffsets, long dataEnd, int recordCount,
+                    BloomFilter bloomFilter) {
+        this.file = file;
+        this.minSequence = minSequence;
+        this.maxSequence = maxSequence;
+        this.channel = channel;
+        this.indexKeys = indexKeys;
+        this.indexOffsets = indexOffsets;
+        this.dataEnd = dataEnd;
+        this.recordCount = recordCount;
+        this.bloomFilter = bloomFilter;
+        this.references = new AtomicInteger(1);
+        this.obsolete = false;
+    }
+
+    /**
+     * Write records to a new table.
+     *
+     * The table is written to a temporary file first and renamed once it is
+     * complete and synced, so a crash never leaves a partial table behind.
+     * @param file Target file
+     * @param minSequence Oldest flush sequence covered by the table
+     * @param maxSequence Newest flush sequence covered by the table
+     * @param records Records in ascending key order
+     * @param expectedRecords Upper bound for the number of records, used to size the bloom filter
+     * @return The opened table
+     * @throws IOException if writing fails
+     */
+    static SSTable write(File file, long minSequence, long maxSequence,
+                         Iterator<LogRecord> records, long expectedRecords) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        BloomFilter bloomFilter = new BloomFilter(expectedRecords, BLOOM_FALSE_POSITIVE_PROBABILITY);
+        List<String> indexKeys = new ArrayList<>();
+        List<Long> indexOffsets = new ArrayList<>();
+        long offset = 0;
+        long blockStart = -BLOCK_SIZE;
+        int count = 0;
+
+        try (FileOutputStream fileOutputStream = new FileOutputStream(tmpFile)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOutputStream, 64 * 1024));
+
+            while (records.hasNext()) {
+                LogRecord record = records.next();
+                if (offset - blockStart >= BLOCK_SIZE) {
+                    indexKeys.add(record.key);
+                    indexOffsets.add(offset);
+                    blockStart = offset;
+                }
+                ByteBuffer encoded = record.encode();
+                out.write(encoded.array(), 0, encoded.limit());
+                bloomFilter.add(record.key);
+                offset += encoded.limit();
+                count++;
+            }
+
+            long indexOffset = offset;
+            out.writeInt(indexKeys.size());
+            offset += 4;
+            for (int i = 0; i < indexKeys.size(); i++) {
+                byte[] key = indexKeys.get(i).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeLong(indexOffsets.get(i));
+                offset += 4 + key.length + 8;
+            }
+
+            long bloomOffset = offset;
+            bloomFilter.writeTo(out);
+
+            out.writeLong(indexOffset);
+            out.writeLong(bloomOffset);
+            out.writeInt(count);
+            out.writeInt(MAGIC);
+            out.flush();
+            fileOutputStream.getChannel().force(true);
+        }
+
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("Could not move table into place: " + file);
+        }
+
+        return open(file, minSequence, maxSequence);
+    }
+
+    /**
+     * Open an existing table.
+     * @param file Table file
+     * @param minSequence Oldest flush sequence covered by the table
+     * @param maxSequence Newest flush sequence covered by the table
+     * @return The opened table
+     * @throws IOException if the file is not a valid table
+     */
+    static SSTable open(File file, long minSequence, long maxSequence) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < FOOTER_SIZE) {
+                throw new IOException("Table too small: " + file);
+            }
+
+            ByteBuffer footer = readFully(channel, size - FOOTER_SIZE, FOOTER_SIZE);
+            long indexOffset = footer.getLong();
+            long bloomOffset = footer.getLong();
+            int count = footer.getInt();
+            if (footer.getInt() != MAGIC) {
+                throw new IOException("Not a table: " + file);
+            }
+
+            ByteBuffer index = readFully(channel, indexOffset, (int) (bloomOffset - indexOffset));
+            int entries = index.getInt();
+            String[] indexKeys = new String[entries];
+            long[] indexOffsets = new long[entries];
+            for (int i = 0; i < entries; i++) {
+                byte[] key = new byte[index.getInt()];
+                index.get(key);
+                indexKeys[i] = new String(key, StandardCharsets.UTF_8);
+                indexOffsets[i] = index.getLong();
+            }
+
+            ByteBuffer bloom = readFully(channel, bloomOffset, (int) (size - FOOTER_SIZE - bloomOffset));
+            BloomFilter bloomFilter = BloomFilter.readFrom(
+                    new DataInputStream(new ByteArrayInputStream(bloom.array())));
+
+            return new SSTable(file, minSequence, maxSequence, channel,
+                    indexKeys, indexOffsets, indexOffset, count, bloomFilter);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e instanceof IOException ? (IOException) e : new IOException("Corrupt table: " + file, e);
+        }
+    }
+
+    /**
+     * Look up the record of a key.
+     * @param key The key
+     * @return The record or null if the table does not contain the key
+     * @throws IOException if reading fails
+     */
+    LogRecord get(String key) throws IOException {
+        if (!bloomFilter.mightContain(key)) {
+            return null;
+        }
+
+        int block = Arrays.binarySearch(indexKeys, key);
+        if (block < 0) {
+            // insertion point minus one is the block that would hold the key
+            block = -block - 2;
+        }
+        if (block < 0) {
+            return null;
+        }
+
+        long start = indexOffsets[block];
+        long end = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : dataEnd;
+        ByteBuffer data = readFully(channel, start, (int) (end - start));
+
+        while (data.hasRemaining()) {
+            long position = start + data.position();
+            LogRecord record = LogRecord.decode(data, position);
+            if (record == null) {
+                throw new IOException("Corrupt block at offset " + position + " in " + file);
+            }
+            int comparison = record.key.compareTo(key);
+            if (comparison == 0) {
+                return record;
+            } else if (comparison > 0) {
+                return null;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Iterate over all records in key order.
+     * @return Iterator over the records
+     * @throws IOException if the table can not be read
+     */
+    CloseableIterator scan() throws IOException {
+        return new CloseableIterator(new LogRecord.Reader(file, dataEnd));
+    }
+
+    int getRecordCount() {
+        return recordCount;
+    }
+
+    long getSize() {
+        return file.length();
+    }
+
+    /**
+     * Register a reader of this table.
+     * @return False if the table has been replaced and must not be used anymore
+     */
+    boolean acquire() {
+        int current;
+        do {
+            current = references.get();
+            if (current <= 0) {
+                return false;
+            }
+        } while (!references.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Unregister a reader of this table.
+     */
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            close();
+            if (obsolete && !file.delete()) {
+                LOG.warn("Could not delete obsolete table {}", file);
+            }
+        }
+    }
+
+    /**
+     * Mark the table as replaced, it is deleted as soon as the last reader releases it.
+     */
+    void markObsolete() {
+        obsolete = true;
+        release();
+    }
+
+    /**
+     * Close the table without deleting it.
+     */
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.warn("Could not close table " + file, e);
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Iterator over the records of a table that holds an open file.
+     */
+    static final class CloseableIterator implements Iterator<LogRecord>, Closeable {
+
+        private final LogRecord.Reader reader;
+        private LogRecord next;
+
+        private CloseableIterator(LogRecord.Reader reader) throws IOException {
+            this.reader = reader;
+            this.next = reader.next();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public LogRecord next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            LogRecord current = next;
+            try {
+                next = reader.next();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return current;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+package app_kvServer.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Helpers to place the files of a snapshot.
+ *
+ * Storage engines never modify a file which ends up in a snapshot, they only
+ * replace or delete it. A hard link is therefore as good as a copy and costs
+ * neither time nor space. Where links are not possible, e.g. across file
+ * systems, the file is copied instead.
+ */
+public final class SnapshotFiles {
+
+    private SnapshotFiles() {
+    }
+
+    /**
+     * Create an empty directory for a snapshot.
+     * @param directory The directory, must not exist yet
+     * @throws PersistenceException if the directory exists or can not be created
+     */
+    public static void createDirectory(File directory) throws PersistenceException {
+        if (directory.exists()) {
+            throw new PersistenceException("Snapshot directory " + directory + " already exists.");
+        }
+        if (!directory.mkdirs()) {
+            throw new PersistenceException("Could not create snapshot directory " + directory);
+        }
+    }
+
+    /**
+     * Place a file into a snapshot.
+     * @param source The file
+     * @param target Path of the file in the snapshot, parent directories are created
+     * @throws IOException if the file can neither be linked nor copied
+     */
+    public static void link(File source, File target) throws IOException {
+        target.getParentFile().mkdirs();
+        try {
+            Files.createLink(target.toPath(), source.toPath());
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(source.toPath(), target.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+        }
+    }
+
+    /**
+     * Place all files below a directory into another one, keeping their relative paths.
+     * @param source The directory to take the files from
+     * @param target The directory to place the files in
+     * @return Number of files
+     * @throws IOException if a file can neither be linked nor copied
+     */
+    public static int linkAll(File source, File target) throws IOException {
+        File[] children = source.listFiles();
+        if (children == null) {
+            return 0;
+        }
+
+        int files = 0;
+        for (File child : children) {
+            File copy = new File(target, child.getName());
+            if (child.isDirectory()) {
+                files += linkAll(child, copy);
+            } else {
+                link(child, copy);
+                files++;
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Seed a data directory with the files of a snapshot, e.g. to bootstrap a new node.
+     * @param snapshot The snapshot directory
+     * @param dataDirectory The data directory, must be empty or not exist yet
+     * @return Number of restored files
+     * @throws PersistenceException if the data directory is not empty or the files can not be placed
+     */
+    public static int restore(File snapshot, File dataDirectory) throws PersistenceException {
+        if (!snapshot.isDirectory()) {
+            throw new PersistenceException("Snapshot " + snapshot + " does not exist.");
+        }
+        String[] existing = dataDirectory.list();
+        if (existing != null && existing.length > 0) {
+            throw new PersistenceException("Data directory " + dataDirectory
+                    + " is not empty, refusing to restore snapshot.");
+        }
+
+        try {
+            return linkAll(snapshot, dataDirectory);
+        } catch (IOException e) {
+            throw new PersistenceException("Could not restore snapshot " + snapshot, e);
+        }
+    }
+
+}
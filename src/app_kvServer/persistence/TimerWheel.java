@@ -0,0 +1,155 @@
+package app_kvServer.persistence;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical hashed timer wheel.
+ *
+ * Time is divided into ticks. The lowest wheel has a slot for each of the
+ * next ticks, every further wheel has a slot for a whole revolution of the
+ * wheel below. A timer is put into the slot of its deadline on the lowest
+ * wheel which reaches that far and moves down a wheel whenever the wheel
+ * below completes a revolution. Scheduling and expiring a timer therefore
+ * take constant time, independent of the number of pending timers.
+ *
+ * Timers can not be cancelled. Owners have to check if a fired timer is
+ * still relevant.
+ *
+ * See:
+ * Varghese, G., & Lauck, T. (1987). Hashed and Hierarchical Timing Wheels:
+ * Data Structures for the Efficient Implementation of a Timer Facility.
+ *
+ * @param <K> Type of the objects timers are set for
+ */
+public class TimerWheel<K> {
+
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    // 256^4 ticks, more than a decade at a tick of 100 ms
+    private static final int LEVELS = 4;
+
+    private final long tickMillis;
+    private final List<List<ArrayDeque<Timer<K>>>> wheels;
+    // timers which were already due when they were scheduled
+    private final ArrayDeque<Timer<K>> overdue;
+    private long currentTick;
+    private int size;
+
+    /**
+     * Constructor.
+     * @param tickMillis Resolution of the timers in milliseconds
+     * @param startMillis Current time in milliseconds
+     */
+    public TimerWheel(long tickMillis, long startMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Tick must be positive.");
+        }
+        this.tickMillis = tickMillis;
+        this.currentTick = startMillis / tickMillis;
+        this.overdue = new ArrayDeque<>();
+        this.wheels = new ArrayList<>(LEVELS);
+        for (int level = 0; level < LEVELS; level++) {
+            List<ArrayDeque<Timer<K>>> slots = new ArrayList<>(SLOTS);
+            for (int slot = 0; slot < SLOTS; slot++) {
+                slots.add(new ArrayDeque<>());
+            }
+            wheels.add(slots);
+        }
+    }
+
+    /**
+     * Set a timer.
+     * @param element The object the timer is for
+     * @param deadlineMillis Time in milliseconds after which the timer fires
+     */
+    public synchronized void schedule(K element, long deadlineMillis) {
+        // rounded up, a timer must never fire before its deadline
+        long tick = deadlineMillis / tickMillis + (deadlineMillis % tickMillis == 0 ? 0 : 1);
+        insert(new Timer<>(element, tick));
+        size++;
+    }
+
+    /**
+     * Advance the wheel to the current time.
+     * @param nowMillis Current time in milliseconds
+     * @return The objects whose timers have fired
+     */
+    public synchronized List<K> advance(long nowMillis) {
+        List<K> expired = new ArrayList<>();
+        drain(overdue, expired);
+
+        long targetTick = nowMillis / tickMillis;
+        while (currentTick < targetTick && size > expired.size()) {
+            currentTick++;
+
+            // a revolution of a wheel moves the next slot of the wheel above down, highest wheel first
+            int topLevel = 0;
+            while (topLevel + 1 < LEVELS && (currentTick & ((1L << (SLOT_BITS * (topLevel + 1))) - 1)) == 0) {
+                topLevel++;
+            }
+            for (int level = topLevel; level > 0; level--) {
+                ArrayDeque<Timer<K>> slot = slot(level, currentTick);
+                List<Timer<K>> cascaded = new ArrayList<>(slot);
+                slot.clear();
+                cascaded.forEach(this::insert);
+            }
+
+            drain(slot(0, currentTick), expired);
+            drain(overdue, expired);
+        }
+        // nothing left to fire, skip the remaining ticks
+        currentTick = Math.max(currentTick, targetTick);
+
+        size -= expired.size();
+        return expired;
+    }
+
+    /**
+     * Return the number of pending timers.
+     * @return Number of timers
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    private void insert(Timer<K> timer) {
+        long delta = timer.tick - currentTick;
+        if (delta <= 0) {
+            overdue.add(timer);
+            return;
+        }
+
+        int level = 0;
+        while (level + 1 < LEVELS && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        slot(level, timer.tick).add(timer);
+    }
+
+    private ArrayDeque<Timer<K>> slot(int level, long tick) {
+        return wheels.get(level).get((int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK));
+    }
+
+    private static <K> void drain(ArrayDeque<Timer<K>> timers, List<K> expired) {
+        Timer<K> timer;
+        while ((timer = timers.poll()) != null) {
+            expired.add(timer.element);
+        }
+    }
+
+    // a pending timer, the deadline is in ticks
+    private static final class Timer<K> {
+
+        final K element;
+        final long tick;
+
+        Timer(K element, long tick) {
+            this.element = element;
+            this.tick = tick;
+        }
+    }
+
+}
@@ -0,0 +1,460 @@
+package app_kvServer.persistence;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A concurrent cache with the W-TinyLFU admission and eviction policy.
+ *
+ * New entries enter a small LRU admission window. Entries falling out of
+ * the window compete with the eviction candidate of the main area, which is
+ * a segmented LRU, and only the one used more frequently stays. Frequencies
+ * are estimated by a compact count-min sketch whose counters are halved
+ * periodically so that entries which were popular long ago do not stay
+ * forever. One-off accesses like scans therefore can not flush popular
+ * entries out of the cache.
+ *
+ * Window and main area are sized by weight, so a heavy entry is only
+ * admitted if it is used more often than the victim it would displace.
+ *
+ * Reads are lock-free: accesses are recorded in a buffer and applied to the
+ * policy in batches by whichever thread acquires the policy lock.
+ *
+ * See:
+ * Einziger, G., Friedman, R., & Manes, B. (2017). TinyLFU: A Highly Efficient Cache Admission Policy.
+ *
+ * @param <K> Type of the keys
+ * @param <V> Type of the values
+ */
+public class TinyLFUCache<K, V> implements Cache<K, V> {
+
+    private static final Logger LOG = LogManager.getLogger(TinyLFUCache.class);
+
+    private static final double WINDOW_RATIO = 0.01;
+    private static final double PROTECTED_RATIO = 0.8;
+    private static final int READ_BUFFER_SIZE = 128;
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = 32;
+    private static final int MAX_SKETCH_SIZE = 1 << 20;
+
+    private final ConcurrentHashMap<K, V> data;
+    private final Queue<K> readBuffer;
+    private final AtomicInteger readBufferSize;
+    private final Queue<Write<K>> writeBuffer;
+    private final ReentrantLock policyLock;
+
+    private final Weigher<K, V> weigher;
+    private final long maxWeight;
+
+    // guarded by policyLock, access ordered, mapping keys to their weights
+    private final LinkedHashMap<K, Integer> window;
+    private final LinkedHashMap<K, Integer> probation;
+    private final LinkedHashMap<K, Integer> protectedSegment;
+    private final FrequencySketch<K> sketch;
+    private final long windowMaxWeight;
+    private final long mainMaxWeight;
+    private final long protectedMaxWeight;
+    private long windowWeight;
+    private long probationWeight;
+    private long protectedWeight;
+
+    /**
+     * Default constructor.
+     * @param cacheSize Number of elements to hold
+     */
+    public TinyLFUCache(int cacheSize) {
+        this(cacheSize, (key, value) -> 1);
+    }
+
+    /**
+     * Constructor.
+     * @param maxWeight Maximum total weight of the elements to hold
+     * @param weigher Calculates the weight of an element
+     */
+    public TinyLFUCache(long maxWeight, Weigher<K, V> weigher) {
+        this.weigher = weigher;
+        this.maxWeight = maxWeight;
+        this.data = new ConcurrentHashMap<>();
+        this.readBuffer = new ConcurrentLinkedQueue<>();
+        this.readBufferSize = new AtomicInteger(0);
+        this.writeBuffer = new ConcurrentLinkedQueue<>();
+        this.policyLock = new ReentrantLock();
+
+        this.window = new LinkedHashMap<>(16, 0.75f, true);
+        this.probation = new LinkedHashMap<>(16, 0.75f, true);
+        this.protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+        // the number of elements is unknown with arbitrary weights, the sketch is bounded instead
+        this.sketch = new FrequencySketch<>((int) Math.min(maxWeight, MAX_SKETCH_SIZE));
+        this.windowMaxWeight = Math.max(1, (long) (maxWeight * WINDOW_RATIO));
+        this.mainMaxWeight = Math.max(0, maxWeight - windowMaxWeight);
+        this.protectedMaxWeight = (long) (mainMaxWeight * PROTECTED_RATIO);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Optional<V> get(K key) {
+        V value = data.get(key);
+        recordRead(key);
+        return Optional.ofNullable(value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(K key, V value) {
+        int weight = weigher.weigh(key, value);
+        if (weight > maxWeight) {
+            // would eject everything else and still not fit
+            delete(key);
+            return;
+        }
+
+        boolean inserted = data.put(key, value) == null;
+        writeBuffer.add(new Write<>(key, weight, inserted ? WriteType.ADD : WriteType.UPDATE));
+        maintenance();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean contains(K key) {
+        return data.containsKey(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean delete(K key) {
+        boolean deleted = data.remove(key) != null;
+        if (deleted) {
+            writeBuffer.add(new Write<>(key, 0, WriteType.REMOVE));
+            maintenance();
+        }
+        return deleted;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return data.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getWeight() {
+        policyLock.lock();
+        try {
+            return windowWeight + probationWeight + protectedWeight;
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<K> keys() {
+        return new ArrayList<>(data.keySet());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<K> getHotKeys(int limit) {
+        policyLock.lock();
+        try {
+            drainBuffers();
+            // protected entries have been used repeatedly, the window only once so far
+            List<K> keys = new ArrayList<>(Math.min(limit, data.size()));
+            for (LinkedHashMap<K, Integer> segment : Arrays.asList(protectedSegment, probation, window)) {
+                List<K> segmentKeys = new ArrayList<>(segment.keySet());
+                Collections.reverse(segmentKeys);
+                for (K key : segmentKeys) {
+                    if (keys.size() >= limit) {
+                        return keys;
+                    }
+                    keys.add(key);
+                }
+            }
+            return keys;
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    private void recordRead(K key) {
+        // the buffer is lossy, dropping a few accesses under load barely changes the frequency estimates
+        if (readBufferSize.get() < READ_BUFFER_SIZE) {
+            readBuffer.add(key);
+            readBufferSize.incrementAndGet();
+        }
+
+        if (readBufferSize.get() >= READ_BUFFER_DRAIN_THRESHOLD && policyLock.tryLock()) {
+            try {
+                drainBuffers();
+            } finally {
+                policyLock.unlock();
+            }
+        }
+    }
+
+    // writes always wait for the policy so the cache can not grow beyond its size
+    private void maintenance() {
+        policyLock.lock();
+        try {
+            drainBuffers();
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    // caller must hold policyLock
+    private void drainBuffers() {
+        K read;
+        while ((read = readBuffer.poll()) != null) {
+            readBufferSize.decrementAndGet();
+            onAccess(read);
+        }
+
+        Write<K> write;
+        while ((write = writeBuffer.poll()) != null) {
+            switch (write.type) {
+                case ADD:
+                    onAdd(write.key, write.weight);
+                    break;
+                case UPDATE:
+                    onUpdate(write.key, write.weight);
+                    break;
+                case REMOVE:
+                    removeFromSegments(write.key);
+                    break;
+            }
+        }
+
+        evict();
+    }
+
+    private void onAdd(K key, int weight) {
+        sketch.increment(key);
+        if (data.containsKey(key) && !window.containsKey(key)
+                && !probation.containsKey(key) && !protectedSegment.containsKey(key)) {
+            window.put(key, weight);
+            windowWeight += weight;
+        }
+    }
+
+    private void onUpdate(K key, int weight) {
+        // the weight changes with the value, the entry keeps its place
+        Integer previous;
+        if ((previous = window.replace(key, weight)) != null) {
+            windowWeight += weight - previous;
+        } else if ((previous = probation.replace(key, weight)) != null) {
+            probationWeight += weight - previous;
+        } else if ((previous = protectedSegment.replace(key, weight)) != null) {
+            protectedWeight += weight - previous;
+        }
+        onAccess(key);
+    }
+
+    private void onAccess(K key) {
+        sketch.increment(key);
+        if (window.get(key) != null || protectedSegment.get(key) != null) {
+            // touching moved the entry to the most recently used position
+            return;
+        }
+
+        Integer weight = probation.remove(key);
+        if (weight != null) {
+            // second chance: entries used again while on probation get protected
+            probationWeight -= weight;
+            protectedSegment.put(key, weight);
+            protectedWeight += weight;
+            while (protectedWeight > protectedMaxWeight) {
+                Map.Entry<K, Integer> demoted = removeEldest(protectedSegment);
+                protectedWeight -= demoted.getValue();
+                probation.put(demoted.getKey(), demoted.getValue());
+                probationWeight += demoted.getValue();
+            }
+        }
+    }
+
+    private void removeFromSegments(K key) {
+        Integer weight;
+        if ((weight = window.remove(key)) != null) {
+            windowWeight -= weight;
+        } else if ((weight = probation.remove(key)) != null) {
+            probationWeight -= weight;
+        } else if ((weight = protectedSegment.remove(key)) != null) {
+            protectedWeight -= weight;
+        }
+    }
+
+    private void evict() {
+        while (windowWeight > windowMaxWeight) {
+            Map.Entry<K, Integer> candidate = removeEldest(window);
+            windowWeight -= candidate.getValue();
+            admit(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+    // the candidate either displaces enough less frequently used entries or is evicted itself
+    private void admit(K candidate, int weight) {
+        if (weight > mainMaxWeight) {
+            evictEntry(candidate);
+            return;
+        }
+
+        int candidateFrequency = sketch.frequency(candidate);
+        while (probationWeight + protectedWeight + weight > mainMaxWeight) {
+            boolean fromProbation = !probation.isEmpty();
+            LinkedHashMap<K, Integer> victimSegment = fromProbation ? probation : protectedSegment;
+            Map.Entry<K, Integer> victim = victimSegment.entrySet().iterator().next();
+            if (candidateFrequency <= sketch.frequency(victim.getKey())) {
+                evictEntry(candidate);
+                return;
+            }
+
+            victimSegment.remove(victim.getKey());
+            if (fromProbation) {
+                probationWeight -= victim.getValue();
+            } else {
+                protectedWeight -= victim.getValue();
+            }
+            evictEntry(victim.getKey());
+        }
+
+        probation.put(candidate, weight);
+        probationWeight += weight;
+    }
+
+    private void evictEntry(K key) {
+        data.remove(key);
+        LOG.debug("Ejected element: {}", key);
+    }
+
+    private static <K> Map.Entry<K, Integer> removeEldest(LinkedHashMap<K, Integer> segment) {
+        Iterator<Map.Entry<K, Integer>> iterator = segment.entrySet().iterator();
+        Map.Entry<K, Integer> eldest = iterator.next();
+        Map.Entry<K, Integer> copy = new AbstractMap.SimpleImmutableEntry<>(eldest);
+        iterator.remove();
+        return copy;
+    }
+
+    private enum WriteType {
+        ADD, UPDATE, REMOVE
+    }
+
+    private static final class Write<K> {
+
+        final K key;
+        final int weight;
+        final WriteType type;
+
+        Write(K key, int weight, WriteType type) {
+            this.key = key;
+            this.weight = weight;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Count-min sketch with 4-bit counters.
+     *
+     * All counters are halved once the number of increments reaches ten
+     * times the cache size, which lets old popularity fade out.
+     */
+    private static final class FrequencySketch<K> {
+
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x97cb3127, 0xbc9b7ffb, 0x3d5bbb39, 0x5aa0e5a3};
+
+        private final byte[] counters;
+        private final int width;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int cacheSize) {
+            int width = 16;
+            while (width < Math.max(cacheSize, 1)) {
+                width <<= 1;
+            }
+            this.width = width;
+            this.counters = new byte[DEPTH * width];
+            this.sampleSize = Math.max(10 * cacheSize, 10);
+            this.additions = 0;
+        }
+
+        void increment(K key) {
+            int hash = key.hashCode();
+            boolean added = false;
+            for (int row = 0; row < DEPTH; row++) {
+                int index = indexOf(hash, row);
+                if (counters[index] < MAX_COUNT) {
+                    counters[index]++;
+                    added = true;
+                }
+            }
+
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(K key) {
+            int hash = key.hashCode();
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < DEPTH; row++) {
+                frequency = Math.min(frequency, counters[indexOf(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private int indexOf(int hash, int row) {
+            int h = hash * SEEDS[row];
+            h ^= h >>> 16;
+            return row * width + (h & (width - 1));
+        }
+
+        private void reset() {
+            for (int i = 0; i < counters.length; i++) {
+                counters[i] >>= 1;
+            }
+            additions /= 2;
+        }
+    }
+
+}
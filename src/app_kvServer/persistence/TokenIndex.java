@@ -0,0 +1,167 @@
+package app_kvServer.persistence;
+
+import common.hash.Range;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Index of keys sorted by their position on the hash ring.
+ *
+ * Tokens are computed once when a key is written, so a range query only
+ * touches the keys within the range and does not need to hash any key.
+ */
+final class TokenIndex {
+
+    private final ConcurrentNavigableMap<Integer, Set<String>> keysByToken;
+
+    /**
+     * Default constructor.
+     */
+    TokenIndex() {
+        this.keysByToken = new ConcurrentSkipListMap<>();
+    }
+
+    /**
+     * Add a key to the index.
+     * @param key The key
+     * @param token Ring position of the key
+     */
+    void add(String key, int token) {
+        // sets are copied so that readers never see them change, collisions are rare anyway
+        keysByToken.compute(token, (t, keys) -> {
+            if (keys == null) {
+                return Collections.singleton(key);
+            } else if (keys.contains(key)) {
+                return keys;
+            }
+            Set<String> updated = new HashSet<>(keys);
+            updated.add(key);
+            return Collections.unmodifiableSet(updated);
+        });
+    }
+
+    /**
+     * Remove a key from the index.
+     * @param key The key
+     * @param token Ring position of the key
+     */
+    void remove(String key, int token) {
+        keysByToken.computeIfPresent(token, (t, keys) -> {
+            if (!keys.contains(key)) {
+                return keys;
+            } else if (keys.size() == 1) {
+                return null;
+            }
+            Set<String> updated = new HashSet<>(keys);
+            updated.remove(key);
+            return Collections.unmodifiableSet(updated);
+        });
+    }
+
+    /**
+     * Return all keys.
+     * @return Keys ordered by their ring position
+     */
+    List<String> getKeys() {
+        List<String> keys = new ArrayList<>();
+        addAll(keys, keysByToken.values());
+        return keys;
+    }
+
+    /**
+     * Return all keys within a range of the ring.
+     * @param range The range
+     * @return Keys ordered by their ring position
+     */
+    List<String> getKeys(Range range) {
+        List<String> keys = new ArrayList<>();
+        if (range.getStart() < range.getEnd()) {
+            addAll(keys, keysByToken.subMap(range.getStart(), false, range.getEnd(), true).values());
+        } else {
+            // range wraps around the circle
+            addAll(keys, keysByToken.tailMap(range.getStart(), false).values());
+            addAll(keys, keysByToken.headMap(range.getEnd(), true).values());
+        }
+        return keys;
+    }
+
+    /**
+     * Lazily iterate over the keys within a range of the ring.
+     *
+     * The iterator is weakly consistent: it never fails because of
+     * concurrent modifications, but may or may not reflect them.
+     * @param range The range
+     * @return Iterator over the keys ordered by their ring position
+     */
+    Iterator<String> iterate(Range range) {
+        List<Collection<Set<String>>> sections = new ArrayList<>(2);
+        if (range.getStart() < range.getEnd()) {
+            sections.add(keysByToken.subMap(range.getStart(), false, range.getEnd(), true).values());
+        } else {
+            // range wraps around the circle
+            sections.add(keysByToken.tailMap(range.getStart(), false).values());
+            sections.add(keysByToken.headMap(range.getEnd(), true).values());
+        }
+        return new KeyIterator(sections.iterator());
+    }
+
+    /**
+     * Remove all keys.
+     */
+    void clear() {
+        keysByToken.clear();
+    }
+
+    private static void addAll(List<String> target, Collection<Set<String>> keySets) {
+        for (Set<String> keys : keySets) {
+            target.addAll(keys);
+        }
+    }
+
+
+    // flattens the key sets of several sections of the index
+    private static final class KeyIterator implements Iterator<String> {
+
+        private final Iterator<Collection<Set<String>>> sections;
+        private Iterator<Set<String>> keySets;
+        private Iterator<String> keys;
+
+        KeyIterator(Iterator<Collection<Set<String>>> sections) {
+            this.sections = sections;
+            this.keySets = Collections.emptyIterator();
+            this.keys = Collections.emptyIterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!keys.hasNext()) {
+                if (keySets.hasNext()) {
+                    keys = keySets.next().iterator();
+                } else if (sections.hasNext()) {
+                    keySets = sections.next().iterator();
+                } else {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return keys.next();
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+package app_kvServer.persistence;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only log of deletions.
+ *
+ * A deletion is logged as a tombstone record carrying the time of the
+ * deletion. A key which is written again after its deletion gets an empty
+ * put record, so the latest record of a key tells whether it is deleted.
+ * The log is rewritten with the remaining tombstones once old ones have
+ * been dropped.
+ */
+final class TombstoneLog implements Closeable {
+
+    private static final Logger LOG = LogManager.getLogger(TombstoneLog.class);
+
+    private static final byte[] NO_VALUE = new byte[0];
+
+    private final File file;
+    private FileChannel channel;
+
+    /**
+     * Constructor.
+     * @param file The log file, created if it does not exist
+     * @throws IOException if the log can not be opened
+     */
+    TombstoneLog(File file) throws IOException {
+        this.file = file;
+        this.channel = open();
+    }
+
+    /**
+     * Read the tombstones from the log and cut off an invalid tail.
+     * @return Time of deletion by deleted key
+     * @throws IOException if the log can not be read
+     */
+    synchronized Map<String, Long> load() throws IOException {
+        Map<String, Long> tombstones = new HashMap<>();
+        try (LogRecord.Reader reader = new LogRecord.Reader(file)) {
+            LogRecord record;
+            while ((record = reader.next()) != null) {
+                if (record.isTombstone()) {
+                    tombstones.put(record.key, record.timestamp);
+                } else {
+                    tombstones.remove(record.key);
+                }
+            }
+
+            if (reader.isCorrupt()) {
+                LOG.warn("Tombstone log {} has an invalid tail after offset {}, truncating.",
+                        file, reader.getPosition());
+                channel.truncate(reader.getPosition());
+            }
+        }
+        return tombstones;
+    }
+
+    /**
+     * Log the deletion of a key.
+     * @param key The key
+     * @param timestamp Time of the deletion in milliseconds
+     * @throws IOException if the record can not be written
+     */
+    synchronized void delete(String key, long timestamp) throws IOException {
+        write(channel, LogRecord.tombstone(key, timestamp).encode());
+    }
+
+    /**
+     * Log that a deleted key has been written again.
+     * @param key The key
+     * @param timestamp Time of the write in milliseconds
+     * @throws IOException if the record can not be written
+     */
+    synchronized void revive(String key, long timestamp) throws IOException {
+        write(channel, LogRecord.put(key, NO_VALUE, timestamp).encode());
+    }
+
+    /**
+     * Replace the log by one containing only the given tombstones.
+     *
+     * Callers must update the tombstones before logging a change, so a
+     * change which is logged while the log is rewritten is not lost.
+     *
+     * @param tombstones Time of deletion by deleted key
+     * @throws IOException if the log can not be rewritten
+     */
+    synchronized void rewrite(Map<String, Long> tombstones) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        try (FileChannel output = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<String, Long> tombstone : tombstones.entrySet()) {
+                write(output, LogRecord.tombstone(tombstone.getKey(), tombstone.getValue()).encode());
+            }
+            output.force(false);
+        }
+
+        channel.close();
+        Files.move(temporary.toPath(), file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        channel = open();
+    }
+
+    /**
+     * Force the log to stable storage.
+     * @throws IOException if the log can not be synced
+     */
+    synchronized void sync() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private FileChannel open() throws IOException {
+        return FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+}
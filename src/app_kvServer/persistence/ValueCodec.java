@@ -0,0 +1,194 @@
+package app_kvServer.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Converts values to the bytes which are persisted and back.
+ *
+ * Values below a size threshold, and values which do not get smaller, are
+ * stored as they are. Larger values are compressed and stored behind a
+ * header: a 0xFF byte, which never occurs in UTF-8 and therefore marks the
+ * record as encoded, the codec used and the length of the plain value.
+ * Records written before compression was introduced are read unchanged.
+ * Binary values which happen to start with 0xFF are stored behind a header
+ * as well, without compression.
+ *
+ * Values are decoded when they leave the storage engine, so the cache and
+ * the transfer to other nodes carry plain values. The expiry header sits
+ * inside the encoded bytes and has to be read above the cache, and a node
+ * receiving encoded bytes would encode them once more, so keeping them
+ * compressed up to the client reply would need a codec flag in the protocol.
+ *
+ * The codec keeps track of how well the persisted values compress.
+ */
+public class ValueCodec {
+
+    /** Default size in bytes from which on values are compressed. */
+    public static final int DEFAULT_THRESHOLD = 256;
+
+    private static final byte ENCODED_MARKER = (byte) 0xFF;
+    private static final byte CODEC_NONE = 0;
+    private static final byte CODEC_DEFLATE = 1;
+    private static final int HEADER_SIZE = 6;
+
+    private final int threshold;
+    private final LongAdder plainBytes;
+    private final LongAdder storedBytes;
+
+    /**
+     * Default constructor.
+     */
+    public ValueCodec() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Constructor.
+     * @param threshold Size in bytes from which on values are compressed
+     */
+    public ValueCodec(int threshold) {
+        this.threshold = threshold;
+        this.plainBytes = new LongAdder();
+        this.storedBytes = new LongAdder();
+    }
+
+    /**
+     * Encode a value for persistence.
+     * @param value The value
+     * @return Bytes to persist
+     */
+    public byte[] encode(String value) {
+        return encode(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encode a value given as bytes for persistence.
+     * @param plain The value
+     * @return Bytes to persist, the value itself if it is stored as it is
+     */
+    public byte[] encode(byte[] plain) {
+        byte[] stored = plain.length >= threshold ? compress(plain) : plain;
+        if (stored == plain && plain.length > 0 && plain[0] == ENCODED_MARKER) {
+            stored = escape(plain);
+        }
+        plainBytes.add(plain.length);
+        storedBytes.add(stored.length);
+        return stored;
+    }
+
+    /**
+     * Decode a persisted value.
+     * @param stored Persisted bytes
+     * @return The value
+     * @throws PersistenceException if the bytes can not be decoded
+     */
+    public String decode(byte[] stored) throws PersistenceException {
+        return new String(decodeBytes(stored), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decode a persisted value to bytes.
+     * @param stored Persisted bytes
+     * @return The value, the persisted bytes themselves if the value was stored as it is
+     * @throws PersistenceException if the bytes can not be decoded
+     */
+    public byte[] decodeBytes(byte[] stored) throws PersistenceException {
+        return decodePrefix(stored, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Decode only the beginning of a persisted value, a compressed value is only inflated that far.
+     * @param stored Persisted bytes
+     * @param maxLength Maximum number of bytes to decode
+     * @return The first bytes of the value, the whole value if it is not longer
+     * @throws PersistenceException if the bytes can not be decoded
+     */
+    public byte[] decodePrefix(byte[] stored, int maxLength) throws PersistenceException {
+        if (stored.length == 0 || stored[0] != ENCODED_MARKER) {
+            return stored.length <= maxLength ? stored : Arrays.copyOf(stored, maxLength);
+        }
+        if (stored.length >= HEADER_SIZE && stored[1] == CODEC_NONE) {
+            int end = stored.length - HEADER_SIZE <= maxLength ? stored.length : HEADER_SIZE + maxLength;
+            return Arrays.copyOfRange(stored, HEADER_SIZE, end);
+        }
+        if (stored.length < HEADER_SIZE || stored[1] != CODEC_DEFLATE) {
+            throw new PersistenceException("Unknown value encoding.");
+        }
+
+        int length = Math.min(ByteBuffer.wrap(stored, 2, 4).getInt(), maxLength);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored, HEADER_SIZE, stored.length - HEADER_SIZE);
+            byte[] plain = new byte[length];
+            int inflated = 0;
+            while (inflated < length && !inflater.finished()) {
+                int n = inflater.inflate(plain, inflated, length - inflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += n;
+            }
+            if (inflated != length) {
+                throw new PersistenceException("Compressed value is truncated.");
+            }
+            return plain;
+        } catch (DataFormatException e) {
+            throw new PersistenceException("Compressed value is corrupt.", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Return how much smaller the encoded values are than the plain values.
+     * @return Plain size divided by encoded size, 1 if nothing has been encoded yet
+     */
+    public double getCompressionRatio() {
+        long stored = storedBytes.sum();
+        return stored == 0 ? 1.0 : (double) plainBytes.sum() / stored;
+    }
+
+    private static byte[] compress(byte[] plain) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(plain);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(plain.length / 2 + HEADER_SIZE);
+            out.write(ENCODED_MARKER);
+            out.write(CODEC_DEFLATE);
+            out.write(ByteBuffer.allocate(4).putInt(plain.length).array(), 0, 4);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished() && out.size() < plain.length) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+
+            if (!deflater.finished() || out.size() >= plain.length) {
+                // incompressible, the plain value is smaller
+                return plain;
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // a plain value which starts like an encoded one
+    private static byte[] escape(byte[] plain) {
+        return ByteBuffer.allocate(HEADER_SIZE + plain.length)
+                .put(ENCODED_MARKER)
+                .put(CODEC_NONE)
+                .putInt(plain.length)
+                .put(plain)
+                .array();
+    }
+
+}
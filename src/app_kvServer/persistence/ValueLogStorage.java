@@ -0,0 +1,669 @@
+package app_kvServer.persistence;
+
+import common.hash.Range;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps large values out of the storage engine.
+ *
+ * Values above a threshold are appended to a separate value log and the
+ * storage engine only stores a small pointer to them. Engines which rewrite
+ * their data while compacting then move the pointers around instead of the
+ * values themselves.
+ *
+ * Overwritten and deleted values stay in the value log until its garbage is
+ * collected in the background. A write looks up the pointer it replaces and
+ * adds the size of the old record to the garbage of its file. A collection
+ * only reads the closed files in which at least half of the bytes are
+ * garbage: the live values are appended to the active file as they are read,
+ * their pointers are updated and the old file is deleted. The garbage of
+ * files which were there before a restart, and of all files after a range
+ * deletion, is not known, these files are scanned once to find it.
+ *
+ * See:
+ * Lu, L., Pillai, T. S., Arpaci-Dusseau, A. C., & Arpaci-Dusseau, R. H. (2016).
+ * WiscKey: Separating Keys from Values in SSD-conscious Storage.
+ */
+public class ValueLogStorage implements PersistenceService {
+
+    private static final Logger LOG = LogManager.getLogger(ValueLogStorage.class);
+
+    /** Default size in bytes from which values are stored in the value log. */
+    public static final int DEFAULT_THRESHOLD = 4 * 1024;
+
+    /** Default size at which the active value log file is closed and a new one started. */
+    public static final long DEFAULT_MAX_FILE_SIZE = 64L * 1024 * 1024;
+
+    /** Default time between two garbage collections in milliseconds. */
+    public static final long DEFAULT_GC_INTERVAL = 10L * 60 * 1000;
+
+    private static final String FILE_PREFIX = "vlog-";
+    private static final String FILE_SUFFIX = ".log";
+    private static final double GC_GARBAGE_RATIO = 0.5;
+    private static final int MAX_READ_ATTEMPTS = 3;
+
+    // starts every pointer, a smaller value which starts with it goes to the value log as well
+    private static final char POINTER_MARKER = '\u0001';
+
+    private final PersistenceService storage;
+    private final File directory;
+    private final int threshold;
+    private final long maxFileSize;
+    private final ValueCodec codec;
+    private final ConcurrentNavigableMap<Long, ValueFile> files;
+    private final KeyLocks keyLocks;
+    private final Object gcLock;
+    private final ScheduledThreadPoolExecutor gcExecutor;
+
+    // guarded by this
+    private ValueFile activeFile;
+    private long nextFileId;
+
+    /**
+     * Default constructor.
+     * @param storage The storage engine which stores small values and pointers
+     * @param directory The directory where value log files are stored
+     * @throws PersistenceException if existing value log files can not be opened
+     */
+    public ValueLogStorage(PersistenceService storage, File directory) throws PersistenceException {
+        this(storage, directory, DEFAULT_THRESHOLD, DEFAULT_MAX_FILE_SIZE, DEFAULT_GC_INTERVAL, new ValueCodec());
+    }
+
+    /**
+     * Constructor.
+     * @param storage The storage engine which stores small values and pointers
+     * @param directory The directory where value log files are stored
+     * @param threshold Size in bytes from which values are stored in the value log
+     * @param maxFileSize Size in bytes after which a new value log file is started
+     * @param gcIntervalMillis Time between two garbage collections in milliseconds
+     * @param codec Encodes values for persistence
+     * @throws PersistenceException if existing value log files can not be opened
+     */
+    public ValueLogStorage(PersistenceService storage, File directory, int threshold, long maxFileSize,
+                           long gcIntervalMillis, ValueCodec codec) throws PersistenceException {
+        this.storage = storage;
+        this.directory = directory;
+        this.threshold = threshold;
+        this.maxFileSize = maxFileSize;
+        this.codec = codec;
+        this.files = new ConcurrentSkipListMap<>();
+        this.keyLocks = new KeyLocks(KeyLocks.DEFAULT_STRIPES);
+        this.gcLock = new Object();
+        this.nextFileId = 0;
+
+        if (!directory.isDirectory()) {
+            directory.mkdirs();
+        }
+
+        try {
+            File[] existing = directory.listFiles(
+                    (dir, name) -> name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX));
+            if (existing != null) {
+                Arrays.sort(existing, Comparator.comparing(File::getName));
+                for (File file : existing) {
+                    long id = Long.parseLong(file.getName().substring(
+                            FILE_PREFIX.length(), file.getName().length() - FILE_SUFFIX.length()));
+                    files.put(id, new ValueFile(id, file));
+                    nextFileId = Math.max(nextFileId, id + 1);
+                }
+            }
+            synchronized (this) {
+                activeFile = openFile(nextFileId++);
+            }
+        } catch (IOException | NumberFormatException e) {
+            files.values().forEach(ValueFile::close);
+            throw new PersistenceException("Could not open value log in " + directory, e);
+        }
+
+        this.gcExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "value-log-gc");
+            thread.setDaemon(true);
+            return thread;
+        });
+        gcExecutor.scheduleWithFixedDelay(this::collectGarbageQuietly,
+                gcIntervalMillis, gcIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean putBytes(String key, byte[] value) throws PersistenceException {
+        if (value.length < threshold && !isPointer(value)) {
+            synchronized (keyLocks.forKey(key)) {
+                Optional<byte[]> replaced = storage.getBytes(key);
+                boolean inserted = storage.putBytes(key, value);
+                addGarbage(replaced);
+                return inserted;
+            }
+        }
+
+        // the value is written before the pointer, so a stored pointer never refers to a missing value
+        String pointer = append(LogRecord.put(key, codec.encode(value), System.currentTimeMillis()));
+        synchronized (keyLocks.forKey(key)) {
+            Optional<byte[]> replaced = storage.getBytes(key);
+            boolean inserted = storage.put(key, pointer);
+            addGarbage(replaced);
+            return inserted;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Optional<byte[]> getBytes(String key) throws PersistenceException {
+        return resolve(key, storage.getBytes(key));
+    }
+
+    // follows a pointer into the value log, the pointer is read again if the value has been relocated meanwhile
+    private Optional<byte[]> resolve(String key, Optional<byte[]> stored) throws PersistenceException {
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            if (attempt > 0) {
+                stored = storage.getBytes(key);
+            }
+            if (!stored.isPresent() || !isPointer(stored.get())) {
+                return stored;
+            }
+
+            Pointer pointer = Pointer.parse(new String(stored.get(), StandardCharsets.UTF_8));
+            ValueFile file = files.get(pointer.fileId);
+            if (file == null) {
+                // the value has been relocated concurrently, the pointer has already been updated
+                continue;
+            }
+
+            try {
+                LogRecord record = LogRecord.decode(
+                        ByteBuffer.wrap(file.read(pointer.position, pointer.size)), pointer.position);
+                if (record == null || !record.key.equals(key)) {
+                    throw new PersistenceException("Value log entry for key is corrupt: " + key);
+                }
+                return Optional.of(codec.decodeBytes(record.value));
+            } catch (ClosedChannelException e) {
+                LOG.debug("Value log file closed while reading, retrying.", e);
+            } catch (IOException e) {
+                throw new PersistenceException("Could not read value log entry for key.", e);
+            }
+        }
+
+        throw new PersistenceException("Could not read value for key because of concurrent relocations: " + key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean delete(String key) throws PersistenceException {
+        synchronized (keyLocks.forKey(key)) {
+            Optional<byte[]> deleted = storage.getBytes(key);
+            boolean existed = storage.delete(key);
+            addGarbage(deleted);
+            return existed;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean contains(String key) throws PersistenceException {
+        return storage.contains(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys() throws PersistenceException {
+        return storage.getKeys();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys(String namespace) throws PersistenceException {
+        return storage.getKeys(namespace);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getAllKeys() throws PersistenceException {
+        return storage.getAllKeys();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys(Range range) throws PersistenceException {
+        return storage.getKeys(range);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys(String namespace, Range range) throws PersistenceException {
+        return storage.getKeys(namespace, range);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getDeletedKeys(Range range) throws PersistenceException {
+        return storage.getDeletedKeys(range);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int deleteRange(Range range) throws PersistenceException {
+        int deleted = storage.deleteRange(range);
+        if (deleted > 0) {
+            // the pointers are dropped without being read, the next collection has to find their values
+            files.values().forEach(ValueFile::forgetGarbage);
+        }
+        return deleted;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getHotKeys(int limit) {
+        return storage.getHotKeys(limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Cursor iterate(Range range) throws PersistenceException {
+        return iterate(Namespaces.DEFAULT, range, Cursor.DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Cursor iterate(String namespace, Range range, int batchSize) throws PersistenceException {
+        // pointers are resolved batch by batch
+        return storage.iterate(namespace, range, batchSize).transform(this::resolvePointers);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The value log files of the snapshot are placed in a sibling directory
+     * named like the snapshot with a {@code _vlog} suffix, the same way the
+     * value log lives next to the data directory.
+     */
+    @Override
+    public void snapshot(File snapshotDirectory) throws PersistenceException {
+        // collections would delete files the pointers in the snapshot refer to
+        synchronized (gcLock) {
+            storage.snapshot(snapshotDirectory);
+
+            List<ValueFile> sealed;
+            synchronized (this) {
+                try {
+                    if (activeFile.size > 0) {
+                        roll();
+                    }
+                } catch (IOException e) {
+                    throw new PersistenceException("Could not close active value log file.", e);
+                }
+                sealed = sealedFiles();
+            }
+
+            File target = getSnapshotDirectory(snapshotDirectory);
+            try {
+                for (ValueFile file : sealed) {
+                    SnapshotFiles.link(file.file, new File(target, file.file.getName()));
+                }
+            } catch (IOException e) {
+                throw new PersistenceException("Could not add value log file to snapshot.", e);
+            }
+            LOG.info("Added {} value log files to snapshot in {}", sealed.size(), target);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void sync() throws PersistenceException {
+        // values first, so synced pointers never refer to values which are not
+        synchronized (this) {
+            try {
+                activeFile.force();
+            } catch (IOException e) {
+                throw new PersistenceException("Could not sync active value log file.", e);
+            }
+        }
+        storage.sync();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws PersistenceException {
+        gcExecutor.shutdownNow();
+        synchronized (gcLock) {
+            synchronized (this) {
+                try {
+                    activeFile.force();
+                } catch (IOException e) {
+                    LOG.warn("Could not sync active value log file.", e);
+                } finally {
+                    files.values().forEach(ValueFile::close);
+                }
+            }
+        }
+        storage.close();
+    }
+
+    /**
+     * Rewrite the live values of closed value log files which consist of
+     * garbage for the most part, and delete these files.
+     * @return Number of deleted files
+     * @throws PersistenceException if the garbage can not be collected
+     */
+    public int collectGarbage() throws PersistenceException {
+        synchronized (gcLock) {
+            List<ValueFile> sealed;
+            synchronized (this) {
+                sealed = sealedFiles();
+            }
+
+            int collected = 0;
+            long relocated = 0;
+            List<ValueFile> collectable = new ArrayList<>();
+            try {
+                for (ValueFile file : sealed) {
+                    if (!file.isGarbageKnown()) {
+                        countGarbage(file);
+                    }
+                    if (file.size > 0 && (double) file.getGarbage() / file.size < GC_GARBAGE_RATIO) {
+                        continue;
+                    }
+
+                    try (LogRecord.Reader reader = new LogRecord.Reader(file.file, file.size)) {
+                        LogRecord record;
+                        while ((record = reader.next()) != null) {
+                            if (relocate(file, record)) {
+                                relocated++;
+                            }
+                        }
+                    }
+                    collectable.add(file);
+                }
+
+                if (collectable.isEmpty()) {
+                    return 0;
+                }
+
+                // the old files may only go once the relocated values and their pointers are durable
+                sync();
+            } catch (IOException e) {
+                throw new PersistenceException("Could not collect garbage of value log.", e);
+            }
+
+            for (ValueFile file : collectable) {
+                files.remove(file.id);
+                file.retire();
+                collected++;
+            }
+            LOG.info("Collected {} value log files, relocated {} values.", collected, relocated);
+            return collected;
+        }
+    }
+
+    /**
+     * Return the directory in which the value log files of a snapshot are placed.
+     * @param snapshotDirectory The snapshot directory
+     * @return Directory for the value log files
+     */
+    public static File getSnapshotDirectory(File snapshotDirectory) {
+        return new File(snapshotDirectory.getAbsoluteFile().getParentFile(), snapshotDirectory.getName() + "_vlog");
+    }
+
+    private void collectGarbageQuietly() {
+        try {
+            collectGarbage();
+        } catch (PersistenceException e) {
+            LOG.error("Could not collect garbage of value log.", e);
+        }
+    }
+
+    // reads a file whose garbage is not known and sums up the records which are not referenced anymore
+    private void countGarbage(ValueFile file) throws IOException, PersistenceException {
+        long garbage = 0;
+        try (LogRecord.Reader reader = new LogRecord.Reader(file.file, file.size)) {
+            LogRecord record;
+            while ((record = reader.next()) != null) {
+                if (!isReferenced(file, record)) {
+                    garbage += record.size();
+                }
+            }
+            garbage += file.size - reader.getPosition();
+        }
+        file.setGarbage(garbage);
+    }
+
+    // the value log record a replaced or deleted pointer referred to has become garbage
+    private void addGarbage(Optional<byte[]> replaced) throws PersistenceException {
+        if (!replaced.isPresent() || !isPointer(replaced.get())) {
+            return;
+        }
+        Pointer pointer = Pointer.parse(new String(replaced.get(), StandardCharsets.UTF_8));
+        ValueFile file = files.get(pointer.fileId);
+        if (file != null) {
+            file.addGarbage(pointer.size);
+        }
+    }
+
+    private boolean isReferenced(ValueFile file, LogRecord record) throws PersistenceException {
+        Optional<String> stored = storage.get(record.key);
+        return stored.isPresent() && stored.get().equals(Pointer.format(file.id, record.position, record.size()));
+    }
+
+    // moves a value to the active file unless the key has been updated in the meantime
+    private boolean relocate(ValueFile file, LogRecord record) throws PersistenceException {
+        synchronized (keyLocks.forKey(record.key)) {
+            if (!isReferenced(file, record)) {
+                return false;
+            }
+            storage.put(record.key, append(record));
+            return true;
+        }
+    }
+
+    private synchronized String append(LogRecord record) throws PersistenceException {
+        try {
+            if (activeFile.size >= maxFileSize) {
+                roll();
+            }
+            long position = activeFile.append(record.encode());
+            return Pointer.format(activeFile.id, position, record.size());
+        } catch (IOException e) {
+            throw new PersistenceException("Could not append to value log.", e);
+        }
+    }
+
+    // called with lock held
+    private void roll() throws IOException {
+        activeFile.force();
+        activeFile = openFile(nextFileId++);
+        LOG.debug("Rolled over to value log file {}.", activeFile.file);
+    }
+
+    // called with lock held
+    private List<ValueFile> sealedFiles() {
+        List<ValueFile> sealed = new ArrayList<>(files.values());
+        sealed.remove(activeFile);
+        return sealed;
+    }
+
+    private ValueFile openFile(long id) throws IOException {
+        ValueFile file = new ValueFile(id, new File(directory, String.format("%s%010d%s", FILE_PREFIX, id, FILE_SUFFIX)));
+        files.put(id, file);
+        return file;
+    }
+
+    private List<Cursor.Entry> resolvePointers(List<Cursor.Entry> batch) throws PersistenceException {
+        List<Cursor.Entry> resolved = new ArrayList<>(batch.size());
+        for (Cursor.Entry entry : batch) {
+            if (!isPointer(entry.getValue())) {
+                resolved.add(entry);
+                continue;
+            }
+            Optional<byte[]> value = resolve(entry.getKey(), Optional.of(entry.getValue()));
+            if (value.isPresent()) {
+                resolved.add(new Cursor.Entry(entry.getKey(), value.get(), entry.getTimeToLive()));
+            }
+        }
+        return resolved;
+    }
+
+    private static boolean isPointer(byte[] stored) {
+        return stored.length > 0 && stored[0] == POINTER_MARKER;
+    }
+
+    // location of a value log record, stored in place of the value
+    private static final class Pointer {
+
+        final long fileId;
+        final long position;
+        final int size;
+
+        private Pointer(long fileId, long position, int size) {
+            this.fileId = fileId;
+            this.position = position;
+            this.size = size;
+        }
+
+        static String format(long fileId, long position, int size) {
+            return POINTER_MARKER + Long.toString(fileId) + ":" + position + ":" + size;
+        }
+
+        static Pointer parse(String stored) throws PersistenceException {
+            String[] parts = stored.substring(1).split(":");
+            try {
+                return new Pointer(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Integer.parseInt(parts[2]));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new PersistenceException("Invalid value log pointer: " + stored, e);
+            }
+        }
+    }
+
+    // a single value log file, only the active file is appended to
+    private static final class ValueFile {
+
+        final long id;
+        final File file;
+        private final FileChannel channel;
+        private final AtomicLong garbage;
+        private volatile boolean garbageKnown;
+        volatile long size;
+
+        ValueFile(long id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = channel.size();
+            this.garbage = new AtomicLong();
+            // a new file has no garbage, an existing one may have any
+            this.garbageKnown = size == 0;
+        }
+
+        void addGarbage(long bytes) {
+            garbage.addAndGet(bytes);
+        }
+
+        long getGarbage() {
+            return garbage.get();
+        }
+
+        boolean isGarbageKnown() {
+            return garbageKnown;
+        }
+
+        void setGarbage(long bytes) {
+            garbage.set(bytes);
+            garbageKnown = true;
+        }
+
+        void forgetGarbage() {
+            garbageKnown = false;
+        }
+
+        long append(ByteBuffer buffer) throws IOException {
+            long position = size;
+            long offset = position;
+            while (buffer.hasRemaining()) {
+                offset += channel.write(buffer, offset);
+            }
+            size = offset;
+            return position;
+        }
+
+        byte[] read(long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position + buffer.position());
+                if (read < 0) {
+                    throw new IOException("Unexpected end of value log file " + file);
+                }
+            }
+            return buffer.array();
+        }
+
+        void force() throws IOException {
+            channel.force(false);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.warn("Could not close value log file " + file, e);
+            }
+        }
+
+        void retire() {
+            close();
+            if (!file.delete()) {
+                LOG.warn("Could not delete value log file {}", file);
+            }
+        }
+    }
+
+}
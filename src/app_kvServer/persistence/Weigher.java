@@ -0,0 +1,19 @@
+package app_kvServer.persistence;
+
+/**
+ * Calculates how much of the cache capacity an element takes up.
+ *
+ * @param <K> Type of the keys
+ * @param <V> Type of the values
+ */
+public interface Weigher<K, V> {
+
+    /**
+     * Return the weight of an element.
+     * @param key The key
+     * @param value The value
+     * @return Weight, must not be negative
+     */
+    int weigh(K key, V value);
+
+}
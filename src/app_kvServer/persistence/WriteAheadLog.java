@@ -0,0 +1,315 @@
+package app_kvServer.persistence;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Append-only log of modifications with group commit.
+ *
+ * Writers hand their record to the log and the first writer that finds no
+ * write in progress becomes the leader: it writes the records of all waiting
+ * writers in one gathering write, optionally followed by a single fsync, and
+ * wakes them up afterwards. Under load many writers therefore share one
+ * system call and one sync.
+ *
+ * The log consists of numbered files. Rolling to a new file seals the
+ * current one, sealed files can be deleted once their content is durable
+ * elsewhere.
+ */
+final class WriteAheadLog implements Closeable {
+
+    private static final Logger LOG = LogManager.getLogger(WriteAheadLog.class);
+
+    private static final String LOG_PREFIX = "wal-";
+    private static final String LOG_SUFFIX = ".log";
+
+    private final File directory;
+    private final boolean syncOnCommit;
+    private final Object lock;
+
+    // guarded by lock
+    private FileChannel channel;
+    private long currentLogId;
+    private long currentSize;
+    private List<ByteBuffer> pending;
+    private long appendedSequence;
+    private long committedSequence;
+    private boolean writing;
+    private IOException failure;
+
+    /**
+     * Constructor.
+     *
+     * Existing log files are left untouched and reported as sealed, a new
+     * file is started for appends.
+     * @param directory Directory holding the log files
+     * @param syncOnCommit True if every commit must be synced before it is acknowledged
+     * @throws IOException if the log can not be opened
+     */
+    WriteAheadLog(File directory, boolean syncOnCommit) throws IOException {
+        this.directory = directory;
+        this.syncOnCommit = syncOnCommit;
+        this.lock = new Object();
+        this.pending = new ArrayList<>();
+        this.appendedSequence = 0;
+        this.committedSequence = 0;
+        this.writing = false;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create log directory: " + directory);
+        }
+
+        List<File> existing = getSealedLogs();
+        this.currentLogId = existing.isEmpty() ? 0 : logId(existing.get(existing.size() - 1)) + 1;
+        this.channel = openLog(currentLogId);
+        this.currentSize = 0;
+    }
+
+    /**
+     * Append a record and wait until it has been committed.
+     *
+     * Depending on the configuration, committed means written to the
+     * operating system or synced to disk.
+     * @param record The record
+     * @throws IOException if the log can not be written
+     */
+    void append(LogRecord record) throws IOException {
+        ByteBuffer encoded = record.encode();
+        long sequence;
+        synchronized (lock) {
+            if (failure != null) {
+                throw new IOException("Log is unusable after an earlier error.", failure);
+            }
+            pending.add(encoded);
+            sequence = ++appendedSequence;
+        }
+        commit(sequence);
+    }
+
+    /**
+     * Force everything that has been committed so far to disk.
+     * @throws IOException if syncing fails
+     */
+    void sync() throws IOException {
+        FileChannel current;
+        synchronized (lock) {
+            current = channel;
+        }
+        try {
+            current.force(false);
+        } catch (ClosedChannelException e) {
+            // rolled in the meantime, rolling syncs the old file
+        }
+    }
+
+    /**
+     * Seal the current log file and continue in a new one.
+     *
+     * Must not be called concurrently with appends.
+     * @throws IOException if the files can not be switched
+     */
+    void roll() throws IOException {
+        synchronized (lock) {
+            awaitIdle();
+            if (currentSize == 0) {
+                return;
+            }
+            channel.force(false);
+            channel.close();
+            currentLogId++;
+            channel = openLog(currentLogId);
+            currentSize = 0;
+        }
+    }
+
+    /**
+     * Return the size of the current log file.
+     * @return Size in bytes
+     */
+    long size() {
+        synchronized (lock) {
+            return currentSize;
+        }
+    }
+
+    /**
+     * Return the number of the log file appends currently go to.
+     * @return Log number, the files with lower numbers are sealed
+     */
+    long getCurrentLogId() {
+        synchronized (lock) {
+            return currentLogId;
+        }
+    }
+
+    /**
+     * Return the sealed log files in the order they have been written.
+     * @return Sealed log files
+     */
+    List<File> getSealedLogs() {
+        return getSealedLogs(0);
+    }
+
+    /**
+     * Return the sealed log files from a given one on, in the order they have been written.
+     * @param firstLogId Number of the first log file
+     * @return Sealed log files
+     */
+    List<File> getSealedLogs(long firstLogId) {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(LOG_PREFIX) && name.endsWith(LOG_SUFFIX));
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        long current;
+        synchronized (lock) {
+            current = channel != null ? currentLogId : Long.MAX_VALUE;
+        }
+        return Arrays.stream(files)
+                .filter(file -> logId(file) >= firstLogId && logId(file) < current)
+                .sorted((a, b) -> Long.compare(logId(a), logId(b)))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Delete all sealed log files.
+     */
+    void deleteSealedLogs() {
+        deleteSealedLogs(Long.MAX_VALUE);
+    }
+
+    /**
+     * Delete the sealed log files before a given one.
+     * @param endLogId Number of the first log file to keep
+     */
+    void deleteSealedLogs(long endLogId) {
+        for (File file : getSealedLogs()) {
+            if (logId(file) >= endLogId) {
+                break;
+            }
+            if (!file.delete()) {
+                LOG.warn("Could not delete log file {}", file);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            awaitIdle();
+            try {
+                channel.force(false);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private void commit(long sequence) throws IOException {
+        List<ByteBuffer> batch;
+        long batchEnd;
+        FileChannel target;
+
+        synchronized (lock) {
+            boolean interrupted = false;
+            while (committedSequence < sequence && writing) {
+                interrupted |= awaitQuietly();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (committedSequence >= sequence) {
+                // a leader has taken care of our record
+                return;
+            }
+            if (failure != null) {
+                throw new IOException("Could not commit to log.", failure);
+            }
+
+            // become the leader for everything that is pending
+            writing = true;
+            batch = pending;
+            batchEnd = appendedSequence;
+            pending = new ArrayList<>();
+            target = channel;
+        }
+
+        long written = 0;
+        IOException error = null;
+        try {
+            ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+            long remaining = batch.stream().mapToLong(ByteBuffer::remaining).sum();
+            while (written < remaining) {
+                written += target.write(buffers);
+            }
+            if (syncOnCommit) {
+                target.force(false);
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+
+        synchronized (lock) {
+            writing = false;
+            currentSize += written;
+            if (error == null) {
+                committedSequence = batchEnd;
+            } else {
+                failure = error;
+            }
+            lock.notifyAll();
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    // caller must hold lock
+    private void awaitIdle() {
+        boolean interrupted = false;
+        while (writing) {
+            interrupted |= awaitQuietly();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // caller must hold lock, returns true if the thread has been interrupted while waiting
+    private boolean awaitQuietly() {
+        try {
+            lock.wait();
+            return false;
+        } catch (InterruptedException e) {
+            // keep waiting, giving up would lose track of the commit
+            return true;
+        }
+    }
+
+    private FileChannel openLog(long id) throws IOException {
+        File file = new File(directory, String.format("%s%010d%s", LOG_PREFIX, id, LOG_SUFFIX));
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static long logId(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(LOG_PREFIX.length(), name.length() - LOG_SUFFIX.length()));
+    }
+
+}
@@ -0,0 +1,417 @@
+package app_kvServer.persistence;
+
+import app_kvServer.FsyncPolicy;
+import common.hash.Range;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Records every modification in a write-ahead log before it is applied to
+ * the wrapped persistence service.
+ *
+ * On startup the log is replayed into the wrapped service, so modifications
+ * which did not make it to disk before a crash are restored. Once the log
+ * grows too large, the wrapped service is synced and the log is truncated
+ * (checkpoint).
+ */
+public class WriteAheadLogStorage implements PersistenceService {
+
+    private static final Logger LOG = LogManager.getLogger(WriteAheadLogStorage.class);
+
+    /** Default size of the log after which a checkpoint is taken. */
+    public static final long DEFAULT_MAX_LOG_SIZE = 64L * 1024 * 1024;
+
+    private final PersistenceService storage;
+    private final WriteAheadLog log;
+    private final long maxLogSize;
+    private final ReadWriteLock checkpointLock;
+    private final Object snapshotLock;
+    private final KeyLocks keyLocks;
+    private final ScheduledThreadPoolExecutor executor;
+    private final AtomicBoolean checkpointScheduled;
+
+    /**
+     * Default constructor.
+     * @param storage The persistence service to apply modifications to
+     * @param logDirectory The directory where log files are stored
+     * @param fsyncPolicy When the log is synced to disk
+     * @param fsyncIntervalMillis Time between syncs if the policy is {@link FsyncPolicy#INTERVAL}
+     * @throws PersistenceException if the log can not be opened or replayed
+     */
+    public WriteAheadLogStorage(PersistenceService storage, File logDirectory,
+                                FsyncPolicy fsyncPolicy, long fsyncIntervalMillis) throws PersistenceException {
+        this(storage, logDirectory, fsyncPolicy, fsyncIntervalMillis, DEFAULT_MAX_LOG_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * @param storage The persistence service to apply modifications to
+     * @param logDirectory The directory where log files are stored
+     * @param fsyncPolicy When the log is synced to disk
+     * @param fsyncIntervalMillis Time between syncs if the policy is {@link FsyncPolicy#INTERVAL}
+     * @param maxLogSize Size in bytes after which a checkpoint is taken
+     * @throws PersistenceException if the log can not be opened or replayed
+     */
+    public WriteAheadLogStorage(PersistenceService storage, File logDirectory, FsyncPolicy fsyncPolicy,
+                                long fsyncIntervalMillis, long maxLogSize) throws PersistenceException {
+        this.storage = storage;
+        this.maxLogSize = maxLogSize;
+        this.checkpointLock = new ReentrantReadWriteLock();
+        this.snapshotLock = new Object();
+        this.keyLocks = new KeyLocks(KeyLocks.DEFAULT_STRIPES);
+        this.checkpointScheduled = new AtomicBoolean(false);
+
+        try {
+            this.log = new WriteAheadLog(logDirectory, fsyncPolicy == FsyncPolicy.ALWAYS);
+        } catch (IOException e) {
+            throw new PersistenceException("Could not open write-ahead log.", e);
+        }
+        replay();
+
+        this.executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "wal-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+            executor.scheduleWithFixedDelay(this::syncLog,
+                    fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean putBytes(String key, byte[] value) throws PersistenceException {
+        boolean inserted;
+        checkpointLock.readLock().lock();
+        try {
+            synchronized (keyLocks.forKey(key)) {
+                append(LogRecord.put(key, value, System.currentTimeMillis()));
+                inserted = storage.putBytes(key, value);
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+
+        checkpointIfNecessary();
+        return inserted;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Optional<byte[]> getBytes(String key) throws PersistenceException {
+        return storage.getBytes(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean delete(String key) throws PersistenceException {
+        boolean deleted;
+        checkpointLock.readLock().lock();
+        try {
+            synchronized (keyLocks.forKey(key)) {
+                if (!storage.contains(key)) {
+                    return false;
+                }
+                append(LogRecord.tombstone(key, System.currentTimeMillis()));
+                deleted = storage.delete(key);
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+
+        checkpointIfNecessary();
+        return deleted;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean contains(String key) throws PersistenceException {
+        return storage.contains(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys() throws PersistenceException {
+        return storage.getKeys();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys(String namespace) throws PersistenceException {
+        return storage.getKeys(namespace);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getAllKeys() throws PersistenceException {
+        return storage.getAllKeys();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys(Range range) throws PersistenceException {
+        return storage.getKeys(range);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys(String namespace, Range range) throws PersistenceException {
+        return storage.getKeys(namespace, range);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getDeletedKeys(Range range) throws PersistenceException {
+        return storage.getDeletedKeys(range);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The deletion is logged as a single record, so a replay drops the range
+     * at the same point of the log as the original deletion did. Writes are
+     * not held back meanwhile, the server no longer accepts writes for a
+     * range it deletes.
+     */
+    @Override
+    public int deleteRange(Range range) throws PersistenceException {
+        int deleted;
+        checkpointLock.readLock().lock();
+        try {
+            append(LogRecord.rangeTombstone(range, System.currentTimeMillis()));
+            deleted = storage.deleteRange(range);
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+
+        checkpointIfNecessary();
+        return deleted;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getHotKeys(int limit) {
+        return storage.getHotKeys(limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Cursor iterate(Range range) throws PersistenceException {
+        return storage.iterate(range);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Cursor iterate(String namespace, Range range, int batchSize) throws PersistenceException {
+        return storage.iterate(namespace, range, batchSize);
+    }
+
+    /**
+     * Write a consistent copy of all persisted data to a directory.
+     *
+     * Modifications are only held back for two brief barriers, each of which
+     * rolls the log. Everything logged before the first barrier has been
+     * applied to the wrapped service, which takes its snapshot in between
+     * while writes continue, so it may contain some of the later writes as
+     * well. The log files written between the barriers are added to the
+     * snapshot, replaying them on restore brings every key to its state at
+     * the second barrier.
+     *
+     * @param directory Directory for the snapshot, must not exist yet
+     * @throws PersistenceException if the wrapped service can not take the snapshot
+     */
+    @Override
+    public void snapshot(File directory) throws PersistenceException {
+        // a checkpoint must not delete the log files before they are linked
+        synchronized (snapshotLock) {
+            long firstLogId = barrier();
+            storage.snapshot(directory);
+            barrier();
+
+            List<File> logs = log.getSealedLogs(firstLogId);
+            File target = getSnapshotDirectory(directory);
+            try {
+                for (File file : logs) {
+                    SnapshotFiles.link(file, new File(target, file.getName()));
+                }
+            } catch (IOException e) {
+                throw new PersistenceException("Could not add write-ahead log file to snapshot.", e);
+            }
+            LOG.info("Added {} write-ahead log files to snapshot in {}", logs.size(), target);
+        }
+    }
+
+    /**
+     * Return the directory in which the write-ahead log files of a snapshot are placed.
+     * @param snapshotDirectory The snapshot directory
+     * @return Directory for the log files
+     */
+    public static File getSnapshotDirectory(File snapshotDirectory) {
+        return new File(snapshotDirectory.getAbsoluteFile().getParentFile(), snapshotDirectory.getName() + "_wal");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void sync() throws PersistenceException {
+        try {
+            log.sync();
+        } catch (IOException e) {
+            throw new PersistenceException("Could not sync write-ahead log.", e);
+        }
+    }
+
+    /**
+     * Make all logged modifications durable in the wrapped persistence
+     * service and truncate the log.
+     * @throws PersistenceException if the wrapped service can not be synced
+     */
+    public void checkpoint() throws PersistenceException {
+        long endLogId = barrier();
+        storage.sync();
+        synchronized (snapshotLock) {
+            // later log files may have been rolled by a snapshot, their writes are not synced yet
+            log.deleteSealedLogs(endLogId);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws PersistenceException {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            checkpoint();
+        } finally {
+            try {
+                log.close();
+            } catch (IOException e) {
+                LOG.warn("Could not close write-ahead log.", e);
+            }
+            storage.close();
+        }
+    }
+
+    // waits for in-flight modifications and rolls the log, returns the number of the new log file
+    private long barrier() throws PersistenceException {
+        checkpointLock.writeLock().lock();
+        try {
+            log.roll();
+            return log.getCurrentLogId();
+        } catch (IOException e) {
+            throw new PersistenceException("Could not roll write-ahead log.", e);
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    private void append(LogRecord record) throws PersistenceException {
+        try {
+            log.append(record);
+        } catch (IOException e) {
+            throw new PersistenceException("Could not write to write-ahead log.", e);
+        }
+    }
+
+    private void replay() throws PersistenceException {
+        List<File> logs = log.getSealedLogs();
+        if (logs.isEmpty()) {
+            return;
+        }
+
+        long replayed = 0;
+        for (File file : logs) {
+            try (LogRecord.Reader reader = new LogRecord.Reader(file)) {
+                LogRecord record;
+                while ((record = reader.next()) != null) {
+                    if (record.isRangeTombstone()) {
+                        storage.deleteRange(record.range());
+                    } else if (record.isTombstone()) {
+                        storage.delete(record.key);
+                    } else {
+                        storage.putBytes(record.key, record.value);
+                    }
+                    replayed++;
+                }
+                if (reader.isCorrupt()) {
+                    // only the tail of a log can be torn by a crash
+                    LOG.warn("Ignoring corrupt tail of log file {} at offset {}", file, reader.getPosition());
+                }
+            } catch (IOException e) {
+                throw new PersistenceException("Could not replay write-ahead log.", e);
+            }
+        }
+
+        storage.sync();
+        log.deleteSealedLogs();
+        LOG.info("Replayed {} records from {} log files.", replayed, logs.size());
+    }
+
+    private void checkpointIfNecessary() {
+        if (log.size() >= maxLogSize && checkpointScheduled.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                try {
+                    checkpoint();
+                } catch (PersistenceException e) {
+                    LOG.error("Could not checkpoint write-ahead log.", e);
+                } finally {
+                    checkpointScheduled.set(false);
+                }
+            });
+        }
+    }
+
+    private void syncLog() {
+        try {
+            log.sync();
+        } catch (IOException e) {
+            LOG.error("Could not sync write-ahead log.", e);
+        }
+    }
+
+}
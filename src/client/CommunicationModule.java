@@ -38,6 +38,7 @@ public class CommunicationModule {
 
     private final HostAndPort address;
     private final boolean reconnecting;
+    private final ThreadFactory threadFactory;
     private final AtomicBoolean terminated;
     private final AtomicBoolean restarting;
     private volatile boolean running;
@@ -66,7 +67,31 @@ public class CommunicationModule {
      * @param bufferCapacity Maximum number of messages in the outgoing buffer
      */
     public CommunicationModule(HostAndPort address, boolean reconnecting, int bufferCapacity) {
+        this(address, reconnecting, bufferCapacity, ContextPreservingThread.PLATFORM_THREADS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param address Server address to connect against
+     * @param threadFactory Creates the reader and writer threads
+     */
+    public CommunicationModule(HostAndPort address, ThreadFactory threadFactory) {
+        this(address, true, DEFAULT_BUFFER_SIZE, threadFactory);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param address Server address to connect against
+     * @param reconnecting If true, module tries to reestablish lost connections
+     * @param bufferCapacity Maximum number of messages in the outgoing buffer
+     * @param threadFactory Creates the reader and writer threads
+     */
+    public CommunicationModule(HostAndPort address, boolean reconnecting, int bufferCapacity,
+                               ThreadFactory threadFactory) {
         this.address = address;
+        this.threadFactory = threadFactory;
         this.reconnecting = reconnecting;
         this.terminated = new AtomicBoolean(false);
         this.restarting = new AtomicBoolean(false);
@@ -179,6 +204,7 @@ public class CommunicationModule {
         private final OutputStream outputStream;
 
         public WriterThread(OutputStream outputStream) {
+            super(threadFactory);
             this.outputStream = outputStream;
         }
 
@@ -226,6 +252,7 @@ public class CommunicationModule {
         private final RecordReader recordReader;
 
         public ReaderThread(InputStream inputStream) {
+            super(threadFactory);
             this.inputStream = inputStream;
             this.recordReader = new RecordReader(inputStream, RECORD_SEPARATOR);
         }
@@ -307,7 +334,7 @@ public class CommunicationModule {
         }
 
         // make sure both old worker threads are done
-        if (writerThread != null && writerThread != Thread.currentThread()) {
+        if (writerThread != null && !writerThread.isCurrentThread()) {
             try {
                 writerThread.join();
             } catch (InterruptedException e) {
@@ -315,7 +342,7 @@ public class CommunicationModule {
             }
         }
 
-        if (readerThread != null && readerThread != Thread.currentThread()) {
+        if (readerThread != null && !readerThread.isCurrentThread()) {
             try {
                 readerThread.join();
             } catch (InterruptedException e) {
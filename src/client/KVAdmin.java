@@ -117,6 +117,16 @@ public class KVAdmin implements KVAdminInterface {
         return executeGenericReplySynchronously(moveDataRequest);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public GenericResponse createSnapshot(String directory) throws ClientException {
+        ensureConnected();
+
+        return executeGenericReplySynchronously(new CreateSnapshotRequest(directory));
+    }
+
     /**
      * {@inheritDoc}
      */
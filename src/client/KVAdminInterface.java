@@ -86,6 +86,19 @@ public interface KVAdminInterface extends KVInterface {
      */
     GenericResponse moveData(HostAndPort destination, Range keyRange) throws ClientException;
 
+    /**
+     * Requests the server to take a consistent snapshot of its data without
+     * stopping it, e.g. for a backup or to bootstrap a new node from it.
+     *
+     * The snapshot is taken in the background as a maintenance task, it is
+     * complete once {@link #getMaintenanceStatus()} reports no active task.
+     *
+     * @param directory Directory on the server's host to write the snapshot to, must not exist yet
+     * @return Server response, carrying the absolute path of the snapshot on success
+     * @throws ClientException if something goes wrong
+     */
+    GenericResponse createSnapshot(String directory) throws ClientException;
+
     /**
      * Requests the server for the status of possible running maintenance tasks.
      *
@@ -84,6 +84,41 @@ public class KVStore implements KVCommInterface {
         return reply;
     }
 
+    /**
+     * Inserts a key-value pair which expires after a given time.
+     *
+     * @param key the key that identifies the given value.
+     * @param value the value that is indexed by the given key.
+     * @param timeToLive time in milliseconds after which the value is deleted, 0 if it does not expire.
+     * @return a message that confirms the insertion of the tuple or an error.
+     * @throws ClientException if put command cannot be executed.
+     */
+    public KVMessage put(String key, String value, long timeToLive) throws ClientException {
+        ensureConnected();
+
+        KVMessage outgoing = new DefaultKVMessage(key, value, KVMessage.StatusType.PUT, timeToLive);
+        return sendAndGetReply(outgoing);
+    }
+
+    /**
+     * Inserts a key-value pair whose value is given as bytes, e.g. binary data.
+     *
+     * The value is sent as it is. The reply to a later {@link #get(String)}
+     * returns it unchanged through {@link KVMessage#getValueBytes()}.
+     *
+     * @param key the key that identifies the given value.
+     * @param value the value that is indexed by the given key.
+     * @param timeToLive time in milliseconds after which the value is deleted, 0 if it does not expire.
+     * @return a message that confirms the insertion of the tuple or an error.
+     * @throws ClientException if put command cannot be executed.
+     */
+    public KVMessage putBytes(String key, byte[] value, long timeToLive) throws ClientException {
+        ensureConnected();
+
+        KVMessage outgoing = DefaultKVMessage.ofBytes(key, value, KVMessage.StatusType.PUT, timeToLive);
+        return sendAndGetReply(outgoing);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -48,15 +48,17 @@ public final class Protocol {
      * @return Binary encoded message
      */
     public static byte[] encode(Message msg, long correlationNumber) {
+        if (msg instanceof KVMessage) {
+            return encodeKVMessage((KVMessage) msg, correlationNumber);
+        }
+
         StringBuilder sb = new StringBuilder();
 
         // write correlation number
         sb.append(correlationNumber);
         sb.append(UNIT_SEPARATOR);
 
-        if (msg instanceof KVMessage) {
-            encodeKVMessage(sb, (KVMessage) msg);
-        } else if (msg instanceof AdminMessage) {
+        if (msg instanceof AdminMessage) {
             encodeAdminMessage(sb, (AdminMessage) msg);
         } else if (msg instanceof ExceptionMessage) {
             encodeExceptionMessage(sb, (ExceptionMessage) msg);
@@ -80,20 +82,24 @@ public final class Protocol {
      */
     public static CorrelatedMessage decode(byte[] data) throws ProtocolException {
         try {
-            Scanner scanner = new Scanner(new String(data, StandardCharsets.UTF_8)).
-                    useDelimiter(Character.toString(UNIT_SEPARATOR));
+            FieldReader fields = new FieldReader(data);
 
             // correlation number
-            long correlationNumber = Long.parseLong(scanner.next());
+            long correlationNumber = Long.parseLong(fields.next());
 
             // content type
-            byte contentType = Byte.parseByte(scanner.next());
+            byte contentType = Byte.parseByte(fields.next());
 
             if (contentType == ContentType.KV_MESSAGE) {
-                KVMessage kvMessage = decodeKVMessage(scanner);
+                // read from the bytes, so the value is never converted to a string
+                KVMessage kvMessage = decodeKVMessage(fields);
                 return new CorrelatedMessage(correlationNumber, kvMessage);
+            }
 
-            } else if (contentType == ContentType.EXCEPTION) {
+            Scanner scanner = new Scanner(fields.remainder()).
+                    useDelimiter(Character.toString(UNIT_SEPARATOR));
+
+            if (contentType == ContentType.EXCEPTION) {
                 ExceptionMessage exceptionMessage = decodeExceptionMessage(scanner);
                 return new CorrelatedMessage(correlationNumber, exceptionMessage);
 
@@ -117,7 +123,14 @@ public final class Protocol {
         }
     }
 
-    private static void encodeKVMessage(StringBuilder sb, KVMessage msg) {
+    // the value is copied into the message as it is, everything else is text
+    private static byte[] encodeKVMessage(KVMessage msg, long correlationNumber) {
+        StringBuilder sb = new StringBuilder();
+
+        // correlation number
+        sb.append(correlationNumber);
+        sb.append(UNIT_SEPARATOR);
+
         // content type
         sb.append(ContentType.KV_MESSAGE);
         sb.append(UNIT_SEPARATOR);
@@ -132,13 +145,27 @@ public final class Protocol {
             sb.append(msg.getKey());
         }
         sb.append(UNIT_SEPARATOR);
+        byte[] head = sb.toString().getBytes(StandardCharsets.UTF_8);
 
         // value
-        if (msg.getValue() != null) {
-            // TODO: escape unit separator
-            sb.append(msg.getValue());
-        }
+        // TODO: escape unit separator
+        byte[] value = msg.getValueBytes() != null ? msg.getValueBytes() : new byte[0];
+
+        sb.setLength(0);
         sb.append(UNIT_SEPARATOR);
+
+        // optional time to live, left away if the value does not expire
+        if (msg.getTimeToLive() > 0) {
+            sb.append(msg.getTimeToLive());
+            sb.append(UNIT_SEPARATOR);
+        }
+        byte[] tail = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+        byte[] encoded = new byte[head.length + value.length + tail.length];
+        System.arraycopy(head, 0, encoded, 0, head.length);
+        System.arraycopy(value, 0, encoded, head.length, value.length);
+        System.arraycopy(tail, 0, encoded, head.length + value.length, tail.length);
+        return encoded;
     }
 
     private static void encodeExceptionMessage(StringBuilder sb, ExceptionMessage msg) {
@@ -186,6 +213,8 @@ public final class Protocol {
             encodeInitiateStreamResponse(sb, (InitiateStreamResponse) msg);
         } else if (msg instanceof StreamCompleteMessage) {
             encodeStreamCompleteMessage(sb, (StreamCompleteMessage) msg);
+        } else if (msg instanceof CreateSnapshotRequest) {
+            encodeCreateSnapshotRequest(sb, (CreateSnapshotRequest) msg);
         } else {
             throw new AssertionError("Unsupported AdminMessage: " + msg.getClass());
         }
@@ -308,6 +337,14 @@ public final class Protocol {
         sb.append(UNIT_SEPARATOR);
     }
 
+    private static void encodeCreateSnapshotRequest(StringBuilder sb, CreateSnapshotRequest req) {
+        sb.append(CreateSnapshotRequest.TYPE_CODE);
+        sb.append(UNIT_SEPARATOR);
+
+        sb.append(req.getDirectory());
+        sb.append(UNIT_SEPARATOR);
+    }
+
     private static void encodeMRMessage(StringBuilder sb, MRMessage msg) {
         sb.append(ContentType.MAP_REDUCE);
         sb.append(UNIT_SEPARATOR);
@@ -431,24 +468,27 @@ public final class Protocol {
         sb.append(UNIT_SEPARATOR);
     }
 
-    private static KVMessage decodeKVMessage(Scanner scanner) {
+    private static KVMessage decodeKVMessage(FieldReader fields) {
         // operation type
-        byte opCode = Byte.parseByte(scanner.next());
+        byte opCode = Byte.parseByte(fields.next());
         KVMessage.StatusType operationType = STATUS_BY_OPCODE.get(opCode);
 
         // key
-        String key = scanner.next();
+        String key = fields.next();
         if (key.length() == 0) {
             key = null;
         }
 
         // value
-        String value = scanner.next();
-        if (value.length() == 0) {
+        byte[] value = fields.nextBytes();
+        if (value.length == 0) {
             value = null;
         }
 
-        return new DefaultKVMessage(key, value, operationType);
+        // time to live
+        long timeToLive = fields.hasNext() ? Long.parseLong(fields.next()) : 0;
+
+        return DefaultKVMessage.ofBytes(key, value, operationType, timeToLive);
     }
 
     private static ExceptionMessage decodeExceptionMessage(Scanner scanner) {
@@ -523,6 +563,10 @@ public final class Protocol {
             Range range = decodeRange(scanner.next());
 
             return new StreamCompleteMessage(streamId, range);
+        } else if (type == CreateSnapshotRequest.TYPE_CODE) {
+            String directory = scanner.next();
+
+            return new CreateSnapshotRequest(directory);
         } else {
             throw new ProtocolException("Unknown admin message type: " + type);
         }
@@ -711,4 +755,51 @@ public final class Protocol {
                 .collect(Collectors.toList());
     }
 
+    // splits an encoded message into its fields without converting all of it to a string first
+    private static final class FieldReader {
+
+        private final byte[] data;
+        // index of the separator in front of the next field
+        private int position;
+
+        FieldReader(byte[] data) {
+            this.data = data;
+            this.position = -1;
+        }
+
+        boolean hasNext() {
+            return position + 1 < data.length;
+        }
+
+        String next() {
+            int start = position + 1;
+            int end = nextSeparator(start);
+            return new String(data, start, end - start, StandardCharsets.UTF_8);
+        }
+
+        byte[] nextBytes() {
+            int start = position + 1;
+            int end = nextSeparator(start);
+            return Arrays.copyOfRange(data, start, end);
+        }
+
+        // the rest of the message, starting with the separator in front of the next field
+        String remainder() {
+            int start = Math.min(position, data.length);
+            return new String(data, start, data.length - start, StandardCharsets.UTF_8);
+        }
+
+        private int nextSeparator(int start) {
+            if (start > data.length) {
+                throw new NoSuchElementException();
+            }
+            int end = start;
+            while (end < data.length && data[end] != UNIT_SEPARATOR) {
+                end++;
+            }
+            position = end;
+            return end;
+        }
+    }
+
 }
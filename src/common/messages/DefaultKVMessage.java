@@ -1,15 +1,25 @@
 package common.messages;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * Default key,value message.
  *
  * This is the principal data structure for this application.
+ *
+ * The value is kept in the form it was created with, as string or as UTF-8
+ * bytes, and only converted when the other form is asked for. A value which
+ * is passed through as bytes is never decoded.
  */
 public class DefaultKVMessage implements KVMessage {
 
     private final String key;
-    private final String value;
     private final StatusType status;
+    private final long timeToLive;
+
+    // at least one of them is set unless there is no value
+    private volatile String value;
+    private volatile byte[] valueBytes;
 
     /**
      * Default constructor.
@@ -18,9 +28,38 @@ public class DefaultKVMessage implements KVMessage {
      * @param status Status code
      */
     public DefaultKVMessage(String key, String value, StatusType status) {
+        this(key, value, status, 0);
+    }
+
+    /**
+     * Constructor.
+     * @param key Key
+     * @param value Value
+     * @param status Status code
+     * @param timeToLive Time in milliseconds after which the value expires, 0 if it does not
+     */
+    public DefaultKVMessage(String key, String value, StatusType status, long timeToLive) {
+        this(key, value, null, status, timeToLive);
+    }
+
+    private DefaultKVMessage(String key, String value, byte[] valueBytes, StatusType status, long timeToLive) {
         this.key = key;
         this.value = value;
+        this.valueBytes = valueBytes;
         this.status = status;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Create a message whose value is given as UTF-8 bytes.
+     * @param key Key
+     * @param value Value, the array is not copied and must not be changed afterwards
+     * @param status Status code
+     * @param timeToLive Time in milliseconds after which the value expires, 0 if it does not
+     * @return The message
+     */
+    public static DefaultKVMessage ofBytes(String key, byte[] value, StatusType status, long timeToLive) {
+        return new DefaultKVMessage(key, null, value, status, timeToLive);
     }
 
     /**
@@ -38,9 +77,27 @@ public class DefaultKVMessage implements KVMessage {
      */
     @Override
     public String getValue() {
+        String value = this.value;
+        if (value == null && valueBytes != null) {
+            value = new String(valueBytes, StandardCharsets.UTF_8);
+            this.value = value;
+        }
         return value;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] getValueBytes() {
+        byte[] valueBytes = this.valueBytes;
+        if (valueBytes == null && value != null) {
+            valueBytes = value.getBytes(StandardCharsets.UTF_8);
+            this.valueBytes = valueBytes;
+        }
+        return valueBytes;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -49,12 +106,20 @@ public class DefaultKVMessage implements KVMessage {
         return status;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public String toString() {
-        return String.format("<%s, %s, %s>", key, value, status);
+        return String.format("<%s, %s, %s>", key, getValue(), status);
     }
 
-}
\ No newline at end of file
+}
@@ -1,5 +1,7 @@
 package common.messages;
 
+import java.nio.charset.StandardCharsets;
+
 public interface KVMessage extends Message {
 
     /**
@@ -60,10 +62,25 @@ public interface KVMessage extends Message {
      */
     String getValue();
 
+    /**
+     * @return the value that is associated with this message as UTF-8 bytes,
+     * null if not value is associated.
+     */
+    default byte[] getValueBytes() {
+        String value = getValue();
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
     /**
      * @return a status string that is used to identify request types,
      * response types and error types associated to the message.
      */
     StatusType getStatus();
 
+    /**
+     * @return time in milliseconds after which the value of a PUT expires,
+     * 0 if it does not expire.
+     */
+    long getTimeToLive();
+
 }
\ No newline at end of file
@@ -0,0 +1,29 @@
+package common.messages.admin;
+
+/**
+ * Request the server to take a consistent snapshot of its data while it keeps serving requests.
+ */
+public class CreateSnapshotRequest extends AdminMessage {
+
+    /** The type code for serialization. */
+    public static final byte TYPE_CODE = 0x0E;
+
+    private final String directory;
+
+    /**
+     * Constructor.
+     * @param directory Directory on the server's host to write the snapshot to, must not exist yet
+     */
+    public CreateSnapshotRequest(String directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Return the directory to write the snapshot to.
+     * @return Path on the server's host
+     */
+    public String getDirectory() {
+        return directory;
+    }
+
+}
@@ -2,16 +2,145 @@ package common.utils;
 
 import org.apache.logging.log4j.ThreadContext;
 
+import java.lang.reflect.Method;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ThreadFactory;
 
 /**
- * Simple thread extension that inherits the Log4J thread context from the parent thread-
+ * Simple thread replacement that inherits the Log4J thread context from the parent thread-
  *
  * Theoretically Log4J has its own mechanism for this, but we don't get it to work.
+ *
+ * The thread itself is created by a {@link ThreadFactory} when it is started, which can
+ * create platform threads or virtual threads. A virtual thread can not be subclassed, so
+ * this class is not a {@link Thread} but offers the lifecycle methods we use and passes
+ * them on to the thread which runs it.
  */
-public class ContextPreservingThread extends Thread {
+public class ContextPreservingThread implements Runnable {
+
+    /** Creates platform threads. */
+    public static final ThreadFactory PLATFORM_THREADS = Thread::new;
 
     private final Map<String, String> parentContext = ThreadContext.getContext();
+    private final ThreadFactory threadFactory;
+    private final Runnable task;
+
+    private volatile Thread thread;
+
+    /**
+     * Default constructor, the subclass implements {@link #run()} and runs on a platform thread.
+     */
+    public ContextPreservingThread() {
+        this(PLATFORM_THREADS);
+    }
+
+    /**
+     * Constructor, the subclass implements {@link #run()}.
+     * @param threadFactory Creates the thread to run on
+     */
+    public ContextPreservingThread(ThreadFactory threadFactory) {
+        this(threadFactory, null);
+    }
+
+    /**
+     * Constructor for running a task with the thread context of the parent thread.
+     * @param threadFactory Creates the thread to run on
+     * @param task The task
+     */
+    public ContextPreservingThread(ThreadFactory threadFactory, Runnable task) {
+        this.threadFactory = threadFactory;
+        this.task = task;
+    }
+
+    /**
+     * Return a factory for virtual threads.
+     *
+     * Virtual threads need Java 21. We still compile for Java 8, so they are looked up by reflection.
+     *
+     * @return The factory or nothing if the runtime does not support virtual threads
+     */
+    public static Optional<ThreadFactory> virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return Optional.of((ThreadFactory) factory.invoke(builder));
+        } catch (ReflectiveOperationException e) {
+            // not there or still a preview feature on this runtime
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Run the task given to the constructor, subclasses override this.
+     */
+    @Override
+    public void run() {
+        setUpThreadContext();
+        if (task != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Start running on a new thread.
+     * @throws IllegalThreadStateException If the thread has already been started
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            throw new IllegalThreadStateException("Thread has already been started.");
+        }
+        Thread thread = threadFactory.newThread(this);
+        this.thread = thread;
+        thread.start();
+    }
+
+    /**
+     * Interrupt the thread if it has been started.
+     */
+    public void interrupt() {
+        Thread thread = this.thread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Return whether the thread has been interrupted.
+     * @return True if interrupted
+     */
+    public boolean isInterrupted() {
+        Thread thread = this.thread;
+        return thread != null && thread.isInterrupted();
+    }
+
+    /**
+     * Return whether the thread has been started and not finished yet.
+     * @return True if alive
+     */
+    public boolean isAlive() {
+        Thread thread = this.thread;
+        return thread != null && thread.isAlive();
+    }
+
+    /**
+     * Wait for the thread to finish, returns at once if it has not been started.
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public void join() throws InterruptedException {
+        Thread thread = this.thread;
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Return whether this thread is the one which is currently running.
+     * @return True if called from within this thread
+     */
+    public boolean isCurrentThread() {
+        return Thread.currentThread() == thread;
+    }
 
     protected void setUpThreadContext() {
         ThreadContext.putAll(parentContext);
@@ -33,6 +33,14 @@ public class AllTests {
         clientSuite.addTestSuite(RecordReaderTest.class);
         clientSuite.addTestSuite(ProtocolTest.class);
         clientSuite.addTestSuite(DiskStorageTest.class);
+        clientSuite.addTestSuite(LogStructuredStorageTest.class);
+        clientSuite.addTestSuite(LSMTreeStorageTest.class);
+        clientSuite.addTestSuite(WriteAheadLogTest.class);
+        clientSuite.addTestSuite(ExpiringStorageTest.class);
+        clientSuite.addTestSuite(AsyncPersistenceServiceTest.class);
+        clientSuite.addTestSuite(PartitionedStorageTest.class);
+        clientSuite.addTestSuite(EventLoopServerTest.class);
+        clientSuite.addTestSuite(ContextPreservingThreadTest.class);
         clientSuite.addTestSuite(CacheTest.class);
         clientSuite.addTestSuite(HashRingTest.class);
         clientSuite.addTestSuite(ServerLifecycleTest.class);
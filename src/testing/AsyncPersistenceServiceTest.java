@@ -0,0 +1,74 @@
+package testing;
+
+import app_kvServer.persistence.AsyncPersistenceService;
+import app_kvServer.persistence.DiskStorage;
+import app_kvServer.persistence.PersistenceException;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+public class AsyncPersistenceServiceTest extends TestCase {
+
+    public File storageDir;
+
+    public void setUp() {
+        storageDir = new File(System.getProperty("java.io.tmpdir"),
+                "test" + System.nanoTime());
+        storageDir.mkdirs();
+    }
+
+    public void testOperationsComplete() throws Exception {
+        AsyncPersistenceService storage = new AsyncPersistenceService(new DiskStorage(storageDir));
+
+        storage.putAsync("foo", "bar", 0).get();
+        assertEquals("bar", storage.getAsync("foo").get().get());
+        assertEquals(0, (long) storage.getTimeToLiveAsync("foo").get());
+        assertTrue(storage.deleteAsync("foo").get());
+        assertFalse(storage.getAsync("foo").get().isPresent());
+        storage.close();
+    }
+
+    public void testOperationsOnSameKeyKeepTheirOrder() throws Exception {
+        // small queues, so submitting has to wait for room
+        AsyncPersistenceService storage = new AsyncPersistenceService(new DiskStorage(storageDir), 4, 2);
+
+        List<CompletableFuture<Boolean>> puts = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            puts.add(storage.putAsync("key" + (i % 10), Integer.toString(i), 0));
+        }
+        CompletableFuture<Boolean> delete = storage.deleteAsync("key0");
+        CompletableFuture.allOf(puts.toArray(new CompletableFuture<?>[] {})).get();
+        assertTrue(delete.get());
+
+        assertFalse(storage.getAsync("key0").get().isPresent());
+        for (int i = 1; i < 10; i++) {
+            assertEquals(Integer.toString(190 + i), storage.getAsync("key" + i).get().get());
+        }
+        storage.close();
+    }
+
+    public void testErrorsCompleteTheFuture() throws Exception {
+        AsyncPersistenceService storage = new AsyncPersistenceService(new DiskStorage(storageDir));
+
+        // the storage does not support expiring values
+        try {
+            storage.putAsync("key", "value", 1000).get();
+            fail("Put with a time to live must fail.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof PersistenceException);
+        }
+
+        storage.close();
+        try {
+            storage.getAsync("key").get();
+            fail("Closed storage must reject operations.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof PersistenceException);
+        }
+    }
+
+}
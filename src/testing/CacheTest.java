@@ -1,10 +1,25 @@
 package testing;
 
+import app_kvServer.CacheReplacementStrategy;
+import app_kvServer.CacheWriteMode;
+import app_kvServer.persistence.Cache;
+import app_kvServer.persistence.CachedDiskStorage;
+import app_kvServer.persistence.DiskStorage;
 import app_kvServer.persistence.FIFOCache;
 import app_kvServer.persistence.LFUCache;
 import app_kvServer.persistence.LRUCache;
+import app_kvServer.persistence.OffHeapCache;
+import app_kvServer.persistence.PersistenceException;
+import app_kvServer.persistence.TinyLFUCache;
+import app_kvServer.persistence.Weigher;
 import junit.framework.TestCase;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
 public class CacheTest extends TestCase {
 
     public void testLFUCache() {
@@ -68,4 +83,247 @@ public class CacheTest extends TestCase {
         assertEquals("value5", fifoCache.get("key5").get());
     }
 
+
+    public void testTinyLFUCacheIsScanResistant() {
+        TinyLFUCache<String, String> cache = new TinyLFUCache<>(100);
+
+        for (int i = 0; i < 10; i++) {
+            cache.put("hot" + i, "value" + i);
+        }
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 10; i++) {
+                assertEquals("value" + i, cache.get("hot" + i).get());
+            }
+        }
+
+        // a scan over many keys which are used only once
+        for (int i = 0; i < 1000; i++) {
+            cache.put("scan" + i, "value");
+        }
+
+        int cached = 0;
+        for (int i = 0; i < 10; i++) {
+            assertTrue(cache.contains("hot" + i));
+        }
+        for (int i = 0; i < 1000; i++) {
+            if (cache.contains("scan" + i)) {
+                cached++;
+            }
+        }
+        assertTrue(cached <= 90);
+
+        cache.delete("hot0");
+        assertFalse(cache.contains("hot0"));
+        assertFalse(cache.get("hot0").isPresent());
+    }
+
+    public void testConcurrentWritesKeepCacheConsistent() throws Exception {
+        for (CacheReplacementStrategy strategy : CacheReplacementStrategy.values()) {
+            File storageDir = new File(System.getProperty("java.io.tmpdir"), "test" + System.nanoTime());
+            DiskStorage diskStorage = new DiskStorage(storageDir);
+            CachedDiskStorage storage = new CachedDiskStorage(diskStorage, 100, strategy);
+
+            List<Thread> writers = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                final String value = "writer" + t;
+                Thread thread = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < 200; i++) {
+                            storage.put("key" + (i % 10), value);
+                            storage.get("key" + ((i + 5) % 10));
+                        }
+                    } catch (PersistenceException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                writers.add(thread);
+                thread.start();
+            }
+            for (Thread thread : writers) {
+                thread.join();
+            }
+
+            // cache and disk must agree on the last write of every key
+            for (int i = 0; i < 10; i++) {
+                assertEquals(strategy.toString(), diskStorage.get("key" + i), storage.get("key" + i));
+            }
+        }
+    }
+
+    public void testOffHeapCache() {
+        // two slabs of 256 bytes
+        OffHeapCache<String> cache = new OffHeapCache<>(512, 256);
+
+        cache.put("small", "value".getBytes());
+        cache.put("large", new byte[200]);
+        assertEquals("value", new String(cache.get("small").get()));
+        assertEquals(200, cache.get("large").get().length);
+
+        // both slabs are taken, only the least recently used small value is replaced
+        for (int i = 0; i < 4; i++) {
+            cache.put("small" + i, ("value" + i).getBytes());
+        }
+        assertFalse(cache.contains("small"));
+        assertTrue(cache.contains("large"));
+        assertEquals("value3", new String(cache.get("small3").get()));
+
+        // values larger than a slab are not cached
+        cache.put("huge", new byte[257]);
+        assertFalse(cache.contains("huge"));
+
+        // the emptied slab moves to the size class of the new value
+        cache.delete("large");
+        assertEquals(4 * 64, cache.getWeight());
+        cache.put("large", new byte[100]);
+        assertEquals(100, cache.get("large").get().length);
+    }
+
+    public void testKeyFilterNeverHidesPersistedKeys() throws PersistenceException {
+        File storageDir = new File(System.getProperty("java.io.tmpdir"), "test" + System.nanoTime());
+        DiskStorage diskStorage = new DiskStorage(storageDir);
+        diskStorage.put("existing", "value");
+        diskStorage.put("ns/existing", "value");
+
+        // keys persisted before the filter has been built
+        CachedDiskStorage storage = new CachedDiskStorage(diskStorage, 10, CacheReplacementStrategy.LRU);
+        assertEquals("value", storage.get("existing").get());
+        assertTrue(storage.contains("ns/existing"));
+        assertFalse(storage.get("missing").isPresent());
+
+        // enough insertions to rebuild the filter several times, most of them are ejected from the cache
+        for (int i = 0; i < 5000; i++) {
+            assertTrue(storage.put("key" + i, "value" + i));
+        }
+        for (int i = 0; i < 5000; i++) {
+            assertEquals("value" + i, storage.get("key" + i).get());
+        }
+
+        assertTrue(storage.delete("existing"));
+        assertFalse(storage.contains("existing"));
+        assertTrue(storage.put("existing", "again"));
+        assertFalse(storage.put("existing", "update"));
+    }
+
+    public void testWriteBackCoalescesAndFlushes() throws PersistenceException {
+        File storageDir = new File(System.getProperty("java.io.tmpdir"), "test" + System.nanoTime());
+        DiskStorage diskStorage = new DiskStorage(storageDir);
+        diskStorage.put("stale", "value");
+
+        // flushes only when asked to
+        CachedDiskStorage storage = new CachedDiskStorage(diskStorage, 2, CachedDiskStorage.ENTRY_WEIGHER,
+                CacheReplacementStrategy.LRU, CacheWriteMode.WRITE_BACK, Long.MAX_VALUE, 100);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i == 0, storage.put("key", "value" + i));
+            storage.put("other" + i, "value");
+        }
+        assertTrue(storage.delete("stale"));
+
+        // acknowledged from memory, even after the cache ejected the entries
+        assertFalse(diskStorage.contains("key"));
+        assertEquals("value9", storage.get("key").get());
+        assertEquals("value", storage.get("other0").get());
+        assertFalse(storage.contains("stale"));
+        assertEquals(12, storage.getDirtyEntries());
+
+        storage.flush();
+        assertEquals(0, storage.getDirtyEntries());
+        assertEquals("value9", diskStorage.get("key").get());
+        assertFalse(diskStorage.contains("stale"));
+
+        // a full table of dirty entries falls back to writing through
+        for (int i = 0; i < 150; i++) {
+            storage.put("more" + i, "value");
+        }
+        assertEquals(100, storage.getDirtyEntries());
+        assertTrue(diskStorage.contains("more149"));
+
+        storage.close();
+        assertTrue(diskStorage.contains("more0"));
+    }
+
+    public void testCachesStayWithinWeightLimit() throws PersistenceException {
+        Weigher<String, String> weigher = (key, value) -> value.length();
+        List<Cache<String, String>> caches = new ArrayList<>();
+        caches.add(new FIFOCache<>(100, weigher));
+        caches.add(new LRUCache<>(100, weigher));
+        caches.add(new LFUCache<>(100, weigher));
+        caches.add(new TinyLFUCache<>(100, weigher));
+
+        for (Cache<String, String> cache : caches) {
+            String name = cache.getClass().getSimpleName();
+            for (int i = 0; i < 50; i++) {
+                cache.put("key" + i, new String(new char[1 + i % 30]));
+                assertTrue(name, cache.getWeight() <= 100);
+            }
+
+            // an element heavier than the whole cache is not kept
+            cache.put("key49", new String(new char[101]));
+            assertFalse(name, cache.contains("key49"));
+
+            assertTrue(name, cache.getWeight() <= 100);
+            assertEquals(name, new HashSet<>(cache.getHotKeys(cache.size())), new HashSet<>(cache.keys()));
+
+            for (int i = 0; i < 50; i++) {
+                cache.delete("key" + i);
+            }
+            assertEquals(name, 0, cache.size());
+            assertTrue(name, cache.keys().isEmpty());
+            assertEquals(name, 0, cache.getWeight());
+            assertEquals(name, 100, cache.getMaxWeight());
+        }
+    }
+
+    public void testHotKeysFollowReplacementStrategy() throws PersistenceException {
+        LRUCache<String, String> lru = new LRUCache<>(10);
+        LFUCache<String, String> lfu = new LFUCache<>(10);
+        for (Cache<String, String> cache : Arrays.<Cache<String, String>>asList(lru, lfu)) {
+            cache.put("cold", "value");
+            cache.put("warm", "value");
+            cache.put("hot", "value");
+        }
+        lru.get("warm");
+        lru.get("hot");
+        // updates count as uses
+        lfu.put("hot", "value");
+        lfu.put("hot", "value");
+        lfu.put("warm", "value");
+
+        assertEquals(Arrays.asList("hot", "warm", "cold"), lru.getHotKeys(10));
+        assertEquals(Arrays.asList("hot", "warm"), lfu.getHotKeys(2));
+
+        OffHeapCache<String> offHeap = new OffHeapCache<>(4 * OffHeapCache.DEFAULT_SLAB_SIZE);
+        offHeap.put("small", new byte[10]);
+        offHeap.put("large", new byte[1000]);
+        assertEquals(2, offHeap.getHotKeys(10).size());
+        assertEquals(1, offHeap.getHotKeys(1).size());
+        assertEquals(new HashSet<>(Arrays.asList("small", "large")), new HashSet<>(offHeap.keys()));
+    }
+
+    public void testCacheWarmsUpAfterRestart() throws Exception {
+        File storageDir = new File(System.getProperty("java.io.tmpdir"), "test" + System.nanoTime());
+        File hotKeysFile = new File(storageDir.getPath() + "_hotkeys");
+        CachedDiskStorage storage = new CachedDiskStorage(new DiskStorage(storageDir), 5,
+                CacheReplacementStrategy.LRU);
+        storage.keepHotKeys(hotKeysFile, 5, 60000, 1000);
+        for (int i = 0; i < 20; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+        storage.delete("key19");
+        storage.close();
+
+        // the list is written on close and holds the keys cached at that time
+        storage = new CachedDiskStorage(new DiskStorage(storageDir), 5, CacheReplacementStrategy.LRU);
+        assertEquals(0, storage.getCacheSize());
+        storage.keepHotKeys(hotKeysFile, 5, 60000, 1000);
+        for (int i = 0; i < 50 && storage.getCacheSize() < 4; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(new HashSet<>(Arrays.asList("key15", "key16", "key17", "key18")),
+                new HashSet<>(storage.getHotKeys(5)));
+        assertEquals("value18", storage.get("key18").get());
+        storage.close();
+    }
+
+
 }
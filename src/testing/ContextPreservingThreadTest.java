@@ -0,0 +1,106 @@
+package testing;
+
+import common.utils.ContextPreservingThread;
+import junit.framework.TestCase;
+import org.apache.logging.log4j.ThreadContext;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ContextPreservingThreadTest extends TestCase {
+
+    public void setUp() {
+        ThreadContext.put("test", "parent");
+    }
+
+    public void tearDown() {
+        ThreadContext.clearMap();
+    }
+
+    public void testContextIsInherited() throws Exception {
+        assertContextIsInherited(ContextPreservingThread.PLATFORM_THREADS);
+    }
+
+    public void testContextIsInheritedOnVirtualThreads() throws Exception {
+        // virtual threads need Java 21, older runtimes keep using platform threads
+        assertContextIsInherited(ContextPreservingThread.virtualThreadFactory()
+                .orElse(ContextPreservingThread.PLATFORM_THREADS));
+    }
+
+    public void testLifecycleReachesThreadOfFactory() throws Exception {
+        List<Thread> created = new CopyOnWriteArrayList<>();
+        ThreadFactory factory = runnable -> {
+            Thread thread = ContextPreservingThread.virtualThreadFactory()
+                    .orElse(ContextPreservingThread.PLATFORM_THREADS).newThread(runnable);
+            created.add(thread);
+            return thread;
+        };
+
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicBoolean interrupted = new AtomicBoolean(false);
+        AtomicReference<Thread> runningThread = new AtomicReference<>();
+        ContextPreservingThread thread = new ContextPreservingThread(factory) {
+            @Override
+            public void run() {
+                runningThread.set(isCurrentThread() ? Thread.currentThread() : null);
+                started.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                }
+            }
+        };
+        assertFalse(thread.isAlive());
+        thread.start();
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(1, created.size());
+        assertSame(created.get(0), runningThread.get());
+        assertTrue(thread.isAlive());
+        assertFalse(thread.isCurrentThread());
+
+        thread.interrupt();
+        thread.join();
+        assertTrue(interrupted.get());
+        assertFalse(thread.isAlive());
+
+        try {
+            thread.start();
+            fail("A thread must not be started twice.");
+        } catch (IllegalThreadStateException e) {
+            // expected
+        }
+    }
+
+    private static void assertContextIsInherited(ThreadFactory factory) throws Exception {
+        AtomicReference<String> subclassContext = new AtomicReference<>();
+        ContextPreservingThread thread = new ContextPreservingThread(factory) {
+            @Override
+            public void run() {
+                setUpThreadContext();
+                subclassContext.set(ThreadContext.get("test"));
+            }
+        };
+
+        AtomicReference<String> taskContext = new AtomicReference<>();
+        ContextPreservingThread task = new ContextPreservingThread(factory,
+                () -> taskContext.set(ThreadContext.get("test")));
+
+        // the context is taken when the thread is created, not when it is started
+        ThreadContext.put("test", "changed");
+        thread.start();
+        task.start();
+        thread.join();
+        task.join();
+
+        assertEquals("parent", subclassContext.get());
+        assertEquals("parent", taskContext.get());
+    }
+
+}
@@ -1,17 +1,30 @@
 package testing;
 
+import app_kvServer.CacheReplacementStrategy;
+import app_kvServer.persistence.CachedDiskStorage;
 import app_kvServer.persistence.DiskStorage;
+import app_kvServer.persistence.ExpiringStorage;
 import app_kvServer.persistence.PersistenceException;
+import app_kvServer.persistence.PersistenceService;
+import app_kvServer.persistence.SnapshotFiles;
+import app_kvServer.persistence.ValueCodec;
+import common.hash.HashRing;
+import common.hash.Range;
 import junit.framework.TestCase;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 public class DiskStorageTest extends TestCase {
 
     public File storageDir;
     public DiskStorage storage;
 
-    public void setUp() {
+    public void setUp() throws PersistenceException {
         storageDir = new File(System.getProperty("java.io.tmpdir"),
                 "test" + System.currentTimeMillis());
         storageDir.mkdirs();
@@ -37,4 +50,187 @@ public class DiskStorageTest extends TestCase {
     public void testGettingNonexistentValue() throws PersistenceException {
         assertFalse(storage.get("nonexistent").isPresent());
     }
-}
\ No newline at end of file
+
+    public void testCompressedValues() throws PersistenceException {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 100; i++) {
+            json.append("{\"InvoiceNo\": \"536365\", \"Quantity\": ").append(i).append("},");
+        }
+        String value = json.append("]").toString();
+
+        ValueCodec codec = new ValueCodec(256);
+        DiskStorage compressing = new DiskStorage(storageDir, codec);
+        compressing.put("json", value);
+        compressing.put("short", "bar");
+
+        assertTrue(new File(storageDir, "json").length() < value.length() / 4);
+        assertTrue(codec.getCompressionRatio() > 4);
+        assertEquals(value, compressing.get("json").get());
+        assertEquals("bar", compressing.get("short").get());
+
+        // values written without compression are still readable and vice versa
+        DiskStorage plain = new DiskStorage(storageDir, new ValueCodec(Integer.MAX_VALUE));
+        plain.put("plain", value);
+        assertTrue(new File(storageDir, "plain").length() > value.length());
+        assertEquals(value, compressing.get("plain").get());
+        assertEquals(value, plain.get("json").get());
+    }
+
+    public void testMappedReadsFollowUpdates() throws PersistenceException {
+        DiskStorage mapping = new DiskStorage(storageDir, new ValueCodec(), 2, DiskStorage.DEFAULT_TOMBSTONE_GRACE_PERIOD);
+        for (int i = 0; i < 10; i++) {
+            mapping.put("key" + i, "value" + i);
+            assertEquals("value" + i, mapping.get("key" + i).get());
+        }
+
+        // read again after the mappings have been evicted
+        for (int i = 0; i < 10; i++) {
+            assertEquals("value" + i, mapping.get("key" + i).get());
+        }
+
+        // a mapped value must not outlive an update or delete
+        mapping.put("key9", "updated");
+        assertEquals("updated", mapping.get("key9").get());
+        mapping.delete("key8");
+        assertFalse(mapping.get("key8").isPresent());
+    }
+
+    public void testDeletesLeaveTombstones() throws Exception {
+        DiskStorage tombstoning = new DiskStorage(storageDir, new ValueCodec(), 16, 1000);
+        tombstoning.put("deleted", "value");
+        tombstoning.put("revived", "old");
+        tombstoning.delete("deleted");
+        tombstoning.delete("revived");
+        tombstoning.put("revived", "new");
+
+        // the file stays until the compaction, the deletion is visible right away
+        assertTrue(new File(storageDir, "deleted").isFile());
+        assertFalse(tombstoning.contains("deleted"));
+        assertFalse(tombstoning.get("deleted").isPresent());
+        assertFalse(tombstoning.getKeys().contains("deleted"));
+        assertEquals(Arrays.asList("deleted"), tombstoning.getDeletedKeys(new Range(0, 0)));
+        tombstoning.close();
+
+        // simulate restart
+        tombstoning = new DiskStorage(storageDir, new ValueCodec(), 16, 1000);
+        assertFalse(tombstoning.contains("deleted"));
+        assertEquals("new", tombstoning.get("revived").get());
+        assertEquals(Arrays.asList("deleted"), tombstoning.getDeletedKeys(new Range(0, 0)));
+
+        // the file is reclaimed right away, the tombstone only after the grace period
+        tombstoning.compact();
+        assertFalse(new File(storageDir, "deleted").exists());
+        assertEquals(Arrays.asList("deleted"), tombstoning.getDeletedKeys(new Range(0, 0)));
+        Thread.sleep(1100);
+        tombstoning.compact();
+        assertTrue(tombstoning.getDeletedKeys(new Range(0, 0)).isEmpty());
+        tombstoning.close();
+
+        tombstoning = new DiskStorage(storageDir, new ValueCodec(), 16, 1000);
+        assertTrue(tombstoning.getDeletedKeys(new Range(0, 0)).isEmpty());
+        assertEquals("new", tombstoning.get("revived").get());
+        tombstoning.close();
+    }
+
+    public void testSnapshotLeavesOutDeletedKeys() throws PersistenceException {
+        storage.put("foo", "bar");
+        storage.put("ns/key", "value");
+        storage.put("deleted", "value");
+        storage.delete("deleted");
+        File snapshotDir = new File(storageDir.getPath() + "_snapshot");
+        storage.snapshot(snapshotDir);
+        storage.put("foo", "updated");
+
+        File restoredDir = new File(storageDir.getPath() + "_restored");
+        assertEquals(2, SnapshotFiles.restore(snapshotDir, restoredDir));
+        DiskStorage restored = new DiskStorage(restoredDir);
+        assertEquals("bar", restored.get("foo").get());
+        assertEquals("value", restored.get("ns/key").get());
+        assertFalse(restored.contains("deleted"));
+        restored.close();
+        assertEquals("updated", storage.get("foo").get());
+    }
+
+    public void testRecoveryQuarantinesCorruptFiles() throws Exception {
+        storage.put("good", "value");
+        storage.put("torn", "value");
+        Files.write(new File(storageDir, "legacy").toPath(), "value\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(storageDir, "tornLegacy").toPath(), "val".getBytes(StandardCharsets.UTF_8));
+
+        // cut off the last byte of a record
+        File torn = new File(storageDir, "torn");
+        byte[] record = Files.readAllBytes(torn.toPath());
+        Files.write(torn.toPath(), Arrays.copyOf(record, record.length - 1));
+        try {
+            storage.get("torn");
+            fail("A torn record must not be served.");
+        } catch (PersistenceException e) {
+            // expected
+        }
+
+        // simulate restart
+        DiskStorage storage2 = new DiskStorage(storageDir);
+
+        assertEquals("value", storage2.get("good").get());
+        assertEquals("value", storage2.get("legacy").get());
+        assertFalse(storage2.contains("torn"));
+        assertFalse(storage2.contains("tornLegacy"));
+        assertFalse(storage2.getAllKeys().contains("torn"));
+        assertTrue(new File(storageDir.getPath() + "_quarantine", "torn").isFile());
+    }
+
+    public void testBinaryValues() throws PersistenceException {
+        Random random = new Random(42);
+        byte[] large = new byte[10000];
+        random.nextBytes(large);
+        byte[][] values = new byte[][] {
+                // starts like a compressed value, an expiry header and a value log pointer
+                new byte[] {(byte) 0xFF, 0x01, 0x00, 0x00, 0x00, 0x02, 'x'},
+                new byte[] {0x00, '1', 0x00, (byte) 0xC3},
+                new byte[] {0x01, '1', ':', '2'},
+                large
+        };
+
+        ExpiringStorage chain = new ExpiringStorage(new CachedDiskStorage(
+                new DiskStorage(new File(storageDir, "chain"), new ValueCodec(256)),
+                100000, CacheReplacementStrategy.OFF_HEAP), new File(storageDir, "chain_expiry"));
+        for (PersistenceService s : new PersistenceService[] {storage, chain}) {
+            for (int i = 0; i < values.length; i++) {
+                s.putBytes("binary" + i, values[i]);
+            }
+            for (int i = 0; i < values.length; i++) {
+                assertTrue(Arrays.equals(values[i], s.getBytes("binary" + i).get()));
+            }
+        }
+        chain.close();
+
+        // the values are read back from disk as well
+        DiskStorage storage2 = new DiskStorage(storageDir);
+        for (int i = 0; i < values.length; i++) {
+            assertTrue(Arrays.equals(values[i], storage2.getBytes("binary" + i).get()));
+        }
+    }
+
+    public void testRangeQuery() throws PersistenceException {
+        for (int i = 0; i < 100; i++) {
+            storage.put("range" + i, "value");
+        }
+        storage.put("ns/range0", "value");
+        storage.delete("range0");
+
+        // simulate restart, index is rebuilt from the files
+        DiskStorage storage2 = new DiskStorage(storageDir);
+
+        Range range = new Range(Integer.MAX_VALUE / 2, Integer.MIN_VALUE / 2);
+        for (DiskStorage s : new DiskStorage[] {storage, storage2}) {
+            List<String> keys = s.getKeys(range);
+            for (int i = 1; i < 100; i++) {
+                String key = "range" + i;
+                assertEquals(range.contains(HashRing.hash(key)), keys.contains(key));
+            }
+            assertFalse(keys.contains("range0"));
+            assertFalse(keys.contains("ns/range0"));
+        }
+    }
+
+}
@@ -0,0 +1,208 @@
+package testing;
+
+import app_kvServer.EventLoopServer;
+import common.CorrelatedMessage;
+import common.Protocol;
+import common.messages.DefaultKVMessage;
+import common.messages.KVMessage;
+import common.messages.Message;
+import common.utils.RecordReader;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+public class EventLoopServerTest extends TestCase {
+
+    private EventLoopServer server;
+    private int port;
+
+    public void setUp() throws Exception {
+        port = 40000 + new Random().nextInt(10000);
+        // answers GET requests with the key as value, some of them only later, and fails on request
+        server = new EventLoopServer(port, request -> {
+            KVMessage message = request.getKVMessage();
+            if (message.getKey().equals("throw")) {
+                throw new IllegalStateException("Handler failed.");
+            }
+            if (message.getKey().equals("fail")) {
+                CompletableFuture<Message> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new IllegalStateException("Request failed."));
+                return failed;
+            }
+            Message response = new DefaultKVMessage(message.getKey(), message.getKey(),
+                    KVMessage.StatusType.GET_SUCCESS);
+            if (request.getCorrelationNumber() % 2 == 0) {
+                return CompletableFuture.completedFuture(response);
+            }
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return response;
+            });
+        }, 2, 4);
+        new Thread(server).start();
+    }
+
+    public void tearDown() {
+        server.stop();
+    }
+
+    public void testRepliesMatchRequests() throws Exception {
+        try (Socket socket = connect()) {
+            OutputStream out = socket.getOutputStream();
+            RecordReader reader = new RecordReader(socket.getInputStream(), Protocol.RECORD_SEPARATOR);
+
+            // several records in one write, with keep alives in between
+            byte[] first = request(1, "foo");
+            byte[] second = request(2, "bar");
+            byte[] batch = new byte[first.length + second.length + 3];
+            System.arraycopy(first, 0, batch, 0, first.length);
+            batch[first.length] = Protocol.RECORD_SEPARATOR;
+            System.arraycopy(second, 0, batch, first.length + 1, second.length);
+            batch[batch.length - 2] = Protocol.RECORD_SEPARATOR;
+            batch[batch.length - 1] = Protocol.RECORD_SEPARATOR;
+            out.write(batch);
+
+            // a record split over several writes
+            byte[] third = request(3, "baz");
+            out.write(third, 0, 2);
+            out.flush();
+            Thread.sleep(20);
+            out.write(third, 2, third.length - 2);
+            out.write(Protocol.RECORD_SEPARATOR);
+            out.flush();
+
+            Map<Long, String> replies = new HashMap<>();
+            for (int i = 0; i < 3; i++) {
+                CorrelatedMessage reply = Protocol.decode(reader.read());
+                replies.put(reply.getCorrelationNumber(), reply.getKVMessage().getValue());
+            }
+            assertEquals("foo", replies.get(1L));
+            assertEquals("bar", replies.get(2L));
+            assertEquals("baz", replies.get(3L));
+        }
+    }
+
+    public void testManyRequestsOnManyConnections() throws Exception {
+        Socket[] sockets = new Socket[20];
+        for (int i = 0; i < sockets.length; i++) {
+            sockets[i] = connect();
+        }
+        try {
+            // more requests than a connection may have outstanding
+            for (Socket socket : sockets) {
+                OutputStream out = socket.getOutputStream();
+                for (int i = 0; i < 200; i++) {
+                    out.write(request(i, "key" + i));
+                    out.write(Protocol.RECORD_SEPARATOR);
+                }
+                out.flush();
+            }
+
+            for (Socket socket : sockets) {
+                RecordReader reader = new RecordReader(socket.getInputStream(), Protocol.RECORD_SEPARATOR);
+                boolean[] answered = new boolean[200];
+                for (int i = 0; i < 200; i++) {
+                    CorrelatedMessage reply = Protocol.decode(reader.read());
+                    int correlationNumber = (int) reply.getCorrelationNumber();
+                    assertEquals("key" + correlationNumber, reply.getKVMessage().getValue());
+                    assertFalse(answered[correlationNumber]);
+                    answered[correlationNumber] = true;
+                }
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    public void testMalformedRequestIsAnswered() throws Exception {
+        try (Socket socket = connect()) {
+            OutputStream out = socket.getOutputStream();
+            RecordReader reader = new RecordReader(socket.getInputStream(), Protocol.RECORD_SEPARATOR);
+
+            out.write(new byte[] {0x42, Protocol.RECORD_SEPARATOR});
+            out.write(request(7, "foo"));
+            out.write(Protocol.RECORD_SEPARATOR);
+            out.flush();
+
+            CorrelatedMessage error = Protocol.decode(reader.read());
+            assertTrue(error.hasExceptionMessage());
+            assertEquals(0, error.getCorrelationNumber());
+            CorrelatedMessage reply = Protocol.decode(reader.read());
+            assertEquals(7, reply.getCorrelationNumber());
+        }
+    }
+
+    public void testFailedRequestsAreAnswered() throws Exception {
+        try (Socket socket = connect()) {
+            OutputStream out = socket.getOutputStream();
+            RecordReader reader = new RecordReader(socket.getInputStream(), Protocol.RECORD_SEPARATOR);
+
+            // more failures than a connection may have outstanding, they must not stop the server reading
+            for (int i = 0; i < 200; i++) {
+                out.write(request(i, i % 2 == 0 ? "throw" : "fail"));
+                out.write(Protocol.RECORD_SEPARATOR);
+            }
+            out.write(request(200, "foo"));
+            out.write(Protocol.RECORD_SEPARATOR);
+            out.flush();
+
+            for (int i = 0; i < 201; i++) {
+                CorrelatedMessage reply = Protocol.decode(reader.read());
+                if (reply.getCorrelationNumber() == 200) {
+                    assertEquals("foo", reply.getKVMessage().getValue());
+                } else {
+                    assertTrue(reply.hasExceptionMessage());
+                }
+            }
+        }
+    }
+
+    public void testStopSendsShutdown() throws Exception {
+        try (Socket socket = connect()) {
+            RecordReader reader = new RecordReader(socket.getInputStream(), Protocol.RECORD_SEPARATOR);
+            // make sure the connection is registered before the server stops
+            socket.getOutputStream().write(request(1, "foo"));
+            socket.getOutputStream().write(Protocol.RECORD_SEPARATOR);
+            reader.read();
+
+            server.stop();
+            byte[] shutdown = reader.read();
+            assertEquals(Protocol.SHUTDOWN_CMD.length, shutdown.length);
+            for (int i = 0; i < shutdown.length; i++) {
+                assertEquals(Protocol.SHUTDOWN_CMD[i], shutdown[i]);
+            }
+        }
+    }
+
+    private static byte[] request(long correlationNumber, String key) {
+        return Protocol.encode(new DefaultKVMessage(key, null, KVMessage.StatusType.GET), correlationNumber);
+    }
+
+    private Socket connect() throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new Socket("localhost", port);
+            } catch (ConnectException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                // the server is still starting
+                Thread.sleep(20);
+            }
+        }
+    }
+
+}
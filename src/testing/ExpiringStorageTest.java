@@ -0,0 +1,211 @@
+package testing;
+
+import app_kvServer.persistence.Cursor;
+import app_kvServer.persistence.DiskStorage;
+import app_kvServer.persistence.ExpiringStorage;
+import app_kvServer.persistence.LSMTreeStorage;
+import app_kvServer.persistence.LogStructuredStorage;
+import app_kvServer.persistence.PersistenceException;
+import app_kvServer.persistence.TimerWheel;
+import app_kvServer.persistence.ValueCodec;
+import common.hash.Range;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ExpiringStorageTest extends TestCase {
+
+    public File storageDir;
+    public File expiryLog;
+
+    public void setUp() {
+        storageDir = new File(System.getProperty("java.io.tmpdir"),
+                "test" + System.nanoTime());
+        storageDir.mkdirs();
+        expiryLog = new File(storageDir.getPath() + "_expiry");
+    }
+
+    public void testTimerWheelFiresInOrder() {
+        TimerWheel<String> wheel = new TimerWheel<>(10, 0);
+        wheel.schedule("soon", 25);
+        wheel.schedule("later", 3000);
+        // beyond the lowest wheel, must be moved down on the way
+        wheel.schedule("much later", 700000);
+        wheel.schedule("overdue", 0);
+        assertEquals(4, wheel.size());
+
+        assertEquals(Collections.singletonList("overdue"), wheel.advance(10));
+        assertEquals(Collections.emptyList(), wheel.advance(19));
+        assertEquals(Collections.singletonList("soon"), wheel.advance(30));
+        assertEquals(Collections.emptyList(), wheel.advance(2990));
+        assertEquals(Collections.singletonList("later"), wheel.advance(3000));
+        assertEquals(Collections.emptyList(), wheel.advance(699990));
+        assertEquals(Collections.singletonList("much later"), wheel.advance(700000));
+        assertEquals(0, wheel.size());
+
+        // deadlines between two ticks fire on the later one
+        wheel.schedule("between", 700005);
+        assertEquals(Collections.emptyList(), wheel.advance(700009));
+        assertEquals(Collections.singletonList("between"), wheel.advance(700010));
+    }
+
+    public void testTimerWheelSkipsIdleTime() {
+        TimerWheel<String> wheel = new TimerWheel<>(1, 0);
+        assertTrue(wheel.advance(Long.MAX_VALUE / 2).isEmpty());
+
+        wheel.schedule("a", Long.MAX_VALUE / 2 + 5);
+        wheel.schedule("b", Long.MAX_VALUE / 2 + 5);
+        List<String> expired = wheel.advance(Long.MAX_VALUE / 2 + 10);
+        Collections.sort(expired);
+        assertEquals(Arrays.asList("a", "b"), expired);
+    }
+
+    public void testValuesExpire() throws Exception {
+        ExpiringStorage storage = new ExpiringStorage(new DiskStorage(storageDir), expiryLog, 10);
+        storage.put("session", "value", 200);
+        storage.put("permanent", "value");
+
+        assertEquals("value", storage.get("session").get());
+        assertTrue(storage.getTimeToLive("session") > 0);
+        assertEquals(0, storage.getTimeToLive("permanent"));
+
+        // expired in the background, the underlying storage does not have it anymore
+        Thread.sleep(500);
+        assertFalse(storage.getAllKeys().contains("session"));
+        assertFalse(storage.get("session").isPresent());
+        assertEquals("value", storage.get("permanent").get());
+        assertEquals(0, storage.getPendingTimers());
+        storage.close();
+    }
+
+    public void testUpdateClearsTimeToLive() throws Exception {
+        ExpiringStorage storage = new ExpiringStorage(new DiskStorage(storageDir), expiryLog, 10);
+        storage.put("key", "old", 100);
+        storage.put("key", "new");
+
+        // the timer of the old value fires but must not delete the new value
+        Thread.sleep(300);
+        assertEquals("new", storage.get("key").get());
+        storage.close();
+    }
+
+    public void testExpiryTimeSurvivesRestart() throws Exception {
+        ExpiringStorage storage = new ExpiringStorage(new DiskStorage(storageDir), expiryLog, 10);
+        storage.put("short", "value", 100);
+        storage.put("long", "value", 60000);
+        // looks like a header but has been written by a client
+        storage.put("tricky", "\u0000123\u0000value");
+        storage.close();
+
+        Thread.sleep(200);
+        storage = new ExpiringStorage(new DiskStorage(storageDir), expiryLog, 10);
+
+        // the timer is set again from the expiry log, without reading the value
+        Thread.sleep(100);
+        assertFalse(storage.getAllKeys().contains("short"));
+        assertEquals(1, storage.getPendingTimers());
+        assertFalse(storage.get("short").isPresent());
+        assertEquals("value", storage.get("long").get());
+        assertEquals("\u0000123\u0000value", storage.get("tricky").get());
+        assertEquals(1, storage.iterate(new Range(0, 0)).nextBatch().stream()
+                .filter(entry -> entry.getValue().equals("value")).count());
+        storage.close();
+    }
+
+    public void testIterationSkipsExpiredValues() throws Exception {
+        // the timers only fire much later, the cursor has to skip the expired value itself
+        ExpiringStorage storage = new ExpiringStorage(new DiskStorage(storageDir), expiryLog, 60000);
+        storage.put("gone", "value", 50);
+        storage.put("kept", "value", 60000);
+        storage.put("plain", "value");
+        Thread.sleep(100);
+
+        Map<String, String> entries = new HashMap<>();
+        Cursor cursor = storage.iterate(".", new Range(0, 0), 1);
+        List<Map.Entry<String, String>> batch;
+        while (!(batch = cursor.nextBatch()).isEmpty()) {
+            batch.forEach(entry -> entries.put(entry.getKey(), entry.getValue()));
+        }
+        Map<String, String> expected = new HashMap<>();
+        expected.put("kept", "value");
+        expected.put("plain", "value");
+        assertEquals(expected, entries);
+
+        // the time to live comes with the value, without reading it again
+        List<Cursor.Entry> binaryBatch = storage.iterate(".", new Range(0, 0), 10).nextBinaryBatch();
+        assertEquals(2, binaryBatch.size());
+        for (Cursor.Entry entry : binaryBatch) {
+            assertEquals(entry.getKey().equals("kept"), entry.getTimeToLive() > 0);
+        }
+        assertTrue(storage.getEntry("kept").get().getTimeToLive() > 0);
+        assertEquals(0, storage.getEntry("plain").get().getTimeToLive());
+        assertFalse(storage.getEntry("gone").isPresent());
+        storage.close();
+    }
+
+    public void testCompactionDropsExpiredValues() throws Exception {
+        LogStructuredStorage engine = new LogStructuredStorage(storageDir, 1024, new ValueCodec(64),
+                ExpiringStorage.EXPIRED_VALUES);
+        // the timers only fire much later, the merge has to find the expired values itself
+        ExpiringStorage storage = new ExpiringStorage(engine, expiryLog, 60000);
+        char[] large = new char[1000];
+        Arrays.fill(large, 'a');
+        // compressed, the header is only seen after inflating
+        storage.put("large", new String(large), 50);
+        storage.put("small", "value", 50);
+        storage.put("permanent", "value");
+        Thread.sleep(100);
+
+        // fills the active segment, so the others get merged
+        for (int i = 0; i < 30; i++) {
+            storage.put("filler" + i, String.format("%060d", i));
+        }
+        engine.merge();
+
+        assertFalse(engine.contains("large"));
+        assertFalse(engine.contains("small"));
+        assertFalse(engine.getAllKeys().contains("small"));
+        assertEquals("value", storage.get("permanent").get());
+        storage.close();
+    }
+
+    public void testLSMCompactionDropsExpiredValues() throws Exception {
+        LSMTreeStorage engine = new LSMTreeStorage(storageDir, LSMTreeStorage.DEFAULT_MEMTABLE_SIZE,
+                new ValueCodec(), ExpiringStorage.EXPIRED_VALUES);
+        ExpiringStorage storage = new ExpiringStorage(engine, expiryLog, 60000);
+        // the older value must not come back once the expired one is dropped
+        storage.put("key", "old");
+        engine.flush();
+        storage.put("key", "value", 50);
+        storage.put("renewed", "value", 50);
+        engine.flush();
+        // the newer value in the memory table outlives the compaction
+        storage.put("renewed", "fresh");
+        Thread.sleep(100);
+        engine.compact();
+
+        assertFalse(engine.contains("key"));
+        assertFalse(engine.getAllKeys().contains("key"));
+        assertEquals("fresh", storage.get("renewed").get());
+        assertTrue(engine.getAllKeys().contains("renewed"));
+        storage.close();
+    }
+
+    public void testTimeToLiveRequiresExpiringStorage() throws PersistenceException {
+        DiskStorage storage = new DiskStorage(storageDir);
+        try {
+            storage.put("key", "value", 1000);
+            fail("Storage without expiry must reject a time to live.");
+        } catch (PersistenceException e) {
+            // expected
+        }
+        storage.put("key", "value", 0);
+        assertEquals("value", storage.get("key").get());
+    }
+
+}
@@ -0,0 +1,163 @@
+package testing;
+
+import app_kvServer.persistence.CompactionFilter;
+import app_kvServer.persistence.LSMTreeStorage;
+import app_kvServer.persistence.PersistenceException;
+import app_kvServer.persistence.ValueCodec;
+import common.hash.HashRing;
+import common.hash.Range;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+public class LSMTreeStorageTest extends TestCase {
+
+    public File storageDir;
+    public LSMTreeStorage storage;
+
+    public void setUp() throws PersistenceException {
+        storageDir = new File(System.getProperty("java.io.tmpdir"),
+                "test" + System.nanoTime());
+        storageDir.mkdirs();
+        storage = new LSMTreeStorage(storageDir, 1024);
+    }
+
+    public void tearDown() throws PersistenceException {
+        storage.close();
+    }
+
+    public void testBasicPersistence() throws PersistenceException {
+        assertTrue(storage.put("foo", "bar"));
+        assertFalse(storage.put("foo", "baz"));
+
+        assertEquals("baz", storage.get("foo").get());
+    }
+
+    public void testGettingNonexistentValue() throws PersistenceException {
+        assertFalse(storage.get("nonexistent").isPresent());
+        assertFalse(storage.delete("nonexistent"));
+    }
+
+    public void testDeleteShadowsFlushedValue() throws PersistenceException {
+        storage.put("foo", "bar");
+        storage.flush();
+
+        assertTrue(storage.delete("foo"));
+        assertFalse(storage.contains("foo"));
+
+        storage.flush();
+        assertFalse(storage.get("foo").isPresent());
+        assertTrue(storage.getKeys().isEmpty());
+    }
+
+    public void testPersistenceAfterRestart() throws PersistenceException {
+        for (int i = 0; i < 100; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+        storage.put("key1", "updated");
+        storage.delete("key2");
+        storage.close();
+
+        // simulate restart
+        storage = new LSMTreeStorage(storageDir, 1024);
+
+        assertEquals("value0", storage.get("key0").get());
+        assertEquals("updated", storage.get("key1").get());
+        assertFalse(storage.contains("key2"));
+        assertEquals("value99", storage.get("key99").get());
+        assertEquals(99, storage.getKeys().size());
+    }
+
+    public void testCompactionKeepsLatestValues() throws PersistenceException {
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 50; i++) {
+                storage.put("key" + i, "value" + round + "_" + i);
+            }
+            storage.flush();
+        }
+        storage.delete("key3");
+        storage.flush();
+
+        storage.compact();
+
+        assertEquals(1, storageDir.list().length);
+        assertEquals("value4_7", storage.get("key7").get());
+        assertFalse(storage.contains("key3"));
+
+        // compacted tables must be recovered correctly as well
+        storage.close();
+        storage = new LSMTreeStorage(storageDir, 1024);
+
+        assertEquals("value4_7", storage.get("key7").get());
+        assertFalse(storage.contains("key3"));
+        assertEquals(49, storage.getKeys().size());
+    }
+
+    public void testDeletesAreKeptForDataStreams() throws Exception {
+        storage.close();
+        storage = new LSMTreeStorage(storageDir, 1024, new ValueCodec(), CompactionFilter.KEEP_ALL, 1000);
+        storage.put("deleted", "value");
+        storage.put("revived", "old");
+        storage.flush();
+        storage.delete("deleted");
+        storage.delete("revived");
+        storage.put("revived", "new");
+        storage.flush();
+
+        // a compaction including the oldest table keeps the tombstone, it survives a restart as well
+        storage.compact();
+        assertEquals(Arrays.asList("deleted"), storage.getDeletedKeys(new Range(0, 0)));
+        storage.close();
+        storage = new LSMTreeStorage(storageDir, 1024, new ValueCodec(), CompactionFilter.KEEP_ALL, 1000);
+        assertFalse(storage.contains("deleted"));
+        assertEquals("new", storage.get("revived").get());
+        assertEquals(Arrays.asList("deleted"), storage.getDeletedKeys(new Range(0, 0)));
+
+        // after the grace period the next compaction drops it
+        Thread.sleep(1100);
+        assertTrue(storage.getDeletedKeys(new Range(0, 0)).isEmpty());
+        storage.put("other", "value");
+        storage.flush();
+        storage.compact();
+        storage.close();
+        storage = new LSMTreeStorage(storageDir, 1024, new ValueCodec(), CompactionFilter.KEEP_ALL, 1000);
+        assertTrue(storage.getDeletedKeys(new Range(0, 0)).isEmpty());
+        assertFalse(storage.contains("deleted"));
+        assertEquals("new", storage.get("revived").get());
+    }
+
+    public void testNamespaces() throws PersistenceException {
+        storage.put("foo", "1");
+        storage.put("ns/bar", "2");
+        storage.put("ns/sub/baz", "3");
+        storage.flush();
+
+        assertEquals(1, storage.getKeys().size());
+        assertEquals("ns/bar", storage.getKeys("ns").get(0));
+        assertEquals("ns/sub/baz", storage.getKeys("ns/sub").get(0));
+    }
+
+
+    public void testRangeQuery() throws PersistenceException {
+        for (int i = 0; i < 100; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+        storage.delete("key0");
+        storage.close();
+
+        // simulate restart, index is rebuilt from the tables
+        storage = new LSMTreeStorage(storageDir, 1024);
+        storage.put("key100", "value100");
+
+        Range range = new Range(Integer.MIN_VALUE / 2, Integer.MAX_VALUE / 2);
+        List<String> keys = storage.getKeys(range);
+        for (int i = 1; i <= 100; i++) {
+            String key = "key" + i;
+            assertEquals(range.contains(HashRing.hash(key)), keys.contains(key));
+        }
+        assertFalse(keys.contains("key0"));
+    }
+
+}
@@ -0,0 +1,341 @@
+package testing;
+
+import app_kvServer.persistence.CompactionFilter;
+import app_kvServer.persistence.Cursor;
+import app_kvServer.persistence.LogStructuredStorage;
+import app_kvServer.persistence.PersistenceException;
+import app_kvServer.persistence.SnapshotFiles;
+import app_kvServer.persistence.ValueCodec;
+import app_kvServer.persistence.ValueLogStorage;
+import common.hash.HashRing;
+import common.hash.Range;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class LogStructuredStorageTest extends TestCase {
+
+    public File storageDir;
+    public LogStructuredStorage storage;
+
+    public void setUp() throws PersistenceException {
+        storageDir = new File(System.getProperty("java.io.tmpdir"),
+                "test" + System.nanoTime());
+        storageDir.mkdirs();
+        storage = new LogStructuredStorage(storageDir, 1024);
+    }
+
+    public void tearDown() throws PersistenceException {
+        storage.close();
+    }
+
+    public void testBasicPersistence() throws PersistenceException {
+        assertTrue(storage.put("foo", "bar"));
+        assertFalse(storage.put("foo", "baz"));
+
+        assertEquals("baz", storage.get("foo").get());
+    }
+
+    public void testGettingNonexistentValue() throws PersistenceException {
+        assertFalse(storage.get("nonexistent").isPresent());
+        assertFalse(storage.delete("nonexistent"));
+    }
+
+    public void testDelete() throws PersistenceException {
+        storage.put("foo", "bar");
+
+        assertTrue(storage.delete("foo"));
+        assertFalse(storage.contains("foo"));
+        assertFalse(storage.get("foo").isPresent());
+    }
+
+    public void testPersistenceAfterRestart() throws PersistenceException {
+        for (int i = 0; i < 100; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+        storage.put("key1", "updated");
+        storage.delete("key2");
+        storage.close();
+
+        // simulate restart
+        storage = new LogStructuredStorage(storageDir, 1024);
+
+        assertEquals("value0", storage.get("key0").get());
+        assertEquals("updated", storage.get("key1").get());
+        assertFalse(storage.contains("key2"));
+        assertEquals("value99", storage.get("key99").get());
+        assertEquals(99, storage.getKeys().size());
+    }
+
+    public void testMergeKeepsLatestValues() throws PersistenceException {
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 50; i++) {
+                storage.put("key" + i, "value" + round + "_" + i);
+            }
+        }
+        storage.delete("key3");
+
+        int segmentsBefore = storageDir.list().length;
+        storage.merge();
+
+        assertTrue(storageDir.list().length < segmentsBefore);
+        assertEquals("value4_7", storage.get("key7").get());
+        assertFalse(storage.contains("key3"));
+
+        // merged segments must be recovered correctly as well
+        storage.close();
+        storage = new LogStructuredStorage(storageDir, 1024);
+
+        assertEquals("value4_7", storage.get("key7").get());
+        assertFalse(storage.contains("key3"));
+        assertEquals(49, storage.getKeys().size());
+    }
+
+    public void testLargeValuesGoToValueLog() throws PersistenceException {
+        File valueLogDir = new File(storageDir.getPath() + "_vlog");
+        ValueLogStorage valueLog = new ValueLogStorage(storage, valueLogDir, 100, 4096, 60000, new ValueCodec());
+        char[] chars = new char[1000];
+        Arrays.fill(chars, 'x');
+        String large = new String(chars);
+
+        valueLog.put("large", large);
+        valueLog.put("small", "value");
+        // looks like a pointer but has been written by a client
+        valueLog.put("tricky", "\u00011:2:3");
+
+        assertEquals(large, valueLog.get("large").get());
+        assertEquals("value", valueLog.get("small").get());
+        assertEquals("\u00011:2:3", valueLog.get("tricky").get());
+        // the engine only stores a pointer
+        assertTrue(storage.get("large").get().length() < 100);
+        assertEquals("value", storage.get("small").get());
+
+        valueLog.close();
+        storage = new LogStructuredStorage(storageDir, 1024);
+        valueLog = new ValueLogStorage(storage, valueLogDir, 100, 4096, 60000, new ValueCodec());
+
+        assertEquals(large, valueLog.get("large").get());
+        assertEquals("\u00011:2:3", valueLog.get("tricky").get());
+        // the cursor resolves the pointers of a batch
+        List<Map.Entry<String, String>> batch = valueLog.iterate(new Range(0, 0)).nextBatch();
+        assertEquals(3, batch.size());
+        assertEquals(1, batch.stream().filter(entry -> entry.getValue().equals(large)).count());
+        assertEquals(1, batch.stream().filter(entry -> entry.getValue().equals("\u00011:2:3")).count());
+    }
+
+    public void testValueLogGarbageIsCollected() throws PersistenceException {
+        File valueLogDir = new File(storageDir.getPath() + "_vlog");
+        ValueLogStorage valueLog = new ValueLogStorage(storage, valueLogDir, 100, 4096, 60000, new ValueCodec());
+        char[] chars = new char[500];
+        for (int round = 0; round < 5; round++) {
+            Arrays.fill(chars, (char) ('a' + round));
+            for (int i = 0; i < 20; i++) {
+                valueLog.put("key" + i, i + new String(chars));
+            }
+        }
+        valueLog.delete("key3");
+
+        int filesBefore = valueLogDir.list().length;
+        assertTrue(valueLog.collectGarbage() > 0);
+        assertTrue(valueLogDir.list().length < filesBefore);
+
+        Arrays.fill(chars, 'e');
+        for (int i = 0; i < 20; i++) {
+            if (i != 3) {
+                assertEquals(i + new String(chars), valueLog.get("key" + i).get());
+            }
+        }
+        assertFalse(valueLog.get("key3").isPresent());
+
+        // relocated values must survive a restart
+        valueLog.close();
+        storage = new LogStructuredStorage(storageDir, 1024);
+        valueLog = new ValueLogStorage(storage, valueLogDir, 100, 4096, 60000, new ValueCodec());
+        assertEquals("7" + new String(chars), valueLog.get("key7").get());
+        assertEquals(19, valueLog.getKeys().size());
+
+        // garbage from before a restart is found by scanning the files once
+        Arrays.fill(chars, 'f');
+        for (int i = 0; i < 20; i++) {
+            valueLog.put("key" + i, i + new String(chars));
+        }
+        valueLog.close();
+        storage = new LogStructuredStorage(storageDir, 1024);
+        valueLog = new ValueLogStorage(storage, valueLogDir, 100, 4096, 60000, new ValueCodec());
+        assertTrue(valueLog.collectGarbage() > 0);
+        assertEquals("7" + new String(chars), valueLog.get("key7").get());
+        // nothing left to collect, the garbage of the remaining files is known now
+        assertEquals(0, valueLog.collectGarbage());
+        valueLog.close();
+        storage = new LogStructuredStorage(storageDir, 1024);
+    }
+
+    public void testRestartFromHintFiles() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+        storage.delete("key5");
+        storage.close();
+
+        // a clean shutdown leaves a hint next to every segment
+        File[] segments = storageDir.listFiles((dir, name) -> name.endsWith(".log"));
+        assertTrue(segments.length > 1);
+        for (File segment : segments) {
+            String name = segment.getName();
+            assertTrue(new File(storageDir, name.substring(0, name.length() - 4) + ".hint").isFile());
+        }
+
+        storage = new LogStructuredStorage(storageDir, 1024);
+
+        assertEquals("value0", storage.get("key0").get());
+        assertEquals("value99", storage.get("key99").get());
+        assertFalse(storage.contains("key5"));
+        assertEquals(99, storage.getKeys().size());
+        storage.close();
+
+        // a hint which does not match its segment anymore must be ignored
+        File first = new File(storageDir, "segment-0000000000.log");
+        try (RandomAccessFile file = new RandomAccessFile(first, "rw")) {
+            file.seek(file.length());
+            file.write(new byte[] {1, 2, 3});
+        }
+
+        storage = new LogStructuredStorage(storageDir, 1024);
+
+        assertEquals("value0", storage.get("key0").get());
+        assertEquals(99, storage.getKeys().size());
+    }
+
+    public void testSnapshotIsPointInTime() throws PersistenceException {
+        for (int i = 0; i < 100; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+        storage.delete("key1");
+        File snapshotDir = new File(storageDir.getPath() + "_snapshot");
+        storage.snapshot(snapshotDir);
+
+        // changes after the snapshot, including merges, must not leak into it
+        storage.put("key0", "updated");
+        storage.put("late", "value");
+        storage.merge();
+
+        File restoredDir = new File(storageDir.getPath() + "_restored");
+        SnapshotFiles.restore(snapshotDir, restoredDir);
+        LogStructuredStorage restored = new LogStructuredStorage(restoredDir, 1024);
+        assertEquals("value0", restored.get("key0").get());
+        assertFalse(restored.contains("key1"));
+        assertFalse(restored.contains("late"));
+        assertEquals(99, restored.getKeys().size());
+        restored.close();
+
+        assertEquals("updated", storage.get("key0").get());
+        try {
+            storage.snapshot(snapshotDir);
+            fail("An existing snapshot must not be overwritten.");
+        } catch (PersistenceException e) {
+            // expected
+        }
+    }
+
+    public void testTornWriteIsTruncated() throws Exception {
+        storage.put("foo", "bar");
+        storage.put("torn", "value");
+        storage.close();
+
+        // cut the last record in half
+        File[] segments = storageDir.listFiles();
+        File last = segments[0];
+        for (File segment : segments) {
+            if (segment.getName().compareTo(last.getName()) > 0 && segment.length() > 0) {
+                last = segment;
+            }
+        }
+        try (RandomAccessFile file = new RandomAccessFile(last, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        storage = new LogStructuredStorage(storageDir, 1024);
+
+        assertEquals("bar", storage.get("foo").get());
+        assertFalse(storage.contains("torn"));
+
+        storage.put("after", "restart");
+        assertEquals("restart", storage.get("after").get());
+    }
+
+    public void testDeletesAreKeptForDataStreams() throws Exception {
+        storage.close();
+        storage = new LogStructuredStorage(storageDir, 1024, new ValueCodec(), CompactionFilter.KEEP_ALL, 1000);
+        storage.put("deleted", "value");
+        storage.put("revived", "old");
+        storage.delete("deleted");
+        storage.delete("revived");
+        storage.put("revived", "new");
+        for (int i = 0; i < 50; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+
+        // the merge keeps the tombstone, it survives a restart as well
+        storage.merge();
+        assertEquals(Arrays.asList("deleted"), storage.getDeletedKeys(new Range(0, 0)));
+        storage.close();
+        storage = new LogStructuredStorage(storageDir, 1024, new ValueCodec(), CompactionFilter.KEEP_ALL, 1000);
+        assertFalse(storage.contains("deleted"));
+        assertEquals("new", storage.get("revived").get());
+        assertEquals(Arrays.asList("deleted"), storage.getDeletedKeys(new Range(0, 0)));
+
+        // after the grace period the next merge drops it
+        Thread.sleep(1100);
+        assertTrue(storage.getDeletedKeys(new Range(0, 0)).isEmpty());
+        storage.merge();
+        storage.close();
+        storage = new LogStructuredStorage(storageDir, 1024, new ValueCodec(), CompactionFilter.KEEP_ALL, 1000);
+        assertTrue(storage.getDeletedKeys(new Range(0, 0)).isEmpty());
+        assertFalse(storage.contains("deleted"));
+        assertEquals("new", storage.get("revived").get());
+    }
+
+    public void testNamespaces() throws PersistenceException {
+        storage.put("foo", "1");
+        storage.put("ns/bar", "2");
+        storage.put("ns/sub/baz", "3");
+
+        assertEquals(1, storage.getKeys().size());
+        assertEquals("ns/bar", storage.getKeys("ns").get(0));
+        assertEquals("ns/sub/baz", storage.getKeys("ns/sub").get(0));
+    }
+
+
+    public void testCursorYieldsEntriesInBatches() throws PersistenceException {
+        for (int i = 0; i < 100; i++) {
+            storage.put("ns/key" + i, "value" + i);
+            storage.put("other/key" + i, "other");
+        }
+        storage.delete("ns/key0");
+
+        Range range = new Range(Integer.MIN_VALUE / 2, Integer.MAX_VALUE / 2);
+        Cursor cursor = storage.iterate("ns", range, 7);
+        Map<String, String> entries = new HashMap<>();
+        List<Map.Entry<String, String>> batch;
+        while (!(batch = cursor.nextBatch()).isEmpty()) {
+            assertTrue(batch.size() <= 7);
+            for (Map.Entry<String, String> entry : batch) {
+                entries.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        for (int i = 1; i < 100; i++) {
+            String key = "ns/key" + i;
+            if (range.contains(HashRing.hash(key))) {
+                assertEquals("value" + i, entries.remove(key));
+            }
+        }
+        assertTrue(entries.isEmpty());
+    }
+
+}
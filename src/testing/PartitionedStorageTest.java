@@ -0,0 +1,133 @@
+package testing;
+
+import app_kvServer.persistence.Cursor;
+import app_kvServer.persistence.DiskStorage;
+import app_kvServer.persistence.PartitionedStorage;
+import app_kvServer.persistence.PersistenceException;
+import app_kvServer.persistence.SnapshotFiles;
+import common.hash.HashRing;
+import common.hash.Range;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+public class PartitionedStorageTest extends TestCase {
+
+    public File storageDir;
+    public PartitionedStorage storage;
+
+    public void setUp() throws PersistenceException {
+        storageDir = new File(System.getProperty("java.io.tmpdir"),
+                "test" + System.nanoTime());
+        storageDir.mkdirs();
+        storage = new PartitionedStorage(storageDir, 8, DiskStorage::new);
+    }
+
+    public void tearDown() throws PersistenceException {
+        storage.close();
+    }
+
+    public void testPartitionsCoverTheRing() {
+        for (int i = 0; i < 8; i++) {
+            Range range = PartitionedStorage.getPartitionRange(i, 8);
+            Range next = PartitionedStorage.getPartitionRange((i + 1) % 8, 8);
+            assertEquals(range.getEnd(), next.getStart());
+        }
+        assertEquals(Integer.MIN_VALUE, PartitionedStorage.getPartitionRange(7, 8).getEnd());
+        assertTrue(PartitionedStorage.getPartitionRange(7, 8).contains(Integer.MIN_VALUE));
+    }
+
+    public void testKeysAreFoundAcrossPartitions() throws PersistenceException {
+        for (int i = 0; i < 200; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+        assertEquals("value42", storage.get("key42").get());
+        assertEquals(200, storage.getKeys().size());
+
+        // range keys come in ring order, also when the range wraps around
+        Range range = new Range(Integer.MAX_VALUE / 2, Integer.MIN_VALUE / 2);
+        List<String> keys = storage.getKeys(range);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            if (range.contains(HashRing.hash("key" + i))) {
+                expected.add("key" + i);
+            }
+        }
+        assertEquals(new HashSet<>(expected), new HashSet<>(keys));
+        for (int i = 1; i < keys.size(); i++) {
+            assertTrue(Integer.toUnsignedLong(HashRing.hash(keys.get(i - 1)) - range.getStart() - 1)
+                    < Integer.toUnsignedLong(HashRing.hash(keys.get(i)) - range.getStart() - 1));
+        }
+    }
+
+    public void testIterationChainsPartitions() throws PersistenceException {
+        for (int i = 0; i < 200; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+
+        // the whole ring from the middle of a partition, which is read at the beginning and at the end
+        Range range = new Range(PartitionedStorage.getPartitionRange(3, 8).getStart() + 100000000,
+                PartitionedStorage.getPartitionRange(3, 8).getStart() + 100000000);
+        List<String> keys = new ArrayList<>();
+        Cursor cursor = storage.iterate(".", range, 7);
+        List<Map.Entry<String, String>> batch;
+        while (!(batch = cursor.nextBatch()).isEmpty()) {
+            for (Map.Entry<String, String> entry : batch) {
+                assertEquals(entry.getKey().replace("key", "value"), entry.getValue());
+                keys.add(entry.getKey());
+            }
+        }
+        assertEquals(200, keys.size());
+        for (int i = 1; i < keys.size(); i++) {
+            assertTrue(Integer.toUnsignedLong(HashRing.hash(keys.get(i - 1)) - range.getStart() - 1)
+                    < Integer.toUnsignedLong(HashRing.hash(keys.get(i)) - range.getStart() - 1));
+        }
+    }
+
+    public void testDeleteRangeDropsWholePartitions() throws PersistenceException {
+        for (int i = 0; i < 500; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+
+        // covers partitions 2 and 3 completely and a part of partition 4
+        Range range = new Range(PartitionedStorage.getPartitionRange(2, 8).getStart(),
+                PartitionedStorage.getPartitionRange(4, 8).getStart() + 100000000);
+        int inRange = 0;
+        for (int i = 0; i < 500; i++) {
+            if (range.contains(HashRing.hash("key" + i))) {
+                inRange++;
+            }
+        }
+
+        assertEquals(inRange, storage.deleteRange(range));
+        for (int i = 0; i < 500; i++) {
+            String key = "key" + i;
+            assertEquals(!range.contains(HashRing.hash(key)), storage.get(key).isPresent());
+        }
+        assertEquals(0, new File(storageDir, "partition-0002").list().length);
+
+        // dropped partitions accept new values
+        storage.put("key0", "again");
+        assertEquals("again", storage.get("key0").get());
+    }
+
+    public void testSnapshotRestoresAllPartitions() throws PersistenceException {
+        for (int i = 0; i < 100; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+        File snapshot = new File(storageDir.getPath() + "_snapshot");
+        storage.snapshot(snapshot);
+
+        File restored = new File(storageDir.getPath() + "_restored");
+        SnapshotFiles.restore(snapshot, restored);
+        PartitionedStorage copy = new PartitionedStorage(restored, 8, DiskStorage::new);
+        assertEquals(100, copy.getKeys().size());
+        assertEquals("value7", copy.get("key7").get());
+        copy.close();
+    }
+
+}
@@ -14,6 +14,7 @@ import common.messages.mapreduce.*;
 import common.utils.HostAndPort;
 import junit.framework.TestCase;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 public class ProtocolTest extends TestCase {
@@ -47,6 +48,38 @@ public class ProtocolTest extends TestCase {
         }
     }
 
+    public void testEncodeDecodeTimeToLive() throws ProtocolException {
+        KVMessage expiring = new DefaultKVMessage("foo", "bar", KVMessage.StatusType.PUT, 60000);
+        KVMessage decoded = Protocol.decode(Protocol.encode(expiring, 1)).getKVMessage();
+
+        assertEquals("bar", decoded.getValue());
+        assertEquals(60000, decoded.getTimeToLive());
+
+        // messages without a time to live are encoded as before
+        KVMessage permanent = new DefaultKVMessage("foo", null, KVMessage.StatusType.PUT_REPLICA);
+        decoded = Protocol.decode(Protocol.encode(permanent, 2)).getKVMessage();
+
+        assertNull(decoded.getValue());
+        assertEquals(0, decoded.getTimeToLive());
+    }
+
+    public void testEncodeDecodeBinaryValue() throws ProtocolException {
+        // not valid UTF-8, would not survive a conversion to a string
+        byte[] value = new byte[] {(byte) 0xFF, 0x00, (byte) 0xC3, 0x28, (byte) 0x80, 'x'};
+        KVMessage message = DefaultKVMessage.ofBytes("foo", value, KVMessage.StatusType.PUT, 60000);
+        KVMessage decoded = Protocol.decode(Protocol.encode(message, 1)).getKVMessage();
+
+        assertEquals("foo", decoded.getKey());
+        assertTrue(Arrays.equals(value, decoded.getValueBytes()));
+        assertEquals(60000, decoded.getTimeToLive());
+
+        // string values are still available as bytes and the other way around
+        decoded = Protocol.decode(Protocol.encode(new DefaultKVMessage("foo", "bär", KVMessage.StatusType.PUT), 2))
+                .getKVMessage();
+        assertEquals("bär", decoded.getValue());
+        assertTrue(Arrays.equals("bär".getBytes(StandardCharsets.UTF_8), decoded.getValueBytes()));
+    }
+
     public void testEncodeDecodeAdminGenericResponse() throws ProtocolException {
         long correlationNumber = 1;
 
@@ -148,6 +181,19 @@ public class ProtocolTest extends TestCase {
         assertEquals(range, decodedRequest.getRange());
     }
 
+    public void testEncodeDecodeCreateSnapshotRequest() throws ProtocolException {
+        CreateSnapshotRequest request = new CreateSnapshotRequest("/backups/node1/2017-01-01");
+
+        byte[] encoded = Protocol.encode(request, 3);
+        CorrelatedMessage decoded = Protocol.decode(encoded);
+
+        assertEquals(3, decoded.getCorrelationNumber());
+        assertTrue(decoded.hasAdminMessage());
+        assertEquals(CreateSnapshotRequest.class, decoded.getAdminMessage().getClass());
+        assertEquals("/backups/node1/2017-01-01",
+                ((CreateSnapshotRequest) decoded.getAdminMessage()).getDirectory());
+    }
+
     public void testEncodeDecodeExceptionMessage() throws ProtocolException {
         Exception cause = new RuntimeException("I fooed the bar.");
         ExceptionMessage exceptionMessage = new ExceptionMessage(cause);
@@ -0,0 +1,189 @@
+package testing;
+
+import app_kvServer.FsyncPolicy;
+import app_kvServer.persistence.LSMTreeStorage;
+import app_kvServer.persistence.PersistenceException;
+import app_kvServer.persistence.SnapshotFiles;
+import app_kvServer.persistence.WriteAheadLogStorage;
+import common.hash.HashRing;
+import common.hash.Range;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WriteAheadLogTest extends TestCase {
+
+    public File storageDir;
+    public File logDir;
+
+    public void setUp() {
+        storageDir = new File(System.getProperty("java.io.tmpdir"),
+                "test" + System.nanoTime());
+        logDir = new File(storageDir.getPath() + "_wal");
+        storageDir.mkdirs();
+    }
+
+    public void testReplayAfterCrash() throws PersistenceException {
+        // memtable is never flushed, so only the log survives the crash
+        WriteAheadLogStorage storage = new WriteAheadLogStorage(
+                new LSMTreeStorage(storageDir, Long.MAX_VALUE), logDir, FsyncPolicy.ALWAYS, 100);
+        for (int i = 0; i < 100; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+        storage.put("key1", "updated");
+        storage.delete("key2");
+
+        // simulate crash by not closing anything
+        storage = new WriteAheadLogStorage(
+                new LSMTreeStorage(storageDir, Long.MAX_VALUE), logDir, FsyncPolicy.ALWAYS, 100);
+
+        assertEquals("value0", storage.get("key0").get());
+        assertEquals("updated", storage.get("key1").get());
+        assertFalse(storage.contains("key2"));
+        assertEquals(99, storage.getKeys().size());
+        storage.close();
+    }
+
+    public void testRangeDeletionIsReplayedInOrder() throws PersistenceException {
+        WriteAheadLogStorage storage = new WriteAheadLogStorage(
+                new LSMTreeStorage(storageDir, Long.MAX_VALUE), logDir, FsyncPolicy.ALWAYS, 100);
+        for (int i = 0; i < 100; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+        Range range = new Range(0, Integer.MAX_VALUE);
+        int inRange = 0;
+        for (int i = 0; i < 100; i++) {
+            if (range.contains(HashRing.hash("key" + i))) {
+                inRange++;
+            }
+        }
+        assertEquals(inRange, storage.deleteRange(range));
+        // written after the deletion, must survive the replay
+        String again = null;
+        for (int i = 0; again == null; i++) {
+            if (range.contains(HashRing.hash("key" + i))) {
+                again = "key" + i;
+            }
+        }
+        storage.put(again, "again");
+
+        // simulate crash by not closing anything, the log has not been checkpointed
+        storage = new WriteAheadLogStorage(
+                new LSMTreeStorage(storageDir, Long.MAX_VALUE), logDir, FsyncPolicy.ALWAYS, 100);
+        for (int i = 0; i < 100; i++) {
+            String key = "key" + i;
+            if (key.equals(again)) {
+                assertEquals("again", storage.get(key).get());
+            } else {
+                assertEquals(!range.contains(HashRing.hash(key)), storage.contains(key));
+            }
+        }
+        storage.close();
+    }
+
+    public void testSnapshotReplaysWritesDuringSnapshot() throws Exception {
+        WriteAheadLogStorage storage = new WriteAheadLogStorage(
+                new LSMTreeStorage(storageDir, 4096), logDir, FsyncPolicy.OS, 100);
+        for (int i = 0; i < 100; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+
+        // keeps writing while the snapshot is taken
+        AtomicBoolean stopped = new AtomicBoolean(false);
+        AtomicInteger written = new AtomicInteger(100);
+        List<Exception> errors = new ArrayList<>();
+        Thread writer = new Thread(() -> {
+            try {
+                while (!stopped.get()) {
+                    int i = written.get();
+                    storage.put("key" + i, "value" + i);
+                    written.incrementAndGet();
+                }
+            } catch (PersistenceException e) {
+                errors.add(e);
+            }
+        });
+        writer.start();
+        Thread.sleep(20);
+        File snapshotDir = new File(storageDir.getPath() + "_snapshot");
+        storage.snapshot(snapshotDir);
+        int writtenBefore = written.get();
+        stopped.set(true);
+        writer.join();
+        assertTrue(errors.isEmpty());
+        storage.close();
+
+        File restoredDir = new File(storageDir.getPath() + "_restored");
+        SnapshotFiles.restore(snapshotDir, restoredDir);
+        File restoredLogDir = new File(restoredDir.getPath() + "_wal");
+        SnapshotFiles.restore(WriteAheadLogStorage.getSnapshotDirectory(snapshotDir), restoredLogDir);
+        WriteAheadLogStorage restored = new WriteAheadLogStorage(
+                new LSMTreeStorage(restoredDir), restoredLogDir, FsyncPolicy.OS, 100);
+
+        // a consistent state contains the writes up to some point and none after it
+        int keys = restored.getKeys().size();
+        assertTrue(keys >= 100 && keys <= writtenBefore);
+        for (int i = 0; i < keys; i++) {
+            assertEquals("value" + i, restored.get("key" + i).get());
+        }
+        restored.close();
+    }
+
+    public void testCheckpointTruncatesLog() throws PersistenceException {
+        WriteAheadLogStorage storage = new WriteAheadLogStorage(
+                new LSMTreeStorage(storageDir), logDir, FsyncPolicy.OS, 100, 1024);
+        for (int i = 0; i < 100; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+        storage.checkpoint();
+
+        // only the empty active log remains
+        assertEquals(1, logDir.list().length);
+        assertEquals(0, logDir.listFiles()[0].length());
+        storage.close();
+
+        storage = new WriteAheadLogStorage(
+                new LSMTreeStorage(storageDir), logDir, FsyncPolicy.OS, 100, 1024);
+        assertEquals(100, storage.getKeys().size());
+        storage.close();
+    }
+
+    public void testConcurrentWritersAreCommitted() throws Exception {
+        WriteAheadLogStorage storage = new WriteAheadLogStorage(
+                new LSMTreeStorage(storageDir, Long.MAX_VALUE), logDir, FsyncPolicy.ALWAYS, 100);
+
+        List<Thread> writers = new ArrayList<>();
+        List<Exception> errors = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int writer = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 50; i++) {
+                        storage.put("key" + writer + "_" + i, "value" + i);
+                    }
+                } catch (PersistenceException e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            writers.add(thread);
+            thread.start();
+        }
+        for (Thread thread : writers) {
+            thread.join();
+        }
+        assertTrue(errors.isEmpty());
+
+        // simulate crash by not closing anything
+        WriteAheadLogStorage recovered = new WriteAheadLogStorage(
+                new LSMTreeStorage(storageDir, Long.MAX_VALUE), logDir, FsyncPolicy.ALWAYS, 100);
+        assertEquals(400, recovered.getKeys().size());
+        recovered.close();
+    }
+
+}